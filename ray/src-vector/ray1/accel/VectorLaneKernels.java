@@ -0,0 +1,109 @@
+package ray1.accel;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * LaneKernels written with the incubating Vector API: each lane loop becomes
+ * arithmetic on one four-lane double vector, with the operations in the same
+ * order so that the results match the loops bit for bit.
+ *
+ * This file is kept out of src because it only compiles with the incubator
+ * module.  To use it, compile it into the same output directory as the rest of
+ * the ray tracer and run with the module:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin src-vector/ray1/accel/VectorLaneKernels.java
+ *   java --add-modules jdk.incubator.vector -cp bin:... ray1.RayTracer ...
+ *
+ * LaneKernels.get() picks it up when the module is present, and falls back to
+ * the loops otherwise.
+ */
+class VectorLaneKernels extends LaneKernels {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_128;
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_256;
+
+	VectorLaneKernels() {
+		// On a processor without four-lane double vectors the API would emulate
+		// them far more slowly than the loops run
+		if (DoubleVector.SPECIES_PREFERRED.length() < WIDTH)
+			throw new UnsupportedOperationException("no " + WIDTH + "-lane double vectors");
+	}
+
+	@Override
+	public String getName() { return "Vector API"; }
+
+	/**
+	 * @return the four floats at a[o] as doubles
+	 */
+	private static DoubleVector load(float[] a, int o) {
+		return (DoubleVector) FloatVector.fromArray(FLOATS, a, o).convertShape(VectorOperators.F2D, DOUBLES, 0);
+	}
+
+	@Override
+	public int intersectBoxes(float[] bounds, int b, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMin, double tMax, double[] t) {
+		int x = ix < 0 ? 3 * WIDTH : 0, y = iy < 0 ? 3 * WIDTH : 0, z = iz < 0 ? 3 * WIDTH : 0;
+		DoubleVector near = DoubleVector.broadcast(DOUBLES, tMin), far = DoubleVector.broadcast(DOUBLES, tMax);
+		near = later(near, planes(bounds, b + x, ox, ix));
+		far = earlier(far, planes(bounds, b + 3 * WIDTH - x, ox, ix));
+		near = later(near, planes(bounds, b + WIDTH + y, oy, iy));
+		far = earlier(far, planes(bounds, b + 4 * WIDTH - y, oy, iy));
+		near = later(near, planes(bounds, b + 2 * WIDTH + z, oz, iz));
+		far = earlier(far, planes(bounds, b + 5 * WIDTH - z, oz, iz));
+		near.intoArray(t, 0);
+		far.intoArray(t, WIDTH);
+		return (int) near.compare(VectorOperators.LE, far).toLong();
+	}
+
+	/**
+	 * @return the distances along the ray to the four planes at bounds[o]
+	 */
+	private static DoubleVector planes(float[] bounds, int o, double origin, double inv) {
+		return load(bounds, o).sub(origin).mul(inv);
+	}
+
+	/**
+	 * @return the lanes of b that are greater than those of a, and a elsewhere;
+	 * like max, except that NaNs in b are ignored as the loops ignore them
+	 */
+	private static DoubleVector later(DoubleVector a, DoubleVector b) {
+		return a.blend(b, b.compare(VectorOperators.GT, a));
+	}
+
+	/**
+	 * @return the lanes of b that are less than those of a, and a elsewhere
+	 */
+	private static DoubleVector earlier(DoubleVector a, DoubleVector b) {
+		return a.blend(b, b.compare(VectorOperators.LT, a));
+	}
+
+	@Override
+	public int intersectTriangles(float[] lanes, int g, double ox, double oy, double oz,
+			double dx, double dy, double dz, double[] out) {
+		DoubleVector p0x = load(lanes, g), p0y = load(lanes, g + 4), p0z = load(lanes, g + 8);
+		DoubleVector e1x = load(lanes, g + 12).sub(p0x), e1y = load(lanes, g + 16).sub(p0y), e1z = load(lanes, g + 20).sub(p0z);
+		DoubleVector e2x = load(lanes, g + 24).sub(p0x), e2y = load(lanes, g + 28).sub(p0y), e2z = load(lanes, g + 32).sub(p0z);
+
+		DoubleVector px = e2z.mul(dy).sub(e2y.mul(dz)), py = e2x.mul(dz).sub(e2z.mul(dx)), pz = e2y.mul(dx).sub(e2x.mul(dy));
+		DoubleVector det = e1x.mul(px).add(e1y.mul(py)).add(e1z.mul(pz));
+		DoubleVector inv = DoubleVector.broadcast(DOUBLES, 1.0).div(det);
+		DoubleVector sx = DoubleVector.broadcast(DOUBLES, ox).sub(p0x);
+		DoubleVector sy = DoubleVector.broadcast(DOUBLES, oy).sub(p0y);
+		DoubleVector sz = DoubleVector.broadcast(DOUBLES, oz).sub(p0z);
+		DoubleVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(inv);
+		DoubleVector qx = sy.mul(e1z).sub(sz.mul(e1y)), qy = sz.mul(e1x).sub(sx.mul(e1z)), qz = sx.mul(e1y).sub(sy.mul(e1x));
+		DoubleVector v = qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz)).mul(inv);
+		e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(inv).intoArray(out, 0);
+		u.intoArray(out, 4);
+		v.intoArray(out, 8);
+		return (int) det.compare(VectorOperators.NE, 0)
+				.and(u.compare(VectorOperators.GE, 0))
+				.and(u.compare(VectorOperators.LE, 1))
+				.and(v.compare(VectorOperators.GE, 0))
+				.and(u.add(v).compare(VectorOperators.LE, 1))
+				.toLong();
+	}
+}
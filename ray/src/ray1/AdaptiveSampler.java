@@ -0,0 +1,180 @@
+package ray1;
+
+import java.util.Arrays;
+
+import egl.math.Colorf;
+
+/**
+ * Accumulates the samples taken in each pixel and decides which pixels need more.
+ *
+ * Samples are taken in rounds.  After each round markPixels() looks at the whole
+ * image and flags a pixel for another round if the standard error of its mean is
+ * above the threshold, or if it differs from one of its four neighbours by more
+ * than the threshold.  Pixels that have reached the sample limit are never
+ * flagged.  Both tests work on luminance compressed to [0, 1) by L / (1 + L)
+ * after exposure, so the threshold means roughly the same thing in dark and
+ * bright regions.  Pixels with no samples, outside the part of the image being
+ * rendered, are never flagged and never compared with their neighbours.
+ *
+ * Rendering threads may add samples to disjoint sets of pixels concurrently;
+ * markPixels() must not run at the same time as addSample().
+ */
+public class AdaptiveSampler {
+
+	protected final int width, height;
+
+	/** The largest number of samples taken in one pixel. */
+	protected final int maxSamples;
+
+	/** The largest standard error or neighbour difference a pixel may have. */
+	protected final float threshold;
+
+	/** The exposure applied before comparing luminances. */
+	protected final float exposure;
+
+	/** Sums of the samples, three per pixel, row-major. */
+	protected final double[] sum;
+
+	/** Sums of the compressed sample luminances, and of their squares. */
+	protected final double[] sumL, sumSq;
+
+	/** Samples taken in each pixel. */
+	protected final int[] count;
+
+	/** Pixels that need more samples. */
+	protected final boolean[] active;
+
+	public AdaptiveSampler(int width, int height, int maxSamples, float threshold, float exposure) {
+		this.width = width;
+		this.height = height;
+		this.maxSamples = maxSamples;
+		this.threshold = threshold;
+		this.exposure = exposure;
+		sum = new double[3 * width * height];
+		sumL = new double[width * height];
+		sumSq = new double[width * height];
+		count = new int[width * height];
+		active = new boolean[width * height];
+		Arrays.fill(active, true);
+	}
+
+	public int getMaxSamples() { return maxSamples; }
+
+	/**
+	 * @return the number of samples taken so far in pixel (x, y)
+	 */
+	public int getSampleCount(int x, int y) { return count[y * width + x]; }
+
+	/**
+	 * @return true if pixel (x, y) should get samples in the current round
+	 */
+	public boolean isActive(int x, int y) { return active[y * width + x]; }
+
+	/**
+	 * Add one sample, before exposure, to pixel (x, y).
+	 */
+	public void addSample(int x, int y, Colorf c) {
+		int i = y * width + x;
+		sum[3 * i] += c.x;
+		sum[3 * i + 1] += c.y;
+		sum[3 * i + 2] += c.z;
+		double l = compress(luminance(c.x, c.y, c.z));
+		sumL[i] += l;
+		sumSq[i] += l * l;
+		count[i]++;
+	}
+
+	/**
+	 * Set outColor to the mean of the samples in pixel (x, y).
+	 */
+	public void getMean(Colorf outColor, int x, int y) {
+		int i = y * width + x;
+		float n = Math.max(1, count[i]);
+		outColor.set((float) (sum[3 * i] / n), (float) (sum[3 * i + 1] / n), (float) (sum[3 * i + 2] / n));
+	}
+
+	private static double luminance(double r, double g, double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+
+	private double compress(double l) {
+		l = Math.max(0, l * exposure);
+		return l / (1 + l);
+	}
+
+	/**
+	 * @return the compressed luminance of the mean of pixel i
+	 */
+	private double meanLuminance(int i) {
+		double n = Math.max(1, count[i]);
+		return compress(luminance(sum[3 * i] / n, sum[3 * i + 1] / n, sum[3 * i + 2] / n));
+	}
+
+	/**
+	 * Decide which pixels get samples in the next round.
+	 *
+	 * @return the number of pixels flagged
+	 */
+	public int markPixels() {
+		int n = width * height;
+		double[] mean = new double[n];
+		for (int i = 0; i < n; i++) {
+			mean[i] = meanLuminance(i);
+			active[i] = false;
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				int c = count[i];
+				if (c > 1) {
+					// Standard error of the mean compressed luminance
+					double var = (sumSq[i] - sumL[i] * sumL[i] / c) / (c - 1);
+					if (Math.sqrt(Math.max(0, var) / c) > threshold)
+						flag(i);
+				}
+				if (x + 1 < width && c > 0 && count[i + 1] > 0 && Math.abs(mean[i] - mean[i + 1]) > threshold) {
+					flag(i);
+					flag(i + 1);
+				}
+				if (y + 1 < height && c > 0 && count[i + width] > 0 && Math.abs(mean[i] - mean[i + width]) > threshold) {
+					flag(i);
+					flag(i + width);
+				}
+			}
+		}
+		int flagged = 0;
+		for (int i = 0; i < n; i++)
+			if (active[i])
+				flagged++;
+		return flagged;
+	}
+
+	private void flag(int i) {
+		if (count[i] < maxSamples)
+			active[i] = true;
+	}
+
+	/**
+	 * @return the total number of samples taken
+	 */
+	public long getTotalSamples() {
+		long total = 0;
+		for (int c : count)
+			total += c;
+		return total;
+	}
+
+	/**
+	 * Store the number of samples taken in each pixel in all three channels of image.
+	 */
+	public void writeSampleCounts(Image image) {
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float n = count[y * width + x];
+				c.set(n, n, n);
+				image.setPixelColor(c, x, y);
+			}
+		}
+	}
+}
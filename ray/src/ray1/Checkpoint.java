@@ -0,0 +1,285 @@
+package ray1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import egl.math.Colorf;
+
+/**
+ * A file recording the finished tiles of a render, so that a render that is
+ * interrupted can be resumed without redoing them.
+ *
+ * The file starts with a header describing the render (image size, tiling and
+ * sampling settings) and is followed by one record per finished tile: the tile's
+ * number, its bounds, its pixels as floats and a CRC32 of the record.  Records
+ * are only ever appended, so a crash can at worst leave a partial last record,
+ * which the CRC exposes and resuming discards.
+ *
+ * Render threads hand finished tiles to tileDone(), which copies the pixels and
+ * queues them; a single writer thread appends them to the file and forces the
+ * file to disk at most once per interval.  The render threads only wait for the
+ * disk when MAX_QUEUED tiles are already waiting, which bounds the memory held
+ * by the queue.  If a write fails, later tiles are dropped and close() reports
+ * the error; the render itself goes on.
+ */
+public class Checkpoint implements AutoCloseable {
+
+	/** "R1CP", followed by the format version. */
+	private static final int MAGIC = 0x52314350;
+	private static final int VERSION = 1;
+
+	/** The bytes of a record around its pixels: number, bounds, and CRC. */
+	private static final int RECORD_OVERHEAD = 5 * 4 + 4;
+
+	/** The most finished tiles that may wait for the writer thread. */
+	public static final int MAX_QUEUED = 64;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long interval;
+
+	/** The tiles already in the file. */
+	private final BitSet done = new BitSet();
+
+	/** Finished tiles waiting to be written; an empty buffer asks the writer to stop. */
+	private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+	private final Thread writer;
+	private volatile IOException writeError;
+	private boolean closed;
+
+	/**
+	 * Open the checkpoint file for a render.  If resume is true and the file holds
+	 * a checkpoint of a render with the same settings, its tiles are copied into
+	 * image and reported by isDone(); otherwise the file is started afresh.
+	 *
+	 * @param settings a description of everything that affects the pixels of a tile
+	 * @param interval the longest time, in milliseconds, that finished tiles may
+	 * wait before being forced to disk
+	 */
+	public Checkpoint(Path file, String settings, Image image, List<Tile> tiles, boolean resume, long interval) throws IOException {
+		this.file = file;
+		this.interval = interval;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			byte[] header = header(settings);
+			long end = resume ? readTiles(header, image, tiles) : -1;
+			if (end < 0) {
+				channel.truncate(0);
+				writeFully(ByteBuffer.wrap(header), 0);
+				end = header.length;
+			}
+			else {
+				System.out.println("Resuming from " + file + ": " + done.cardinality() + " of " + tiles.size() + " tiles done");
+			}
+			channel.truncate(end);
+			channel.position(end);
+			channel.force(true);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		writer = new Thread(this::writeTiles, "checkpoint writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static byte[] header(String settings) {
+		byte[] s = settings.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(12 + s.length).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC).putInt(VERSION).putInt(s.length).put(s);
+		return b.array();
+	}
+
+	/**
+	 * Read the tiles of an existing checkpoint into image.
+	 *
+	 * @return the end of the last good record, or -1 if the file is not a
+	 * checkpoint of a render with this header
+	 */
+	private long readTiles(byte[] header, Image image, List<Tile> tiles) throws IOException {
+		long size = channel.size();
+		if (size < header.length)
+			return -1;
+		ByteBuffer existing = ByteBuffer.allocate(header.length);
+		readFully(existing, 0);
+		existing.flip();
+		if (!existing.equals(ByteBuffer.wrap(header)))
+			return -1;
+
+		long pos = header.length;
+		ByteBuffer prefix = ByteBuffer.allocate(5 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		Colorf c = new Colorf();
+		CRC32 crc = new CRC32();
+		while (pos + RECORD_OVERHEAD <= size) {
+			prefix.clear();
+			readFully(prefix, pos);
+			prefix.flip();
+			int index = prefix.getInt(), x0 = prefix.getInt(), y0 = prefix.getInt(), x1 = prefix.getInt(), y1 = prefix.getInt();
+			if (index < 0 || index >= tiles.size() || x0 < 0 || y0 < 0 || x1 > image.getWidth() || y1 > image.getHeight()
+					|| x0 >= x1 || y0 >= y1)
+				break;
+			int length = RECORD_OVERHEAD + 12 * (x1 - x0) * (y1 - y0);
+			if (pos + length > size)
+				break;
+			ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(record, pos);
+			crc.reset();
+			crc.update(record.array(), 0, length - 4);
+			if ((int) crc.getValue() != record.getInt(length - 4))
+				break;
+			record.position(5 * 4);
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					c.set(record.getFloat(), record.getFloat(), record.getFloat());
+					image.setPixelColor(c, x, y);
+				}
+			}
+			done.set(index);
+			pos += length;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return true if the checkpoint already holds the tile
+	 */
+	public boolean isDone(Tile tile) {
+		return done.get(tile.index);
+	}
+
+	/**
+	 * Record that a tile is finished.  The tile's pixels are copied from image
+	 * right away and written to the file later by the writer thread, waiting for
+	 * room if the queue is full.
+	 */
+	public void tileDone(Tile tile, Image image) {
+		int length = RECORD_OVERHEAD + 12 * tile.pixelCount();
+		ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(tile.index).putInt(tile.x0).putInt(tile.y0).putInt(tile.x1).putInt(tile.y1);
+		Colorf c = new Colorf();
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
+				image.getPixelColor(c, x, y);
+				record.putFloat(c.x).putFloat(c.y).putFloat(c.z);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, length - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		try {
+			queue.put(record);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The writer thread: append queued tiles, forcing them to disk at most once
+	 * per interval, until an empty buffer arrives.  After a failed write it keeps
+	 * taking tiles off the queue, so that tileDone() never waits forever.
+	 */
+	private void writeTiles() {
+		long lastForce = System.currentTimeMillis();
+		boolean dirty = false;
+		try {
+			while (true) {
+				ByteBuffer record = queue.poll(Math.max(1, interval), TimeUnit.MILLISECONDS);
+				if (record != null && !record.hasRemaining())
+					break;
+				if (writeError != null)
+					continue;
+				try {
+					if (record != null) {
+						while (record.hasRemaining())
+							channel.write(record);
+						dirty = true;
+					}
+					if (dirty && System.currentTimeMillis() - lastForce >= interval) {
+						channel.force(false);
+						lastForce = System.currentTimeMillis();
+						dirty = false;
+					}
+				}
+				catch (IOException e) {
+					writeError = e;
+				}
+			}
+			if (writeError == null)
+				channel.force(false);
+		}
+		catch (IOException e) {
+			writeError = e;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write any tiles still queued and close the file.  Closing again does nothing.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			queue.put(ByteBuffer.allocate(0));
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			if (writeError == null)
+				writeError = e;
+		}
+		if (writeError != null)
+			System.err.println("Warning: could not write checkpoint " + file + ": " + writeError);
+	}
+
+	/**
+	 * Close the file, if it is still open, and remove it, once the image it was
+	 * protecting has been written.
+	 */
+	public void delete() {
+		close();
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch (IOException e) {
+			System.err.println("Warning: could not remove checkpoint " + file + ": " + e);
+		}
+	}
+
+	private void readFully(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0)
+				throw new IOException("unexpected end of file");
+			pos += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining())
+			pos += channel.write(b, pos);
+	}
+}
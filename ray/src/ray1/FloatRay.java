@@ -0,0 +1,67 @@
+package ray1;
+
+/**
+ * A ray in single precision, with what single-precision traversal and
+ * intersection need precomputed: the inverse direction for box tests, and the
+ * axis permutation and shear of the watertight triangle test (Woop, Benthin and
+ * Wald, "Watertight Ray/Triangle Intersection", JCGT 2013).
+ *
+ * The double-precision Ray stays the ray of record: its start and end bound the
+ * segment and are moved to hits, so the float copy only has to be made once
+ * per intersection query.
+ */
+public class FloatRay {
+
+	/** Origin, direction and inverse direction. */
+	public float ox, oy, oz, dx, dy, dz, ix, iy, iz;
+
+	/**
+	 * The axes of the triangle test: kz is the axis along which the direction is
+	 * largest, and kx, ky the other two in an order that keeps the winding.
+	 */
+	public int kx, ky, kz;
+
+	/** The origin along kx, ky and kz. */
+	public float okx, oky, okz;
+
+	/** The shear that maps the direction to the kz axis, and the scale along it. */
+	public float sx, sy, sz;
+
+	public FloatRay() { }
+
+	/**
+	 * Set this ray to a rounded copy of the origin and direction of r.
+	 */
+	public void set(Ray r) {
+		ox = (float) r.origin.x;
+		oy = (float) r.origin.y;
+		oz = (float) r.origin.z;
+		dx = (float) r.direction.x;
+		dy = (float) r.direction.y;
+		dz = (float) r.direction.z;
+		ix = 1 / dx;
+		iy = 1 / dy;
+		iz = 1 / dz;
+
+		float ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+		kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+		kx = (kz + 1) % 3;
+		ky = (kx + 1) % 3;
+		if (component(kz, dx, dy, dz) < 0) {
+			int k = kx;
+			kx = ky;
+			ky = k;
+		}
+		okx = component(kx, ox, oy, oz);
+		oky = component(ky, ox, oy, oz);
+		okz = component(kz, ox, oy, oz);
+		float dkz = component(kz, dx, dy, dz);
+		sx = component(kx, dx, dy, dz) / dkz;
+		sy = component(ky, dx, dy, dz) / dkz;
+		sz = 1 / dkz;
+	}
+
+	private static float component(int k, float x, float y, float z) {
+		return k == 0 ? x : k == 1 ? y : z;
+	}
+}
@@ -1,26 +1,41 @@
 package ray1;
 
-import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-
-import javax.imageio.ImageIO;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
 
 import edu.cornell.graphics.exr.Channel;
 import edu.cornell.graphics.exr.ChannelList;
+import edu.cornell.graphics.exr.EXRInputFile;
 import edu.cornell.graphics.exr.EXROutputFile;
 import edu.cornell.graphics.exr.FrameBuffer;
 import edu.cornell.graphics.exr.Header;
 import edu.cornell.graphics.exr.PixelType;
 import edu.cornell.graphics.exr.Slice;
+import edu.cornell.graphics.exr.attributes.StringAttribute;
+import edu.cornell.graphics.exr.ilmbaseto.Box2;
 import egl.math.Color;
 import egl.math.Colorf;
 
 /**
- * Basic image class, containing a 2D array of Colorfs. Simple functionality for
+ * Basic image class, containing a 2D array of RGB float pixels. Simple functionality for
  * setting pixel colors and writing to a PNG/EXR file is provided.
  *
+ * The pixels are stored in a single direct buffer of little-endian floats, three per
+ * pixel, one row after another.  Rows are stored top to bottom, which is the reverse
+ * of the image's y coordinate and the order in which they are written to a file, so
+ * writeHDR can hand the buffer to the EXR library as it is.
+ *
  * @author eschweic
  */
 public class Image {
@@ -31,8 +46,11 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colorf[][] data;
+	/** The bytes of the pixel data; the EXR library is given views of them from pixelBytes() */
+	protected ByteBuffer bytes;
+	
+	/** Data array, a view of bytes * */
+	protected FloatBuffer data;
 	
 	/**
 	 * Create an empty image
@@ -51,22 +69,15 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		pixelBytes().put(oldImage.pixelBytes());
 	}
 	
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colorf();
-			}
-		}
+		for (int i = 0; i < data.capacity(); i++)
+			data.put(i, 0f);
 	}
 	
 	/**
@@ -91,12 +102,31 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colorf[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colorf();
-			}
-		}
+		bytes = ByteBuffer.allocateDirect(PIXEL_SIZE * width * height).order(ByteOrder.LITTLE_ENDIAN);
+		data = bytes.asFloatBuffer();
+	}
+	
+	/** The number of bytes in one pixel */
+	private static final int PIXEL_SIZE = 3 * Float.BYTES;
+	
+	/**
+	 * @return a new view of the pixel bytes starting at the first pixel, so that
+	 * whatever a reader or writer does to the position of one does not affect the
+	 * next
+	 */
+	private ByteBuffer pixelBytes() {
+		ByteBuffer b = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.clear();
+		return b;
+	}
+	
+	/**
+	 * @return the index in data of the red component of pixel (inX, inY)
+	 */
+	private int index(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return 3 * ((height - 1 - inY) * width + inX);
 	}
 	
 	/**
@@ -107,9 +137,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(toByte(data.get(i)), toByte(data.get(i + 1)), toByte(data.get(i + 2)));
 	}
 	
 	/**
@@ -120,9 +149,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colorf outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(data.get(i), data.get(i + 1), data.get(i + 2));
 	}
 	
 	/**
@@ -132,9 +160,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data.put(i, inPixel.r() / 255.0f);
+		data.put(i + 1, inPixel.g() / 255.0f);
+		data.put(i + 2, inPixel.b() / 255.0f);
 	}
 	
 	/**
@@ -144,31 +173,63 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colorf inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data.put(i, inPixel.x);
+		data.put(i + 1, inPixel.y);
+		data.put(i + 2, inPixel.z);
 	}
 	
+	/**
+	 * Convert a linear value to an 8 bit sRGB-ish value, the same way as
+	 * Colorf.gammaCorrect(2.2f) followed by Colorf.toColor().
+	 */
+	private static byte toByte(float v) {
+		return (byte) (Math.max(Math.min(v, 1.0f), 0.0f) * 255f + 0.5f);
+	}
+	
+	private static final float INVERSE_GAMMA = 1.0f / 2.2f;
+	
 	/**
 	 * Write this image to the filename.  The output is always written as a PNG regardless
-	 * of the extension on the filename given.
+	 * of the extension on the filename given.  The file is written one row at a time, so
+	 * no second copy of the image is made.
 	 * @param fileName the output filename
 	 */
 	public void write(String fileName) {
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		
-		Colorf pixelColor= new Colorf();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2f);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+			out.write(PNG_SIGNATURE);
+			
+			ByteBuffer header = ByteBuffer.allocate(13);
+			header.putInt(width).putInt(height);
+			header.put((byte) 8);  // bit depth
+			header.put((byte) 2);  // color type: RGB
+			header.put((byte) 0);  // compression: deflate
+			header.put((byte) 0);  // filter method: adaptive
+			header.put((byte) 0);  // interlace: none
+			writeChunk(out, "IHDR", header.array(), header.position());
+			
+			// Each row is stored with the Sub filter, which stores the difference from
+			// the pixel to the left and compresses smooth rendered images well.
+			byte[] row = new byte[1 + 3 * width];
+			row[0] = 1;
+			try (DeflaterOutputStream idat = new DeflaterOutputStream(new ChunkOutputStream(out, "IDAT"))) {
+				int i = 0;
+				for (int y = 0; y < height; y++) {
+					int prev0 = 0, prev1 = 0, prev2 = 0;
+					for (int x = 0; x < width; x++, i += 3) {
+						int c0 = toByte((float) Math.pow(data.get(i), INVERSE_GAMMA)) & 0xff;
+						int c1 = toByte((float) Math.pow(data.get(i + 1), INVERSE_GAMMA)) & 0xff;
+						int c2 = toByte((float) Math.pow(data.get(i + 2), INVERSE_GAMMA)) & 0xff;
+						row[1 + 3 * x] = (byte) (c0 - prev0);
+						row[2 + 3 * x] = (byte) (c1 - prev1);
+						row[3 + 3 * x] = (byte) (c2 - prev2);
+						prev0 = c0; prev1 = c1; prev2 = c2;
+					}
+					idat.write(row);
+				}
 			}
-		}
-		
-		try {
-			ImageIO.write(bufferedImage, "PNG", new File(fileName));
+			
+			writeChunk(out, "IEND", new byte[0], 0);
 		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
@@ -177,6 +238,79 @@ public class Image {
 		}
 	}
 	
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	
+	/**
+	 * Write one PNG chunk: length, type, data and the CRC of type and data.
+	 */
+	private static void writeChunk(OutputStream out, String type, byte[] b, int len) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(b, 0, len);
+		writeInt(out, len);
+		out.write(typeBytes);
+		out.write(b, 0, len);
+		writeInt(out, (int) crc.getValue());
+	}
+	
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+	
+	/**
+	 * Cuts the bytes written to it into chunks of one type, so compressed image
+	 * data can be written as it is produced.  Nothing is written to the
+	 * underlying stream by close().
+	 */
+	private static class ChunkOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final String type;
+		private final byte[] buffer = new byte[1 << 16];
+		private int count;
+		
+		ChunkOutputStream(OutputStream out, String type) {
+			this.out = out;
+			this.type = type;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				flush();
+			buffer[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length)
+					flush();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				writeChunk(out, type, buffer, count);
+				count = 0;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+	
 	/**
 	 * A quick openEXR-JNI write test
 	 * Write this image to the filename.  The output is always written as HDR regardless
@@ -184,36 +318,95 @@ public class Image {
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
+		writeHDR(fileName, 0, 0, width, height, null);
+	}
+	
+	/**
+	 * Write part of the image to an OpenEXR file.  The file's display window is the
+	 * whole image and its data window holds the pixels in [x0, x1) x [y0, y1), so
+	 * readHDR can put them back in place in an image of the same size.
+	 *
+	 * @param fileName the file to write
+	 * @param attributes string attributes to add to the file's header, or null
+	 */
+	public void writeHDR(String fileName, int x0, int y0, int x1, int y1, Map<String, String> attributes) {
 		
 		File outFile = new File(fileName);
 
         final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
-        final int elemSize    = pixelType.byteSize();
-        final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
     
 		Header hdrHeader = new Header(width, height);
+		// File rows run top to bottom, the reverse of y
+		hdrHeader.setDataWindow(x0, height - y1, x1 - 1, height - 1 - y0);
+		if (attributes != null)
+			for (Map.Entry<String, String> a : attributes.entrySet())
+				hdrHeader.insert(a.getKey(), new StringAttribute(a.getValue()));
 		
 		ChannelList channels = hdrHeader.getChannels();
         channels.insert("R", new Channel(pixelType));
         channels.insert("G", new Channel(pixelType));
         channels.insert("B", new Channel(pixelType));
         
-		Colorf pixelColor= new Colorf();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
+        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
+             out.setFrameBuffer(frameBuffer());
+             out.writePixels(y1 - y0);
+             System.out.printf("  Wrote RGB32F file %s%n", outFile);
+             
+             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
+         }
+		catch (Exception e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Read the R, G and B channels of an OpenEXR file into this image, which must be
+	 * the size of the file's display window.  Only the pixels in the file's data
+	 * window are changed.
+	 *
+	 * @param fileName the file to read
+	 * @return the header of the file
+	 * @throws IOException if the file cannot be read or does not fit the image
+	 */
+	public Header readHDR(String fileName) throws IOException {
+		try (EXRInputFile in = new EXRInputFile(Paths.get(fileName))) {
+			Header header = in.getHeader();
+			Box2<Integer> display = header.getDisplayWindow();
+			Box2<Integer> dataWindow = header.getDataWindow();
+			if (display.xMin != 0 || display.yMin != 0
+					|| display.xMax != width - 1 || display.yMax != height - 1)
+				throw new IOException(fileName + " has display window " + display + ", not " + width + " x " + height);
+			if (dataWindow.xMin < 0 || dataWindow.yMin < 0 || dataWindow.xMax >= width || dataWindow.yMax >= height)
+				throw new IOException(fileName + " has data window " + dataWindow + " outside its display window");
+			in.setFrameBuffer(frameBuffer());
+			in.readPixels(dataWindow.yMin, dataWindow.yMax);
+			return header;
+		}
+	}
+	
+	/**
+	 * @return the header of an OpenEXR file, which gives the size of the image in it
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Header readHeader(String fileName) throws IOException {
+		try (EXRInputFile in = new EXRInputFile(Paths.get(fileName))) {
+			return in.getHeader();
+		}
+	}
+	
+	/**
+	 * @return an EXR frame buffer over the pixels, in absolute file coordinates
+	 */
+	private FrameBuffer frameBuffer() {
+        final PixelType pixelType = PixelType.FLOAT;
+        final int elemSize    = pixelType.byteSize();
+        final int pixelSize   = PIXEL_SIZE;
+        
+        // The pixels are already stored in file order
+        ByteBuffer pixels = pixelBytes();
         
-     // Build the frame buffer
         FrameBuffer frameBuffer = new FrameBuffer();
         final int yStride = width * pixelSize;
         frameBuffer.insert("R", Slice.build()
@@ -225,20 +418,7 @@ public class Image {
         frameBuffer.insert("B", Slice.build()
                 .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
                 .xStride(pixelSize).yStride(yStride).get());
-        
-        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
-             out.setFrameBuffer(frameBuffer);
-             out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
-             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
-         }
-		catch (Exception e) {
-			System.out.println("Error occured while attempting to write file: "+fileName);
-			System.err.println(e);
-			e.printStackTrace();
-		}
+        return frameBuffer;
 	}
 
 }
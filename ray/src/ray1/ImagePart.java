@@ -0,0 +1,183 @@
+package ray1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The part of an image to render, for splitting one image across machines:
+ * tiles firstTile to lastTile (numbered as by Tile.split), chunk number chunk
+ * of numChunks equal runs of tiles, or the pixels in the window [x0, x1) x
+ * [y0, y1).  With none of these the whole image is rendered.  The parts depend
+ * only on the image and tile sizes, so any machine can render any part again,
+ * and TileMerger puts the partial images back together.
+ *
+ * This is what RayTracer's -tiles and -window options set.
+ */
+public class ImagePart {
+
+	/**
+	 * An argument that picks the part of the image to render is malformed, or
+	 * picks no pixels of a scene's image.
+	 */
+	public static class PartArgumentException extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+
+		public PartArgumentException(String message) { super(message); }
+	}
+
+	protected int firstTile = -1, lastTile = -1;
+	public void setTileRange(int firstTile, int lastTile) {
+		if (firstTile < 0 || lastTile < firstTile)
+			throw new IllegalArgumentException("Bad tile range " + firstTile + "-" + lastTile);
+		this.firstTile = firstTile;
+		this.lastTile = lastTile;
+	}
+	protected int chunk = -1, numChunks = 0;
+	public void setChunk(int chunk, int numChunks) {
+		if (chunk < 0 || chunk >= numChunks)
+			throw new IllegalArgumentException("Chunk " + chunk + " of " + numChunks + " does not exist");
+		this.chunk = chunk;
+		this.numChunks = numChunks;
+	}
+	protected int[] window;
+	public void setWindow(int x0, int y0, int x1, int y1) {
+		if (x0 < 0 || y0 < 0 || x1 <= x0 || y1 <= y0)
+			throw new IllegalArgumentException("Bad window [" + x0 + ", " + x1 + ") x [" + y0 + ", " + y1 + ")");
+		window = new int[] { x0, y0, x1, y1 };
+	}
+
+	/**
+	 * Whether only part of the image is rendered.
+	 */
+	public boolean isPartial() { return firstTile >= 0 || chunk >= 0 || window != null; }
+
+	/**
+	 * The bounds of the part picked by the last call to select, as x0, y0, x1, y1,
+	 * and the string attributes that describe it in the partial image's header;
+	 * null if the whole image was picked.
+	 */
+	protected int[] bounds;
+	protected Map<String, String> attributes;
+	public int[] getBounds() { return bounds; }
+	public Map<String, String> getAttributes() { return attributes; }
+
+	/**
+	 * Parse a -tiles argument, first-last or i/n, into the part of the image to
+	 * render.
+	 *
+	 * @throws PartArgumentException if the argument is malformed, or a part has
+	 * already been given
+	 */
+	public void parseTiles(String arg) {
+		if (isPartial())
+			throw new PartArgumentException("Give only one -tiles or -window option");
+		Matcher m = Pattern.compile("(\\d+)([-/])(\\d+)").matcher(arg);
+		if (!m.matches())
+			throw new PartArgumentException("-tiles takes first-last or i/n, not " + arg);
+		try {
+			int a = Integer.parseInt(m.group(1)), b = Integer.parseInt(m.group(3));
+			if (m.group(2).equals("/")) setChunk(a, b);
+			else setTileRange(a, b);
+		}
+		catch (NumberFormatException e) {
+			throw new PartArgumentException("-tiles " + arg + " is out of range");
+		}
+		catch (IllegalArgumentException e) {
+			throw new PartArgumentException("-tiles " + arg + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Parse the four -window arguments x0 y0 x1 y1 into the part of the image to
+	 * render.
+	 *
+	 * @throws PartArgumentException if the arguments are malformed, or a part has
+	 * already been given
+	 */
+	public void parseWindow(String[] coords) {
+		if (isPartial())
+			throw new PartArgumentException("Give only one -tiles or -window option");
+		if (coords.length != 4)
+			throw new PartArgumentException("-window takes four pixel coordinates x0 y0 x1 y1");
+		try {
+			setWindow(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]),
+					Integer.parseInt(coords[2]), Integer.parseInt(coords[3]));
+		}
+		catch (NumberFormatException e) {
+			throw new PartArgumentException("-window takes four pixel coordinates x0 y0 x1 y1, not " + String.join(" ", coords));
+		}
+		catch (IllegalArgumentException e) {
+			throw new PartArgumentException("-window " + String.join(" ", coords) + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Pick the tiles of this part of the image, and set bounds and attributes to
+	 * describe it.  Tiles are clipped to the window, if there is one, but keep
+	 * their numbers.
+	 *
+	 * @param tiles all the tiles of the image, as made by Tile.split
+	 * @param tileSize the size the tiles were split with
+	 * @return the tiles to render
+	 * @throws PartArgumentException if the part has no pixels in the image
+	 */
+	public List<Tile> select(List<Tile> tiles, int width, int height, int tileSize) {
+		bounds = null;
+		attributes = null;
+		if (!isPartial())
+			return tiles;
+
+		List<Tile> part = new ArrayList<>();
+		Map<String, String> partAttributes = new LinkedHashMap<>();
+		if (window != null) {
+			int x0 = Math.max(0, window[0]), y0 = Math.max(0, window[1]);
+			int x1 = Math.min(width, window[2]), y1 = Math.min(height, window[3]);
+			if (x0 >= x1 || y0 >= y1)
+				throw new PartArgumentException("Window " + Arrays.toString(window) + " is outside the " + width + " x " + height + " image");
+			for (Tile t : tiles)
+				if (t.x0 < x1 && t.x1 > x0 && t.y0 < y1 && t.y1 > y0)
+					part.add(new Tile(t.index, Math.max(t.x0, x0), Math.max(t.y0, y0), Math.min(t.x1, x1), Math.min(t.y1, y1)));
+		}
+		else {
+			int first = firstTile, last = lastTile;
+			if (chunk >= 0) {
+				first = (int) ((long) chunk * tiles.size() / numChunks);
+				last = (int) ((long) (chunk + 1) * tiles.size() / numChunks) - 1;
+			}
+			last = Math.min(last, tiles.size() - 1);
+			if (first > last)
+				throw new PartArgumentException("No tiles in " + first + "-" + last + " of " + tiles.size());
+			part.addAll(tiles.subList(first, last + 1));
+			partAttributes.put(TileMerger.TILES_ATTRIBUTE, first + "-" + last);
+			partAttributes.put(TileMerger.TILE_SIZE_ATTRIBUTE, Integer.toString(tileSize));
+		}
+
+		int[] partBounds = new int[] { width, height, 0, 0 };
+		for (Tile t : part) {
+			partBounds[0] = Math.min(partBounds[0], t.x0);
+			partBounds[1] = Math.min(partBounds[1], t.y0);
+			partBounds[2] = Math.max(partBounds[2], t.x1);
+			partBounds[3] = Math.max(partBounds[3], t.y1);
+		}
+		bounds = partBounds;
+		attributes = partAttributes;
+		System.out.println("Rendering " + part.size() + " of " + tiles.size() + " tiles, in [" + bounds[0] + ", "
+				+ bounds[2] + ") x [" + bounds[1] + ", " + bounds[3] + ")");
+		return part;
+	}
+
+	/**
+	 * @return the suffix of the file the part picked by the last call to select
+	 * is written to: .tiles-first-last or .window-x0-y0-x1-y1
+	 */
+	public String getFileSuffix() {
+		return attributes.containsKey(TileMerger.TILES_ATTRIBUTE)
+				? ".tiles-" + attributes.get(TileMerger.TILES_ATTRIBUTE)
+				: ".window-" + bounds[0] + "-" + bounds[1] + "-" + bounds[2] + "-" + bounds[3];
+	}
+}
@@ -0,0 +1,190 @@
+package ray1;
+
+import java.util.List;
+
+import egl.math.Vector3d;
+
+/**
+ * A bounding volume hierarchy over the lights of a scene, for choosing a few
+ * lights at random at each shading point instead of visiting all of them.
+ *
+ * Each node clusters a range of lights and keeps the box around their positions
+ * and their total power (the sum of their largest color channels).  Its
+ * importance at a shading point estimates how much light the cluster could
+ * send there: its power over the squared distance to the box's center, with the
+ * distance kept at least half the box's diagonal so a point inside or near a
+ * cluster does not blow up, and zero if the whole box is below the surface's
+ * tangent plane.  A light is chosen by descending from the root, picking each
+ * child with probability proportional to its importance; the probability of the
+ * light chosen is the product of those choices.  Dividing a light's contribution
+ * by that probability gives an unbiased estimate of the sum over all lights, as
+ * long as only lights that contribute nothing have probability zero: lights
+ * below the tangent plane, which the shaders weight by zero.
+ *
+ * The nodes are stored depth-first in flat arrays as in FlatBvh, with one light
+ * per leaf.
+ */
+public class LightTree {
+
+	/** The lights, in the order of the leaves. */
+	private final Light[] lights;
+
+	/** The index of each light in the list the tree was built from. */
+	private final int[] lightIndices;
+
+	/** Node bounds, six per node, min then max. */
+	private final double[] nodeBounds;
+
+	/** The total power of the lights under each node. */
+	private final double[] nodePower;
+
+	/** For an interior node the index of its second child, the first being next; for a leaf -(1 + light). */
+	private final int[] nodeLinks;
+
+	private int numNodes;
+
+	/**
+	 * Build the tree over a list of lights, which must not be empty.
+	 */
+	public LightTree(List<Light> lightList) {
+		int n = lightList.size();
+		lights = lightList.toArray(new Light[n]);
+		lightIndices = new int[n];
+		for (int i = 0; i < n; i++)
+			lightIndices[i] = i;
+		nodeBounds = new double[6 * (2 * n - 1)];
+		nodePower = new double[2 * n - 1];
+		nodeLinks = new int[2 * n - 1];
+		build(0, n);
+	}
+
+	/**
+	 * Make the node for lights start to end - 1, splitting them at the median
+	 * along the longest axis of their box, and the nodes under it.
+	 *
+	 * @return the index of the node
+	 */
+	private int build(int start, int end) {
+		int node = numNodes++;
+		double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double power = 0;
+		for (int i = start; i < end; i++) {
+			Light l = lights[i];
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], l.position.get(k));
+				box[3 + k] = Math.max(box[3 + k], l.position.get(k));
+			}
+			power += Math.max(l.intensity.x, Math.max(l.intensity.y, l.intensity.z));
+		}
+		System.arraycopy(box, 0, nodeBounds, 6 * node, 6);
+		nodePower[node] = power;
+		if (end - start == 1) {
+			nodeLinks[node] = -(1 + start);
+			return node;
+		}
+
+		int axis = 0;
+		for (int k = 1; k < 3; k++)
+			if (box[3 + k] - box[k] > box[3 + axis] - box[axis])
+				axis = k;
+		int mid = (start + end) / 2;
+		select(start, end, mid, axis);
+		build(start, mid);
+		nodeLinks[node] = build(mid, end);
+		return node;
+	}
+
+	/**
+	 * Partially sort lights start to end - 1 along axis so that the light at mid
+	 * is where it would be if they were sorted, with none after it smaller.
+	 */
+	private void select(int start, int end, int mid, int axis) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			float pivot = lights[(lo + hi) >>> 1].position.get(axis);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (lights[i].position.get(axis) < pivot) i++;
+				while (lights[j].position.get(axis) > pivot) j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+			if (mid <= j)
+				hi = j;
+			else if (mid >= i)
+				lo = i;
+			else
+				break;
+		}
+	}
+
+	private void swap(int i, int j) {
+		Light l = lights[i];
+		lights[i] = lights[j];
+		lights[j] = l;
+		int k = lightIndices[i];
+		lightIndices[i] = lightIndices[j];
+		lightIndices[j] = k;
+	}
+
+	/**
+	 * Choose a light for the shading point p with normal n.
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @param pdf receives the probability with which the light was chosen in pdf[0]
+	 * @return the index of the light in the list the tree was built from, or -1 if
+	 * the descent ended in a cluster with no light that can reach the point
+	 */
+	public int sample(Vector3d p, Vector3d n, double u, double[] pdf) {
+		double prob = 1;
+		int node = 0;
+		if (importance(node, p, n) == 0)
+			return -1;
+		while (nodeLinks[node] >= 0) {
+			int a = node + 1, b = nodeLinks[node];
+			double ia = importance(a, p, n), ib = importance(b, p, n);
+			// A node's box can reach above the tangent plane when neither child's does
+			if (ia + ib == 0)
+				return -1;
+			double pa = ia / (ia + ib);
+			if (u < pa) {
+				u /= pa;
+				prob *= pa;
+				node = a;
+			}
+			else {
+				u = Math.min((u - pa) / (1 - pa), Math.nextDown(1.0));
+				prob *= 1 - pa;
+				node = b;
+			}
+		}
+		pdf[0] = prob;
+		return lightIndices[-(1 + nodeLinks[node])];
+	}
+
+	/**
+	 * The importance of a node at shading point p with normal n, as described above.
+	 */
+	private double importance(int node, Vector3d p, Vector3d n) {
+		int b = 6 * node;
+		double lx = nodeBounds[b], ly = nodeBounds[b + 1], lz = nodeBounds[b + 2];
+		double hx = nodeBounds[b + 3], hy = nodeBounds[b + 4], hz = nodeBounds[b + 5];
+
+		// The largest height of the box above the tangent plane
+		double height = Math.max(n.x * (lx - p.x), n.x * (hx - p.x))
+				+ Math.max(n.y * (ly - p.y), n.y * (hy - p.y))
+				+ Math.max(n.z * (lz - p.z), n.z * (hz - p.z));
+		if (height <= 0)
+			return 0;
+
+		double cx = 0.5 * (lx + hx) - p.x, cy = 0.5 * (ly + hy) - p.y, cz = 0.5 * (lz + hz) - p.z;
+		double dx = hx - lx, dy = hy - ly, dz = hz - lz;
+		double distSq = Math.max(cx * cx + cy * cy + cz * cz, 0.25 * (dx * dx + dy * dy + dz * dz));
+		return nodePower[node] / Math.max(distSq, 1e-12);
+	}
+
+	public int getLightCount() { return lights.length; }
+
+	public int getNodeCount() { return numNodes; }
+}
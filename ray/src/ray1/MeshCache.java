@@ -0,0 +1,331 @@
+package ray1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An on-disk cache of meshes in a binary form that loads much faster than OBJ.
+ *
+ * Each entry holds named float and int arrays derived from one source file,
+ * together with the absolute path, modification time and size of the source;
+ * an entry whose source has changed since it was written is ignored and
+ * replaced.  Entries are memory-mapped when they are read, so loading one is
+ * little more than a bulk copy of each array.  Entries are written to a
+ * temporary file and then renamed, so a render never sees half of an entry
+ * written by another.
+ *
+ * The cache is on by default and kept in ray1-meshcache under the system
+ * temporary directory.  RayTracer's -meshcache option moves it or turns it
+ * off, and -refreshmeshcache ignores existing entries and rewrites them.
+ * Failing to read or write the cache is never fatal; the mesh is just read
+ * from its source again.
+ */
+public class MeshCache {
+
+	/** The directory entries are kept in. */
+	protected static Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "ray1-meshcache");
+	public static void setDirectory(Path directory) { MeshCache.directory = directory; }
+	public static Path getDirectory() { return directory; }
+
+	/** Whether entries are read and written at all. */
+	protected static boolean enabled = true;
+	public static void setEnabled(boolean enabled) { MeshCache.enabled = enabled; }
+	public static boolean isEnabled() { return enabled; }
+
+	/** Whether existing entries are ignored and replaced. */
+	protected static boolean refresh = false;
+	public static void setRefresh(boolean refresh) { MeshCache.refresh = refresh; }
+
+	/** "R1MC", followed by the format version. */
+	private static final int MAGIC = 0x52314d43;
+	private static final int VERSION = 1;
+
+	private static final int FLOATS = 0, INTS = 1;
+
+	/** The largest region mapped at once. */
+	private static final int MAP_SIZE = 1 << 30;
+
+	/**
+	 * The arrays stored in one cache entry.  Arrays that are null are not stored.
+	 */
+	public static class Entry {
+		private final Map<String, Object> arrays = new LinkedHashMap<>();
+
+		public void put(String name, float[] a) { if (a != null) arrays.put(name, a); }
+		public void put(String name, int[] a) { if (a != null) arrays.put(name, a); }
+
+		/**
+		 * @return the float array stored under name, or null
+		 */
+		public float[] getFloats(String name) {
+			Object a = arrays.get(name);
+			return a instanceof float[] ? (float[]) a : null;
+		}
+
+		/**
+		 * @return the int array stored under name, or null
+		 */
+		public int[] getInts(String name) {
+			Object a = arrays.get(name);
+			return a instanceof int[] ? (int[]) a : null;
+		}
+
+		/**
+		 * @return the int stored under name as a one-element array, or defaultValue
+		 */
+		public int getInt(String name, int defaultValue) {
+			int[] a = getInts(name);
+			return a != null && a.length == 1 ? a[0] : defaultValue;
+		}
+	}
+
+	/**
+	 * Read an OBJ file through the cache: from its cache entry if there is a valid
+	 * one, and otherwise with OBJLoader, storing the result for next time.
+	 */
+	public static OBJLoader loadOBJ(String fileName, ForkJoinPool pool) throws IOException {
+		Entry entry = load(fileName, "obj");
+		if (entry != null) {
+			OBJLoader obj = new OBJLoader();
+			obj.positions = entry.getFloats("positions");
+			obj.uvs = entry.getFloats("uvs");
+			obj.normals = entry.getFloats("normals");
+			obj.faceStarts = entry.getInts("faceStarts");
+			obj.cornerPositions = entry.getInts("cornerPositions");
+			obj.cornerUvs = entry.getInts("cornerUvs");
+			obj.cornerNormals = entry.getInts("cornerNormals");
+			if (obj.positions != null && obj.uvs != null && obj.normals != null && obj.faceStarts != null
+					&& obj.cornerPositions != null && obj.cornerUvs != null && obj.cornerNormals != null)
+				return obj;
+		}
+		OBJLoader obj = OBJLoader.load(fileName, pool);
+		entry = new Entry();
+		entry.put("positions", obj.positions);
+		entry.put("uvs", obj.uvs);
+		entry.put("normals", obj.normals);
+		entry.put("faceStarts", obj.faceStarts);
+		entry.put("cornerPositions", obj.cornerPositions);
+		entry.put("cornerUvs", obj.cornerUvs);
+		entry.put("cornerNormals", obj.cornerNormals);
+		save(fileName, "obj", entry);
+		return obj;
+	}
+
+	/**
+	 * @return the file holding the entry of the given kind for sourceFile
+	 */
+	static Path entryFile(Path source, String kind) {
+		// FNV-1a hash of the absolute path keeps entries for files with the same name apart
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : source.toString().getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return directory.resolve(source.getFileName() + "." + kind + "." + Long.toHexString(hash) + ".cache");
+	}
+
+	/**
+	 * Look up the entry of the given kind for sourceFile.
+	 *
+	 * @return the entry, or null if the cache is off or there is no valid entry
+	 */
+	public static Entry load(String sourceFile, String kind) {
+		if (!enabled || refresh)
+			return null;
+		Path source = Paths.get(sourceFile).toAbsolutePath().normalize();
+		Path file = entryFile(source, kind);
+		if (!Files.isRegularFile(file))
+			return null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+			ByteBuffer header = readHeader(channel);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				return null;
+			if (!getString(header).equals(source.toString()) || !getString(header).equals(kind)
+					|| header.getLong() != attributes.lastModifiedTime().toMillis() || header.getLong() != attributes.size())
+				return null;
+
+			// Check that the file holds all the data the header lists before mapping any of it
+			int numArrays = header.getInt();
+			long dataStart = header.getLong(), end = dataStart;
+			String[] names = new String[numArrays];
+			int[] types = new int[numArrays], lengths = new int[numArrays];
+			for (int i = 0; i < numArrays; i++) {
+				names[i] = getString(header);
+				types[i] = header.getInt();
+				lengths[i] = header.getInt();
+				if (lengths[i] < 0)
+					return null;
+				end += 4L * lengths[i];
+			}
+			if (end != channel.size()) {
+				if (RayTracer.isVerbose())
+					System.out.println("Ignoring truncated mesh cache entry " + file);
+				return null;
+			}
+
+			Entry entry = new Entry();
+			long pos = dataStart;
+			for (int i = 0; i < numArrays; i++) {
+				int length = lengths[i];
+				if (types[i] == FLOATS) {
+					float[] a = new float[length];
+					for (int start = 0; start < length; start += MAP_SIZE / 4) {
+						int n = Math.min(length - start, MAP_SIZE / 4);
+						map(channel, pos + 4L * start, 4 * n).asFloatBuffer().get(a, start, n);
+					}
+					entry.put(names[i], a);
+				}
+				else {
+					int[] a = new int[length];
+					for (int start = 0; start < length; start += MAP_SIZE / 4) {
+						int n = Math.min(length - start, MAP_SIZE / 4);
+						map(channel, pos + 4L * start, 4 * n).asIntBuffer().get(a, start, n);
+					}
+					entry.put(names[i], a);
+				}
+				pos += 4L * length;
+			}
+			if (RayTracer.isVerbose())
+				System.out.println("Loaded " + sourceFile + " from the mesh cache");
+			return entry;
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("Warning: could not read mesh cache entry " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store entry as the entry of the given kind for sourceFile.
+	 */
+	public static void save(String sourceFile, String kind, Entry entry) {
+		if (!enabled)
+			return;
+		Path source = Paths.get(sourceFile).toAbsolutePath().normalize();
+		Path file = entryFile(source, kind);
+		Path temp = null;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+			// The header lists the arrays; their data follows, in the same order
+			ByteBuffer header = ByteBuffer.allocate(headerSize(source.toString(), kind, entry)).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION);
+			putString(header, source.toString());
+			putString(header, kind);
+			header.putLong(attributes.lastModifiedTime().toMillis()).putLong(attributes.size());
+			header.putInt(entry.arrays.size());
+			header.putLong(4 + header.capacity());
+			for (Map.Entry<String, Object> e : entry.arrays.entrySet()) {
+				putString(header, e.getKey());
+				boolean floats = e.getValue() instanceof float[];
+				header.putInt(floats ? FLOATS : INTS);
+				header.putInt(floats ? ((float[]) e.getValue()).length : ((int[]) e.getValue()).length);
+			}
+			header.flip();
+
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(header.limit());
+				size.flip();
+				writeFully(channel, size);
+				writeFully(channel, header);
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+				for (Object a : entry.arrays.values()) {
+					int length = a instanceof float[] ? ((float[]) a).length : ((int[]) a).length;
+					for (int start = 0; start < length; start += buffer.capacity() / 4) {
+						int n = Math.min(length - start, buffer.capacity() / 4);
+						buffer.clear();
+						if (a instanceof float[])
+							buffer.asFloatBuffer().put((float[]) a, start, n);
+						else
+							buffer.asIntBuffer().put((int[]) a, start, n);
+						buffer.limit(4 * n);
+						writeFully(channel, buffer);
+					}
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("Warning: could not write mesh cache entry " + file + ": " + e);
+		}
+		finally {
+			if (temp != null) {
+				try { Files.deleteIfExists(temp); } catch (IOException e) { /* nothing more to do */ }
+			}
+		}
+	}
+
+	private static int headerSize(String source, String kind, Entry entry) {
+		int size = 8 + stringSize(source) + stringSize(kind) + 16 + 4 + 8;
+		for (String name : entry.arrays.keySet())
+			size += stringSize(name) + 8;
+		return size;
+	}
+
+	private static int stringSize(String s) {
+		return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static void putString(ByteBuffer b, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		b.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the header, which is preceded by its size.
+	 */
+	private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+		ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, size, 0);
+		int n = size.getInt(0);
+		if (n < 0 || 4L + n > channel.size())
+			throw new IOException("bad header size " + n);
+		ByteBuffer header = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, 4);
+		header.flip();
+		return header;
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long pos, int size) throws IOException {
+		MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos);
+			if (n < 0)
+				throw new IOException("unexpected end of file");
+			pos += n;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b) throws IOException {
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+}
@@ -0,0 +1,541 @@
+package ray1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+import ray1.OBJMesh.OBJFileFormatException;
+
+/**
+ * A fast reader for OBJ files that stores the mesh in primitive arrays.
+ *
+ * OBJMesh.parseOBJ splits every line with a regular expression and boxes every
+ * vertex, which dominates the start-up time of renders of large meshes.  This
+ * loader memory-maps the file and scans its bytes directly with a hand-written
+ * tokenizer and number parser.  Given a ForkJoinPool, the file is cut at line
+ * breaks into chunks that are parsed concurrently and then concatenated, so the
+ * result is the same for any number of threads.
+ *
+ * It accepts the same files as parseOBJ, and a little more: blank lines,
+ * comments at the end of a line, negative (relative) indices, and extra
+ * components on v, vt and vn lines, which are ignored.  Floats are parsed to
+ * exactly the value Float.parseFloat would give.
+ *
+ * Indices in the arrays start at 0, whatever OBJFace.indexBase is.
+ */
+public class OBJLoader {
+
+	/** Vertex positions, three floats per vertex. */
+	public float[] positions;
+
+	/** Texture coordinates, two floats per uv. */
+	public float[] uvs;
+
+	/** Vertex normals, three floats per normal. */
+	public float[] normals;
+
+	/** The first corner of each face in the corner arrays, plus the total number of corners at the end. */
+	public int[] faceStarts;
+
+	/** Position, uv and normal index of each corner; -1 where a corner has no uv or normal. */
+	public int[] cornerPositions, cornerUvs, cornerNormals;
+
+	/** Chunks are at least this large, so small files are parsed by one thread. */
+	static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	/** Chunks must fit in one mapped buffer. */
+	static final int MAX_CHUNK_SIZE = 1 << 30;
+
+	/**
+	 * @return the number of vertex positions
+	 */
+	public int getPositionCount() { return positions.length / 3; }
+
+	/**
+	 * @return the number of faces
+	 */
+	public int getFaceCount() { return faceStarts.length - 1; }
+
+	/**
+	 * @return the number of triangles after polygons are split into fans
+	 */
+	public int getTriangleCount() {
+		int n = 0;
+		for (int f = 0; f < getFaceCount(); f++)
+			n += faceStarts[f + 1] - faceStarts[f] - 2;
+		return n;
+	}
+
+	/**
+	 * Read an OBJ file on the calling thread.
+	 */
+	public static OBJLoader load(String fileName) throws IOException {
+		return load(fileName, null);
+	}
+
+	/**
+	 * Read an OBJ file, parsing large files in parallel using pool.
+	 *
+	 * @param pool the threads to use, or null to read the file on the calling thread
+	 * @throws OBJFileFormatException if the file is malformed
+	 */
+	public static OBJLoader load(String fileName, ForkJoinPool pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long[] bounds = chunkBounds(channel, pool == null ? 1 : 4 * pool.getParallelism());
+			Chunk[] chunks = new Chunk[bounds.length - 1];
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]));
+			if (pool == null || chunks.length == 1)
+				for (Chunk c : chunks)
+					c.parse();
+			else
+				pool.submit(() -> Arrays.stream(chunks).parallel().forEach(Chunk::parse)).join();
+
+			int firstLine = 1;
+			for (Chunk c : chunks) {
+				if (c.error != null)
+					throw new OBJFileFormatException(c.error + " (line " + (firstLine + c.errorLine) + ")");
+				firstLine += c.lines;
+			}
+			TreeSet<String> ignored = new TreeSet<>();
+			for (Chunk c : chunks)
+				ignored.addAll(c.ignored);
+			for (String s : ignored)
+				System.err.println("Warning: ignored unrecognized OBJ specifier: " + s);
+
+			OBJLoader obj = new OBJLoader();
+			obj.concatenate(chunks);
+			return obj;
+		}
+	}
+
+	/**
+	 * Split the file into about numChunks pieces that each end at a line break.
+	 *
+	 * @return the file offsets where the chunks begin, followed by the file size
+	 */
+	private static long[] chunkBounds(FileChannel channel, int numChunks) throws IOException {
+		long size = channel.size();
+		numChunks = (int) Math.max(Math.min(numChunks, size / MIN_CHUNK_SIZE), (size + MAX_CHUNK_SIZE / 2 - 1) / (MAX_CHUNK_SIZE / 2));
+		numChunks = Math.max(1, numChunks);
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		ByteBuffer b = ByteBuffer.allocate(4096);
+		for (int i = 1; i < numChunks; i++) {
+			long pos = Math.max(bounds.get(bounds.size() - 1), size * i / numChunks);
+			long end = -1;
+			// Find the next line break; lines far longer than the buffer are unusual but legal
+			while (end < 0 && pos < size) {
+				b.clear();
+				int n = channel.read(b, pos);
+				for (int k = 0; k < n && end < 0; k++)
+					if (b.get(k) == '\n')
+						end = pos + k + 1;
+				pos += Math.max(n, 0);
+			}
+			if (end < 0 || end >= size)
+				break;
+			if (end > bounds.get(bounds.size() - 1))
+				bounds.add(end);
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	/**
+	 * Join the arrays of the chunks, resolving relative indices now that the
+	 * number of vertices before each chunk is known.
+	 */
+	private void concatenate(Chunk[] chunks) {
+		int nPositions = 0, nUvs = 0, nNormals = 0, nFaces = 0, nCorners = 0;
+		for (Chunk c : chunks) {
+			nPositions += c.positions.size;
+			nUvs += c.uvs.size;
+			nNormals += c.normals.size;
+			nFaces += c.faceStarts.size;
+			nCorners += c.cornerPositions.size;
+		}
+		positions = new float[nPositions];
+		uvs = new float[nUvs];
+		normals = new float[nNormals];
+		faceStarts = new int[nFaces + 1];
+		cornerPositions = new int[nCorners];
+		cornerUvs = new int[nCorners];
+		cornerNormals = new int[nCorners];
+
+		nPositions = nUvs = nNormals = nFaces = nCorners = 0;
+		for (Chunk c : chunks) {
+			for (int i = 0; i < c.relative.size; i++) {
+				int k = c.relative.data[i];
+				if (k < c.cornerPositions.size)
+					c.cornerPositions.data[k] += nPositions / 3;
+				else if (k < 2 * c.cornerPositions.size)
+					c.cornerUvs.data[k - c.cornerPositions.size] += nUvs / 2;
+				else
+					c.cornerNormals.data[k - 2 * c.cornerPositions.size] += nNormals / 3;
+			}
+			System.arraycopy(c.positions.data, 0, positions, nPositions, c.positions.size);
+			System.arraycopy(c.uvs.data, 0, uvs, nUvs, c.uvs.size);
+			System.arraycopy(c.normals.data, 0, normals, nNormals, c.normals.size);
+			for (int i = 0; i < c.faceStarts.size; i++)
+				faceStarts[nFaces + i] = c.faceStarts.data[i] + nCorners;
+			System.arraycopy(c.cornerPositions.data, 0, cornerPositions, nCorners, c.cornerPositions.size);
+			System.arraycopy(c.cornerUvs.data, 0, cornerUvs, nCorners, c.cornerUvs.size);
+			System.arraycopy(c.cornerNormals.data, 0, cornerNormals, nCorners, c.cornerNormals.size);
+			nPositions += c.positions.size;
+			nUvs += c.uvs.size;
+			nNormals += c.normals.size;
+			nFaces += c.faceStarts.size;
+			nCorners += c.cornerPositions.size;
+		}
+		faceStarts[nFaces] = nCorners;
+	}
+
+	/**
+	 * Copy the mesh into an OBJMesh, as OBJMesh.parseOBJ would have read it.
+	 */
+	public OBJMesh toOBJMesh() {
+		OBJMesh mesh = new OBJMesh();
+		mesh.positions.ensureCapacity(positions.length / 3);
+		for (int i = 0; i < positions.length; i += 3)
+			mesh.positions.add(new Vector3(positions[i], positions[i + 1], positions[i + 2]));
+		mesh.uvs.ensureCapacity(uvs.length / 2);
+		for (int i = 0; i < uvs.length; i += 2)
+			mesh.uvs.add(new Vector2(uvs[i], uvs[i + 1]));
+		mesh.normals.ensureCapacity(normals.length / 3);
+		for (int i = 0; i < normals.length; i += 3)
+			mesh.normals.add(new Vector3(normals[i], normals[i + 1], normals[i + 2]));
+		mesh.faces.ensureCapacity(getFaceCount());
+		for (int f = 0; f < getFaceCount(); f++) {
+			int start = faceStarts[f], n = faceStarts[f + 1] - start;
+			OBJFace face = new OBJFace(n, false, false);
+			for (int i = 0; i < n; i++) {
+				face.positions[i] = cornerPositions[start + i] + OBJFace.indexBase;
+				if (cornerUvs[start + i] >= 0) {
+					if (face.uvs == null)
+						face.uvs = new int[n];
+					face.uvs[i] = cornerUvs[start + i] + OBJFace.indexBase;
+				}
+				if (cornerNormals[start + i] >= 0) {
+					if (face.normals == null)
+						face.normals = new int[n];
+					face.normals[i] = cornerNormals[start + i] + OBJFace.indexBase;
+				}
+			}
+			mesh.faces.add(face);
+		}
+		return mesh;
+	}
+
+	/** A growable array of floats. */
+	static class FloatList {
+		float[] data = new float[1024];
+		int size;
+
+		void add(float f) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, 2 * size);
+			data[size++] = f;
+		}
+	}
+
+	/** A growable array of ints. */
+	static class IntList {
+		int[] data = new int[1024];
+		int size;
+
+		void add(int i) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, 2 * size);
+			data[size++] = i;
+		}
+	}
+
+	/** Powers of ten that are exact as doubles. */
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+	}
+
+	/**
+	 * One piece of the file and everything read from it.  Indices are stored
+	 * as global indices, except relative ones, which are stored relative to the
+	 * start of the chunk and listed in relative to be fixed up when the chunks
+	 * are joined.
+	 */
+	static class Chunk {
+		final MappedByteBuffer buffer;
+		final int limit;
+		int pos;
+
+		final FloatList positions = new FloatList(), uvs = new FloatList(), normals = new FloatList();
+		final IntList faceStarts = new IntList();
+		final IntList cornerPositions = new IntList(), cornerUvs = new IntList(), cornerNormals = new IntList();
+
+		/** Corners whose index is relative to the chunk: k, n + k or 2n + k for the position, uv or normal of corner k. */
+		final IntList relative = new IntList();
+
+		final TreeSet<String> ignored = new TreeSet<>();
+
+		/** The number of lines read, and the first error and the line it was on, counting from 0. */
+		int lines;
+		String error;
+		int errorLine;
+
+		Chunk(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			this.limit = buffer.limit();
+		}
+
+		void parse() {
+			try {
+				while (pos < limit) {
+					parseLine();
+					lines++;
+				}
+				// Relative indices are listed by corner within each kind; reorder the codes now that n is known
+				int n = cornerPositions.size;
+				for (int i = 0; i < relative.size; i++) {
+					int code = relative.data[i];
+					relative.data[i] = (code & 3) * n + (code >>> 2);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				error = e.getMessage();
+				errorLine = lines;
+			}
+		}
+
+		private void parseLine() {
+			skipSpaces();
+			if (pos >= limit) return;
+			byte c = buffer.get(pos);
+			byte c1 = pos + 1 < limit ? buffer.get(pos + 1) : (byte) '\n';
+			if (c == 'v' && isSpace(c1)) {
+				pos++;
+				positions.add(parseFloat("vertex position"));
+				positions.add(parseFloat("vertex position"));
+				positions.add(parseFloat("vertex position"));
+				skipLine();
+			}
+			else if (c == 'v' && c1 == 't' && isSpace(byteAt(pos + 2))) {
+				pos += 2;
+				uvs.add(parseFloat("vertex texture coordinate"));
+				uvs.add(parseFloat("vertex texture coordinate"));
+				skipLine();
+			}
+			else if (c == 'v' && c1 == 'n' && isSpace(byteAt(pos + 2))) {
+				pos += 2;
+				normals.add(parseFloat("vertex normal"));
+				normals.add(parseFloat("vertex normal"));
+				normals.add(parseFloat("vertex normal"));
+				skipLine();
+			}
+			else if (c == 'f' && isSpace(c1)) {
+				pos++;
+				parseFace();
+			}
+			else if (c == '#' || c == '\n' || c == '\r'
+					|| (c == 's' || c == 'o') && (isSpace(c1) || isEnd(c1))) {
+				skipLine();
+			}
+			else {
+				int start = pos;
+				while (pos < limit && !isSpace(buffer.get(pos)) && !isEnd(buffer.get(pos)))
+					pos++;
+				byte[] b = new byte[pos - start];
+				for (int i = 0; i < b.length; i++)
+					b[i] = buffer.get(start + i);
+				ignored.add(new String(b, StandardCharsets.UTF_8));
+				skipLine();
+			}
+		}
+
+		private void parseFace() {
+			faceStarts.add(cornerPositions.size);
+			int n = 0;
+			while (true) {
+				skipSpaces();
+				if (pos >= limit || isEnd(buffer.get(pos)))
+					break;
+				int corner = cornerPositions.size;
+				cornerPositions.add(parseIndex(corner, 0, positions.size / 3));
+				int uv = -1, normal = -1;
+				if (byteAt(pos) == '/') {
+					pos++;
+					if (byteAt(pos) != '/' && !isSpace(byteAt(pos)) && !isEnd(byteAt(pos)))
+						uv = parseIndex(corner, 1, uvs.size / 2);
+					if (byteAt(pos) == '/') {
+						pos++;
+						normal = parseIndex(corner, 2, normals.size / 3);
+					}
+				}
+				cornerUvs.add(uv);
+				cornerNormals.add(normal);
+				n++;
+				if (!isSpace(byteAt(pos)) && !isEnd(byteAt(pos)))
+					throw new IllegalArgumentException("Malformed face specification");
+			}
+			if (n < 3)
+				throw new IllegalArgumentException("Malformed face specification");
+			skipLine();
+		}
+
+		/**
+		 * Parse a 1-based or negative index and convert it to a 0-based one.
+		 *
+		 * @param corner the corner the index belongs to
+		 * @param kind 0, 1 or 2 for a position, uv or normal index
+		 * @param count the number of items of that kind in this chunk so far
+		 */
+		private int parseIndex(int corner, int kind, int count) {
+			boolean negative = byteAt(pos) == '-';
+			if (negative)
+				pos++;
+			int start = pos;
+			long value = 0;
+			while (pos < limit && isDigit(buffer.get(pos)) && value < Integer.MAX_VALUE)
+				value = 10 * value + (buffer.get(pos++) - '0');
+			if (pos == start || value == 0 || value > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Malformed face specification");
+			if (!negative)
+				return (int) value - 1;
+			relative.add((corner << 2) | kind);
+			return count - (int) value;
+		}
+
+		/**
+		 * Parse a float that must be the next token on the line.
+		 */
+		private float parseFloat(String what) {
+			skipSpaces();
+			int start = pos;
+			boolean negative = false;
+			byte c = byteAt(pos);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				pos++;
+			}
+			long mantissa = 0;
+			int digits = 0, exponent = 0;
+			boolean any = false;
+			while (isDigit(c = byteAt(pos))) {
+				if (digits < 18) {
+					mantissa = 10 * mantissa + (c - '0');
+					if (mantissa != 0) digits++;
+				}
+				else exponent++;
+				any = true;
+				pos++;
+			}
+			if (c == '.') {
+				pos++;
+				while (isDigit(c = byteAt(pos))) {
+					if (digits < 18) {
+						mantissa = 10 * mantissa + (c - '0');
+						if (mantissa != 0) digits++;
+						exponent--;
+					}
+					any = true;
+					pos++;
+				}
+			}
+			if (any && (c == 'e' || c == 'E')) {
+				pos++;
+				boolean negativeExponent = false;
+				c = byteAt(pos);
+				if (c == '-' || c == '+') {
+					negativeExponent = c == '-';
+					pos++;
+				}
+				int e = 0;
+				boolean expDigits = false;
+				while (isDigit(c = byteAt(pos))) {
+					if (e < 100000)
+						e = 10 * e + (c - '0');
+					expDigits = true;
+					pos++;
+				}
+				if (!expDigits)
+					any = false;
+				exponent += negativeExponent ? -e : e;
+			}
+			c = byteAt(pos);
+			if (!isSpace(c) && !isEnd(c)) {
+				// Not a plain decimal number (e.g. nan or inf): read the whole token the slow way
+				while (pos < limit && !isSpace(buffer.get(pos)) && !isEnd(buffer.get(pos)))
+					pos++;
+				return slowParse(start, what);
+			}
+			if (!any)
+				throw new IllegalArgumentException("Malformed " + what + " specification");
+
+			// The mantissa and power of ten are exact, so the double is correctly rounded.
+			// Rounding it again to float is also correct unless it lies exactly halfway
+			// between two floats, or the float would be subnormal.
+			if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+				double d = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+				if ((Double.doubleToRawLongBits(d) & 0x1fffffffL) != 0x10000000L
+						&& (d == 0 || (d >= Float.MIN_NORMAL && d <= Float.MAX_VALUE)))
+					return (float) (negative ? -d : d);
+			}
+			return slowParse(start, what);
+		}
+
+		private float slowParse(int start, String what) {
+			byte[] b = new byte[pos - start];
+			for (int i = 0; i < b.length; i++)
+				b[i] = buffer.get(start + i);
+			try {
+				return Float.parseFloat(new String(b, StandardCharsets.US_ASCII));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Malformed " + what + " specification");
+			}
+		}
+
+		private void skipLine() {
+			while (pos < limit && buffer.get(pos) != '\n')
+				pos++;
+			pos++;
+		}
+
+		private void skipSpaces() {
+			while (pos < limit && isSpace(buffer.get(pos)))
+				pos++;
+		}
+
+		private byte byteAt(int i) {
+			return i < limit ? buffer.get(i) : (byte) '\n';
+		}
+
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t';
+		}
+
+		/** The end of a line, or of its content before a comment. */
+		private static boolean isEnd(byte c) {
+			return c == '\n' || c == '\r' || c == '#';
+		}
+
+		private static boolean isDigit(byte c) {
+			return c >= '0' && c <= '9';
+		}
+	}
+}
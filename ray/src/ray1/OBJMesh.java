@@ -18,7 +18,7 @@ import egl.math.Vector3;
 public class OBJMesh {
 
 	@SuppressWarnings("serial")
-	public class OBJFileFormatException extends IOException {
+	public static class OBJFileFormatException extends IOException {
 		public OBJFileFormatException() {
 			super();
 		}
@@ -58,6 +58,7 @@ public class OBJMesh {
 	/**
 	 * Constructs a mesh from an existing OBJ file.
 	 * See parseOBJ() for a description of the Exceptions thrown by this method.
+	 * OBJLoader reads large files much faster; use OBJLoader.load(filename).toOBJMesh().
 	 */
 	public OBJMesh(String filename) throws IOException, OBJFileFormatException {
 		this();
@@ -72,6 +72,18 @@ public class Ray {
 	  direction.set(newDirection);
   }
 
+  /**
+   * Sets this ray to a copy of r, including its start and end.
+   * @param r the ray to copy
+   */
+  public void set(Ray r) {
+
+	  origin.set(r.origin);
+	  direction.set(r.direction);
+	  start = r.start;
+	  end = r.end;
+  }
+
   /**
    * Sets outPoint to the point on this ray t units from the origin.  Note that t can
    * be considered as distance along this ray only if the ray direction is normalized.
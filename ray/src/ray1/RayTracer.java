@@ -1,11 +1,24 @@
 package ray1;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import egl.math.Colorf;
+import ray1.accel.AccelStruct;
+import ray1.accel.RayPacket;
 import ray1.camera.Camera;
 import ray1.shader.Shader;
 
@@ -62,6 +75,21 @@ public class RayTracer {
 	 */
 	public static ScenePath sceneWorkspace = null;
 	
+	/**
+	 * The pool of render threads, which meshes also use to parse their files and
+	 * build their BVHs while a scene is loaded; null while no scene is being rendered
+	 * with more than one thread, in which case that work runs on the calling thread.
+	 */
+	protected static ForkJoinPool pool = null;
+	public static ForkJoinPool getPool() { return pool; }
+	
+	/**
+	 * Whether meshes report what they load and build, and how; set by '-verbose'.
+	 */
+	protected static boolean verbose = false;
+	public static void setVerbose(boolean verbose) { RayTracer.verbose = verbose; }
+	public static boolean isVerbose() { return verbose; }
+	
 	/**
 	 * This directory precedes the arguments passed in via the command line.
 	 */
@@ -77,18 +105,151 @@ public class RayTracer {
 	 */
 	public static final int MAX_DEPTH = 12;
 	
+	/**
+	 * The number of threads used to render tiles.  With one thread the tiles are
+	 * rendered in order on the calling thread.
+	 */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+	public int getNumThreads() { return numThreads; }
+	
+	/**
+	 * The width and height, in pixels, of the tiles handed to the render threads.
+	 */
+	protected int tileSize = 32;
+	public void setTileSize(int tileSize) { this.tileSize = Math.max(1, tileSize); }
+	public int getTileSize() { return tileSize; }
+	
+	/**
+	 * Whether camera rays, and the shadow rays from their hits, are traced in packets
+	 * of 8 x 8 pixels.  Only used with one sample per pixel.
+	 */
+	protected boolean packets = false;
+	public void setPackets(boolean packets) { this.packets = packets; }
+	public boolean getPackets() { return packets; }
+	
+	/**
+	 * Whether tiles are rendered breadth-first by Wavefront, tracing all the rays of
+	 * a tile at one depth (sorted for coherence) before the next, rather than by
+	 * shadeRay's depth-first recursion.  Not used with adaptive sampling.
+	 */
+	protected boolean wavefront = false;
+	public void setWavefront(boolean wavefront) { this.wavefront = wavefront; }
+	public boolean getWavefront() { return wavefront; }
+	
+	/**
+	 * The number of samples along each axis of a pixel in each sampling round: every
+	 * round takes samples * samples jittered samples, one in each cell of a grid over
+	 * the pixel.  With one sample and no adaptive sampling the single ray goes
+	 * through the pixel center.
+	 */
+	protected int samples = 1;
+	public void setSamples(int samples) { this.samples = Math.max(1, samples); }
+	public int getSamples() { return samples; }
+	
+	/**
+	 * The most samples taken in a pixel by adaptive sampling.  If this is more than
+	 * one round's worth, rounds continue in the pixels that AdaptiveSampler flags as
+	 * noisy or as contrasting with their neighbours, until none are flagged.
+	 */
+	protected int maxSamples = 0;
+	public void setMaxSamples(int maxSamples) { this.maxSamples = Math.max(0, maxSamples); }
+	public int getMaxSamples() { return maxSamples; }
+	
+	/**
+	 * The noise and contrast threshold for adaptive sampling; see AdaptiveSampler.
+	 */
+	protected float adaptiveThreshold = 0.02f;
+	public void setAdaptiveThreshold(float adaptiveThreshold) { this.adaptiveThreshold = adaptiveThreshold; }
+	public float getAdaptiveThreshold() { return adaptiveThreshold; }
+	
+	/**
+	 * Whether each scene is treated as the next frame of an animation of the one
+	 * before: the previous scene's Bvh is refit to the new positions of the surfaces
+	 * instead of building a new one, as long as the scenes have the same surfaces in
+	 * the same order.  The Bvh is rebuilt once refitting has made it too poor.
+	 */
+	protected boolean refit = false;
+	public void setRefit(boolean refit) { this.refit = refit; }
+	public boolean getRefit() { return refit; }
+	
+	/** The acceleration structure of the last scene rendered, kept for refitting. */
+	protected AccelStruct lastAccelStruct;
+	
+	/**
+	 * The part of the image to render, as picked by the -tiles and -window options;
+	 * by default the whole image.
+	 */
+	protected ImagePart part = new ImagePart();
+	public void setPart(ImagePart part) { this.part = part; }
+	public ImagePart getPart() { return part; }
+	
+	/**
+	 * Whether the statistics of each render are written next to its image as
+	 * <input_file>.stats.json.
+	 */
+	protected boolean writeStats = false;
+	public void setWriteStats(boolean writeStats) { this.writeStats = writeStats; }
+	public boolean getWriteStats() { return writeStats; }
+	
+	/**
+	 * How often, in seconds, finished tiles are forced to disk in
+	 * <input_file>.checkpoint, or 0 for no checkpoint.  The checkpoint is removed
+	 * once the image has been written.
+	 */
+	protected int checkpointInterval = 0;
+	public void setCheckpointInterval(int checkpointInterval) { this.checkpointInterval = Math.max(0, checkpointInterval); }
+	public int getCheckpointInterval() { return checkpointInterval; }
+	
+	/**
+	 * Whether the tiles in an existing checkpoint of the same render are loaded
+	 * rather than rendered again.  Resuming also checkpoints, every minute unless
+	 * checkpointInterval says otherwise.
+	 */
+	protected boolean resume = false;
+	public void setResume(boolean resume) { this.resume = resume; }
+	public boolean getResume() { return resume; }
+	
+	/** The checkpoint of the render in progress, or null. */
+	protected Checkpoint checkpoint;
+	
+	/** The statistics of the last render. */
+	protected RenderStats stats;
+	public RenderStats getStats() { return stats; }
+	
+	/**
+	 * The number of samples taken in each pixel by the last adaptive render, or null.
+	 */
+	protected Image sampleCountImage;
+	public Image getSampleCountImage() { return sampleCountImage; }
+	
 	/**
 	 * The main method takes all the parameters and assumes they are input files
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
 	 * file named <input_file>.png. A '-p' option may be passed in to change the
-	 * path that is prepended to each file that is included.
+	 * path that is prepended to each file that is included.  The '-threads' and
+	 * '-tilesize' options control how the image is split up and rendered in parallel.
+	 * Bad -tiles or -window arguments, or a window outside a scene's image, print
+	 * the usage and exit with status 1.
 	 *
 	 * @param args
 	 */
 	public static final void main(String[] args) {
+		try {
+			parseAndRun(args);
+		}
+		catch (ImagePart.PartArgumentException e) {
+			System.out.println(e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+	}
+	
+	private static void parseAndRun(String[] args) {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		RayTracer rayTracer = new RayTracer();
 				
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -102,6 +263,82 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-threads":
+				// Use A Different Number Of Render Threads
+				i++;
+				if(i < args.length) rayTracer.setNumThreads(Integer.parseInt(args[i]));
+				break;
+			case "-tilesize":
+				// Use A Different Tile Size
+				i++;
+				if(i < args.length) rayTracer.setTileSize(Integer.parseInt(args[i]));
+				break;
+			case "-packets":
+				// Trace Camera And Shadow Rays In Packets
+				rayTracer.setPackets(true);
+				break;
+			case "-samples":
+				// Take n x n Samples Per Pixel In Each Round
+				i++;
+				if(i < args.length) rayTracer.setSamples(Integer.parseInt(args[i]));
+				break;
+			case "-maxsamples":
+				// Sample Adaptively Up To This Many Samples Per Pixel
+				i++;
+				if(i < args.length) rayTracer.setMaxSamples(Integer.parseInt(args[i]));
+				break;
+			case "-threshold":
+				// Use A Different Adaptive Sampling Threshold
+				i++;
+				if(i < args.length) rayTracer.setAdaptiveThreshold(Float.parseFloat(args[i]));
+				break;
+			case "-meshcache":
+				// Keep The Mesh Cache Somewhere Else, Or Turn It Off
+				i++;
+				if(i < args.length) {
+					if(args[i].equalsIgnoreCase("off")) MeshCache.setEnabled(false);
+					else MeshCache.setDirectory(Paths.get(args[i]));
+				}
+				break;
+			case "-tiles":
+				// Render Only Tiles first-last, Or Chunk i Of n
+				i++;
+				rayTracer.part.parseTiles(i < args.length ? args[i] : "");
+				break;
+			case "-window":
+				// Render Only The Pixels In [x0, x1) x [y0, y1)
+				rayTracer.part.parseWindow(Arrays.copyOfRange(args, i + 1, Math.min(i + 5, args.length)));
+				i += 4;
+				break;
+			case "-wavefront":
+				// Render Breadth-First In Sorted Batches Of Rays
+				rayTracer.setWavefront(true);
+				break;
+			case "-stats":
+				// Write Render Statistics As JSON
+				rayTracer.setWriteStats(true);
+				break;
+			case "-checkpoint":
+				// Save Finished Tiles Every So Many Seconds
+				i++;
+				if(i < args.length) rayTracer.setCheckpointInterval(Integer.parseInt(args[i]));
+				break;
+			case "-resume":
+				// Continue From The Checkpoint Of An Interrupted Render
+				rayTracer.setResume(true);
+				break;
+			case "-refit":
+				// Refit The Previous Scene's Bvh For Each Frame Of An Animation
+				rayTracer.setRefit(true);
+				break;
+			case "-verbose":
+				// Report Mesh Loading And Building
+				setVerbose(true);
+				break;
+			case "-refreshmeshcache":
+				// Ignore And Rewrite Existing Mesh Cache Entries
+				MeshCache.setRefresh(true);
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -140,18 +377,44 @@ public class RayTracer {
 		}
 				
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
-		RayTracer rayTracer = new RayTracer();
 		rayTracer.run(scenesToRender);
 	}
 	
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-p path] [-threads n] [-tilesize n] [-packets] [-wavefront] [-samples n] [-maxsamples n] [-threshold t]");
+		System.out.println("       [-meshcache dir|off] [-refreshmeshcache] [-refit] [-stats] [-verbose] [-checkpoint seconds] [-resume]");
+		System.out.println("       [-tiles first-last | -tiles i/n | -window x0 y0 x1 y1] [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("The image is rendered in square tiles (-tilesize, default 32 pixels) by a pool of -threads");
+		System.out.println("worker threads (default: one per processor). The output does not depend on either setting.");
+		System.out.println("-packets traces camera rays, and shadow rays towards each light, in bundles of 8 x 8 pixels.");
+		System.out.println("-wavefront traces each tile's rays one depth at a time, sorting reflected rays by direction and");
+		System.out.println("origin and shading the hits one material at a time, instead of following each ray to the end.");
+		System.out.println("-samples n takes n x n stratified samples per pixel instead of one ray through its center.");
+		System.out.println("-maxsamples m keeps adding rounds of samples to noisy or high-contrast pixels, up to m per");
+		System.out.println("pixel; -threshold t (default 0.02) sets how much noise or contrast is tolerated. The number");
+		System.out.println("of samples in each pixel is written next to the image as <input_file>.samples.");
+		System.out.println("Meshes are cached in a binary form in -meshcache dir (default: " + MeshCache.getDirectory() + ");");
+		System.out.println("an entry is used only if its OBJ file has the same modification time and size as when it was");
+		System.out.println("written. -meshcache off disables the cache, and -refreshmeshcache rewrites the entries used.");
+		System.out.println("-verbose reports each mesh as it is loaded, whether from the cache, and the BVH built for it.");
+		System.out.println("-refit renders the scenes as frames of an animation with the same surfaces in each: the Bvh");
+		System.out.println("of one frame is refit to the next rather than rebuilt, until its quality has degraded too far.");
+		System.out.println("-stats writes the rays traced by type, BVH nodes visited, primitive tests by surface type and");
+		System.out.println("the time spent on each tile to <input_file>.stats.json.");
+		System.out.println("-checkpoint s saves finished tiles to <input_file>.checkpoint, forcing them to disk every s");
+		System.out.println("seconds, and -resume picks an interrupted render up from its checkpoint (saving a new one every");
+		System.out.println("60 seconds unless -checkpoint says otherwise). The checkpoint is removed once the image is written.");
+		System.out.println("Adaptive sampling (-maxsamples) cannot be checkpointed.");
+		System.out.println("-tiles first-last renders only those tiles (numbered row by row from the lower left), -tiles i/n");
+		System.out.println("only the i-th of n equal runs of tiles (counting from 0), and -window x0 y0 x1 y1 only the pixels");
+		System.out.println("in [x0, x1) x [y0, y1). The part is written to <input_file>.tiles-first-last.exr or");
+		System.out.println("<input_file>.window-x0-y0-x1-y1.exr; java ray1.TileMerger output.exr part.exr ... assembles them.");
 	}
 	
 	/**
@@ -162,6 +425,18 @@ public class RayTracer {
 	 * @param args
 	 */
 	public void run(ArrayList<ScenePath> args) {
+		pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		try {
+			renderAll(args);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdown();
+			pool = null;
+		}
+	}
+	
+	private void renderAll(ArrayList<ScenePath> args) {
 		Parser parser = new Parser();
 		for (ScenePath p : args) {
 			// Set The Current Workspace For The Scene
@@ -173,25 +448,54 @@ public class RayTracer {
 			Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
 			
 			// Initialize the scene
-			scene.init();
+			if (refit) {
+				scene.init(lastAccelStruct);
+				lastAccelStruct = scene.getAccelStruct();
+			}
+			else {
+				scene.init();
+			}
 
 			// Render the scene
 			renderImage(scene);
 
 			// Write the image out
-			if (writeHDR)
+			int[] bounds = part.getBounds();
+			if (bounds != null)
+			{
+				// Only the part that was rendered, always in HDR
+				String suffix = part.getFileSuffix();
+				scene.getImage().writeHDR(sceneWorkspace.getFile() + suffix + ".exr",
+						bounds[0], bounds[1], bounds[2], bounds[3], part.getAttributes());
+				if (sampleCountImage != null)
+					sampleCountImage.writeHDR(sceneWorkspace.getFile() + suffix + ".samples.exr",
+							bounds[0], bounds[1], bounds[2], bounds[3], part.getAttributes());
+			}
+			else if (writeHDR)
 			{
 				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
+				if (sampleCountImage != null)
+					sampleCountImage.writeHDR(sceneWorkspace.getFile() + ".samples.exr");
 			}
 			else
 			{
 				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+				if (sampleCountImage != null)
+					sampleCountImage.write(sceneWorkspace.getFile() + ".samples.png");
+			}
+			if (checkpoint != null) {
+				checkpoint.delete();
+				checkpoint = null;
 			}
+			if (writeStats)
+				stats.writeJSON(p.file.getFileName().toString(), sceneWorkspace.getFile() + ".stats.json");
 		}
 	}
 	
 	/**
-	 * The renderImage method renders the entire scene.
+	 * The renderImage method renders the entire scene.  The image is split into
+	 * tiles which are rendered independently, so every pixel receives exactly the
+	 * same computation no matter how many threads are used.
 	 *
 	 * @param scene The scene to be rendered
 	 */
@@ -199,7 +503,6 @@ public class RayTracer {
 
 		// Get the output image
 		Image image = scene.getImage();
-		Camera cam = scene.getCamera();
 
 		// Set the camera aspect ratio to match output image
 		int width = image.getWidth();
@@ -208,39 +511,375 @@ public class RayTracer {
 		// Timing counters
 		long startTime = System.currentTimeMillis();
 
-		// Do some basic setup
-		Ray ray = new Ray();
-		Colorf rayColor = new Colorf();
+		List<Tile> allTiles = Tile.split(width, height, tileSize);
+		stats = new RenderStats(width, height, allTiles, numThreads);
+		List<Tile> tiles = part.select(allTiles, width, height, tileSize);
+		int renderedTiles = tiles.size();
+
+		String sampling;
+		sampleCountImage = null;
+		int perRound = samples * samples;
+		if (maxSamples <= perRound) {
+			// Tiles are finished one at a time, so they can be checkpointed
+			tiles = openCheckpoint(scene, tiles);
+			if (wavefront) {
+				forEachTile(tiles, checkpointed(image, (tile, context) -> context.wavefront().renderTile(scene, tile, samples, context)));
+				sampling = samples * samples + (samples == 1 ? " sample" : " samples") + " per pixel, wavefront";
+			}
+			else if (samples == 1 && maxSamples <= 1) {
+				if (packets)
+					forEachTile(tiles, checkpointed(image, (tile, context) -> renderTilePackets(scene, tile, context)));
+				else
+					forEachTile(tiles, checkpointed(image, (tile, context) -> renderTile(scene, tile, context)));
+				sampling = "1 sample per pixel" + (packets ? ", packets" : "");
+			}
+			else {
+				// One stratified grid of samples in each pixel, resolved tile by tile
+				AdaptiveSampler sampler = new AdaptiveSampler(width, height, perRound, adaptiveThreshold, scene.getExposure());
+				forEachTile(tiles, checkpointed(image, (tile, context) -> {
+					sampleTile(scene, tile, sampler, 0, context);
+					resolveTile(scene, tile, sampler);
+				}));
+				sampling = samples * samples + " samples per pixel";
+			}
+			if (checkpoint != null)
+				checkpoint.close();
+		}
+		else {
+			if (checkpointInterval > 0 || resume)
+				System.out.println("Adaptive sampling cannot be checkpointed; rendering without a checkpoint");
+			if (wavefront)
+				System.out.println("Adaptive sampling is not supported by the wavefront renderer; rendering recursively");
+
+			// Every round takes one stratified grid of samples in each active pixel
+			AdaptiveSampler sampler = new AdaptiveSampler(width, height, maxSamples, adaptiveThreshold, scene.getExposure());
+			int rounds = 0;
+			do {
+				int round = rounds++;
+				forEachTile(tiles, (tile, context) -> sampleTile(scene, tile, sampler, round, context));
+			} while (sampler.markPixels() > 0);
+
+			for (Tile tile : tiles)
+				resolveTile(scene, tile, sampler);
+			sampling = String.format("%.2f samples per pixel in %d round(s)",
+					(double) sampler.getTotalSamples() / (width * height), rounds);
+			sampleCountImage = new Image(width, height);
+			sampler.writeSampleCounts(sampleCountImage);
+		}
 
+		// Output time
+		stats.finish();
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Rendering time: "
+				+ (totalTime / 1000.0) + " seconds (" + numThreads + " thread(s), "
+				+ renderedTiles + " tiles, " + sampling + ")");
+		System.out.println(stats.summary());
+	}
+	
+	/**
+	 * Open the checkpoint for the render of scene into tiles, if checkpointing is
+	 * on, and drop the tiles it already holds.  The settings recorded with it cover
+	 * everything that changes the pixels of a tile, so a checkpoint of a different
+	 * render is never resumed.
+	 *
+	 * @return the tiles still to render
+	 */
+	protected List<Tile> openCheckpoint(Scene scene, List<Tile> tiles) {
+		checkpoint = null;
+		if (checkpointInterval <= 0 && !resume)
+			return tiles;
+		Image image = scene.getImage();
+		Path file = Paths.get(sceneWorkspace.getFile() + ".checkpoint");
+		try {
+			checkpoint = new Checkpoint(file, checkpointSettings(scene), image, tiles, resume,
+					1000L * (checkpointInterval > 0 ? checkpointInterval : 60));
+		}
+		catch (IOException e) {
+			System.err.println("Error opening checkpoint " + file + ", rendering without it: " + e);
+			return tiles;
+		}
+		List<Tile> remaining = new ArrayList<>(tiles);
+		remaining.removeIf(checkpoint::isDone);
+		return remaining;
+	}
+	
+	/**
+	 * Describe everything that affects the pixels of a tile of the current scene:
+	 * a SHA-256 hash of the scene file, the image, tile and part, the renderer
+	 * (packets or wavefront), the sampling settings, and the scene's mesh precision
+	 * and light sampling.  Meshes and textures the scene file names are not hashed.
+	 *
+	 * @return the settings recorded with the checkpoint
+	 * @throws IOException if the scene file cannot be read
+	 */
+	protected String checkpointSettings(Scene scene) throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		StringBuilder hash = new StringBuilder();
+		for (byte b : sha.digest(Files.readAllBytes(Paths.get(sceneWorkspace.getFile()))))
+			hash.append(String.format("%02x", b));
+		Image image = scene.getImage();
+		return String.format(Locale.ROOT, "scene %s, %d x %d, tiles %d, part %s, %s, samples %d, max samples %d, "
+				+ "threshold %s, exposure %s, precision %s, lights %s %d",
+				hash, image.getWidth(), image.getHeight(), tileSize,
+				part.getBounds() == null ? "all" : Arrays.toString(part.getBounds()),
+				wavefront ? "wavefront" : packets ? "packets" : "recursive", samples, maxSamples,
+				Float.toString(adaptiveThreshold), Float.toString(scene.getExposure()), scene.getPrecision(),
+				scene.getLightSampling(), scene.getLightSamples());
+	}
+	
+	/**
+	 * @return a task that runs task and then hands the finished tile to the
+	 * checkpoint, if there is one
+	 */
+	private BiConsumer<Tile, RenderContext> checkpointed(Image image, BiConsumer<Tile, RenderContext> task) {
+		if (checkpoint == null)
+			return task;
+		Checkpoint c = checkpoint;
+		return (tile, context) -> {
+			task.accept(tile, context);
+			c.tileDone(tile, image);
+		};
+	}
+	
+	/**
+	 * Set the pixels of a tile in the scene's image to the exposed means of their samples.
+	 */
+	private static void resolveTile(Scene scene, Tile tile, AdaptiveSampler sampler) {
+		Image image = scene.getImage();
+		Colorf pixelColor = new Colorf();
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
+				sampler.getMean(pixelColor, x, y);
+				pixelColor.mul(scene.getExposure());
+				image.setPixelColor(pixelColor, x, y);
+			}
+		}
+	}
+	
+	/**
+	 * Run a task on every tile, either in order on the calling thread or spread over
+	 * a pool of numThreads threads, each with its own render context.  The time taken
+	 * by each tile and the counts made while rendering it are added to stats.
+	 */
+	protected void forEachTile(List<Tile> tiles, BiConsumer<Tile, RenderContext> task) {
 		// Progress reporting
 		final int PROGRESS_INTERVAL_MS = 5000;
-		long lastShownTime = startTime;
+		AtomicLong lastShownTime = new AtomicLong(System.currentTimeMillis());
+		AtomicInteger tilesDone = new AtomicInteger();
 		
+		if (numThreads == 1) {
+			// Do some basic setup
+			RenderContext context = new RenderContext();
+			for (Tile tile : tiles) {
+				runTile(task, tile, context);
+				reportProgress(tilesDone.incrementAndGet(), tiles.size(), lastShownTime, PROGRESS_INTERVAL_MS);
+			}
+		}
+		else {
+			// Each worker thread gets its own scratch space
+			ThreadLocal<RenderContext> contexts = ThreadLocal.withInitial(RenderContext::new);
+			ForkJoinPool tilePool = pool != null ? pool : new ForkJoinPool(numThreads);
+			try {
+				tilePool.submit(() -> tiles.parallelStream().forEach(tile -> {
+					runTile(task, tile, contexts.get());
+					reportProgress(tilesDone.incrementAndGet(), tiles.size(), lastShownTime, PROGRESS_INTERVAL_MS);
+				})).join();
+			}
+			finally {
+				if (tilePool != pool)
+					tilePool.shutdown();
+			}
+		}
+	}
+	
+	private void runTile(BiConsumer<Tile, RenderContext> task, Tile tile, RenderContext context) {
+		long start = System.nanoTime();
+		task.accept(tile, context);
+		if (stats != null) {
+			stats.addTileTime(tile, System.nanoTime() - start);
+			stats.add(context.counters);
+		}
+	}
+	
+	/**
+	 * Render the pixels of a single tile into the scene's image.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param tile The block of pixels to render
+	 * @param context Scratch space for the calling thread
+	 */
+	public void renderTile(Scene scene, Tile tile, RenderContext context) {
+		// The camera ray and pixel color live in the depth 0 frame
+		RenderContext.Frame frame = context.frame(0);
+		Ray ray = frame.ray;
+		Colorf rayColor = frame.color;
+		Image image = scene.getImage();
+		Camera cam = scene.getCamera();
+		int width = image.getWidth();
+		int height = image.getHeight();
 		float exposure = scene.getExposure();
 
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
 
 				rayColor.setZero();
 
 				cam.getRay(ray, (float) (x + 0.5) / width, (float) (y + 0.5) / height);		
+				context.counters.countRay(RenderStats.PRIMARY);
 				
-				shadeRay(rayColor, scene, ray, 1);
+				shadeRay(rayColor, scene, ray, 1, context);
 				
 				rayColor.mul(exposure);
 				image.setPixelColor(rayColor, x, y);
 			}
-			
-			if (System.currentTimeMillis() - lastShownTime > PROGRESS_INTERVAL_MS) {
-				lastShownTime = System.currentTimeMillis();
-				System.out.println((int)(100.0*y / height) + "%");
+		}
+	}
+	
+	/**
+	 * Render the pixels of a single tile as in renderTile, but intersect the camera
+	 * rays of each 8 x 8 block of pixels as one packet, and then, for each light, the
+	 * shadow rays from all their hits as another.  The hits are shaded by
+	 * shadeIntersection, as in shadeRay, and the shaders are told the shadow results
+	 * so they do not trace the shadow rays again.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param tile The block of pixels to render
+	 * @param context Scratch space for the calling thread
+	 */
+	public void renderTilePackets(Scene scene, Tile tile, RenderContext context) {
+		final int PACKET_WIDTH = 8;
+		RayPacket packet = context.packet();
+		RayPacket shadows = context.shadowPacket();
+		Colorf rayColor = context.frame(0).color;
+		Image image = scene.getImage();
+		Camera cam = scene.getCamera();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		float exposure = scene.getExposure();
+		List<Light> lights = scene.getLights();
+		int numLights = lights.size();
+		boolean[] shadowed = context.shadowMask(RayPacket.MAX_SIZE * numLights);
+		boolean sampling = scene.isSamplingLights();
+
+		for (int by = tile.y0; by < tile.y1; by += PACKET_WIDTH) {
+			for (int bx = tile.x0; bx < tile.x1; bx += PACKET_WIDTH) {
+				int x1 = Math.min(bx + PACKET_WIDTH, tile.x1), y1 = Math.min(by + PACKET_WIDTH, tile.y1);
+
+				// Camera rays
+				packet.size = 0;
+				for (int y = by; y < y1; y++)
+					for (int x = bx; x < x1; x++)
+						cam.getRay(packet.rays[packet.size++], (float) (x + 0.5) / width, (float) (y + 0.5) / height);
+				packet.prepare();
+				scene.intersectPacket(packet, false, context);
+				context.counters.rays[RenderStats.PRIMARY] += packet.size;
+
+				// Shadow rays, one packet per light, unless the shaders only look at a
+				// sample of the lights
+				for (int l = 0; l < numLights && !sampling; l++) {
+					shadows.size = 0;
+					for (int i = 0; i < packet.size; i++)
+						if (packet.hit[i])
+							Shader.makeShadowRay(shadows.rays[shadows.size++], lights.get(l), packet.records[i]);
+					shadows.prepare();
+					scene.intersectPacket(shadows, true, context);
+					context.counters.rays[RenderStats.SHADOW] += shadows.size;
+					for (int i = 0, j = 0; i < packet.size; i++)
+						if (packet.hit[i])
+							shadowed[i * numLights + l] = shadows.hit[j++];
+				}
+
+				// Shading
+				int i = 0;
+				for (int y = by; y < y1; y++) {
+					for (int x = bx; x < x1; x++, i++) {
+						IntersectionRecord record = packet.records[i];
+						if (packet.hit[i] && !sampling)
+							context.setKnownShadows(record, shadowed, i * numLights);
+						shadeIntersection(rayColor, scene, packet.rays[i], packet.hit[i], record, 1, context);
+						rayColor.mul(exposure);
+						image.setPixelColor(rayColor, x, y);
+					}
+				}
+				context.setKnownShadows(null, null, 0);
 			}
 		}
+	}
+	
+	/**
+	 * Take one round of samples in the active pixels of a tile.  The samples are
+	 * jittered within a samples x samples grid over each pixel; the jitter depends
+	 * only on the pixel and the sample number, so the result does not depend on how
+	 * the tiles are divided among threads.  A pixel with fewer samples left before
+	 * the sampler's limit than a round takes gets only that many, spread uniformly
+	 * over the whole pixel since they cannot fill the grid.
+	 *
+	 * @param round the sampling round; in round 0 every pixel is sampled
+	 */
+	public void sampleTile(Scene scene, Tile tile, AdaptiveSampler sampler, int round, RenderContext context) {
+		RenderContext.Frame frame = context.frame(0);
+		Ray ray = frame.ray;
+		Colorf rayColor = frame.color;
+		Camera cam = scene.getCamera();
+		int width = scene.getImage().getWidth();
+		int height = scene.getImage().getHeight();
 
-		// Output time
-		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
+				if (round > 0 && !sampler.isActive(x, y))
+					continue;
+				int pixel = y * width + x;
+				int cells = samples * samples;
+				int count = Math.min(cells, sampler.getMaxSamples() - sampler.getSampleCount(x, y));
+				for (int k = 0; k < count; k++) {
+					int sample = sampler.getSampleCount(x, y);
+					float u, v;
+					if (count == cells) {
+						u = (x + (k % samples + jitter(pixel, sample, 0)) / samples) / width;
+						v = (y + (k / samples + jitter(pixel, sample, 1)) / samples) / height;
+					}
+					else {
+						u = (x + jitter(pixel, sample, 0)) / width;
+						v = (y + jitter(pixel, sample, 1)) / height;
+					}
+					rayColor.setZero();
+					cam.getRay(ray, u, v);
+					context.counters.countRay(RenderStats.PRIMARY);
+					shadeRay(rayColor, scene, ray, 1, context);
+					sampler.addSample(x, y, rayColor);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A pseudo-random number in [0, 1) determined by its arguments.
+	 */
+	static float jitter(int pixel, int sample, int dimension) {
+		int h = pixel * 0x9E3779B1 ^ sample * 0x85EBCA77 ^ dimension * 0xC2B2AE3D;
+		h ^= h >>> 16;
+		h *= 0x7FEB352D;
+		h ^= h >>> 15;
+		h *= 0x846CA68B;
+		h ^= h >>> 16;
+		return (h >>> 8) * 0x1.0p-24f;
+	}
+	
+	/**
+	 * Print the fraction of completed tiles, at most once per interval across all threads.
+	 */
+	private static void reportProgress(int done, int total, AtomicLong lastShownTime, int interval) {
+		long last = lastShownTime.get();
+		long now = System.currentTimeMillis();
+		if (now - last > interval && lastShownTime.compareAndSet(last, now)) {
+			System.out.println((int)(100.0 * done / total) + "%");
+		}
 	}
 
 	/**
@@ -252,17 +891,54 @@ public class RayTracer {
 	 * @param depth
 	 */
 	public static void shadeRay(Colorf outColor, Scene scene, Ray ray, int depth) {
+		shadeRay(outColor, scene, ray, depth, RenderContext.current());
+	}
+
+	/**
+	 * As shadeRay(outColor, scene, ray, depth), taking all scratch objects from the
+	 * render context of the calling thread.
+	 *
+	 * @param context scratch space for the calling thread
+	 */
+	public static void shadeRay(Colorf outColor, Scene scene, Ray ray, int depth, RenderContext context) {
 		// TODO#Ray Task 4: Compute the color of the intersection point.
 		// 1) If depth is greater than MAX_DEPTH, return immediately.
 		// 2) Find the first intersection of "ray" with the scene.
-		//    Record intersection in intersectionRecord. If it doesn't hit anything,
-		//    just return the scene's background color.
-		// 3) Get the shader from the intersection record.
-		// 4) Call the shader's shade() method to set the color for this ray.
+		//    Record intersection in intersectionRecord.
+		//    Use context.frame(depth).record as intersectionRecord, and pass the context on.
+		// 3) Call shadeIntersection(), below, with whether the ray hit anything and
+		//    intersectionRecord, to set the color for this ray.
 		
 		// Reset the output color
 		outColor.setZero();
-
+		
 				
 	}
+	
+	/**
+	 * Set outColor to the color along ray given where it first hits the scene.  This
+	 * is the second half of shadeRay; the packet and wavefront renderers, which find
+	 * the intersections themselves, shade them here too.  The wavefront renderer
+	 * passes depth MAX_DEPTH, so that shaders add only the direct light, and traces
+	 * the reflected rays in its next batch.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param hit whether ray hits anything
+	 * @param record the first intersection of ray with the scene, if hit is true
+	 * @param depth the recursion depth
+	 * @param context scratch space for the calling thread
+	 */
+	public static void shadeIntersection(Colorf outColor, Scene scene, Ray ray, boolean hit,
+			IntersectionRecord record, int depth, RenderContext context) {
+		// TODO#Ray Task 4: Compute the color of the intersection point.
+		// 1) If the ray doesn't hit anything, just return the scene's background color.
+		// 2) Get the shader from the intersection record.
+		// 3) Call the shader's shade() method to set the color for this ray, passing the context on.
+		
+		// Reset the output color
+		outColor.setZero();
+		
+	}
 }
@@ -0,0 +1,268 @@
+package ray1;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import egl.math.Colorf;
+import egl.math.Vector2;
+import egl.math.Vector3d;
+import ray1.accel.RayPacket;
+import ray1.surface.Surface;
+
+/**
+ * Scratch objects for one render thread.  Every object the renderer needs while
+ * tracing and shading a ray is taken from here rather than allocated, so once a
+ * context has been used for a few pixels rendering produces no garbage.
+ *
+ * A context must only be used by one thread at a time.  The renderer keeps one
+ * per worker thread and passes it down through Scene, AccelStruct and Shader.
+ * The overloads of those methods that do not take a context use the calling
+ * thread's own, current(), rather than making a new one per call.
+ */
+public class RenderContext {
+
+	/**
+	 * Scratch space for shading at one recursion depth.  The ray spawned at depth d
+	 * (a mirror reflection, or the camera ray for d = 0) is stored in frame(d).ray
+	 * and is traced and shaded at depth d + 1.
+	 */
+	public static final class Frame {
+		/** The intersection of the incoming ray with the scene. */
+		public final IntersectionRecord record = new IntersectionRecord();
+		/** The ray spawned at this depth. */
+		public final Ray ray = new Ray();
+		/** The color carried back along ray. */
+		public final Colorf color = new Colorf();
+		/** The factor for the color carried back along ray; see Shader.scatter. */
+		public final Colorf weight = new Colorf();
+		/** Direction towards a light. */
+		public final Vector3d incoming = new Vector3d();
+		/** Direction towards the viewer. */
+		public final Vector3d outgoing = new Vector3d();
+		/** Texture coordinates in single precision, as the BRDFs want them. */
+		public final Vector2 texCoords = new Vector2();
+		/** The value of a BRDF. */
+		public final Colorf brdfValue = new Colorf();
+		/**
+		 * The lights chosen for shading at this depth, their indices in the scene's list
+		 * of lights and the weights of their contributions; see Scene.chooseLights.
+		 */
+		public Light[] lights = new Light[8];
+		public int[] lightIndices = new int[8];
+		public float[] lightWeights = new float[8];
+		/** The probability of the last light drawn from a LightTree. */
+		public final double[] lightPdf = new double[1];
+
+		/**
+		 * Make room for at least size chosen lights.
+		 */
+		public void reserveLights(int size) {
+			if (lights.length < size) {
+				lights = Arrays.copyOf(lights, Math.max(size, 2 * lights.length));
+				lightIndices = Arrays.copyOf(lightIndices, lights.length);
+				lightWeights = Arrays.copyOf(lightWeights, lights.length);
+			}
+		}
+	}
+
+	/**
+	 * Scratch space for one acceleration structure traversal.  Structures can nest
+	 * (a mesh with its own BVH inside a scene BVH) so traversals are stacked.
+	 */
+	public static final class Traversal {
+		/** A copy of the ray whose end can be moved as hits are found. */
+		public final Ray ray = new Ray();
+		/** A record for candidate hits. */
+		public final IntersectionRecord record = new IntersectionRecord();
+		private int[] stack = new int[64];
+
+		/**
+		 * @return an array of at least the given size for a stack of node indices
+		 */
+		public int[] stack(int size) {
+			if (stack.length < size)
+				stack = new int[Math.max(size, 2 * stack.length)];
+			return stack;
+		}
+
+		/** The bounds of one node, for structures that decode them as they go. */
+		public final float[] nodeBounds = new float[6];
+		/** Entry then exit distances of the children of one node, for structures with four-wide nodes. */
+		public final double[] lanes = new double[2 * 4];
+		private double[] boxStack = new double[6 * 64];
+
+		/**
+		 * @return an array of at least the given size for a stack of doubles that go
+		 * with the node indices, such as node boxes (six values each) or entry distances
+		 */
+		public double[] boxStack(int size) {
+			if (boxStack.length < size)
+				boxStack = new double[Math.max(size, 2 * boxStack.length)];
+			return boxStack;
+		}
+	}
+
+	private Frame[] frames = new Frame[RayTracer.MAX_DEPTH + 2];
+
+	private Traversal[] traversals = new Traversal[4];
+	private int traversalDepth = 0;
+
+	/** Statistics counted by this thread, collected by the renderer after each tile. */
+	public final RenderStats.Counters counters = new RenderStats.Counters();
+
+	/** The ray used for shadow tests. */
+	public final Ray shadowRay = new Ray();
+
+	/** A record for shadow tests, which never need the hit itself. */
+	public final IntersectionRecord shadowRecord = new IntersectionRecord();
+
+	/**
+	 * The single-precision copy of the ray being intersected with a mesh in single
+	 * precision.  Meshes do not contain other meshes, so one is enough.
+	 */
+	public final FloatRay floatRay = new FloatRay();
+
+	/** Distances and barycentric coordinates of four triangles, for four-wide triangle tests. */
+	public final double[] triangleLanes = new double[3 * 4];
+
+	private RayPacket packet, shadowPacket;
+	private Wavefront wavefront;
+	private boolean[] shadowMask = new boolean[0];
+
+	/**
+	 * The scene surface that ended the last any-intersection query, set by the
+	 * scene's acceleration structure.  For an instance this is the Instance, not
+	 * the surface of its prototype the record names, so it can be intersected
+	 * again in world space.
+	 */
+	public Surface occluder;
+
+	/** The surface that last blocked a shadow ray towards each light; see Shader.isShadowed. */
+	private final IdentityHashMap<Light, Surface> lastOccluders = new IdentityHashMap<Light, Surface>();
+
+	/** Shadow test results already known for one hit record, one per light. */
+	private IntersectionRecord knownShadowRecord;
+	private boolean[] knownShadows;
+	private int knownShadowOffset;
+
+	public RenderContext() { }
+
+	private static final ThreadLocal<RenderContext> current = ThreadLocal.withInitial(RenderContext::new);
+
+	/**
+	 * @return the calling thread's own context
+	 */
+	public static RenderContext current() {
+		return current.get();
+	}
+
+	/**
+	 * @return the packet used for camera rays, created on first use
+	 */
+	public RayPacket packet() {
+		if (packet == null)
+			packet = new RayPacket();
+		return packet;
+	}
+
+	/**
+	 * @return the packet used for shadow rays, created on first use
+	 */
+	public RayPacket shadowPacket() {
+		if (shadowPacket == null)
+			shadowPacket = new RayPacket();
+		return shadowPacket;
+	}
+
+	/**
+	 * @return the batches of the wavefront renderer, created on first use
+	 */
+	public Wavefront wavefront() {
+		if (wavefront == null)
+			wavefront = new Wavefront();
+		return wavefront;
+	}
+
+	/**
+	 * @return an array of at least the given size for the results of shadow packets
+	 */
+	public boolean[] shadowMask(int size) {
+		if (shadowMask.length < size)
+			shadowMask = new boolean[size];
+		return shadowMask;
+	}
+
+	/**
+	 * Record that the shadow rays from record towards the scene's lights have already
+	 * been traced: light l is shadowed if shadowed[offset + l] is true.  This lasts
+	 * until the next call; pass a null record to forget.
+	 */
+	public void setKnownShadows(IntersectionRecord record, boolean[] shadowed, int offset) {
+		knownShadowRecord = record;
+		knownShadows = shadowed;
+		knownShadowOffset = offset;
+	}
+
+	/**
+	 * @return true if the shadow rays from record have already been traced
+	 */
+	public boolean hasKnownShadows(IntersectionRecord record) {
+		return record != null && record == knownShadowRecord;
+	}
+
+	/**
+	 * @return 1 if light number light is known to be shadowed at record, 0 if it is
+	 * known to be visible, and -1 if it is not known
+	 */
+	public int knownShadow(IntersectionRecord record, int light) {
+		if (!hasKnownShadows(record))
+			return -1;
+		return knownShadows[knownShadowOffset + light] ? 1 : 0;
+	}
+
+	/**
+	 * @return the surface that last blocked a shadow ray towards light on this
+	 * thread, or null
+	 */
+	public Surface lastOccluder(Light light) {
+		return lastOccluders.get(light);
+	}
+
+	public void setLastOccluder(Light light, Surface surface) {
+		lastOccluders.put(light, surface);
+	}
+
+	/**
+	 * @return the scratch space for shading at the given recursion depth
+	 */
+	public Frame frame(int depth) {
+		if (depth >= frames.length)
+			frames = Arrays.copyOf(frames, Math.max(depth + 1, 2 * frames.length));
+		Frame f = frames[depth];
+		if (f == null)
+			f = frames[depth] = new Frame();
+		return f;
+	}
+
+	/**
+	 * Start a traversal.  Each call must be matched by a call to endTraversal().
+	 *
+	 * @return scratch space that belongs to the caller until endTraversal()
+	 */
+	public Traversal beginTraversal() {
+		if (traversalDepth == traversals.length)
+			traversals = Arrays.copyOf(traversals, 2 * traversals.length);
+		Traversal t = traversals[traversalDepth];
+		if (t == null)
+			t = traversals[traversalDepth] = new Traversal();
+		traversalDepth++;
+		return t;
+	}
+
+	/**
+	 * Release the scratch space returned by the most recent beginTraversal().
+	 */
+	public void endTraversal() {
+		traversalDepth--;
+	}
+}
@@ -0,0 +1,301 @@
+package ray1;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics gathered while rendering one image: rays traced of each type, BVH
+ * nodes visited, primitive intersection tests by kind of surface, how often the
+ * shadow occluder cache answered a shadow ray, and the time spent on each tile.
+ *
+ * Render threads count into the plain fields of their RenderContext's Counters,
+ * which costs no more than an increment in the inner loops, and the renderer adds
+ * those into the shared LongAdder totals here after every tile.  The totals can be
+ * printed as a summary or written out as JSON with RayTracer's -stats option.
+ *
+ * Reflection rays are counted where they are spawned: by the shader that follows
+ * a mirror reflection, or by the wavefront renderer as it collects scattered rays.
+ */
+public class RenderStats {
+
+	/** The kinds of rays that are counted. */
+	public static final int PRIMARY = 0, SHADOW = 1, REFLECTION = 2;
+	private static final String[] RAY_TYPES = { "primary", "shadow", "reflection" };
+
+	/** The surface classes seen so far, in the order they were given indices. */
+	private static final List<Class<?>> surfaceTypes = new ArrayList<>();
+
+	private static final ClassValue<Integer> surfaceTypeIndex = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			synchronized (surfaceTypes) {
+				surfaceTypes.add(type);
+				return surfaceTypes.size() - 1;
+			}
+		}
+	};
+
+	/**
+	 * @return the index under which primitive tests against surfaces of the given
+	 * class are counted.  Surfaces look theirs up once, when they are created, so
+	 * the inner loops need not.
+	 */
+	public static int surfaceType(Class<?> type) {
+		return surfaceTypeIndex.get(type);
+	}
+
+	/**
+	 * Counts kept by one render thread.  Only the thread that owns the context may
+	 * touch them; RenderStats.add collects and clears them.
+	 */
+	public static final class Counters {
+		/** Rays traced, indexed by PRIMARY, SHADOW and REFLECTION. */
+		public final long[] rays = new long[RAY_TYPES.length];
+		/** BVH nodes whose bounds were tested. */
+		public long nodesVisited;
+		/** Shadow rays tested against the last occluder of their light, and how many it blocked. */
+		public long occluderLookups, occluderHits;
+		/** Primitive tests, indexed by the surface type index of the class tested. */
+		private long[] primitiveTests = new long[8];
+
+		public void countRay(int type) {
+			rays[type]++;
+		}
+
+		/**
+		 * Count count intersection tests against primitives whose class has the
+		 * given surface type index (see surfaceType).
+		 */
+		public void countPrimitiveTests(int i, int count) {
+			if (i >= primitiveTests.length)
+				primitiveTests = Arrays.copyOf(primitiveTests, Math.max(i + 1, 2 * primitiveTests.length));
+			primitiveTests[i] += count;
+		}
+
+		private void clear() {
+			Arrays.fill(rays, 0);
+			nodesVisited = 0;
+			occluderLookups = 0;
+			occluderHits = 0;
+			Arrays.fill(primitiveTests, 0);
+		}
+	}
+
+	private final LongAdder[] rays = new LongAdder[RAY_TYPES.length];
+	private final LongAdder nodesVisited = new LongAdder();
+	private final LongAdder occluderLookups = new LongAdder(), occluderHits = new LongAdder();
+	private LongAdder[] primitiveTests = new LongAdder[0];
+
+	/** The tiles of the image and the nanoseconds spent on each. */
+	private final List<Tile> tiles;
+	private final AtomicLongArray tileNanos;
+
+	private final int width, height, threads;
+	private final long startTime = System.nanoTime();
+	private long endTime;
+
+	/**
+	 * Start gathering statistics for an image rendered in the given tiles.
+	 */
+	public RenderStats(int width, int height, List<Tile> tiles, int threads) {
+		this.width = width;
+		this.height = height;
+		this.tiles = tiles;
+		this.threads = threads;
+		tileNanos = new AtomicLongArray(tiles.size());
+		for (int i = 0; i < rays.length; i++)
+			rays[i] = new LongAdder();
+	}
+
+	/**
+	 * Add the counts of one thread to the totals and clear them.
+	 */
+	public void add(Counters counters) {
+		for (int i = 0; i < rays.length; i++)
+			rays[i].add(counters.rays[i]);
+		nodesVisited.add(counters.nodesVisited);
+		occluderLookups.add(counters.occluderLookups);
+		occluderHits.add(counters.occluderHits);
+		LongAdder[] tests = primitiveTests(counters.primitiveTests.length);
+		for (int i = 0; i < counters.primitiveTests.length; i++)
+			if (counters.primitiveTests[i] != 0)
+				tests[i].add(counters.primitiveTests[i]);
+		counters.clear();
+	}
+
+	/**
+	 * @return the primitive test totals, grown to at least the given length
+	 */
+	private synchronized LongAdder[] primitiveTests(int length) {
+		if (primitiveTests.length < length) {
+			int n = primitiveTests.length;
+			primitiveTests = Arrays.copyOf(primitiveTests, length);
+			for (int i = n; i < length; i++)
+				primitiveTests[i] = new LongAdder();
+		}
+		return primitiveTests;
+	}
+
+	/**
+	 * Record time spent on a tile.  A tile visited in several sampling rounds
+	 * accumulates the time of all of them.
+	 */
+	public void addTileTime(Tile tile, long nanos) {
+		tileNanos.addAndGet(tile.index, nanos);
+	}
+
+	/**
+	 * Mark the end of the render.
+	 */
+	public void finish() {
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * @return the seconds from construction to finish(), or until now if not finished
+	 */
+	public double getSeconds() {
+		return ((endTime != 0 ? endTime : System.nanoTime()) - startTime) / 1e9;
+	}
+
+	public long getRays(int type) { return rays[type].sum(); }
+
+	public long getTotalRays() {
+		long total = 0;
+		for (LongAdder r : rays)
+			total += r.sum();
+		return total;
+	}
+
+	public long getNodesVisited() { return nodesVisited.sum(); }
+
+	public long getOccluderLookups() { return occluderLookups.sum(); }
+
+	public long getOccluderHits() { return occluderHits.sum(); }
+
+	/**
+	 * @return the fraction of shadow rays tested against their light's last
+	 * occluder that it blocked, or NaN if there were none
+	 */
+	public double getOccluderHitRate() {
+		long lookups = getOccluderLookups();
+		return lookups == 0 ? Double.NaN : (double) getOccluderHits() / lookups;
+	}
+
+	/**
+	 * @return the number of primitive tests against surfaces of the given class
+	 */
+	public long getPrimitiveTests(Class<?> type) {
+		int i = surfaceTypeIndex.get(type);
+		LongAdder[] tests = primitiveTests(0);
+		return i < tests.length ? tests[i].sum() : 0;
+	}
+
+	/**
+	 * @return a one-line summary of the ray counts and rates
+	 */
+	public String summary() {
+		double seconds = getSeconds();
+		StringBuilder s = new StringBuilder("Rays:");
+		for (int i = 0; i < RAY_TYPES.length; i++)
+			s.append(' ').append(getRays(i)).append(' ').append(RAY_TYPES[i]).append(',');
+		s.append(String.format(Locale.ROOT, " %.2f Mrays/s; %d BVH nodes visited", getTotalRays() / seconds / 1e6, getNodesVisited()));
+		if (getOccluderLookups() > 0)
+			s.append(String.format(Locale.ROOT, "; shadow occluder cache %.1f%% of %d", 100 * getOccluderHitRate(), getOccluderLookups()));
+		return s.toString();
+	}
+
+	/**
+	 * @return the statistics as a JSON object
+	 */
+	public String toJSON(String scene) {
+		double seconds = getSeconds();
+		StringBuilder s = new StringBuilder();
+		s.append("{\n");
+		s.append("  \"scene\": ").append(quote(scene)).append(",\n");
+		s.append("  \"width\": ").append(width).append(",\n");
+		s.append("  \"height\": ").append(height).append(",\n");
+		s.append("  \"threads\": ").append(threads).append(",\n");
+		s.append("  \"seconds\": ").append(number(seconds)).append(",\n");
+		s.append("  \"rays\": {\n");
+		for (int i = 0; i < RAY_TYPES.length; i++) {
+			long n = getRays(i);
+			s.append("    ").append(quote(RAY_TYPES[i])).append(": { \"count\": ").append(n)
+				.append(", \"perSecond\": ").append(number(n / seconds)).append(" },\n");
+		}
+		s.append("    \"total\": { \"count\": ").append(getTotalRays())
+			.append(", \"perSecond\": ").append(number(getTotalRays() / seconds)).append(" }\n");
+		s.append("  },\n");
+		s.append("  \"bvhNodesVisited\": ").append(getNodesVisited()).append(",\n");
+		s.append("  \"occluderCache\": { \"lookups\": ").append(getOccluderLookups())
+			.append(", \"hits\": ").append(getOccluderHits())
+			.append(", \"hitRate\": ").append(number(getOccluderHitRate())).append(" },\n");
+		s.append("  \"primitiveTests\": {");
+		LongAdder[] tests = primitiveTests(0);
+		String separator = "\n";
+		for (int i = 0; i < tests.length; i++) {
+			long n = tests[i].sum();
+			if (n == 0)
+				continue;
+			String name;
+			synchronized (surfaceTypes) {
+				name = surfaceTypes.get(i).getSimpleName();
+			}
+			s.append(separator).append("    ").append(quote(name)).append(": ").append(n);
+			separator = ",\n";
+		}
+		s.append(separator.equals("\n") ? "},\n" : "\n  },\n");
+		s.append("  \"tiles\": [");
+		for (int i = 0; i < tiles.size(); i++) {
+			Tile t = tiles.get(i);
+			s.append(i == 0 ? "\n" : ",\n");
+			s.append("    { \"index\": ").append(t.index)
+				.append(", \"x0\": ").append(t.x0).append(", \"y0\": ").append(t.y0)
+				.append(", \"x1\": ").append(t.x1).append(", \"y1\": ").append(t.y1)
+				.append(", \"seconds\": ").append(number(tileNanos.get(t.index) / 1e9)).append(" }");
+		}
+		s.append(tiles.isEmpty() ? "]\n" : "\n  ]\n");
+		s.append("}\n");
+		return s.toString();
+	}
+
+	/**
+	 * Write the statistics as JSON to a file.
+	 */
+	public void writeJSON(String scene, String fileName) {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+			out.print(toJSON(scene));
+			System.out.println("  Wrote statistics " + fileName);
+		}
+		catch (IOException e) {
+			System.err.println("Error writing statistics " + fileName + ": " + e);
+		}
+	}
+
+	private static String number(double d) {
+		return Double.isFinite(d) ? String.format(Locale.ROOT, "%.6g", d) : "null";
+	}
+
+	private static String quote(String s) {
+		StringBuilder q = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				q.append('\\').append(c);
+			else if (c < 0x20)
+				q.append(String.format("\\u%04x", (int) c));
+			else
+				q.append(c);
+		}
+		return q.append('"').toString();
+	}
+}
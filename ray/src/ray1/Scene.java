@@ -7,11 +7,15 @@ import java.util.Iterator;
 import ray1.camera.Camera;
 import egl.math.Colorf;
 import ray1.shader.Shader;
+import ray1.surface.Box;
+import ray1.surface.PackedMesh;
+import ray1.surface.Prototype;
 import ray1.surface.Surface;
 import ray1.shader.Texture;
 import ray1.shader.BRDF;
 import ray1.accel.AccelStruct;
 import ray1.accel.Bvh;
+import ray1.accel.RayPacket;
 
 /**
  * The scene is just a collection of objects that compose a scene. The camera,
@@ -56,6 +60,11 @@ public class Scene {
 	public List<Surface> getSurfaces() { return this.surfaces; }
 	public void setSurfaces(ArrayList<Surface> s) { surfaces = s; }
 	
+	/** The prototypes placed in the scene by Instance surfaces; they are not rendered themselves. */
+	protected ArrayList<Prototype> prototypes = new ArrayList<Prototype>();
+	public void addPrototype(Prototype toAdd) { prototypes.add(toAdd); }
+	public List<Prototype> getPrototypes() { return this.prototypes; }
+	
 	/** The list of textures for the scene. */
 	protected ArrayList<Texture> textures = new ArrayList<Texture>();
 	public void addTexture(Texture toAdd) { textures.add(toAdd); }
@@ -76,15 +85,96 @@ public class Scene {
 	public Image getImage() { return this.outputImage; }
 	public void setImage(Image outputImage) { this.outputImage = outputImage; }
 	
+	/**
+	 * How Box surfaces are intersected: "analytic" (the default) tests each box as
+	 * one primitive, and "triangles" splits it into a mesh of 12 triangles, as
+	 * older versions did, for comparison.
+	 */
+	protected String boxes = "analytic";
+	public void setBoxes(String boxes) {
+		if (!boxes.equals("analytic") && !boxes.equals("triangles"))
+			throw new IllegalArgumentException("Unknown box mode: " + boxes + " (expected analytic or triangles)");
+		this.boxes = boxes;
+	}
+	public String getBoxes() { return boxes; }
+	
+	/**
+	 * The precision meshes are intersected in: "double" (the default), or "single",
+	 * which intersects PackedMesh surfaces with float rays, float box tests and
+	 * watertight float triangle tests.  Other surfaces always use double precision.
+	 */
+	protected String precision = "double";
+	public void setPrecision(String precision) {
+		if (!precision.equals("double") && !precision.equals("single"))
+			throw new IllegalArgumentException("Unknown precision: " + precision + " (expected double or single)");
+		this.precision = precision;
+	}
+	public String getPrecision() { return precision; }
+	
+	/**
+	 * How shaders choose the lights they take direct illumination from: "all" (the
+	 * default) visits every light at every hit, and "tree" picks lightSamples of
+	 * them at random by importance from a LightTree, weighting each by the inverse
+	 * of its probability.  Sampling is worth it for scenes with many lights; the
+	 * image is noisier but converges to the same result as the samples per pixel go up.
+	 */
+	protected String lightSampling = "all";
+	public void setLightSampling(String lightSampling) {
+		if (!lightSampling.equals("all") && !lightSampling.equals("tree"))
+			throw new IllegalArgumentException("Unknown light sampling: " + lightSampling + " (expected all or tree)");
+		this.lightSampling = lightSampling;
+	}
+	public String getLightSampling() { return lightSampling; }
+	
+	/** The number of lights chosen per hit when lightSampling is "tree". */
+	protected int lightSamples = 8;
+	public void setLightSamples(int lightSamples) {
+		if (lightSamples < 1)
+			throw new IllegalArgumentException("lightSamples must be at least 1, not " + lightSamples);
+		this.lightSamples = lightSamples;
+	}
+	public int getLightSamples() { return lightSamples; }
+	
+	/** The tree lights are sampled from, or null if every light is used. */
+	protected LightTree lightTree;
+	
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
 	public AccelStruct getAccelStruct() { return accelStruct; }
 	
+	private void configure(Surface s) {
+		if (s instanceof Box)
+			((Box) s).setTriangulate(boxes.equals("triangles"));
+		if (s instanceof PackedMesh)
+			((PackedMesh) s).setSinglePrecision(precision.equals("single"));
+	}
+	
 	/**
 	* Initialize method
 	*/
 	public void init() {
+		init(null);
+	}
+	
+	/**
+	 * Initialize the scene as the next frame of an animation whose previous frame
+	 * used the acceleration structure previous.  If that is a Bvh of the same kind
+	 * and with the same settings as this scene's, it is refit to this frame's
+	 * surfaces and reused rather than building a new one; see Bvh.refit.
+	 * Otherwise this scene's own acceleration structure is built as usual.
+	 *
+	 * @param previous The previous frame's acceleration structure, or null.
+	 */
+	public void init(AccelStruct previous) {
+		// Tell the boxes and meshes, including those in prototypes, how to present
+		// themselves and in what precision
+		for (Surface s : getSurfaces())
+			configure(s);
+		for (Prototype p : getPrototypes())
+			for (Surface s : p.getSurfaces())
+				configure(s);
+		
 		// Create the acceleration structure.
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
 		List<Surface> surfaces = getSurfaces();
@@ -94,7 +184,14 @@ public class Scene {
 		setSurfaces(renderableSurfaces);
 		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 		renderableSurfaces.toArray(surfaceArray);
-		getAccelStruct().build(surfaceArray);
+		if (previous instanceof Bvh && getAccelStruct() instanceof Bvh
+				&& ((Bvh) getAccelStruct()).hasSameSettings((Bvh) previous)) {
+			setAccelStruct(previous);
+			((Bvh) previous).refit(surfaceArray);
+		}
+		else {
+			getAccelStruct().build(surfaceArray);
+		}
 		
 		// initialize camera
 		getCamera().init();
@@ -103,6 +200,7 @@ public class Scene {
 		for ( Light light : getLights() ) {
 			light.init();
 		}
+		lightTree = isSamplingLights() ? new LightTree(getLights()) : null;
 		
 		//initialize surfaces
 		for ( Surface surface : getSurfaces()) {
@@ -121,6 +219,69 @@ public class Scene {
 		}
 	}
 
+	/**
+	 * @return true if shaders use a sample of the lights rather than all of them
+	 */
+	public boolean isSamplingLights() {
+		return lightSampling.equals("tree") && lights.size() > lightSamples;
+	}
+	
+	/**
+	 * Choose the lights to shade the hit at record with, putting them in
+	 * frame.lights, their indices in getLights() in frame.lightIndices, and the
+	 * factors their contributions are to be multiplied by in frame.lightWeights.
+	 * With every light in use these are the scene's lights, in order, with weight
+	 * 1.  Otherwise lightSamples lights are drawn from the light tree with
+	 * stratified random numbers that depend only on the hit location, so renders
+	 * are repeatable; a light drawn more than once appears once, with its weights
+	 * added, and a draw that finds no light that can reach the hit adds nothing.
+	 * Summing the weighted contributions of the chosen lights estimates the sum
+	 * over all lights without bias.
+	 *
+	 * Nothing in the framework calls this: it is only named in the TODO hint of
+	 * ReflectionShader.shade.  Until shade is written to loop over the lights it
+	 * chooses, "tree" light sampling has no effect on the image.
+	 *
+	 * @return the number of lights chosen
+	 */
+	public int chooseLights(IntersectionRecord record, RenderContext.Frame frame) {
+		if (lightTree == null) {
+			int n = lights.size();
+			frame.reserveLights(n);
+			for (int i = 0; i < n; i++) {
+				frame.lights[i] = lights.get(i);
+				frame.lightIndices[i] = i;
+				frame.lightWeights[i] = 1;
+			}
+			return n;
+		}
+		
+		frame.reserveLights(lightSamples);
+		int seed = Double.hashCode(record.location.x) * 31 * 31 + Double.hashCode(record.location.y) * 31
+				+ Double.hashCode(record.location.z);
+		float offset = RayTracer.jitter(seed, 0, 0);
+		int n = 0;
+		for (int j = 0; j < lightSamples; j++) {
+			int l = lightTree.sample(record.location, record.normal, (j + offset) / lightSamples, frame.lightPdf);
+			if (l < 0)
+				continue;
+			Light light = lights.get(l);
+			float weight = (float) (1 / (lightSamples * frame.lightPdf[0]));
+			int k = 0;
+			while (k < n && frame.lights[k] != light)
+				k++;
+			if (k < n) {
+				frame.lightWeights[k] += weight;
+			}
+			else {
+				frame.lights[n] = light;
+				frame.lightIndices[n] = l;
+				frame.lightWeights[n++] = weight;
+			}
+		}
+		return n;
+	}
+	
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
 	 * if there was an intersection and false otherwise. If no intersection was
@@ -131,7 +292,15 @@ public class Scene {
 	 * @return true if and intersection is found.
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
-		return intersect(outRecord, ray, false);
+		return getFirstIntersection(outRecord, ray, RenderContext.current());
+	}
+	
+	/**
+	 * As getFirstIntersection(outRecord, ray), taking scratch space from the
+	 * render context of the calling thread.
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray, RenderContext context) {
+		return intersect(outRecord, ray, false, context);
 		
 	}
 	
@@ -143,19 +312,54 @@ public class Scene {
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return intersect(new IntersectionRecord(), ray, true);	
+		return getAnyIntersection(ray, RenderContext.current());
+	}
+	
+	/**
+	 * As getAnyIntersection(ray), taking scratch space from the render context of
+	 * the calling thread.
+	 */
+	public boolean getAnyIntersection(Ray ray, RenderContext context) {
+		return intersect(context.shadowRecord, ray, true, context);
 		//TODO#Ray Part 2: uncomment the following line, and comment the previous line out.
-//		return accelStruct.intersect(new IntersectionRecord(), ray, true);
+//		return accelStruct.intersect(context.shadowRecord, ray, true, context);
+	}
+	
+	/**
+	 * Intersect a prepared packet of rays with the scene, finding for each ray what
+	 * getFirstIntersection (or, if anyIntersection is true, getAnyIntersection)
+	 * would.  See AccelStruct.intersectPacket.
+	 *
+	 * @return the number of rays that hit a surface
+	 */
+	public int intersectPacket(RayPacket packet, boolean anyIntersection, RenderContext context) {
+		int hits = 0;
+		for (int i = 0; i < packet.size; i++) {
+			packet.hit[i] = intersect(anyIntersection ? context.shadowRecord : packet.records[i],
+					packet.rays[i], anyIntersection, context);
+			if (packet.hit[i]) {
+				hits++;
+				if (!anyIntersection)
+					packet.rays[i].end = packet.records[i].t;
+			}
+		}
+		return hits;
+		//TODO#Ray Part 2: uncomment the following line, and comment the previous lines out.
+//		return accelStruct.intersectPacket(packet, anyIntersection, context);
 	}
 	
-	private boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+	private boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext context) {
 		// TODO#Ray Part 1 Task 3:
 		//			1) Loop through all surfaces in the scene.
 		//		    2) Intersect each with a copy of the given ray.
+		//			   Hint: context.beginTraversal() gives scratch space for the copy and for
+		//			   candidate hits; call context.endTraversal() when you are done with it.
 		//		    3) If there was an intersection, check the modified IntersectionRecord to see
 		//		  	   if the object was hit by the ray sooner than any previous object.
 		//			   Hint: modifying the end field of your local copy of ray might be useful here.
-		//          4) If anyIntersection is true, return immediately.
+		//          4) If anyIntersection is true, set context.occluder to the surface that was hit
+		//			   and return immediately.  Shader.isShadowed remembers that surface, and tests
+		//			   the next shadow ray towards the same light against it first.
 		//		    5) Set outRecord to the IntersectionRecord of the first object hit.
 		//		    6) If there was an intersection, return true; otherwise return false.
 
@@ -163,6 +367,6 @@ public class Scene {
 	
 		return ret;
 //		 TODO#Ray Part 2: uncomment the following line, and comment your previous solution out.
-//		 return accelStruct.intersect(outRecord, rayIn, anyIntersection);
+//		 return accelStruct.intersect(outRecord, rayIn, anyIntersection, context);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package ray1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A rectangular block of image pixels that is rendered as one unit of work.
+ * Tiles are numbered in row-major order starting from the lower left corner
+ * of the image, so a given image size and tile size always produce the same
+ * partition.
+ */
+public class Tile {
+
+	/** The position of this tile in the row-major tile ordering. */
+	public final int index;
+
+	/** The first pixel column covered by this tile. */
+	public final int x0;
+
+	/** The first pixel row covered by this tile. */
+	public final int y0;
+
+	/** One past the last pixel column covered by this tile. */
+	public final int x1;
+
+	/** One past the last pixel row covered by this tile. */
+	public final int y1;
+
+	public Tile(int index, int x0, int y0, int x1, int y1) {
+		this.index = index;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.x1 = x1;
+		this.y1 = y1;
+	}
+
+	/**
+	 * @return the number of pixels covered by this tile
+	 */
+	public int pixelCount() {
+		return (x1 - x0) * (y1 - y0);
+	}
+
+	/**
+	 * Split an image into square tiles of the given size.  Tiles along the right
+	 * and top edges are clipped to the image bounds.
+	 *
+	 * @param width the image width
+	 * @param height the image height
+	 * @param tileSize the width and height of each tile, in pixels
+	 * @return the tiles in row-major order
+	 */
+	public static List<Tile> split(int width, int height, int tileSize) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		ArrayList<Tile> tiles = new ArrayList<Tile>();
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				tiles.add(new Tile(tiles.size(), x, y,
+						Math.min(x + tileSize, width), Math.min(y + tileSize, height)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "tile " + index + ": [" + x0 + ", " + x1 + ") x [" + y0 + ", " + y1 + ")";
+	}
+}
@@ -0,0 +1,199 @@
+package ray1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cornell.graphics.exr.Header;
+import edu.cornell.graphics.exr.attributes.StringAttribute;
+import edu.cornell.graphics.exr.attributes.TypedAttribute;
+import edu.cornell.graphics.exr.ilmbaseto.Box2;
+import egl.math.Colorf;
+
+/**
+ * Assembles the partial images written by RayTracer's -tiles and -window options
+ * into the whole image.
+ *
+ * A partial image is an OpenEXR file whose display window is the whole image and
+ * whose data window bounds the part that was rendered.  A part rendered as a
+ * range of tiles also records the range and the tile size in its header, and only
+ * the pixels of those tiles are taken from it; otherwise the whole data window is.
+ * Parts may be given in any order.  Pixels covered by no part are left black and
+ * reported, along with the tiles that would need to be rendered to fill them.
+ *
+ * Usage: java ray1.TileMerger output.exr part1.exr part2.exr ...
+ */
+public class TileMerger {
+
+	/** Header attributes of a partial image rendered as a range of tiles. */
+	public static final String TILES_ATTRIBUTE = "ray1Tiles", TILE_SIZE_ATTRIBUTE = "ray1TileSize";
+
+	/** The merged image, or null before the first part is added. */
+	protected Image image;
+
+	/** Whether each pixel, indexed y * width + x, has come from some part. */
+	protected boolean[] covered;
+
+	/** The tile size of the parts rendered as tiles, or 0 if there were none. */
+	protected int tileSize;
+
+	/** Scratch image each part is read into. */
+	private Image part;
+
+	public TileMerger() { }
+
+	/**
+	 * @return the image assembled so far
+	 */
+	public Image getImage() { return image; }
+
+	/**
+	 * Read a partial image and copy its pixels into the merged image.
+	 *
+	 * @throws IOException if the file cannot be read, or is not the same size as the
+	 * parts added before it
+	 */
+	public void add(String fileName) throws IOException {
+		if (image == null) {
+			Header header = Image.readHeader(fileName);
+			Box2<Integer> display = header.getDisplayWindow();
+			int width = display.xMax - display.xMin + 1, height = display.yMax - display.yMin + 1;
+			image = new Image(width, height);
+			part = new Image(width, height);
+			covered = new boolean[width * height];
+		}
+		int width = image.getWidth(), height = image.getHeight();
+		Header header = part.readHDR(fileName);
+
+		// The part's pixels, as rectangles [x0, x1) x [y0, y1)
+		List<int[]> rects = new ArrayList<>();
+		String tiles = stringAttribute(header, TILES_ATTRIBUTE);
+		if (tiles != null) {
+			String size = stringAttribute(header, TILE_SIZE_ATTRIBUTE);
+			int partTileSize;
+			int first, last;
+			try {
+				partTileSize = Integer.parseInt(size);
+				String[] range = tiles.split("-");
+				first = Integer.parseInt(range[0]);
+				last = Integer.parseInt(range[1]);
+			}
+			catch (RuntimeException e) {
+				throw new IOException(fileName + " has a bad tile range " + tiles + " of size " + size);
+			}
+			if (tileSize != 0 && tileSize != partTileSize)
+				throw new IOException(fileName + " has tile size " + partTileSize + ", not " + tileSize);
+			tileSize = partTileSize;
+			List<Tile> all = Tile.split(width, height, tileSize);
+			if (first < 0 || last >= all.size() || first > last)
+				throw new IOException(fileName + " has tiles " + tiles + " but the image has " + all.size());
+			for (Tile t : all.subList(first, last + 1))
+				rects.add(new int[] { t.x0, t.y0, t.x1, t.y1 });
+		}
+		else {
+			// File rows run top to bottom, the reverse of y
+			Box2<Integer> data = header.getDataWindow();
+			rects.add(new int[] { data.xMin, height - 1 - data.yMax, data.xMax + 1, height - data.yMin });
+		}
+
+		Colorf c = new Colorf();
+		int overlaps = 0;
+		for (int[] r : rects) {
+			for (int y = r[1]; y < r[3]; y++) {
+				for (int x = r[0]; x < r[2]; x++) {
+					if (covered[y * width + x])
+						overlaps++;
+					covered[y * width + x] = true;
+					part.getPixelColor(c, x, y);
+					image.setPixelColor(c, x, y);
+				}
+			}
+		}
+		System.out.println("Merged " + fileName + (overlaps > 0 ? " (" + overlaps + " pixels already covered)" : ""));
+	}
+
+	/**
+	 * @return the number of pixels not covered by any part
+	 */
+	public int getMissingPixels() {
+		int missing = 0;
+		for (boolean b : covered)
+			if (!b)
+				missing++;
+		return missing;
+	}
+
+	/**
+	 * @return the numbers of the tiles, of the parts' tile size (or 32 if none was
+	 * rendered as tiles), that contain pixels not covered by any part
+	 */
+	public List<Integer> getMissingTiles() {
+		List<Integer> missing = new ArrayList<>();
+		int width = image.getWidth();
+		for (Tile t : Tile.split(width, image.getHeight(), tileSize != 0 ? tileSize : 32)) {
+			search:
+			for (int y = t.y0; y < t.y1; y++) {
+				for (int x = t.x0; x < t.x1; x++) {
+					if (!covered[y * width + x]) {
+						missing.add(t.index);
+						break search;
+					}
+				}
+			}
+		}
+		return missing;
+	}
+
+	private static String stringAttribute(Header header, String name) {
+		TypedAttribute<String> a = header.findTypedAttribute(name, StringAttribute.class);
+		return a == null ? null : a.getValue();
+	}
+
+	/**
+	 * Merge the parts named on the command line and write the result.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: java ray1.TileMerger output.exr part1.exr part2.exr ...");
+			System.out.println("Assembles the parts of an image rendered with RayTracer -tiles or -window.");
+			System.exit(1);
+		}
+		TileMerger merger = new TileMerger();
+		try {
+			for (String part : Arrays.asList(args).subList(1, args.length))
+				merger.add(part);
+		}
+		catch (IOException e) {
+			System.err.println("Error merging parts: " + e.getMessage());
+			System.exit(1);
+		}
+		merger.getImage().writeHDR(args[0]);
+
+		int missingPixels = merger.getMissingPixels();
+		if (missingPixels > 0) {
+			System.out.println(missingPixels + " pixels are missing; tiles (of size "
+					+ (merger.tileSize != 0 ? merger.tileSize : 32) + ") to render again: " + ranges(merger.getMissingTiles()));
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * @return the numbers as comma-separated runs, such as 3-7,12
+	 */
+	static String ranges(List<Integer> numbers) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < numbers.size(); ) {
+			int j = i;
+			while (j + 1 < numbers.size() && numbers.get(j + 1) == numbers.get(j) + 1)
+				j++;
+			if (s.length() > 0)
+				s.append(',');
+			s.append(numbers.get(i));
+			if (j > i)
+				s.append('-').append(numbers.get(j));
+			i = j + 1;
+		}
+		return s.toString();
+	}
+}
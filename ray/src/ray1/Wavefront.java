@@ -0,0 +1,293 @@
+package ray1;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import egl.math.Colorf;
+import ray1.camera.Camera;
+import ray1.shader.Shader;
+
+/**
+ * A breadth-first renderer, an alternative to the depth-first recursion of
+ * RayTracer.shadeRay.  Rather than following each camera ray's reflections to
+ * the end before starting the next pixel, it traces all the rays of a tile at
+ * one depth before any ray of the next depth:
+ *
+ *   1. Trace the whole batch (a wavefront) of rays against the scene with
+ *      Scene.getFirstIntersection.  Reflected rays are first sorted by a key made
+ *      of their direction's octant and the Morton code of their origin, so rays
+ *      that go the same way from nearby points are traced one after another and
+ *      visit the same BVH nodes.
+ *   2. Sort the hits by shader and shade them one material at a time with
+ *      RayTracer.shadeIntersection at depth RayTracer.MAX_DEPTH, where shaders
+ *      follow no reflections and give only the direct light.  Misses are shaded
+ *      by shadeIntersection too.  The light is added into the pixel each ray
+ *      belongs to, weighted by everything the ray was reflected from on the way.
+ *   3. Collect the rays the shaders reflect (Shader.scatter) into the next batch.
+ *
+ * Rays are cut off at the same RayTracer.MAX_DEPTH as in shadeRay, and
+ * RendererTests checks that the two make the same image up to rounding.  Each
+ * render thread has one Wavefront in its RenderContext, so the batches are
+ * reused from tile to tile.
+ */
+public class Wavefront {
+
+	/**
+	 * A batch of rays, each with the pixel it contributes to and the weight of the
+	 * light it carries back, three floats per ray.
+	 */
+	private static final class Batch {
+		Ray[] rays = new Ray[0];
+		int[] pixels = new int[0];
+		float[] weights = new float[0];
+		int size;
+
+		/**
+		 * Append a ray, to be set up by the caller.
+		 */
+		Ray add(int pixel, float r, float g, float b) {
+			if (size == rays.length) {
+				int n = Math.max(256, 2 * size);
+				rays = Arrays.copyOf(rays, n);
+				for (int i = size; i < n; i++)
+					rays[i] = new Ray();
+				pixels = Arrays.copyOf(pixels, n);
+				weights = Arrays.copyOf(weights, 3 * n);
+			}
+			pixels[size] = pixel;
+			weights[3 * size] = r;
+			weights[3 * size + 1] = g;
+			weights[3 * size + 2] = b;
+			return rays[size++];
+		}
+	}
+
+	private Batch current = new Batch(), next = new Batch();
+
+	/** The hits of the current batch, by ray. */
+	private IntersectionRecord[] records = new IntersectionRecord[0];
+
+	/** Sort keys and orders of the rays in the current batch. */
+	private long[] keys = new long[0];
+	private int[] order = new int[0], byShader = new int[0], shaderOf = new int[0];
+	private int[] shaderCounts = new int[0];
+
+	/** Shaders in the order this thread first met them; the index is the sort key. */
+	private final IdentityHashMap<Shader, Integer> shaderIds = new IdentityHashMap<>();
+	private Shader[] shaders = new Shader[0];
+
+	/** The light gathered in each pixel of the tile, three per pixel. */
+	private double[] sums = new double[0];
+
+	private final Colorf color = new Colorf(), weight = new Colorf();
+	private final Ray scattered = new Ray();
+
+	public Wavefront() { }
+
+	/**
+	 * Render one tile of the scene's image, taking samples x samples stratified
+	 * samples in each pixel (jittered as by RayTracer.sampleTile) or, for one sample,
+	 * the ray through the pixel's center.
+	 */
+	public void renderTile(Scene scene, Tile tile, int samples, RenderContext context) {
+		Image image = scene.getImage();
+		Camera cam = scene.getCamera();
+		int width = image.getWidth(), height = image.getHeight();
+		int tileWidth = tile.x1 - tile.x0;
+		int numPixels = tile.pixelCount();
+		if (sums.length < 3 * numPixels)
+			sums = new double[3 * numPixels];
+		Arrays.fill(sums, 0, 3 * numPixels, 0);
+
+		// The camera rays
+		current.size = 0;
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
+				int p = (y - tile.y0) * tileWidth + (x - tile.x0);
+				if (samples == 1) {
+					cam.getRay(current.add(p, 1, 1, 1), (float) (x + 0.5) / width, (float) (y + 0.5) / height);
+					continue;
+				}
+				int pixel = y * width + x;
+				for (int j = 0; j < samples; j++) {
+					for (int i = 0; i < samples; i++) {
+						int sample = j * samples + i;
+						float u = (x + (i + RayTracer.jitter(pixel, sample, 0)) / samples) / width;
+						float v = (y + (j + RayTracer.jitter(pixel, sample, 1)) / samples) / height;
+						cam.getRay(current.add(p, 1, 1, 1), u, v);
+					}
+				}
+			}
+		}
+		context.counters.rays[RenderStats.PRIMARY] += current.size;
+
+		for (int depth = 1; depth <= RayTracer.MAX_DEPTH && current.size > 0; depth++) {
+			int hits = trace(scene, depth > 1, context);
+			shade(scene, hits, depth < RayTracer.MAX_DEPTH, context);
+			Batch b = current;
+			current = next;
+			next = b;
+		}
+
+		float scale = scene.getExposure() / (samples * samples);
+		for (int y = tile.y0; y < tile.y1; y++) {
+			for (int x = tile.x0; x < tile.x1; x++) {
+				int p = 3 * ((y - tile.y0) * tileWidth + (x - tile.x0));
+				color.set((float) sums[p], (float) sums[p + 1], (float) sums[p + 2]).mul(scale);
+				image.setPixelColor(color, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Find the first hit of every ray in the current batch, in sorted order if
+	 * asked, and sort the hits by shader into byShader.
+	 *
+	 * @return the number of hits
+	 */
+	private int trace(Scene scene, boolean sort, RenderContext context) {
+		int n = current.size;
+		if (records.length < n) {
+			int old = records.length;
+			records = Arrays.copyOf(records, n);
+			for (int i = old; i < n; i++)
+				records[i] = new IntersectionRecord();
+			order = new int[n];
+			byShader = new int[n];
+			shaderOf = new int[n];
+		}
+		if (sort)
+			sortRays();
+		else
+			for (int i = 0; i < n; i++)
+				order[i] = i;
+
+		// Trace, and count the hits on each shader
+		Arrays.fill(shaderCounts, 0);
+		int hits = 0;
+		for (int k = 0; k < n; k++) {
+			int i = order[k];
+			Ray ray = current.rays[i];
+			if (scene.getFirstIntersection(records[i], ray, context)) {
+				int s = shaderId(records[i].surface.getShader());
+				shaderOf[i] = s;
+				shaderCounts[s]++;
+				hits++;
+			}
+			else {
+				shaderOf[i] = -1;
+				RayTracer.shadeIntersection(color, scene, ray, false, records[i], RayTracer.MAX_DEPTH, context);
+				int p = 3 * current.pixels[i];
+				sums[p] += current.weights[3 * i] * color.x;
+				sums[p + 1] += current.weights[3 * i + 1] * color.y;
+				sums[p + 2] += current.weights[3 * i + 2] * color.z;
+			}
+		}
+
+		// A counting sort by shader keeps the traversal order within each material
+		int start = 0;
+		for (int s = 0; s < shaders.length; s++) {
+			int c = shaderCounts[s];
+			shaderCounts[s] = start;
+			start += c;
+		}
+		for (int k = 0; k < n; k++) {
+			int i = order[k];
+			if (shaderOf[i] >= 0)
+				byShader[shaderCounts[shaderOf[i]]++] = i;
+		}
+		return hits;
+	}
+
+	/**
+	 * Add the direct light at every hit to its pixel, one material at a time, and
+	 * collect the reflected rays into the next batch.  Shading at MAX_DEPTH makes
+	 * the shaders leave the reflected light to the later batches.
+	 *
+	 * @param hits the number of hits, sorted by shader in byShader
+	 * @param scatter whether reflected rays are wanted
+	 */
+	private void shade(Scene scene, int hits, boolean scatter, RenderContext context) {
+		next.size = 0;
+		for (int k = 0; k < hits; k++) {
+			int i = byShader[k];
+			Ray ray = current.rays[i];
+			IntersectionRecord record = records[i];
+			Shader shader = shaders[shaderOf[i]];
+			float wr = current.weights[3 * i], wg = current.weights[3 * i + 1], wb = current.weights[3 * i + 2];
+			int p = current.pixels[i];
+
+			RayTracer.shadeIntersection(color, scene, ray, true, record, RayTracer.MAX_DEPTH, context);
+			sums[3 * p] += wr * color.x;
+			sums[3 * p + 1] += wg * color.y;
+			sums[3 * p + 2] += wb * color.z;
+
+			if (scatter && shader.scatter(scattered, weight, ray, record)) {
+				next.add(p, wr * weight.x, wg * weight.y, wb * weight.z).set(scattered);
+				context.counters.countRay(RenderStats.REFLECTION);
+			}
+		}
+	}
+
+	/**
+	 * Put the rays of the current batch in order of their direction's octant, then
+	 * of the Morton code of their origin within the bounds of all the origins.
+	 */
+	private void sortRays() {
+		int n = current.size;
+		Ray[] rays = current.rays;
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int i = 0; i < n; i++) {
+			Ray r = rays[i];
+			minX = Math.min(minX, r.origin.x); maxX = Math.max(maxX, r.origin.x);
+			minY = Math.min(minY, r.origin.y); maxY = Math.max(maxY, r.origin.y);
+			minZ = Math.min(minZ, r.origin.z); maxZ = Math.max(maxZ, r.origin.z);
+		}
+		double sx = maxX > minX ? 1023.0 / (maxX - minX) : 0;
+		double sy = maxY > minY ? 1023.0 / (maxY - minY) : 0;
+		double sz = maxZ > minZ ? 1023.0 / (maxZ - minZ) : 0;
+
+		if (keys.length < n)
+			keys = new long[Math.max(n, 2 * keys.length)];
+		for (int i = 0; i < n; i++) {
+			Ray r = rays[i];
+			long octant = (r.direction.x < 0 ? 4 : 0) | (r.direction.y < 0 ? 2 : 0) | (r.direction.z < 0 ? 1 : 0);
+			long morton = spread((int) ((r.origin.x - minX) * sx)) << 2
+					| spread((int) ((r.origin.y - minY) * sy)) << 1
+					| spread((int) ((r.origin.z - minZ) * sz));
+			// 33 bits of key above 31 bits of index; the sign bit only reorders octants
+			keys[i] = (octant << 30 | morton) << 31 | i;
+		}
+		Arrays.sort(keys, 0, n);
+		for (int k = 0; k < n; k++)
+			order[k] = (int) (keys[k] & 0x7FFFFFFF);
+	}
+
+	/**
+	 * @return the low 10 bits of v spread out to every third bit
+	 */
+	private static long spread(int v) {
+		long x = v & 0x3FF;
+		x = (x | x << 16) & 0x30000FF;
+		x = (x | x << 8) & 0x300F00F;
+		x = (x | x << 4) & 0x30C30C3;
+		x = (x | x << 2) & 0x9249249;
+		return x;
+	}
+
+	/**
+	 * @return the index of a shader, numbering it if it is new
+	 */
+	private int shaderId(Shader shader) {
+		Integer id = shaderIds.get(shader);
+		if (id == null) {
+			id = shaders.length;
+			shaderIds.put(shader, id);
+			shaders = Arrays.copyOf(shaders, id + 1);
+			shaders[id] = shader;
+			shaderCounts = Arrays.copyOf(shaderCounts, id + 1);
+		}
+		return id;
+	}
+}
@@ -2,6 +2,7 @@ package ray1.accel;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderContext;
 import ray1.surface.Surface;
 
 /**
@@ -29,4 +30,40 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+	
+	/**
+	 * As intersect(outRecord, rayIn, anyIntersection), but taking any scratch objects
+	 * from the calling thread's render context instead of allocating them.  Structures
+	 * that do not override this fall back to the allocating version.
+	 * 
+	 * @param context The render context of the calling thread.
+	 */
+	default boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext context) {
+		return intersect(outRecord, rayIn, anyIntersection);
+	}
+	
+	/**
+	 * Intersect a packet of rays that has been prepared with RayPacket.prepare().
+	 * Sets packet.hit for each ray; for first-hit queries also fills in
+	 * packet.records and moves each ray's end to its hit.  Structures that do not
+	 * override this intersect the rays one at a time.
+	 * 
+	 * @param packet The rays to intersect.
+	 * @param anyIntersection True if only whether each ray hits anything matters.
+	 * @param context The render context of the calling thread.
+	 * @return the number of rays in the packet that hit a surface.
+	 */
+	default int intersectPacket(RayPacket packet, boolean anyIntersection, RenderContext context) {
+		int hits = 0;
+		for (int i = 0; i < packet.size; i++) {
+			packet.hit[i] = intersect(anyIntersection ? context.shadowRecord : packet.records[i],
+					packet.rays[i], anyIntersection, context);
+			if (packet.hit[i]) {
+				hits++;
+				if (!anyIntersection)
+					packet.rays[i].end = packet.records[i].t;
+			}
+		}
+		return hits;
+	}
 }
@@ -3,10 +3,13 @@ package ray1.accel;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import egl.math.Vector3d;
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderContext;
 import ray1.surface.Surface;
 
 /**
@@ -15,14 +18,8 @@ import ray1.surface.Surface;
  * @author ss932, pramook
  */
 public class Bvh implements AccelStruct {
-	/**
-	 * Performance counter
-	 * */
-	public static int hitCount = 0;
-	public static int missCount = 0;
-	
 	/** A shared surfaces array that will be used across every node in the tree. */
-	private Surface[] surfaces;
+	protected Surface[] surfaces;
 
 	/** A comparator class that can sort surfaces by x, y, or z coordinate.
 	 *  See the subclass declaration below for details.
@@ -31,6 +28,53 @@ public class Bvh implements AccelStruct {
 	
 	/** The root of the BVH tree. */
 	BvhNode root;
+	
+	/**
+	 * The algorithm used to build the tree: "median" splits the widest axis in half
+	 * (createTree), "sah" uses the binned surface area heuristic (SahBvhBuilder).
+	 * Set from the scene file, e.g. <accelStruct type="Bvh"><builder>sah</builder></accelStruct>.
+	 */
+	protected String builder = "median";
+	public void setBuilder(String builder) {
+		String b = builder.trim().toLowerCase();
+		if (!b.equals("median") && !b.equals("sah"))
+			throw new IllegalArgumentException("Unknown Bvh builder: " + builder);
+		this.builder = b;
+	}
+	public String getBuilder() { return builder; }
+	
+	/** The largest number of surfaces stored in a leaf node. */
+	protected int leafSize = 10;
+	public void setLeafSize(int leafSize) { this.leafSize = Math.max(1, leafSize); }
+	public int getLeafSize() { return leafSize; }
+	
+	/**
+	 * The number of threads used to build the tree.  Surface bounding boxes are
+	 * always computed in parallel; the sah builder also builds subtrees and bins
+	 * large ranges in parallel.  With one thread everything runs on the caller.
+	 */
+	protected int buildThreads = Runtime.getRuntime().availableProcessors();
+	public void setBuildThreads(int buildThreads) { this.buildThreads = Math.max(1, buildThreads); }
+	public int getBuildThreads() { return buildThreads; }
+	
+	/**
+	 * How far the tree's quality may degrade, as a multiple of the average child
+	 * volume ratio or SAH cost when it was built, before refit() gives up on the
+	 * old topology and rebuilds the tree instead.
+	 */
+	protected double rebuildThreshold = 1.5;
+	public void setRebuildThreshold(double rebuildThreshold) { this.rebuildThreshold = rebuildThreshold; }
+	public double getRebuildThreshold() { return rebuildThreshold; }
+	
+	/** The average child volume ratio and relative SAH cost of the tree when it was last built. */
+	protected double builtVolRatio, builtSahCost;
+	
+	/**
+	 * For each position in surfaces, the index the surface there had in the array
+	 * passed to build(), so that the surfaces of a later frame can be put in the
+	 * same order by refit().
+	 */
+	protected int[] surfaceOrder;
 
 	public Bvh() { }
 
@@ -45,7 +89,12 @@ public class Bvh implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		return intersect(outRecord, rayIn, anyIntersection, RenderContext.current());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext context) {
+		return intersectHelper(root, outRecord, rayIn, anyIntersection, context);
 	}
 	
 	/**
@@ -56,9 +105,11 @@ public class Bvh implements AccelStruct {
 	 * @param outRecord the output InsersectionMethod
 	 * @param rayIn the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param context the render context of the calling thread
 	 * @return true if an intersection is found with any surface under the given node
 	 */
-	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection)
+	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection,
+			RenderContext context)
 	{
 		// TODO#Ray Part 2 Task 3: fill in this function.
 		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
@@ -73,6 +124,9 @@ public class Bvh implements AccelStruct {
 		// ==== Step 2 ====
 		// Check if current node is leaf
 		// If current node is leaf, loop over all the surface in this leaf, do surface intersection check, find the first intersection
+		// If anyIntersection is true, set context.occluder to the surface that was hit and return
+		// immediately.  Shader.isShadowed remembers that surface, and tests the next shadow ray
+		// towards the same light against it first.
 		// If current node is not a leaf, call intersectHelper recursively for left and right child of the node, 
 		
 		boolean ret = false;
@@ -82,14 +136,150 @@ public class Bvh implements AccelStruct {
 
 	@Override
 	public void build(Surface[] surfaces) {
+		Surface[] original = surfaces.clone();
 		this.surfaces = surfaces;
-		for(Surface s:this.surfaces)
-			s.computeBoundingBox();
-		root = createTree(0, surfaces.length);
-		System.out.println("Bvh: " + surfaces.length + " surfaces");
+		long startTime = System.currentTimeMillis();
+		ForkJoinPool pool = buildThreads > 1 ? new ForkJoinPool(buildThreads) : null;
+		try {
+			computeBoundingBoxes(pool);
+			if (builder.equals("sah"))
+				root = new SahBvhBuilder(surfaces, leafSize, pool).build();
+			else
+				root = createTree(0, surfaces.length);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+		long buildTime = System.currentTimeMillis() - startTime;
+		
+		IdentityHashMap<Surface, Integer> index = new IdentityHashMap<>();
+		for (int i = 0; i < original.length; i++)
+			index.put(original[i], i);
+		surfaceOrder = new int[surfaces.length];
+		for (int i = 0; i < surfaces.length; i++)
+			surfaceOrder[i] = index.get(surfaces[i]);
+		builtVolRatio = volRatio(root).mean;
+		builtSahCost = sahCost(root) / nodeArea(root);
+		
+		System.out.println("Bvh: " + surfaces.length + " surfaces, " + builder + " builder, leaf size " + leafSize);
+		System.out.println("Bvh: build time " + (buildTime / 1000.0) + " seconds (" + buildThreads + " thread(s))");
 		System.out.println("Bvh: " + nodeCount(root) + " nodes, " + leafCount(root) + " leaves");
 		System.out.println("Bvh: max depth " + maxDepth(root));
-		System.out.println("Bvh: average child volume ratio " + volRatio(root).mean);
+		System.out.println("Bvh: average child volume ratio " + builtVolRatio);
+		System.out.println("Bvh: SAH cost " + builtSahCost);
+	}
+	
+	/**
+	 * @return true if other is of the same class and was set up with the same
+	 * settings, so that a tree it built could have been built by this one.  The
+	 * number of build threads does not count, since the tree does not depend on it.
+	 */
+	public boolean hasSameSettings(Bvh other) {
+		return other.getClass() == getClass() && other.builder.equals(builder) && other.leafSize == leafSize
+				&& other.rebuildThreshold == rebuildThreshold;
+	}
+	
+	/**
+	 * Update the tree for surfaces that have moved, such as those of the next frame
+	 * of an animation.  The surfaces must correspond one to one, in the same order,
+	 * to those the tree was built over; only their bounds may differ.  The node
+	 * bounds are recomputed bottom-up and the topology is kept, which is much faster
+	 * than building a new tree but gives a worse one the further the surfaces move.
+	 * When the average child volume ratio or the SAH cost has grown past
+	 * rebuildThreshold times its value at the last build, or the surfaces do not
+	 * match, the tree is rebuilt.  The SAH cost is watched as well because the
+	 * volume ratio often barely changes as a scene spreads out: the parents grow
+	 * along with their children, though rays now visit many more of them.
+	 *
+	 * @param surfaces The surfaces of the scene, which are reordered like build() does.
+	 * @return true if the tree was refit, false if it was rebuilt
+	 */
+	public boolean refit(Surface[] surfaces) {
+		if (surfaceOrder == null || surfaceOrder.length != surfaces.length) {
+			System.out.println("Bvh: surfaces changed, rebuilding");
+			build(surfaces);
+			return false;
+		}
+		Surface[] original = surfaces.clone();
+		for (int i = 0; i < surfaces.length; i++)
+			surfaces[i] = original[surfaceOrder[i]];
+		this.surfaces = surfaces;
+		
+		long startTime = System.currentTimeMillis();
+		ForkJoinPool pool = buildThreads > 1 ? new ForkJoinPool(buildThreads) : null;
+		try {
+			computeBoundingBoxes(pool);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+		refitNodes();
+		long refitTime = System.currentTimeMillis() - startTime;
+		
+		double ratio = currentVolRatio(), cost = currentSahCost();
+		System.out.println("Bvh: refit time " + (refitTime / 1000.0) + " seconds");
+		System.out.println("Bvh: average child volume ratio " + ratio + " (" + builtVolRatio + " when built)");
+		System.out.println("Bvh: SAH cost " + cost + " (" + builtSahCost + " when built)");
+		if (ratio > rebuildThreshold * builtVolRatio || cost > rebuildThreshold * builtSahCost) {
+			System.out.println("Bvh: quality degraded past " + rebuildThreshold + " times, rebuilding");
+			build(original);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Compute the bounding box of every surface, in parallel if there is a pool.
+	 */
+	protected void computeBoundingBoxes(ForkJoinPool pool) {
+		if (pool != null) {
+			pool.submit(() -> Arrays.stream(surfaces).parallel().forEach(Surface::computeBoundingBox)).join();
+		}
+		else {
+			for(Surface s:this.surfaces)
+				s.computeBoundingBox();
+		}
+	}
+	
+	/**
+	 * Recompute the bounds of every node from the current bounds of the surfaces.
+	 */
+	protected void refitNodes() {
+		refitHelper(root);
+	}
+	
+	/**
+	 * @return the average child volume ratio of the tree as it is now
+	 */
+	protected double currentVolRatio() {
+		return volRatio(root).mean;
+	}
+	
+	/**
+	 * @return the SAH cost of the tree as it is now, relative to the area of the root
+	 */
+	protected double currentSahCost() {
+		return sahCost(root) / nodeArea(root);
+	}
+	
+	private void refitHelper(BvhNode node) {
+		if (node.isLeaf()) {
+			node.minBound.set(Double.POSITIVE_INFINITY);
+			node.maxBound.set(Double.NEGATIVE_INFINITY);
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				Vector3d lo = surfaces[i].getMinBound(), hi = surfaces[i].getMaxBound();
+				node.minBound.set(Math.min(node.minBound.x, lo.x), Math.min(node.minBound.y, lo.y), Math.min(node.minBound.z, lo.z));
+				node.maxBound.set(Math.max(node.maxBound.x, hi.x), Math.max(node.maxBound.y, hi.y), Math.max(node.maxBound.z, hi.z));
+			}
+			return;
+		}
+		BvhNode a = node.child[0], b = node.child[1];
+		refitHelper(a);
+		refitHelper(b);
+		node.minBound.set(Math.min(a.minBound.x, b.minBound.x), Math.min(a.minBound.y, b.minBound.y), Math.min(a.minBound.z, b.minBound.z));
+		node.maxBound.set(Math.max(a.maxBound.x, b.maxBound.x), Math.max(a.maxBound.y, b.maxBound.y), Math.max(a.maxBound.z, b.maxBound.z));
 	}
 	
 	/**
@@ -112,7 +302,7 @@ public class Bvh implements AccelStruct {
 
 		// ==== Step 2 ====
 		// Check for the base case. 
-		// If the range [start, end) is small enough (e.g. less than or equal to 10), just return a new leaf node.
+		// If the range [start, end) is small enough (less than or equal to leafSize), just return a new leaf node.
 
 		
 		// ==== Step 3 ====
@@ -131,20 +321,20 @@ public class Bvh implements AccelStruct {
 		return root;
 	}
 	
-	private int maxDepth(BvhNode node) {
+	protected int maxDepth(BvhNode node) {
 		if (node.isLeaf())
 			return 0;
 		return 1 + Math.max(maxDepth(node.child[0]), maxDepth(node.child[1]));
 	}
 	
 
-	private int nodeCount(BvhNode node) {
+	protected int nodeCount(BvhNode node) {
 		if (node.isLeaf())
 			return 1;
 		return 1 + nodeCount(node.child[0]) + nodeCount(node.child[1]);
 	}
 
-	private int leafCount(BvhNode node) {
+	protected int leafCount(BvhNode node) {
 		if (node.isLeaf())
 			return 1;
 		return leafCount(node.child[0]) + leafCount(node.child[1]);
@@ -152,7 +342,8 @@ public class Bvh implements AccelStruct {
 	
 	/*
 	 * Average over all internal nodes of the ratio between the sum
-	 * of the children's volumes and the parent's volume.
+	 * of the children's volumes and the parent's volume.  Nodes with
+	 * no volume, around flat geometry, are left out.
 	 */
 	private class RatioResult { 
 		double mean; int count; 
@@ -167,12 +358,34 @@ public class Bvh implements AccelStruct {
 			return new RatioResult(0.0, 0);
 		RatioResult r0 = volRatio(node.child[0]);
 		RatioResult r1 = volRatio(node.child[1]);
+		double vol = nodeVol(node);
+		if (!(vol > 0)) {
+			int count = r0.count + r1.count;
+			return new RatioResult(count == 0 ? 0.0 : (r0.mean * r0.count + r1.mean * r1.count) / count, count);
+		}
 		int count = 1 + r0.count + r1.count;
-		double ratio = (nodeVol(node.child[0]) + nodeVol(node.child[1])) / nodeVol(node);
+		double ratio = (nodeVol(node.child[0]) + nodeVol(node.child[1])) / vol;
 		double mean = (ratio + r0.mean * r0.count + r1.mean * r1.count) / count;
 		return new RatioResult(mean, count);
 	}
 	
+	/*
+	 * Surface area heuristic cost of a subtree, scaled by the surface area of
+	 * its root; see SahBvhBuilder for the cost constants.
+	 */
+	protected double sahCost(BvhNode node) {
+		if (node.isLeaf())
+			return nodeArea(node) * SahBvhBuilder.INTERSECTION_COST * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		return nodeArea(node) * SahBvhBuilder.TRAVERSAL_COST + sahCost(node.child[0]) + sahCost(node.child[1]);
+	}
+	
+	protected double nodeArea(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+	
 	private double nodeVol(BvhNode node) {
 		return ((node.maxBound.x - node.minBound.x) * 
 				(node.maxBound.y - node.minBound.y) * 
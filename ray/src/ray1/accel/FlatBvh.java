@@ -0,0 +1,618 @@
+package ray1.accel;
+
+import java.util.concurrent.ForkJoinPool;
+
+import ray1.FloatRay;
+import ray1.IntersectionRecord;
+import ray1.MeshCache;
+import ray1.Ray;
+import ray1.RenderContext;
+
+/**
+ * BVH nodes laid out depth-first in flat primitive arrays.  The nodes only know
+ * about ranges of primitive indices; what a primitive is, and how to intersect a
+ * range of them, is left to a LeafIntersector.  This lets the same node layout
+ * and traversal serve a BVH over Surface objects (LinearBvh) and a BVH over
+ * triangles packed into arrays (PackedMesh).
+ *
+ * Each node uses six floats of bounds and two ints of links.  The first child of
+ * an interior node is stored immediately after it, so only the index of the
+ * second child needs to be kept.  Traversal uses an explicit stack of node
+ * indices rather than recursion.
+ */
+public class FlatBvh {
+
+	/**
+	 * Intersects a ray with a contiguous range of primitives.
+	 */
+	public interface LeafIntersector {
+		/**
+		 * Intersect ray with primitives start to start+count-1.  If a primitive is hit
+		 * between ray.start and ray.end, ray.end is moved to the hit, outRecord (when
+		 * non-null) is filled in, and true is returned.
+		 *
+		 * @param scratch a record the implementation may use as temporary space
+		 * @param context the render context of the calling thread
+		 */
+		boolean intersectLeaf(IntersectionRecord outRecord, IntersectionRecord scratch, Ray ray,
+				int start, int count, boolean anyIntersection, RenderContext context);
+	}
+
+	/** Bytes used by one node: six float bounds and two int links. */
+	public static final int NODE_BYTES = 6 * 4 + 2 * 4;
+
+	/**
+	 * Node bounds, six per node: min x, y, z followed by max x, y, z.  The bounds
+	 * are rounded outwards from the double precision bounds so they stay conservative.
+	 */
+	final float[] nodeBounds;
+
+	/**
+	 * Node links, two per node.  For an interior node the first entry is the index
+	 * of the second child and the second entry is -(1 + split axis); the first child
+	 * is always the one lower along the split axis.  For a leaf the entries are the
+	 * index of the first primitive and the number of primitives.
+	 */
+	final int[] nodeLinks;
+
+	/** The number of nodes. */
+	final int numNodes;
+
+	/** The deepest the traversal stack can get. */
+	final int stackSize;
+
+	/**
+	 * For trees built by buildSah, the original index of the primitive now at each
+	 * position; null otherwise.
+	 */
+	int[] primitiveOrder;
+
+	/**
+	 * Flatten a BvhNode tree.  A null root gives an empty BVH that is never hit.
+	 */
+	public FlatBvh(BvhNode root) {
+		if (root == null) {
+			numNodes = 0;
+			stackSize = 0;
+			nodeBounds = new float[0];
+			nodeLinks = new int[0];
+			return;
+		}
+		numNodes = countNodes(root);
+		stackSize = depth(root) + 2;
+		nodeBounds = new float[6 * numNodes];
+		nodeLinks = new int[2 * numNodes];
+		flattenHelper(root, 0);
+	}
+
+	/**
+	 * Wrap existing node arrays.  Subclasses that keep their bounds in another form
+	 * pass null bounds and override every method that reads them.
+	 */
+	FlatBvh(float[] nodeBounds, int[] nodeLinks, int stackSize) {
+		this.nodeBounds = nodeBounds;
+		this.nodeLinks = nodeLinks;
+		this.numNodes = nodeLinks.length / 2;
+		this.stackSize = stackSize;
+	}
+
+	/**
+	 * Store the nodes in a mesh cache entry, under names starting with prefix.
+	 */
+	public void store(MeshCache.Entry entry, String prefix) {
+		entry.put(prefix + ".nodeBounds", nodeBounds);
+		entry.put(prefix + ".nodeLinks", nodeLinks);
+		entry.put(prefix + ".stackSize", new int[] { stackSize });
+	}
+
+	/**
+	 * Read nodes stored by store().  The primitive order is not stored, since the
+	 * primitives were stored after being reordered.
+	 *
+	 * @return the BVH, or null if the entry does not hold a consistent one
+	 */
+	public static FlatBvh load(MeshCache.Entry entry, String prefix) {
+		float[] bounds = entry.getFloats(prefix + ".nodeBounds");
+		int[] links = entry.getInts(prefix + ".nodeLinks");
+		int stackSize = entry.getInt(prefix + ".stackSize", -1);
+		if (bounds == null || links == null || stackSize < 0 || bounds.length != 3 * links.length)
+			return null;
+		return new FlatBvh(bounds, links, stackSize);
+	}
+
+	/**
+	 * Convert nodes to the format named in a scene file: "float" gives the nodes
+	 * themselves, "16" or "8" a QuantizedBvh with that many bits per coordinate, and
+	 * "wide" a WideBvh.
+	 */
+	public static FlatBvh withFormat(FlatBvh bvh, String format) {
+		switch (checkFormat(format)) {
+		case "16":
+			return new QuantizedBvh(bvh, 16);
+		case "8":
+			return new QuantizedBvh(bvh, 8);
+		case "wide":
+			return new WideBvh(bvh);
+		default:
+			return bvh;
+		}
+	}
+
+	/**
+	 * Check a node format name for withFormat.
+	 *
+	 * @return the name, trimmed and in lower case
+	 */
+	public static String checkFormat(String format) {
+		String f = format.trim().toLowerCase();
+		if (!f.equals("float") && !f.equals("16") && !f.equals("8") && !f.equals("wide"))
+			throw new IllegalArgumentException("Unknown BVH node format: " + format + " (expected float, 16, 8 or wide)");
+		return f;
+	}
+
+	/**
+	 * Build a BVH with the binned SAH builder over primitives described by arrays.
+	 * The arrays are reordered in place; getPrimitiveOrder() tells the caller how,
+	 * so that it can reorder its own primitive data to match.
+	 *
+	 * @param centroids three per primitive
+	 * @param bounds six per primitive, min then max
+	 * @param leafSize the largest number of primitives in a leaf
+	 * @param pool the pool to build in, or null to build on the calling thread
+	 */
+	public static FlatBvh buildSah(double[] centroids, double[] bounds, int leafSize, ForkJoinPool pool) {
+		SahBvhBuilder builder = new SahBvhBuilder(centroids, bounds, leafSize, pool);
+		FlatBvh bvh = new FlatBvh(builder.size == 0 ? null : builder.build());
+		bvh.primitiveOrder = builder.order;
+		return bvh;
+	}
+
+	/**
+	 * @return for each position, the original index of the primitive placed there by buildSah
+	 */
+	public int[] getPrimitiveOrder() { return primitiveOrder; }
+
+	public int getNodeCount() { return numNodes; }
+
+	public long getNodeBytes() { return (long) numNodes * NODE_BYTES; }
+
+	/**
+	 * @return the primitive range of every leaf, as pairs of start and count, in node order
+	 */
+	public int[] getLeaves() {
+		int numLeaves = 0;
+		for (int i = 0; i < numNodes; i++)
+			if (nodeLinks[2 * i + 1] >= 0)
+				numLeaves++;
+		int[] leaves = new int[2 * numLeaves];
+		for (int i = 0, j = 0; i < numNodes; i++) {
+			if (nodeLinks[2 * i + 1] >= 0) {
+				leaves[j++] = nodeLinks[2 * i];
+				leaves[j++] = nodeLinks[2 * i + 1];
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * @return a name for the way the node bounds are stored
+	 */
+	public String getFormat() { return "float"; }
+
+	/**
+	 * @return a one-line summary of the memory the nodes take, compared with float
+	 * nodes and with a tree of BvhNode objects
+	 */
+	public String memoryReport() {
+		long bytes = getNodeBytes();
+		long floatBytes = (long) numNodes * NODE_BYTES, treeBytes = (long) numNodes * BvhNode.ESTIMATED_BYTES;
+		String report = describeNodes() + " in " + bytes + " bytes (";
+		if (bytes != floatBytes)
+			report += percent(bytes, floatBytes) + " of the " + floatBytes + " of float nodes, ";
+		return report + percent(bytes, treeBytes) + " of about " + treeBytes + " as BvhNode objects)";
+	}
+
+	/**
+	 * @return the number and kind of nodes, for memoryReport
+	 */
+	String describeNodes() {
+		return numNodes + " " + getFormat() + " nodes";
+	}
+
+	private static String percent(long part, long whole) {
+		return String.format("%.0f%%", 100.0 * part / Math.max(1, whole));
+	}
+
+	/**
+	 * Recompute the node bounds for primitives that have moved, keeping the
+	 * topology.  Every child is stored after its parent, so going through the
+	 * nodes backwards visits children before parents.
+	 *
+	 * @param bounds six per primitive, min then max, in the order the leaves refer to
+	 */
+	public void refit(double[] bounds) {
+		for (int i = numNodes - 1; i >= 0; i--) {
+			int link = nodeLinks[2 * i], link2 = nodeLinks[2 * i + 1];
+			if (link2 >= 0) {
+				double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+						Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+				for (int p = link; p < link + link2; p++) {
+					for (int k = 0; k < 3; k++) {
+						box[k] = Math.min(box[k], bounds[6 * p + k]);
+						box[3 + k] = Math.max(box[3 + k], bounds[6 * p + 3 + k]);
+					}
+				}
+				for (int k = 0; k < 3; k++) {
+					nodeBounds[6 * i + k] = roundDown(box[k]);
+					nodeBounds[6 * i + 3 + k] = roundUp(box[3 + k]);
+				}
+			}
+			else {
+				int a = 6 * (i + 1), b = 6 * link;
+				for (int k = 0; k < 3; k++) {
+					nodeBounds[6 * i + k] = Math.min(nodeBounds[a + k], nodeBounds[b + k]);
+					nodeBounds[6 * i + 3 + k] = Math.max(nodeBounds[a + 3 + k], nodeBounds[b + 3 + k]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the average over interior nodes with nonzero volume of the ratio
+	 * between the sum of the children's volumes and the node's volume, as Bvh reports it
+	 */
+	public double volRatio() {
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < numNodes; i++) {
+			if (nodeLinks[2 * i + 1] >= 0)
+				continue;
+			double vol = volume(i);
+			if (vol > 0) {
+				sum += (volume(i + 1) + volume(nodeLinks[2 * i])) / vol;
+				count++;
+			}
+		}
+		return count == 0 ? 0.0 : sum / count;
+	}
+
+	/**
+	 * @return the surface area heuristic cost of the tree, relative to the area of
+	 * the root, with the cost constants of SahBvhBuilder
+	 */
+	public double sahCost() {
+		if (numNodes == 0)
+			return 0.0;
+		double cost = 0;
+		for (int i = 0; i < numNodes; i++) {
+			int count = nodeLinks[2 * i + 1];
+			cost += area(i) * (count >= 0 ? SahBvhBuilder.INTERSECTION_COST * count : SahBvhBuilder.TRAVERSAL_COST);
+		}
+		return cost / area(0);
+	}
+
+	double area(int i) {
+		double dx = (double) nodeBounds[6 * i + 3] - nodeBounds[6 * i];
+		double dy = (double) nodeBounds[6 * i + 4] - nodeBounds[6 * i + 1];
+		double dz = (double) nodeBounds[6 * i + 5] - nodeBounds[6 * i + 2];
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	private double volume(int i) {
+		return ((double) nodeBounds[6 * i + 3] - nodeBounds[6 * i])
+				* ((double) nodeBounds[6 * i + 4] - nodeBounds[6 * i + 1])
+				* ((double) nodeBounds[6 * i + 5] - nodeBounds[6 * i + 2]);
+	}
+
+	private static int countNodes(BvhNode node) {
+		if (node.isLeaf())
+			return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	private static int depth(BvhNode node) {
+		if (node.isLeaf())
+			return 0;
+		return 1 + Math.max(depth(node.child[0]), depth(node.child[1]));
+	}
+
+	/**
+	 * Write node and its subtree into the flat arrays starting at index.
+	 *
+	 * @return the index just past the last node written
+	 */
+	private int flattenHelper(BvhNode node, int index) {
+		for (int k = 0; k < 3; k++) {
+			nodeBounds[6 * index + k] = roundDown(node.minBound.get(k));
+			nodeBounds[6 * index + 3 + k] = roundUp(node.maxBound.get(k));
+		}
+		if (node.isLeaf()) {
+			nodeLinks[2 * index] = node.surfaceIndexStart;
+			nodeLinks[2 * index + 1] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return index + 1;
+		}
+
+		// Put the child that is lower along the axis of greatest separation first,
+		// so traversal can visit the nearer child first.
+		int axis = splitAxis(node.child[0], node.child[1]);
+		BvhNode first = node.child[0], second = node.child[1];
+		if (center(second, axis) < center(first, axis)) {
+			first = node.child[1];
+			second = node.child[0];
+		}
+		int secondIndex = flattenHelper(first, index + 1);
+		nodeLinks[2 * index] = secondIndex;
+		nodeLinks[2 * index + 1] = -(1 + axis);
+		return flattenHelper(second, secondIndex);
+	}
+
+	private static double center(BvhNode node, int axis) {
+		return node.minBound.get(axis) + node.maxBound.get(axis);
+	}
+
+	private static int splitAxis(BvhNode a, BvhNode b) {
+		int axis = 0;
+		double best = -1;
+		for (int k = 0; k < 3; k++) {
+			double d = Math.abs(center(a, k) - center(b, k));
+			if (d > best) {
+				best = d;
+				axis = k;
+			}
+		}
+		return axis;
+	}
+
+	static float roundDown(double d) {
+		float f = (float) d;
+		return f > d ? Math.nextDown(f) : f;
+	}
+
+	static float roundUp(double d) {
+		float f = (float) d;
+		return f < d ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Find the first (or any) primitive hit by ray.  The scratch ray, record and
+	 * traversal stack come from the render context, so nothing is allocated.
+	 *
+	 * @return true if any primitive was hit
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0)
+			return false;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			IntersectionRecord scratch = traversal.record;
+			double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+			double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+
+			int[] stack = traversal.stack(stackSize);
+			int top = 0;
+			stack[top++] = 0;
+			boolean ret = false;
+			while (top > 0) {
+				int node = stack[--top];
+				context.counters.nodesVisited++;
+				if (!intersectsNode(node, ox, oy, oz, ix, iy, iz, ray.start, ray.end))
+					continue;
+				int a = nodeLinks[2 * node], b = nodeLinks[2 * node + 1];
+				if (b >= 0) {
+					if (leaves.intersectLeaf(outRecord, scratch, ray, a, b, anyIntersection, context)) {
+						ret = true;
+						if (anyIntersection)
+							return true;
+					}
+				}
+				else if ((b == -1 ? ix : b == -2 ? iy : iz) >= 0) {
+					// Pop the lower child first
+					stack[top++] = a;
+					stack[top++] = node + 1;
+				}
+				else {
+					stack[top++] = node + 1;
+					stack[top++] = a;
+				}
+			}
+			return ret;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Find the first (or any) primitive hit by ray, testing the node boxes in single
+	 * precision against fray, a float copy of rayIn.  The far distance of each box
+	 * is pushed out by the largest rounding error of the test (Ize, "Robust BVH Ray
+	 * Traversal", JCGT 2013), so no box a ray touches is missed.  The leaves get
+	 * rayIn's double-precision copy, as with intersect, and can read fray from the
+	 * render context.
+	 *
+	 * @return true if any primitive was hit
+	 */
+	public boolean intersectSingle(IntersectionRecord outRecord, Ray rayIn, FloatRay fray, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0)
+			return false;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			IntersectionRecord scratch = traversal.record;
+			int[] stack = traversal.stack(stackSize);
+			int top = 0;
+			stack[top++] = 0;
+			boolean ret = false;
+			while (top > 0) {
+				int node = stack[--top];
+				context.counters.nodesVisited++;
+				if (!intersectsNodeSingle(node, fray, roundDown(ray.start), roundUp(ray.end)))
+					continue;
+				int a = nodeLinks[2 * node], b = nodeLinks[2 * node + 1];
+				if (b >= 0) {
+					if (leaves.intersectLeaf(outRecord, scratch, ray, a, b, anyIntersection, context)) {
+						ret = true;
+						if (anyIntersection)
+							return true;
+					}
+				}
+				else if ((b == -1 ? fray.ix : b == -2 ? fray.iy : fray.iz) >= 0) {
+					stack[top++] = a;
+					stack[top++] = node + 1;
+				}
+				else {
+					stack[top++] = node + 1;
+					stack[top++] = a;
+				}
+			}
+			return ret;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/** 1 + 2 gamma(3), the factor that covers the rounding error of a float slab test. */
+	static final float SLAB_ERROR = 1 + 2 * (3 * 0x1p-24f) / (1 - 3 * 0x1p-24f);
+
+	/**
+	 * The slab test of intersectsNode in single precision.
+	 */
+	boolean intersectsNodeSingle(int node, FloatRay r, float tMin, float tMax) {
+		int b = 6 * node;
+		float t0 = (nodeBounds[b] - r.ox) * r.ix, t1 = (nodeBounds[b + 3] - r.ox) * r.ix;
+		if (r.ix < 0) { float t = t0; t0 = t1; t1 = t; }
+		t1 *= SLAB_ERROR;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (nodeBounds[b + 1] - r.oy) * r.iy; t1 = (nodeBounds[b + 4] - r.oy) * r.iy;
+		if (r.iy < 0) { float t = t0; t0 = t1; t1 = t; }
+		t1 *= SLAB_ERROR;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (nodeBounds[b + 2] - r.oz) * r.iz; t1 = (nodeBounds[b + 5] - r.oz) * r.iz;
+		if (r.iz < 0) { float t = t0; t0 = t1; t1 = t; }
+		t1 *= SLAB_ERROR;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return tMin <= tMax;
+	}
+
+	/**
+	 * Intersect every ray of a prepared packet.  Each node is first tested against
+	 * the packet as a whole; if that cannot rule it out, the rays are tested one at a
+	 * time starting from the first ray that hit the parent, and the node is skipped
+	 * if none of them hit it.  Only rays from that first one on are tested against
+	 * the primitives in a leaf.  For first-hit queries the rays' ends are moved to
+	 * their hits as they are found; for any-hit queries a ray that has hit something
+	 * is not tested again.
+	 *
+	 * @return the number of rays that hit something
+	 */
+	public int intersectPacket(RayPacket packet, LeafIntersector leaves, boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0 || packet.size == 0)
+			return 0;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			IntersectionRecord scratch = traversal.record;
+			// Entries are pairs of node index and the first ray that may hit the node
+			int[] stack = traversal.stack(2 * stackSize);
+			int top = 0;
+			stack[top++] = 0;
+			stack[top++] = 0;
+			int hits = 0;
+			while (top > 0) {
+				int first = stack[--top];
+				int node = stack[--top];
+				context.counters.nodesVisited++;
+				if (!packet.mayHit(nodeBounds, 6 * node))
+					continue;
+				first = firstHit(packet, node, first, anyIntersection);
+				if (first == packet.size)
+					continue;
+
+				int a = nodeLinks[2 * node], b = nodeLinks[2 * node + 1];
+				if (b >= 0) {
+					for (int i = first; i < packet.size; i++) {
+						if (anyIntersection && packet.hit[i])
+							continue;
+						Ray ray = packet.rays[i];
+						if (!intersectsNode(node, packet.ox[i], packet.oy[i], packet.oz[i],
+								packet.ix[i], packet.iy[i], packet.iz[i], ray.start, ray.end))
+							continue;
+						if (leaves.intersectLeaf(anyIntersection ? null : packet.records[i], scratch, ray,
+								a, b, anyIntersection, context) && !packet.hit[i]) {
+							packet.hit[i] = true;
+							hits++;
+						}
+					}
+					if (anyIntersection && hits == packet.size)
+						return hits;
+				}
+				else {
+					// Visit the child nearer to the first active ray first
+					int k = -(1 + b);
+					double inv = k == 0 ? packet.ix[first] : k == 1 ? packet.iy[first] : packet.iz[first];
+					int near = node + 1, far = a;
+					if (inv < 0) {
+						near = a;
+						far = node + 1;
+					}
+					stack[top++] = far;
+					stack[top++] = first;
+					stack[top++] = near;
+					stack[top++] = first;
+				}
+			}
+			return hits;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * @return the index of the first ray from first on that hits the node, or packet.size if none does
+	 */
+	private int firstHit(RayPacket packet, int node, int first, boolean anyIntersection) {
+		for (int i = first; i < packet.size; i++) {
+			if (anyIntersection && packet.hit[i])
+				continue;
+			if (intersectsNode(node, packet.ox[i], packet.oy[i], packet.oz[i],
+					packet.ix[i], packet.iy[i], packet.iz[i], packet.rays[i].start, packet.rays[i].end))
+				return i;
+		}
+		return packet.size;
+	}
+
+	/**
+	 * Slab test of a ray segment against the bounds of one node.  A NaN from a zero
+	 * direction component times an infinite inverse is ignored, which keeps the
+	 * test conservative.
+	 */
+	boolean intersectsNode(int node, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMin, double tMax) {
+		int b = 6 * node;
+		double t0 = (nodeBounds[b] - ox) * ix, t1 = (nodeBounds[b + 3] - ox) * ix;
+		if (ix < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (nodeBounds[b + 1] - oy) * iy; t1 = (nodeBounds[b + 4] - oy) * iy;
+		if (iy < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (nodeBounds[b + 2] - oz) * iz; t1 = (nodeBounds[b + 5] - oz) * iz;
+		if (iz < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return tMin <= tMax;
+	}
+}
@@ -0,0 +1,126 @@
+package ray1.accel;
+
+/**
+ * The four-lane kernels of the wide BVH and of PackedMesh's grouped triangles:
+ * a slab test of one ray against four boxes, and a Moller-Trumbore test of one
+ * ray against four triangles.  The data of the four boxes or triangles is stored
+ * as structure-of-arrays lanes, four floats for each coordinate.
+ *
+ * This class computes the lanes in plain loops, which works everywhere.  If the
+ * incubating Vector API module, jdk.incubator.vector, is in the boot layer and
+ * VectorLaneKernels has been compiled (it lives in src-vector, which needs
+ * javac --add-modules jdk.incubator.vector), get() returns that instead, which
+ * does the same arithmetic in four-lane double vectors.  Both round every
+ * operation the same way, so they give the same results bit for bit; a JVM run
+ * without --add-modules jdk.incubator.vector simply uses the loops.
+ */
+public class LaneKernels {
+
+	/** The number of lanes. */
+	public static final int WIDTH = 4;
+
+	private static final LaneKernels KERNELS = load();
+
+	/**
+	 * @return the fastest kernels available in this JVM
+	 */
+	public static LaneKernels get() { return KERNELS; }
+
+	private static LaneKernels load() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (LaneKernels) Class.forName("ray1.accel.VectorLaneKernels").getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				// Not compiled in, or the processor has no four-lane double vectors
+			}
+		}
+		return new LaneKernels();
+	}
+
+	protected LaneKernels() { }
+
+	/**
+	 * @return a name for the kernels, for reports
+	 */
+	public String getName() { return "scalar"; }
+
+	/**
+	 * Slab test of a ray segment against four boxes at once.  The arithmetic is
+	 * that of FlatBvh.intersectsNode, run over the four lanes; since an inverse
+	 * direction has the same sign for every lane, the near and far planes are
+	 * chosen once per axis rather than per box.
+	 *
+	 * @param bounds box lanes: the min x of the four boxes, then min y, min z, max x,
+	 * max y and max z
+	 * @param b the offset of the four boxes in bounds
+	 * @param t receives the entry distances of the lanes in t[0] to t[3] and the
+	 * exit distances in t[4] to t[7]
+	 * @return a mask with bit l set if the ray hits the box in lane l
+	 */
+	public int intersectBoxes(float[] bounds, int b, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMin, double tMax, double[] t) {
+		for (int l = 0; l < WIDTH; l++) {
+			t[l] = tMin;
+			t[WIDTH + l] = tMax;
+		}
+		slabs(bounds, b, ox, ix, t);
+		slabs(bounds, b + WIDTH, oy, iy, t);
+		slabs(bounds, b + 2 * WIDTH, oz, iz, t);
+		int mask = 0;
+		for (int l = 0; l < WIDTH; l++)
+			if (t[l] <= t[WIDTH + l])
+				mask |= 1 << l;
+		return mask;
+	}
+
+	/**
+	 * Clip the four lanes' distance intervals to the slabs along one axis, whose
+	 * minimum planes start at bounds[b] and maximum planes at bounds[b + 3 * WIDTH].
+	 */
+	private static void slabs(float[] bounds, int b, double o, double inv, double[] t) {
+		int nearPlane = inv < 0 ? b + 3 * WIDTH : b, farPlane = inv < 0 ? b : b + 3 * WIDTH;
+		for (int l = 0; l < WIDTH; l++) {
+			double t0 = (bounds[nearPlane + l] - o) * inv, t1 = (bounds[farPlane + l] - o) * inv;
+			if (t0 > t[l]) t[l] = t0;
+			if (t1 < t[WIDTH + l]) t[WIDTH + l] = t1;
+		}
+	}
+
+	/**
+	 * Moller-Trumbore test of a ray against four triangles at once, without
+	 * looking at the ray's extent; the caller accepts the lanes in order.  The
+	 * arithmetic is that of PackedMesh.intersectLeaf.
+	 *
+	 * @param lanes triangle lanes: the x of the first vertex of the four triangles,
+	 * then their first vertex y and z, then the same for the second and third
+	 * vertices
+	 * @param g the offset of the four triangles in lanes
+	 * @param out receives the distances of the lanes in out[0] to out[3], and
+	 * their barycentric coordinates u and v in out[4] to out[7] and out[8] to out[11]
+	 * @return a mask with bit l set if the ray's line crosses the triangle in lane l
+	 */
+	public int intersectTriangles(float[] lanes, int g, double ox, double oy, double oz,
+			double dx, double dy, double dz, double[] out) {
+		int valid = 0;
+		for (int l = 0; l < WIDTH; l++) {
+			double p0x = lanes[g + l], p0y = lanes[g + 4 + l], p0z = lanes[g + 8 + l];
+			double e1x = lanes[g + 12 + l] - p0x, e1y = lanes[g + 16 + l] - p0y, e1z = lanes[g + 20 + l] - p0z;
+			double e2x = lanes[g + 24 + l] - p0x, e2y = lanes[g + 28 + l] - p0y, e2z = lanes[g + 32 + l] - p0z;
+
+			double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+			double det = e1x * px + e1y * py + e1z * pz;
+			double inv = 1.0 / det;
+			double sx = ox - p0x, sy = oy - p0y, sz = oz - p0z;
+			double u = (sx * px + sy * py + sz * pz) * inv;
+			double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+			double v = (dx * qx + dy * qy + dz * qz) * inv;
+			out[l] = (e2x * qx + e2y * qy + e2z * qz) * inv;
+			out[4 + l] = u;
+			out[8 + l] = v;
+			if (det != 0 && u >= 0 && u <= 1 && v >= 0 && u + v <= 1)
+				valid |= 1 << l;
+		}
+		return valid;
+	}
+}
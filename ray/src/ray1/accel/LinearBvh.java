@@ -0,0 +1,111 @@
+package ray1.accel;
+
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.surface.Surface;
+
+/**
+ * A BVH whose nodes are laid out depth-first in flat primitive arrays instead of
+ * as a tree of BvhNode objects.  The tree is built exactly as in Bvh and then
+ * flattened into a FlatBvh; the BvhNode tree is discarded afterwards.
+ */
+public class LinearBvh extends Bvh implements FlatBvh.LeafIntersector {
+
+	/** The flattened nodes. */
+	FlatBvh nodes;
+
+	/**
+	 * How the nodes are stored: "float", "16" or "8" for bounds quantized to that
+	 * many bits (see QuantizedBvh), or "wide" for four-wide nodes (see WideBvh).
+	 * Set from the scene file, e.g.
+	 * <accelStruct type="LinearBvh"><nodeFormat>8</nodeFormat></accelStruct>.
+	 */
+	protected String nodeFormat = "float";
+	public void setNodeFormat(String nodeFormat) { this.nodeFormat = FlatBvh.checkFormat(nodeFormat); }
+	public String getNodeFormat() { return nodeFormat; }
+
+	public LinearBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		super.build(surfaces);
+		flatten();
+	}
+
+	/**
+	 * Copy the BvhNode tree built by Bvh into the flat arrays and release the tree.
+	 */
+	void flatten() {
+		nodes = FlatBvh.withFormat(new FlatBvh(root), nodeFormat);
+		root = null;
+		System.out.println("Bvh: linear layout, " + nodes.memoryReport());
+	}
+
+	@Override
+	public boolean hasSameSettings(Bvh other) {
+		return super.hasSameSettings(other) && ((LinearBvh) other).nodeFormat.equals(nodeFormat);
+	}
+
+	/**
+	 * The BvhNode tree is gone by now, so refit the flat nodes directly.
+	 */
+	@Override
+	protected void refitNodes() {
+		double[] bounds = new double[6 * surfaces.length];
+		for (int i = 0; i < surfaces.length; i++) {
+			Vector3d lo = surfaces[i].getMinBound(), hi = surfaces[i].getMaxBound();
+			for (int k = 0; k < 3; k++) {
+				bounds[6 * i + k] = lo.get(k);
+				bounds[6 * i + 3 + k] = hi.get(k);
+			}
+		}
+		nodes.refit(bounds);
+	}
+
+	@Override
+	protected double currentVolRatio() {
+		return nodes.volRatio();
+	}
+
+	@Override
+	protected double currentSahCost() {
+		return nodes.sahCost();
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		return intersect(outRecord, rayIn, anyIntersection, RenderContext.current());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext context) {
+		return nodes.intersect(outRecord, rayIn, this, anyIntersection, context);
+	}
+
+	@Override
+	public int intersectPacket(RayPacket packet, boolean anyIntersection, RenderContext context) {
+		return nodes.intersectPacket(packet, this, anyIntersection, context);
+	}
+
+	@Override
+	public boolean intersectLeaf(IntersectionRecord outRecord, IntersectionRecord tmp, Ray ray,
+			int start, int count, boolean anyIntersection, RenderContext context) {
+		boolean ret = false;
+		for (int i = start; i < start + count; i++) {
+			context.counters.countPrimitiveTests(surfaces[i].getStatsType(), 1);
+			if (surfaces[i].intersect(tmp, ray, context) && tmp.t < ray.end) {
+				ret = true;
+				ray.end = tmp.t;
+				if (outRecord != null)
+					outRecord.set(tmp);
+				if (anyIntersection) {
+					context.occluder = surfaces[i];
+					return true;
+				}
+			}
+		}
+		return ret;
+	}
+}
@@ -2,6 +2,7 @@ package ray1.accel;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderContext;
 import ray1.surface.Surface;
 /**
  * Provide a fake AABB that performs a linear search.
@@ -26,21 +27,35 @@ public class NaiveAccelStruct implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
-		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
-				ret = true;
-				ray.end = tmp.t;
-				if(outRecord != null)
-					outRecord.set(tmp);
+		return intersect(outRecord, rayIn, anyIntersection, RenderContext.current());
+	}
+	
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext context) {
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			IntersectionRecord tmp = traversal.record;
+			boolean ret = false;
+			for(int i = 0; i < surfaces.length; i++) {
+				context.counters.countPrimitiveTests(surfaces[i].getStatsType(), 1);
+				if(surfaces[i].intersect(tmp, ray, context) && tmp.t < ray.end ) {
+					if(anyIntersection) {
+						context.occluder = surfaces[i];
+						return true;
+					}
+					ret = true;
+					ray.end = tmp.t;
+					if(outRecord != null)
+						outRecord.set(tmp);
+				}
 			}
+			return ret;
+		}
+		finally {
+			context.endTraversal();
 		}
-		return ret;
 	}
 	
 	@Override
@@ -0,0 +1,385 @@
+package ray1.accel;
+
+import ray1.FloatRay;
+import ray1.IntersectionRecord;
+import ray1.MeshCache;
+import ray1.Ray;
+import ray1.RenderContext;
+
+/**
+ * A FlatBvh whose node bounds are compressed to 8 or 16 bits per coordinate.
+ * Each node's box is stored as a grid position inside its parent's box: along
+ * each axis the parent's extent is divided into 2^bits - 1 equal steps, and the
+ * node's minimum is rounded down and its maximum rounded up to a step, so the
+ * decoded box always contains the exact one.  Only the root's box is kept in
+ * floats.  With the links unchanged, a node takes 14 bytes with 8-bit bounds and
+ * 20 with 16-bit bounds, instead of FlatBvh's 32.
+ *
+ * A node's box can only be decoded from its parent's, so traversal carries the
+ * decoded box of each node's parent on the stack next to the node.  The coarser
+ * boxes can make rays visit more nodes, and decoding costs time at every node, so
+ * this is for scenes whose BVHs would otherwise crowd memory.  For the bundled
+ * teapot.obj, with leaves of 4 triangles, memoryReport gives 208864 bytes for the
+ * 6527 float nodes, 130540 (63%) with 16 bits and 91378 (44%) with 8.
+ */
+public class QuantizedBvh extends FlatBvh {
+
+	/** The bits per coordinate: 8 or 16. */
+	final int bits;
+
+	/** The largest grid position, 2^bits - 1, and its inverse. */
+	private final int maxCode;
+	private final double invMaxCode;
+
+	/** Grid positions, six per node (min then max), in 8 or 16 bits; the other is null. */
+	private byte[] codes8;
+	private short[] codes16;
+
+	/** The root's box, min then max, in floats as FlatBvh has it. */
+	private final double[] rootBounds = new double[6];
+
+	/**
+	 * Compress the bounds of a FlatBvh.
+	 *
+	 * @param bits 8 or 16
+	 */
+	public QuantizedBvh(FlatBvh bvh, int bits) {
+		super(null, bvh.nodeLinks, bvh.stackSize);
+		if (bits != 8 && bits != 16)
+			throw new IllegalArgumentException("Quantized BVH nodes have 8 or 16 bits, not " + bits);
+		if (bvh.nodeBounds == null)
+			throw new IllegalArgumentException("Cannot quantize a BVH that is already quantized");
+		this.bits = bits;
+		maxCode = (1 << bits) - 1;
+		invMaxCode = 1.0 / maxCode;
+		primitiveOrder = bvh.primitiveOrder;
+		encode(bvh.nodeBounds);
+	}
+
+	/**
+	 * Set the grid positions from exact node bounds, six per node.  Every node comes
+	 * after its parent, so parents are always decoded before their children.
+	 */
+	private void encode(float[] bounds) {
+		if (bits == 8)
+			codes8 = new byte[6 * numNodes];
+		else
+			codes16 = new short[6 * numNodes];
+		if (numNodes == 0)
+			return;
+		for (int k = 0; k < 6; k++)
+			rootBounds[k] = bounds[k];
+
+		int[] parent = new int[numNodes];
+		parent[0] = -1;
+		for (int i = 0; i < numNodes; i++) {
+			if (nodeLinks[2 * i + 1] < 0) {
+				parent[i + 1] = i;
+				parent[nodeLinks[2 * i]] = i;
+			}
+		}
+
+		double[] decoded = new double[6 * numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			int p = parent[i] < 0 ? -1 : 6 * parent[i];
+			for (int k = 0; k < 3; k++) {
+				double lo = p < 0 ? rootBounds[k] : decoded[p + k];
+				double hi = p < 0 ? rootBounds[3 + k] : decoded[p + 3 + k];
+				int qMin = codeBelow(bounds[6 * i + k], lo, hi);
+				int qMax = codeAbove(bounds[6 * i + 3 + k], lo, hi);
+				setCode(6 * i + k, qMin);
+				setCode(6 * i + 3 + k, qMax);
+				decoded[6 * i + k] = decode(qMin, lo, hi);
+				decoded[6 * i + 3 + k] = decode(qMax, lo, hi);
+			}
+		}
+	}
+
+	/**
+	 * @return the largest grid position in [lo, hi] that decodes to at most x
+	 */
+	private int codeBelow(double x, double lo, double hi) {
+		int q = hi > lo ? (int) Math.max(0, Math.min(maxCode, Math.floor((x - lo) / (hi - lo) * maxCode))) : 0;
+		while (q > 0 && decode(q, lo, hi) > x)
+			q--;
+		return q;
+	}
+
+	/**
+	 * @return the smallest grid position in [lo, hi] that decodes to at least x
+	 */
+	private int codeAbove(double x, double lo, double hi) {
+		int q = hi > lo ? (int) Math.max(0, Math.min(maxCode, Math.ceil((x - lo) / (hi - lo) * maxCode))) : maxCode;
+		while (q < maxCode && decode(q, lo, hi) < x)
+			q++;
+		return q;
+	}
+
+	/**
+	 * The coordinate at grid position q between lo and hi.  The ends decode exactly,
+	 * so a child that fills its parent gets exactly the parent's box.  Encoding and
+	 * traversal both use this, so they agree to the last bit.
+	 */
+	private double decode(int q, double lo, double hi) {
+		return q == 0 ? lo : q == maxCode ? hi : lo + q * (hi - lo) * invMaxCode;
+	}
+
+	private void setCode(int i, int q) {
+		if (bits == 8)
+			codes8[i] = (byte) q;
+		else
+			codes16[i] = (short) q;
+	}
+
+	private int code(int i) {
+		return bits == 8 ? codes8[i] & 0xFF : codes16[i] & 0xFFFF;
+	}
+
+	/**
+	 * Decode the box of node into box[b] to box[b + 5], given its parent's box there.
+	 */
+	private void decodeNode(int node, double[] box, int b) {
+		int c = 6 * node;
+		for (int k = 0; k < 3; k++) {
+			double lo = box[b + k], hi = box[b + 3 + k];
+			box[b + k] = decode(code(c + k), lo, hi);
+			box[b + 3 + k] = decode(code(c + 3 + k), lo, hi);
+		}
+	}
+
+	/**
+	 * @return the decoded bounds of every node, rounded outwards to floats as FlatBvh keeps them
+	 */
+	float[] decodeAll() {
+		float[] bounds = new float[6 * numNodes];
+		double[] decoded = new double[6 * numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			// A node's parent comes before it, so its decoded box is ready
+			int b = 6 * i;
+			if (i == 0)
+				System.arraycopy(rootBounds, 0, decoded, 0, 6);
+			decodeNode(i, decoded, b);
+			for (int k = 0; k < 3; k++) {
+				bounds[b + k] = roundDown(decoded[b + k]);
+				bounds[b + 3 + k] = roundUp(decoded[b + 3 + k]);
+			}
+			int link = nodeLinks[2 * i], link2 = nodeLinks[2 * i + 1];
+			if (link2 < 0) {
+				System.arraycopy(decoded, b, decoded, 6 * (i + 1), 6);
+				System.arraycopy(decoded, b, decoded, 6 * link, 6);
+			}
+		}
+		return bounds;
+	}
+
+	public int getBits() { return bits; }
+
+	@Override
+	public long getNodeBytes() { return (long) numNodes * (6 * bits / 8 + 2 * 4); }
+
+	@Override
+	public String getFormat() { return bits + "-bit quantized"; }
+
+	/**
+	 * Refit the exact bounds as FlatBvh would, then quantize them again.
+	 */
+	@Override
+	public void refit(double[] bounds) {
+		FlatBvh exact = new FlatBvh(decodeAll(), nodeLinks, stackSize);
+		exact.refit(bounds);
+		encode(exact.nodeBounds);
+	}
+
+	@Override
+	public double volRatio() {
+		return new FlatBvh(decodeAll(), nodeLinks, stackSize).volRatio();
+	}
+
+	@Override
+	public double sahCost() {
+		return new FlatBvh(decodeAll(), nodeLinks, stackSize).sahCost();
+	}
+
+	/**
+	 * Store the decoded bounds as float nodes, which contain the exact ones but are
+	 * a little looser.
+	 */
+	@Override
+	public void store(MeshCache.Entry entry, String prefix) {
+		new FlatBvh(decodeAll(), nodeLinks, stackSize).store(entry, prefix);
+	}
+
+	/**
+	 * Quantized boxes are decoded in double precision, so traverse as intersect does;
+	 * the leaves can still test in single precision.
+	 */
+	@Override
+	public boolean intersectSingle(IntersectionRecord outRecord, Ray rayIn, FloatRay fray, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		return intersect(outRecord, rayIn, leaves, anyIntersection, context);
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0)
+			return false;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			IntersectionRecord scratch = traversal.record;
+			double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+			double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+
+			// Each entry's slot of the box stack holds its parent's box, and then its own
+			int[] stack = traversal.stack(stackSize);
+			double[] boxes = traversal.boxStack(6 * stackSize);
+			int top = 0;
+			System.arraycopy(rootBounds, 0, boxes, 0, 6);
+			stack[top++] = 0;
+			boolean ret = false;
+			while (top > 0) {
+				int node = stack[--top];
+				int b = 6 * top;
+				context.counters.nodesVisited++;
+				decodeNode(node, boxes, b);
+				if (!intersectsBox(boxes, b, ox, oy, oz, ix, iy, iz, ray.start, ray.end))
+					continue;
+				int a = nodeLinks[2 * node], c = nodeLinks[2 * node + 1];
+				if (c >= 0) {
+					if (leaves.intersectLeaf(outRecord, scratch, ray, a, c, anyIntersection, context)) {
+						ret = true;
+						if (anyIntersection)
+							return true;
+					}
+					continue;
+				}
+				// Both children start from this node's box, which is already in the lower slot
+				System.arraycopy(boxes, b, boxes, b + 6, 6);
+				if ((c == -1 ? ix : c == -2 ? iy : iz) >= 0) {
+					// Pop the lower child first
+					stack[top++] = a;
+					stack[top++] = node + 1;
+				}
+				else {
+					stack[top++] = node + 1;
+					stack[top++] = a;
+				}
+			}
+			return ret;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * As FlatBvh.intersectPacket, decoding each node's box from its parent's.
+	 */
+	@Override
+	public int intersectPacket(RayPacket packet, LeafIntersector leaves, boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0 || packet.size == 0)
+			return 0;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			IntersectionRecord scratch = traversal.record;
+			float[] nodeBounds = traversal.nodeBounds;
+			// Entries are pairs of node index and the first ray that may hit the node
+			int[] stack = traversal.stack(2 * stackSize);
+			double[] boxes = traversal.boxStack(6 * stackSize);
+			int top = 0;
+			System.arraycopy(rootBounds, 0, boxes, 0, 6);
+			stack[top++] = 0;
+			stack[top++] = 0;
+			int hits = 0;
+			while (top > 0) {
+				int first = stack[--top];
+				int node = stack[--top];
+				int b = 3 * top;
+				context.counters.nodesVisited++;
+				decodeNode(node, boxes, b);
+				for (int k = 0; k < 3; k++) {
+					nodeBounds[k] = roundDown(boxes[b + k]);
+					nodeBounds[3 + k] = roundUp(boxes[b + 3 + k]);
+				}
+				if (!packet.mayHit(nodeBounds, 0))
+					continue;
+				first = firstHit(packet, boxes, b, first, anyIntersection);
+				if (first == packet.size)
+					continue;
+
+				int a = nodeLinks[2 * node], c = nodeLinks[2 * node + 1];
+				if (c >= 0) {
+					for (int i = first; i < packet.size; i++) {
+						if (anyIntersection && packet.hit[i])
+							continue;
+						Ray ray = packet.rays[i];
+						if (!intersectsBox(boxes, b, packet.ox[i], packet.oy[i], packet.oz[i],
+								packet.ix[i], packet.iy[i], packet.iz[i], ray.start, ray.end))
+							continue;
+						if (leaves.intersectLeaf(anyIntersection ? null : packet.records[i], scratch, ray,
+								a, c, anyIntersection, context) && !packet.hit[i]) {
+							packet.hit[i] = true;
+							hits++;
+						}
+					}
+					if (anyIntersection && hits == packet.size)
+						return hits;
+				}
+				else {
+					// Visit the child nearer to the first active ray first
+					int k = -(1 + c);
+					double inv = k == 0 ? packet.ix[first] : k == 1 ? packet.iy[first] : packet.iz[first];
+					int near = node + 1, far = a;
+					if (inv < 0) {
+						near = a;
+						far = node + 1;
+					}
+					System.arraycopy(boxes, b, boxes, b + 6, 6);
+					stack[top++] = far;
+					stack[top++] = first;
+					stack[top++] = near;
+					stack[top++] = first;
+				}
+			}
+			return hits;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	private static int firstHit(RayPacket packet, double[] box, int b, int first, boolean anyIntersection) {
+		for (int i = first; i < packet.size; i++) {
+			if (anyIntersection && packet.hit[i])
+				continue;
+			if (intersectsBox(box, b, packet.ox[i], packet.oy[i], packet.oz[i],
+					packet.ix[i], packet.iy[i], packet.iz[i], packet.rays[i].start, packet.rays[i].end))
+				return i;
+		}
+		return packet.size;
+	}
+
+	/**
+	 * Slab test of a ray segment against the box at box[b], as FlatBvh.intersectsNode.
+	 */
+	private static boolean intersectsBox(double[] box, int b, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMin, double tMax) {
+		double t0 = (box[b] - ox) * ix, t1 = (box[b + 3] - ox) * ix;
+		if (ix < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (box[b + 1] - oy) * iy; t1 = (box[b + 4] - oy) * iy;
+		if (iy < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = (box[b + 2] - oz) * iz; t1 = (box[b + 5] - oz) * iz;
+		if (iz < 0) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return tMin <= tMax;
+	}
+}
@@ -0,0 +1,117 @@
+package ray1.accel;
+
+import ray1.IntersectionRecord;
+import ray1.Ray;
+
+/**
+ * A bundle of up to MAX_SIZE rays that are intersected with the scene together.
+ * The caller sets up rays[0] to rays[size-1] and calls prepare(); after
+ * intersection, hit[i] tells whether ray i hit anything, and for first-hit
+ * queries records[i] holds the hit and rays[i].end has been moved to it.
+ *
+ * prepare() also computes, for each axis, the range of ray origins and of
+ * inverse directions over the whole packet.  Acceleration structures use these
+ * intervals to reject a box for every ray in the packet with one test.
+ */
+public class RayPacket {
+
+	/** The largest number of rays in a packet: one 8 x 8 block of pixels. */
+	public static final int MAX_SIZE = 64;
+
+	/** The rays.  Their start and end must be set before intersection. */
+	public final Ray[] rays = new Ray[MAX_SIZE];
+
+	/** The intersection records, filled in for first-hit queries. */
+	public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+	/** Whether each ray hit something. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/** The number of rays in use. */
+	public int size;
+
+	/** Origins and inverse directions, one per ray. */
+	final double[] ox = new double[MAX_SIZE], oy = new double[MAX_SIZE], oz = new double[MAX_SIZE];
+	final double[] ix = new double[MAX_SIZE], iy = new double[MAX_SIZE], iz = new double[MAX_SIZE];
+
+	/** Per axis: the origin range, the inverse direction range, and whether the ranges can be used. */
+	final double[] originMin = new double[3], originMax = new double[3];
+	final double[] invMin = new double[3], invMax = new double[3];
+	final boolean[] coherent = new boolean[3];
+
+	/** The smallest start and largest end over the rays. */
+	double minStart, maxEnd;
+
+	public RayPacket() {
+		for (int i = 0; i < MAX_SIZE; i++) {
+			rays[i] = new Ray();
+			records[i] = new IntersectionRecord();
+		}
+	}
+
+	/**
+	 * Compute the per-ray and per-packet data used by traversal and clear the hit flags.
+	 * Must be called after the rays are set up and before they are intersected.
+	 */
+	public void prepare() {
+		for (int k = 0; k < 3; k++) {
+			originMin[k] = invMin[k] = Double.POSITIVE_INFINITY;
+			originMax[k] = invMax[k] = Double.NEGATIVE_INFINITY;
+		}
+		minStart = Double.POSITIVE_INFINITY;
+		maxEnd = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; i++) {
+			Ray r = rays[i];
+			ox[i] = r.origin.x; oy[i] = r.origin.y; oz[i] = r.origin.z;
+			ix[i] = 1.0 / r.direction.x; iy[i] = 1.0 / r.direction.y; iz[i] = 1.0 / r.direction.z;
+			include(0, ox[i], ix[i]);
+			include(1, oy[i], iy[i]);
+			include(2, oz[i], iz[i]);
+			minStart = Math.min(minStart, r.start);
+			maxEnd = Math.max(maxEnd, r.end);
+			hit[i] = false;
+		}
+		// An interval that spans zero, or contains an infinite inverse, gives no bound
+		for (int k = 0; k < 3; k++)
+			coherent[k] = (invMin[k] > 0 || invMax[k] < 0)
+					&& !Double.isInfinite(invMin[k]) && !Double.isInfinite(invMax[k]);
+	}
+
+	private void include(int axis, double o, double inv) {
+		originMin[axis] = Math.min(originMin[axis], o);
+		originMax[axis] = Math.max(originMax[axis], o);
+		invMin[axis] = Math.min(invMin[axis], inv);
+		invMax[axis] = Math.max(invMax[axis], inv);
+	}
+
+	/**
+	 * Interval test of the whole packet against a box.
+	 *
+	 * @return false only if no ray in the packet can hit the box between its start and end
+	 */
+	boolean mayHit(float[] bounds, int offset) {
+		double tEntry = minStart, tExit = maxEnd;
+		for (int k = 0; k < 3; k++) {
+			if (!coherent[k])
+				continue;
+			// Ranges of (bound - origin) * inverse direction over the packet
+			double lo = bounds[offset + k], hi = bounds[offset + 3 + k];
+			if (invMin[k] < 0) {
+				double t = lo; lo = hi; hi = t;
+			}
+			double entry = minProduct(lo - originMax[k], lo - originMin[k], invMin[k], invMax[k]);
+			double exit = maxProduct(hi - originMax[k], hi - originMin[k], invMin[k], invMax[k]);
+			if (entry > tEntry) tEntry = entry;
+			if (exit < tExit) tExit = exit;
+		}
+		return tEntry <= tExit;
+	}
+
+	private static double minProduct(double a0, double a1, double b0, double b1) {
+		return Math.min(Math.min(a0 * b0, a0 * b1), Math.min(a1 * b0, a1 * b1));
+	}
+
+	private static double maxProduct(double a0, double a1, double b0, double b1) {
+		return Math.max(Math.max(a0 * b0, a0 * b1), Math.max(a1 * b0, a1 * b1));
+	}
+}
@@ -0,0 +1,550 @@
+package ray1.accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+import egl.math.Vector3d;
+import ray1.surface.Surface;
+
+/**
+ * Builds a BVH tree using the binned surface area heuristic.  At every node the
+ * surface centroids are dropped into a fixed number of bins along each axis and
+ * the split plane between two bins with the lowest expected cost is chosen.
+ *
+ * The surfaces are reordered in place, just like Bvh.createTree does, so that
+ * every node covers a contiguous range of the surfaces array.  Centroids and
+ * bounds are copied into primitive arrays up front so the inner loops do not
+ * go through the Vector3d accessors.  The builder can also work directly on
+ * such arrays for primitives that are not Surface objects; the order array
+ * then records where each primitive ended up.
+ *
+ * Given a ForkJoinPool, large subtrees are built concurrently, and the bounds,
+ * bins and partition of large ranges are computed by splitting the range across
+ * tasks.  The reductions involved are exact (counts, minima and maxima), and large
+ * ranges are partitioned stably, chunk by chunk, whether or not there is a pool,
+ * so the parallel build produces exactly the same tree as the serial one.
+ */
+class SahBvhBuilder {
+
+	/** The number of centroid bins per axis. */
+	static final int NUM_BINS = 16;
+
+	/** The cost of visiting an interior node, relative to one surface intersection. */
+	static final double TRAVERSAL_COST = 1.0;
+
+	/** The cost of intersecting one surface. */
+	static final double INTERSECTION_COST = 1.0;
+
+	/** Subtrees with more surfaces than this are built in a separate task. */
+	static final int PARALLEL_BUILD_THRESHOLD = 4096;
+
+	/** Ranges with more surfaces than this are bounded and binned by several tasks. */
+	static final int PARALLEL_BIN_THRESHOLD = 1 << 15;
+
+	/** The number of surfaces each task of a stable partition handles. */
+	static final int PARTITION_CHUNK = 1 << 13;
+
+	/** The pool to build in, or null for a serial build. */
+	final ForkJoinPool pool;
+
+	/** The surfaces being organized, reordered during the build; null when building over raw arrays. */
+	final Surface[] surfaces;
+
+	/** The number of primitives being organized. */
+	final int size;
+
+	/** The original index of the primitive now at each position. */
+	final int[] order;
+
+	/** The most surfaces allowed in a leaf. */
+	final int leafSize;
+
+	/** Surface centroids, three per surface, kept in the same order as surfaces. */
+	final double[] centroids;
+
+	/** Surface bounds, six per surface (min then max), kept in the same order as surfaces. */
+	final double[] bounds;
+
+	/**
+	 * Space for stable partitions, made on the first one.  A range is partitioned
+	 * through the same positions of these arrays, so concurrent subtrees, whose
+	 * ranges are disjoint, do not get in each other's way.
+	 */
+	private Surface[] surfacesCopy;
+	private int[] orderCopy;
+	private double[] centroidsCopy, boundsCopy;
+
+	SahBvhBuilder(Surface[] surfaces, int leafSize) {
+		this(surfaces, leafSize, null);
+	}
+
+	SahBvhBuilder(Surface[] surfaces, int leafSize, ForkJoinPool pool) {
+		this.pool = pool;
+		this.surfaces = surfaces;
+		this.size = surfaces.length;
+		this.order = identity(size);
+		this.leafSize = Math.max(1, leafSize);
+		centroids = new double[3 * surfaces.length];
+		bounds = new double[6 * surfaces.length];
+		forEachChunk((size + PARTITION_CHUNK - 1) / PARTITION_CHUNK, c -> {
+			for (int i = c * PARTITION_CHUNK, e = Math.min(size, i + PARTITION_CHUNK); i < e; i++) {
+				Vector3d p = surfaces[i].getAveragePosition();
+				Vector3d lo = surfaces[i].getMinBound();
+				Vector3d hi = surfaces[i].getMaxBound();
+				centroids[3 * i] = p.x; centroids[3 * i + 1] = p.y; centroids[3 * i + 2] = p.z;
+				bounds[6 * i] = lo.x; bounds[6 * i + 1] = lo.y; bounds[6 * i + 2] = lo.z;
+				bounds[6 * i + 3] = hi.x; bounds[6 * i + 4] = hi.y; bounds[6 * i + 5] = hi.z;
+			}
+		});
+	}
+
+	/**
+	 * Build over primitives described only by their centroids (three per primitive)
+	 * and bounds (six per primitive).  Both arrays are reordered in place.
+	 */
+	SahBvhBuilder(double[] centroids, double[] bounds, int leafSize, ForkJoinPool pool) {
+		this.pool = pool;
+		this.surfaces = null;
+		this.size = centroids.length / 3;
+		this.order = identity(size);
+		this.leafSize = Math.max(1, leafSize);
+		this.centroids = centroids;
+		this.bounds = bounds;
+	}
+
+	private static int[] identity(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+
+	/**
+	 * @return the root of a tree over all the surfaces
+	 */
+	BvhNode build() {
+		if (pool == null)
+			return build(0, size);
+		return pool.invoke(new BuildTask(0, size));
+	}
+
+	/**
+	 * Build the subtree for surfaces[start] to surfaces[end-1].
+	 */
+	BvhNode build(int start, int end) {
+		double[] box = new double[6];
+		double[] centroidBox = new double[6];
+		rangeBounds(start, end, box, centroidBox);
+		Vector3d minB = new Vector3d(box[0], box[1], box[2]);
+		Vector3d maxB = new Vector3d(box[3], box[4], box[5]);
+
+		int n = end - start;
+		if (n <= 1)
+			return new BvhNode(minB, maxB, null, null, start, end);
+
+		Split split = findSplit(start, end, box, centroidBox);
+		int mid;
+		if (split == null) {
+			// All centroids coincide, so no plane separates them; fall back to halving the range.
+			if (n <= leafSize)
+				return new BvhNode(minB, maxB, null, null, start, end);
+			mid = (start + end) / 2;
+		}
+		else {
+			if (n <= leafSize && n * INTERSECTION_COST <= split.cost)
+				return new BvhNode(minB, maxB, null, null, start, end);
+			mid = partition(start, end, split, centroidBox);
+			if (mid == start || mid == end)
+				mid = (start + end) / 2;
+		}
+		BvhNode left, right;
+		if (pool != null && n > PARALLEL_BUILD_THRESHOLD) {
+			BuildTask leftTask = new BuildTask(start, mid);
+			leftTask.fork();
+			right = build(mid, end);
+			left = leftTask.join();
+		}
+		else {
+			left = build(start, mid);
+			right = build(mid, end);
+		}
+		return new BvhNode(minB, maxB, left, right, start, end);
+	}
+
+	/** Builds one subtree inside the pool. */
+	@SuppressWarnings("serial")
+	class BuildTask extends RecursiveTask<BvhNode> {
+		final int start, end;
+
+		BuildTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		protected BvhNode compute() {
+			return build(start, end);
+		}
+	}
+
+	/** A candidate split: surfaces whose centroid falls in a bin below bin go left. */
+	static class Split {
+		int axis;
+		int bin;
+		double cost;
+	}
+
+	/**
+	 * Compute the bounds and centroid bounds of a range of surfaces.
+	 */
+	void rangeBounds(int start, int end, double[] box, double[] centroidBox) {
+		if (pool != null && end - start > PARALLEL_BIN_THRESHOLD) {
+			new BoundsTask(start, end, box, centroidBox).invoke();
+			return;
+		}
+		for (int k = 0; k < 3; k++) {
+			box[k] = centroidBox[k] = Double.POSITIVE_INFINITY;
+			box[3 + k] = centroidBox[3 + k] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], bounds[6 * i + k]);
+				box[3 + k] = Math.max(box[3 + k], bounds[6 * i + 3 + k]);
+				centroidBox[k] = Math.min(centroidBox[k], centroids[3 * i + k]);
+				centroidBox[3 + k] = Math.max(centroidBox[3 + k], centroids[3 * i + k]);
+			}
+		}
+	}
+
+	/**
+	 * Find the cheapest binned split of a range over all three axes.
+	 *
+	 * @return the best split, or null if the centroids do not spread along any axis
+	 */
+	Split findSplit(int start, int end, double[] box, double[] centroidBox) {
+		Split best = null;
+		double parentArea = halfArea(box, 0);
+		if (!(parentArea > 0))
+			parentArea = 1;
+		int[] counts = new int[NUM_BINS];
+		double[] binBoxes = new double[6 * NUM_BINS];
+		double[] rightArea = new double[NUM_BINS];
+		int[] rightCount = new int[NUM_BINS];
+		double[] acc = new double[6];
+
+		for (int axis = 0; axis < 3; axis++) {
+			double lo = centroidBox[axis], extent = centroidBox[3 + axis] - lo;
+			if (!(extent > 0))
+				continue;
+
+			binSurfaces(start, end, axis, lo, extent, counts, binBoxes);
+
+			// Sweep from the right to get the area and count above each plane
+			emptyBox(acc);
+			int count = 0;
+			for (int b = NUM_BINS - 1; b > 0; b--) {
+				count += counts[b];
+				if (counts[b] > 0)
+					growBox(acc, binBoxes, b);
+				rightCount[b] = count;
+				rightArea[b] = count > 0 ? halfArea(acc, 0) : 0;
+			}
+
+			// Sweep from the left and evaluate each plane
+			emptyBox(acc);
+			count = 0;
+			for (int b = 1; b < NUM_BINS; b++) {
+				count += counts[b - 1];
+				if (counts[b - 1] > 0)
+					growBox(acc, binBoxes, b - 1);
+				if (count == 0 || rightCount[b] == 0)
+					continue;
+				double cost = TRAVERSAL_COST + INTERSECTION_COST
+						* (halfArea(acc, 0) * count + rightArea[b] * rightCount[b]) / parentArea;
+				if (best == null || cost < best.cost) {
+					if (best == null)
+						best = new Split();
+					best.axis = axis;
+					best.bin = b;
+					best.cost = cost;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Count the surfaces of a range into bins along one axis and accumulate the bounds of each bin.
+	 */
+	void binSurfaces(int start, int end, int axis, double lo, double extent, int[] counts, double[] binBoxes) {
+		if (pool != null && end - start > PARALLEL_BIN_THRESHOLD) {
+			new BinTask(start, end, axis, lo, extent, counts, binBoxes).invoke();
+			return;
+		}
+		for (int b = 0; b < NUM_BINS; b++) {
+			counts[b] = 0;
+			emptyBox(binBoxes, b);
+		}
+		for (int i = start; i < end; i++) {
+			int b = binIndex(centroids[3 * i + axis], lo, extent);
+			counts[b]++;
+			for (int k = 0; k < 3; k++) {
+				binBoxes[6 * b + k] = Math.min(binBoxes[6 * b + k], bounds[6 * i + k]);
+				binBoxes[6 * b + 3 + k] = Math.max(binBoxes[6 * b + 3 + k], bounds[6 * i + 3 + k]);
+			}
+		}
+	}
+
+	/** Computes rangeBounds by splitting the range in half and merging the two results. */
+	@SuppressWarnings("serial")
+	class BoundsTask extends RecursiveAction {
+		final int start, end;
+		final double[] box, centroidBox;
+
+		BoundsTask(int start, int end, double[] box, double[] centroidBox) {
+			this.start = start;
+			this.end = end;
+			this.box = box;
+			this.centroidBox = centroidBox;
+		}
+
+		protected void compute() {
+			if (end - start <= PARALLEL_BIN_THRESHOLD) {
+				rangeBounds(start, end, box, centroidBox);
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			double[] box2 = new double[6], centroidBox2 = new double[6];
+			invokeAll(new BoundsTask(start, mid, box, centroidBox), new BoundsTask(mid, end, box2, centroidBox2));
+			growBox(box, box2, 0);
+			growBox(centroidBox, centroidBox2, 0);
+		}
+	}
+
+	/** Computes binSurfaces by splitting the range in half and merging the two results. */
+	@SuppressWarnings("serial")
+	class BinTask extends RecursiveAction {
+		final int start, end, axis;
+		final double lo, extent;
+		final int[] counts;
+		final double[] binBoxes;
+
+		BinTask(int start, int end, int axis, double lo, double extent, int[] counts, double[] binBoxes) {
+			this.start = start;
+			this.end = end;
+			this.axis = axis;
+			this.lo = lo;
+			this.extent = extent;
+			this.counts = counts;
+			this.binBoxes = binBoxes;
+		}
+
+		protected void compute() {
+			if (end - start <= PARALLEL_BIN_THRESHOLD) {
+				binSurfaces(start, end, axis, lo, extent, counts, binBoxes);
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			int[] counts2 = new int[NUM_BINS];
+			double[] binBoxes2 = new double[6 * NUM_BINS];
+			invokeAll(new BinTask(start, mid, axis, lo, extent, counts, binBoxes),
+					new BinTask(mid, end, axis, lo, extent, counts2, binBoxes2));
+			for (int b = 0; b < NUM_BINS; b++) {
+				counts[b] += counts2[b];
+				for (int k = 0; k < 3; k++) {
+					binBoxes[6 * b + k] = Math.min(binBoxes[6 * b + k], binBoxes2[6 * b + k]);
+					binBoxes[6 * b + 3 + k] = Math.max(binBoxes[6 * b + 3 + k], binBoxes2[6 * b + 3 + k]);
+				}
+			}
+		}
+	}
+
+	static int binIndex(double c, double lo, double extent) {
+		int b = (int) (NUM_BINS * (c - lo) / extent);
+		return Math.max(0, Math.min(NUM_BINS - 1, b));
+	}
+
+	/**
+	 * Reorder a range so that surfaces left of the split plane come first.
+	 *
+	 * @return the index of the first surface right of the plane
+	 */
+	int partition(int start, int end, Split split, double[] centroidBox) {
+		if (end - start > PARALLEL_BIN_THRESHOLD)
+			return stablePartition(start, end, split, centroidBox);
+		double lo = centroidBox[split.axis], extent = centroidBox[3 + split.axis] - lo;
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binIndex(centroids[3 * i + split.axis], lo, extent) < split.bin) {
+				i++;
+			}
+			else {
+				swap(i, j);
+				j--;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Partition a range as partition does, but keeping the order of the surfaces on
+	 * each side.  The range is cut into chunks; the surfaces going left in each chunk
+	 * are counted, which gives every chunk the place its surfaces go on each side,
+	 * and then each chunk copies its surfaces there.  The chunks are handled by
+	 * separate tasks if there is a pool, and the result is the same either way.
+	 *
+	 * @return the index of the first surface right of the plane
+	 */
+	int stablePartition(int start, int end, Split split, double[] centroidBox) {
+		double lo = centroidBox[split.axis], extent = centroidBox[3 + split.axis] - lo;
+		int axis = split.axis, bin = split.bin;
+		int chunks = (end - start + PARTITION_CHUNK - 1) / PARTITION_CHUNK;
+		synchronized (this) {
+			if (orderCopy == null) {
+				surfacesCopy = surfaces == null ? null : new Surface[size];
+				orderCopy = new int[size];
+				centroidsCopy = new double[3 * size];
+				boundsCopy = new double[6 * size];
+			}
+		}
+
+		int[] lefts = new int[chunks];
+		forEachChunk(chunks, c -> {
+			int count = 0;
+			for (int i = start + c * PARTITION_CHUNK, e = Math.min(end, i + PARTITION_CHUNK); i < e; i++)
+				if (binIndex(centroids[3 * i + axis], lo, extent) < bin)
+					count++;
+			lefts[c] = count;
+		});
+
+		// Where each chunk's surfaces go on the left and on the right
+		int[] leftStart = new int[chunks], rightStart = new int[chunks];
+		int left = start;
+		for (int c = 0; c < chunks; c++) {
+			leftStart[c] = left;
+			left += lefts[c];
+		}
+		int mid = left;
+		for (int c = 0, right = mid; c < chunks; c++) {
+			rightStart[c] = right;
+			right += Math.min(PARTITION_CHUNK, end - start - c * PARTITION_CHUNK) - lefts[c];
+		}
+
+		forEachChunk(chunks, c -> {
+			int l = leftStart[c], r = rightStart[c];
+			for (int i = start + c * PARTITION_CHUNK, e = Math.min(end, i + PARTITION_CHUNK); i < e; i++)
+				copy(i, binIndex(centroids[3 * i + axis], lo, extent) < bin ? l++ : r++);
+		});
+		forEachChunk(chunks, c -> {
+			int i = start + c * PARTITION_CHUNK, n = Math.min(end - i, PARTITION_CHUNK);
+			if (surfaces != null)
+				System.arraycopy(surfacesCopy, i, surfaces, i, n);
+			System.arraycopy(orderCopy, i, order, i, n);
+			System.arraycopy(centroidsCopy, 3 * i, centroids, 3 * i, 3 * n);
+			System.arraycopy(boundsCopy, 6 * i, bounds, 6 * i, 6 * n);
+		});
+		return mid;
+	}
+
+	/**
+	 * Copy the surface at position i to position j of the partition space.
+	 */
+	private void copy(int i, int j) {
+		if (surfaces != null)
+			surfacesCopy[j] = surfaces[i];
+		orderCopy[j] = order[i];
+		System.arraycopy(centroids, 3 * i, centroidsCopy, 3 * j, 3);
+		System.arraycopy(bounds, 6 * i, boundsCopy, 6 * j, 6);
+	}
+
+	/**
+	 * Run body for chunks 0 to chunks - 1, in tasks of the pool if there is one.
+	 * Called from inside the pool during the build, and from outside it to copy
+	 * the surfaces' bounds in.
+	 */
+	private void forEachChunk(int chunks, IntConsumer body) {
+		if (pool == null || chunks < 2) {
+			for (int c = 0; c < chunks; c++)
+				body.accept(c);
+		}
+		else if (ForkJoinTask.inForkJoinPool()) {
+			new ChunkTask(0, chunks, body).invoke();
+		}
+		else {
+			pool.invoke(new ChunkTask(0, chunks, body));
+		}
+	}
+
+	/** Runs a body on a run of chunks by splitting the run in half. */
+	@SuppressWarnings("serial")
+	static class ChunkTask extends RecursiveAction {
+		final int first, last;
+		final IntConsumer body;
+
+		ChunkTask(int first, int last, IntConsumer body) {
+			this.first = first;
+			this.last = last;
+			this.body = body;
+		}
+
+		protected void compute() {
+			if (last - first == 1) {
+				body.accept(first);
+				return;
+			}
+			int mid = (first + last) >>> 1;
+			invokeAll(new ChunkTask(first, mid, body), new ChunkTask(mid, last, body));
+		}
+	}
+
+	void swap(int i, int j) {
+		if (surfaces != null) {
+			Surface s = surfaces[i];
+			surfaces[i] = surfaces[j];
+			surfaces[j] = s;
+		}
+		int o = order[i];
+		order[i] = order[j];
+		order[j] = o;
+		for (int k = 0; k < 3; k++) {
+			double c = centroids[3 * i + k];
+			centroids[3 * i + k] = centroids[3 * j + k];
+			centroids[3 * j + k] = c;
+		}
+		for (int k = 0; k < 6; k++) {
+			double b = bounds[6 * i + k];
+			bounds[6 * i + k] = bounds[6 * j + k];
+			bounds[6 * j + k] = b;
+		}
+	}
+
+	static void emptyBox(double[] box) {
+		emptyBox(box, 0);
+	}
+
+	static void emptyBox(double[] boxes, int b) {
+		for (int k = 0; k < 3; k++) {
+			boxes[6 * b + k] = Double.POSITIVE_INFINITY;
+			boxes[6 * b + 3 + k] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	static void growBox(double[] box, double[] boxes, int b) {
+		for (int k = 0; k < 3; k++) {
+			box[k] = Math.min(box[k], boxes[6 * b + k]);
+			box[3 + k] = Math.max(box[3 + k], boxes[6 * b + 3 + k]);
+		}
+	}
+
+	/**
+	 * Half the surface area of the box stored at boxes[6*b]; the factor of two cancels in every cost ratio.
+	 */
+	static double halfArea(double[] boxes, int b) {
+		double dx = boxes[6 * b + 3] - boxes[6 * b];
+		double dy = boxes[6 * b + 4] - boxes[6 * b + 1];
+		double dz = boxes[6 * b + 5] - boxes[6 * b + 2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+}
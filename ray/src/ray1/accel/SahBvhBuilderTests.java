@@ -0,0 +1,429 @@
+package ray1.accel;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.Image;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.Scene;
+import ray1.camera.PerspectiveCamera;
+import ray1.surface.Box;
+import ray1.surface.Surface;
+
+public class SahBvhBuilderTests {
+
+    static Surface[] randomBoxes(int n, long seed) {
+        Random random = new Random(seed);
+        Surface[] surfaces = new Surface[n];
+        for (int i = 0; i < n; i++) {
+            Box b = new Box();
+            Vector3 p = new Vector3(100 * random.nextFloat(), 10 * random.nextFloat(), 100 * random.nextFloat());
+            b.setMinPt(p);
+            b.setMaxPt(p.clone().add(random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            b.computeBoundingBox();
+            surfaces[i] = b;
+        }
+        return surfaces;
+    }
+
+    /**
+     * Check that every node bounds its surfaces, that leaves respect the leaf size,
+     * and that the leaves cover [start, end) exactly once.
+     * @return the number of surfaces under node
+     */
+    static int checkNode(BvhNode node, Surface[] surfaces, int leafSize) {
+        for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+            for (int k = 0; k < 3; k++) {
+                assertTrue(node.minBound.get(k) <= surfaces[i].getMinBound().get(k));
+                assertTrue(node.maxBound.get(k) >= surfaces[i].getMaxBound().get(k));
+            }
+        }
+        if (node.isLeaf()) {
+            assertTrue("Leaf has too many surfaces", node.surfaceIndexEnd - node.surfaceIndexStart <= leafSize);
+            return node.surfaceIndexEnd - node.surfaceIndexStart;
+        }
+        assertEquals(node.surfaceIndexStart, node.child[0].surfaceIndexStart);
+        assertEquals(node.child[0].surfaceIndexEnd, node.child[1].surfaceIndexStart);
+        assertEquals(node.surfaceIndexEnd, node.child[1].surfaceIndexEnd);
+        return checkNode(node.child[0], surfaces, leafSize) + checkNode(node.child[1], surfaces, leafSize);
+    }
+
+    @Test
+    public void testTreeStructure() {
+        for (int leafSize : new int[] { 1, 4, 10 }) {
+            Surface[] surfaces = randomBoxes(1000, 4620);
+            BvhNode root = new SahBvhBuilder(surfaces, leafSize).build();
+            assertEquals(0, root.surfaceIndexStart);
+            assertEquals(surfaces.length, root.surfaceIndexEnd);
+            assertEquals(surfaces.length, checkNode(root, surfaces, leafSize));
+        }
+    }
+
+    @Test
+    public void testCoincidentCentroids() {
+        // Identical boxes cannot be separated by any plane, so the builder must fall back to halving.
+        Surface[] surfaces = new Surface[25];
+        for (int i = 0; i < surfaces.length; i++) {
+            Box b = new Box();
+            b.setMinPt(new Vector3(0, 0, 0));
+            b.setMaxPt(new Vector3(1, 1, 1));
+            b.computeBoundingBox();
+            surfaces[i] = b;
+        }
+        BvhNode root = new SahBvhBuilder(surfaces, 4).build();
+        assertEquals(surfaces.length, checkNode(root, surfaces, 4));
+    }
+
+    @Test
+    public void testLowerCostThanSingleLeaf() {
+        Surface[] surfaces = randomBoxes(500, 17);
+        Bvh bvh = new Bvh();
+        bvh.setBuilder("sah");
+        bvh.setLeafSize(4);
+        bvh.build(surfaces);
+        double leafOnlyCost = SahBvhBuilder.INTERSECTION_COST * surfaces.length;
+        assertTrue(bvh.sahCost(bvh.root) / bvh.nodeArea(bvh.root) < leafOnlyCost / 10);
+    }
+
+    static void assertSameTree(BvhNode a, BvhNode b) {
+        assertEquals(a.surfaceIndexStart, b.surfaceIndexStart);
+        assertEquals(a.surfaceIndexEnd, b.surfaceIndexEnd);
+        assertTrue(a.minBound.equals(b.minBound) && a.maxBound.equals(b.maxBound));
+        assertEquals(a.isLeaf(), b.isLeaf());
+        if (!a.isLeaf()) {
+            assertSameTree(a.child[0], b.child[0]);
+            assertSameTree(a.child[1], b.child[1]);
+        }
+    }
+
+    @Test
+    public void testParallelBuildMatchesSerial() {
+        // Large enough to fork subtrees and to bin the top levels in parallel
+        int n = 3 * SahBvhBuilder.PARALLEL_BIN_THRESHOLD;
+        Surface[] serial = randomBoxes(n, 99);
+        Surface[] parallel = serial.clone();
+        BvhNode serialRoot = new SahBvhBuilder(serial, 4).build();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        BvhNode parallelRoot = new SahBvhBuilder(parallel, 4, pool).build();
+        pool.shutdown();
+        assertArrayEquals(serial, parallel);
+        assertSameTree(serialRoot, parallelRoot);
+        // The top levels are partitioned in chunks; the ranges must still be valid
+        assertEquals(n, checkNode(parallelRoot, parallel, 4));
+    }
+
+    /** Copies of boxes made by randomBoxes, moved by offset. */
+    static Surface[] movedBoxes(Surface[] boxes, float offset) {
+        Surface[] moved = new Surface[boxes.length];
+        for (int i = 0; i < boxes.length; i++) {
+            Box b = new Box();
+            b.setMinPt(new Vector3(boxes[i].getMinBound()).add(offset, offset, offset));
+            b.setMaxPt(new Vector3(boxes[i].getMaxBound()).add(offset, offset, offset));
+            b.computeBoundingBox();
+            moved[i] = b;
+        }
+        return moved;
+    }
+
+    @Test
+    public void testRefit() {
+        Surface[] boxes = randomBoxes(1000, 4620);
+        Bvh bvh = new Bvh();
+        bvh.setBuilder("sah");
+        bvh.setLeafSize(4);
+        bvh.setBuildThreads(1);
+        bvh.build(boxes.clone());
+        Surface[] built = bvh.surfaces.clone();
+
+        // Moving everything together keeps the tree just as good, so it is refit in place
+        Surface[] moved = movedBoxes(boxes, 0.5f);
+        assertTrue(bvh.refit(moved.clone()));
+        assertEquals(moved.length, checkNode(bvh.root, bvh.surfaces, 4));
+        for (int i = 0; i < built.length; i++)
+            assertTrue(bvh.surfaces[i].getMinBound().clone().sub(built[i].getMinBound()).sub(0.5).len() < 1e-5);
+
+        // Unrelated positions make the old topology useless, so the tree is rebuilt
+        assertFalse(bvh.refit(randomBoxes(1000, 17)));
+        assertEquals(moved.length, checkNode(bvh.root, bvh.surfaces, 4));
+    }
+
+    /** Six bounds per surface, in the order of surfaces, as FlatBvh.refit takes them. */
+    static double[] boundsOf(Surface[] surfaces) {
+        double[] bounds = new double[6 * surfaces.length];
+        for (int i = 0; i < surfaces.length; i++) {
+            for (int k = 0; k < 3; k++) {
+                bounds[6 * i + k] = surfaces[i].getMinBound().get(k);
+                bounds[6 * i + 3 + k] = surfaces[i].getMaxBound().get(k);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Check that a flat node contains the primitives under it, and is no larger
+     * than rounding its bounds to floats makes it.
+     * @return the exact bounds of the primitives under node
+     */
+    static double[] checkFlatNode(FlatBvh bvh, int node, double[] bounds) {
+        double[] box;
+        int link = bvh.nodeLinks[2 * node], link2 = bvh.nodeLinks[2 * node + 1];
+        if (link2 >= 0) {
+            box = new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            for (int p = link; p < link + link2; p++) {
+                for (int k = 0; k < 3; k++) {
+                    box[k] = Math.min(box[k], bounds[6 * p + k]);
+                    box[3 + k] = Math.max(box[3 + k], bounds[6 * p + 3 + k]);
+                }
+            }
+        }
+        else {
+            double[] a = checkFlatNode(bvh, node + 1, bounds), b = checkFlatNode(bvh, link, bounds);
+            box = new double[6];
+            for (int k = 0; k < 3; k++) {
+                box[k] = Math.min(a[k], b[k]);
+                box[3 + k] = Math.max(a[3 + k], b[3 + k]);
+            }
+        }
+        for (int k = 0; k < 3; k++) {
+            float lo = bvh.nodeBounds[6 * node + k], hi = bvh.nodeBounds[6 * node + 3 + k];
+            assertTrue(lo <= box[k] && box[k] - lo <= 2 * Math.ulp((float) box[k]));
+            assertTrue(hi >= box[3 + k] && hi - box[3 + k] <= 2 * Math.ulp((float) box[3 + k]));
+        }
+        return box;
+    }
+
+    @Test
+    public void testFlatBvhRefit() {
+        Surface[] boxes = randomBoxes(1000, 4620);
+        BvhNode root = new SahBvhBuilder(boxes, 4).build();
+        FlatBvh flat = new FlatBvh(root);
+        checkFlatNode(flat, 0, boundsOf(boxes));
+        int[] links = flat.nodeLinks.clone();
+        double sahCost = flat.sahCost();
+
+        // Moving everything together keeps the topology and the cost relative to the root
+        double[] moved = boundsOf(movedBoxes(boxes, 0.5f));
+        flat.refit(moved);
+        assertArrayEquals(links, flat.nodeLinks);
+        checkFlatNode(flat, 0, moved);
+        assertEquals(sahCost, flat.sahCost(), 1e-3 * sahCost);
+
+        // Scattering them keeps the topology too, but the tree gets worse
+        double[] scattered = boundsOf(randomBoxes(1000, 17));
+        flat.refit(scattered);
+        assertArrayEquals(links, flat.nodeLinks);
+        checkFlatNode(flat, 0, scattered);
+        assertTrue(flat.sahCost() > 2 * sahCost);
+    }
+
+    /** @return the first hit of ray with any of surfaces, found by testing each */
+    static double firstHit(Surface[] surfaces, Ray ray) {
+        IntersectionRecord record = new IntersectionRecord();
+        double t = Double.POSITIVE_INFINITY;
+        for (Surface s : surfaces)
+            if (s.intersect(record, new Ray(ray)) && record.t < t)
+                t = record.t;
+        return t;
+    }
+
+    @Test
+    public void testLinearBvhRefit() {
+        Surface[] boxes = randomBoxes(1000, 4620);
+        LinearBvh bvh = new LinearBvh();
+        bvh.setBuilder("sah");
+        bvh.setLeafSize(4);
+        bvh.setBuildThreads(1);
+        bvh.build(boxes.clone());
+        FlatBvh nodes = bvh.nodes;
+
+        Surface[] moved = movedBoxes(boxes, 0.5f);
+        assertTrue(bvh.refit(moved.clone()));
+        assertTrue(bvh.nodes == nodes);
+        checkFlatNode(bvh.nodes, 0, boundsOf(bvh.surfaces));
+
+        // The refit tree finds the same hits as testing every moved box
+        Random random = new Random(5);
+        IntersectionRecord record = new IntersectionRecord();
+        RenderContext context = new RenderContext();
+        int hits = 0;
+        for (int r = 0; r < 500; r++) {
+            // Aim near a random box, so that many rays hit something
+            Surface target = moved[random.nextInt(moved.length)];
+            Vector3d origin = new Vector3d(100 * random.nextDouble(), 20, 100 * random.nextDouble());
+            Ray ray = new Ray(origin, target.getMinBound().clone().add(random.nextDouble(), random.nextDouble(),
+                    random.nextDouble()).sub(origin).normalize());
+            ray.makeOffsetRay();
+            double expected = firstHit(moved, ray);
+            boolean hit = bvh.intersect(record, new Ray(ray), false, context);
+            assertEquals(expected < Double.POSITIVE_INFINITY, hit);
+            if (hit) {
+                assertEquals(expected, record.t, 1e-9);
+                hits++;
+            }
+        }
+        assertTrue(hits > 100);
+
+        assertFalse(bvh.refit(randomBoxes(1000, 17)));
+        assertFalse(bvh.nodes == nodes);
+        checkFlatNode(bvh.nodes, 0, boundsOf(bvh.surfaces));
+    }
+
+    static Scene boxScene(Surface[] boxes, AccelStruct accelStruct) {
+        Scene scene = new Scene();
+        scene.setCamera(new PerspectiveCamera());
+        scene.setImage(new Image(4, 3));
+        scene.setAccelStruct(accelStruct);
+        for (Surface s : boxes)
+            scene.addSurface(s);
+        return scene;
+    }
+
+    static LinearBvh linearBvh(int leafSize, String nodeFormat) {
+        LinearBvh bvh = new LinearBvh();
+        bvh.setBuilder("sah");
+        bvh.setLeafSize(leafSize);
+        bvh.setBuildThreads(1);
+        bvh.setNodeFormat(nodeFormat);
+        return bvh;
+    }
+
+    /**
+     * A scene reuses the previous frame's Bvh only if its own was set up the same
+     * way, apart from the number of build threads, which does not change the tree;
+     * otherwise it builds the one its scene file asked for.
+     */
+    @Test
+    public void testSceneReusesOnlyMatchingBvh() {
+        Surface[] boxes = randomBoxes(200, 4620);
+        Scene first = boxScene(boxes, linearBvh(4, "float"));
+        first.init();
+        AccelStruct previous = first.getAccelStruct();
+
+        Scene same = boxScene(movedBoxes(boxes, 0.5f), linearBvh(4, "float"));
+        same.init(previous);
+        assertTrue(same.getAccelStruct() == previous);
+
+        Bvh threads = linearBvh(4, "float");
+        threads.setBuildThreads(4);
+        Scene parallel = boxScene(movedBoxes(boxes, 0.75f), threads);
+        parallel.init(previous);
+        assertTrue(parallel.getAccelStruct() == previous);
+
+        for (AccelStruct other : new AccelStruct[] { linearBvh(2, "float"), linearBvh(4, "8"), new NaiveAccelStruct() }) {
+            Scene scene = boxScene(movedBoxes(boxes, 1), other);
+            scene.init(previous);
+            assertTrue(scene.getAccelStruct() == other);
+        }
+        Bvh threshold = linearBvh(4, "float");
+        threshold.setRebuildThreshold(3);
+        Scene scene = boxScene(movedBoxes(boxes, 1), threshold);
+        scene.init(previous);
+        assertTrue(scene.getAccelStruct() == threshold);
+    }
+
+    @Test
+    public void testQuantizedBoundsAreConservative() {
+        Surface[] boxes = randomBoxes(1000, 4620);
+        FlatBvh flat = new FlatBvh(new SahBvhBuilder(boxes, 2).build());
+        for (int bits : new int[] { 8, 16 }) {
+            QuantizedBvh quantized = new QuantizedBvh(flat, bits);
+            float[] decoded = quantized.decodeAll();
+            // Every decoded box contains the exact one
+            for (int i = 0; i < 6 * flat.numNodes; i++) {
+                float exact = flat.nodeBounds[i], q = decoded[i];
+                assertTrue(i % 6 < 3 ? q <= exact : q >= exact);
+            }
+            assertEquals(flat.numNodes * (bits == 8 ? 14 : 20), quantized.getNodeBytes());
+            // The looser boxes cost little, and the links are untouched
+            assertTrue(quantized.sahCost() >= flat.sahCost());
+            assertTrue(quantized.sahCost() < flat.sahCost() * (bits == 8 ? 1.5 : 1.01));
+        }
+    }
+
+    @Test
+    public void testWideNodesVisitTheSameLeaves() {
+        Surface[] boxes = randomBoxes(1000, 4620);
+        FlatBvh flat = new FlatBvh(new SahBvhBuilder(boxes, 2).build());
+        WideBvh wide = new WideBvh(flat);
+        RenderContext context = new RenderContext();
+        Random random = new Random(7);
+        Set<Integer> flatLeaves = new HashSet<>(), wideLeaves = new HashSet<>();
+        for (int r = 0; r < 200; r++) {
+            Ray ray = new Ray(new Vector3d(100 * random.nextDouble(), 5, 100 * random.nextDouble()),
+                    new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize());
+            ray.makeOffsetRay();
+            // A leaf intersector that hits nothing, so every leaf the ray reaches is visited
+            flatLeaves.clear();
+            wideLeaves.clear();
+            flat.intersect(null, ray, (out, scratch, rr, start, count, any, c) -> flatLeaves.add(start) && false, false, context);
+            wide.intersect(null, ray, (out, scratch, rr, start, count, any, c) -> wideLeaves.add(start) && false, false, context);
+            // Wide nodes test fewer of the enclosing boxes, so they can only reach more
+            // leaves, and only leaves whose own boxes the ray hits
+            assertTrue(wideLeaves.containsAll(flatLeaves));
+            double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+            for (int node = 0; node < flat.numNodes; node++)
+                if (flat.nodeLinks[2 * node + 1] >= 0 && wideLeaves.contains(flat.nodeLinks[2 * node]))
+                    assertTrue(flat.intersectsNode(node, ray.origin.x, ray.origin.y, ray.origin.z, ix, iy, iz, ray.start, ray.end));
+        }
+    }
+
+    /**
+     * The kernels get() picks, which may be the Vector API ones, give the same
+     * results bit for bit as the plain loops, including for rays parallel to a
+     * slab and for triangles seen edge on.
+     */
+    @Test
+    public void testLaneKernelsMatchLoops() {
+        LaneKernels kernels = LaneKernels.get(), loops = new LaneKernels();
+        Random random = new Random(22);
+        float[] data = new float[2 * 36];
+        double[] t = new double[12], expected = new double[12];
+        for (int i = 0; i < 10000; i++) {
+            for (int j = 0; j < data.length; j++)
+                data[j] = (float) random.nextGaussian();
+            int b = 24 * random.nextInt(2);
+            // Sometimes an empty box in the first lane, as wide nodes are padded with
+            if (random.nextInt(4) == 0) {
+                for (int k = 0; k < 3; k++) {
+                    data[b + 4 * k] = Float.POSITIVE_INFINITY;
+                    data[b + 4 * (3 + k)] = Float.NEGATIVE_INFINITY;
+                }
+            }
+            double[] o = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+            double[] d = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+            d[random.nextInt(3)] = random.nextInt(3) == 0 ? 0 : d[0];
+            double ix = 1 / d[0], iy = 1 / d[1], iz = 1 / d[2];
+            double tMax = random.nextInt(2) == 0 ? Double.POSITIVE_INFINITY : 3 * random.nextDouble();
+
+            int mask = loops.intersectBoxes(data, b, o[0], o[1], o[2], ix, iy, iz, 0, tMax, expected);
+            assertEquals(mask, kernels.intersectBoxes(data, b, o[0], o[1], o[2], ix, iy, iz, 0, tMax, t));
+            for (int l = 0; l < 4; l++)
+                if ((mask & (1 << l)) != 0)
+                    assertTrue(t[l] == expected[l] && t[4 + l] == expected[4 + l]);
+
+            int g = 36 * random.nextInt(2);
+            if (random.nextInt(8) == 0) {
+                // The first triangle in a plane the ray runs along
+                for (int c = 0; c < 3; c++)
+                    data[g + 4 * (3 * c + 2)] = (float) o[2];
+                d[2] = 0;
+            }
+            mask = loops.intersectTriangles(data, g, o[0], o[1], o[2], d[0], d[1], d[2], expected);
+            assertEquals(mask, kernels.intersectTriangles(data, g, o[0], o[1], o[2], d[0], d[1], d[2], t));
+            for (int l = 0; l < 4; l++)
+                if ((mask & (1 << l)) != 0)
+                    assertTrue(t[l] == expected[l] && t[4 + l] == expected[4 + l] && t[8 + l] == expected[8 + l]);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package ray1.accel;
+
+import java.util.Arrays;
+
+import ray1.FloatRay;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+
+/**
+ * A FlatBvh collapsed into a tree of four-wide nodes.  Each wide node takes the
+ * place of up to three binary nodes: starting from a binary node's two children,
+ * the interior child with the largest surface area is repeatedly replaced by its
+ * own two children until there are four.  The leaves are the binary leaves.
+ *
+ * A wide node keeps the bounds of its four children in structure-of-arrays form:
+ * the min x of all four, then the four min y, and so on.  That way one step of
+ * traversal tests the ray against all four boxes with the same arithmetic run
+ * over four adjacent lanes, which is the shape SIMD instructions want.  The test
+ * is LaneKernels.intersectBoxes, which uses the incubating Vector API when the
+ * JVM has it and plain loops otherwise.  Hit children are visited nearest first.
+ *
+ * The binary nodes are kept as well, for refitting, the quality measures, and
+ * the mesh cache.
+ */
+public class WideBvh extends FlatBvh {
+
+	/** The number of children of a node. */
+	public static final int WIDTH = LaneKernels.WIDTH;
+
+	/**
+	 * Child bounds, 6 * WIDTH per node: the min x of each child, then min y, min z,
+	 * max x, max y and max z.  Unused lanes have empty bounds (min +infinity, max
+	 * -infinity), which no ray hits.
+	 */
+	private float[] laneBounds;
+
+	/** Children, WIDTH per node: the index of a wide node, or -(1 + n) for binary leaf n. */
+	private int[] laneChildren;
+
+	/** The binary node whose bounds each lane holds, or -1 for an unused lane. */
+	private int[] laneNodes;
+
+	/** The number of wide nodes, and the deepest the traversal stack can get. */
+	private int numWide, wideStackSize;
+
+	/**
+	 * Collapse a BVH with float bounds into four-wide nodes.
+	 */
+	public WideBvh(FlatBvh bvh) {
+		super(bvh.nodeBounds, bvh.nodeLinks, bvh.stackSize);
+		if (bvh.nodeBounds == null)
+			throw new IllegalArgumentException("Can only make wide nodes from a BVH with float bounds");
+		primitiveOrder = bvh.primitiveOrder;
+		// Every wide node but a lone leaf root takes at least one binary interior node
+		int capacity = Math.max(1, numNodes);
+		laneBounds = new float[6 * WIDTH * capacity];
+		laneChildren = new int[WIDTH * capacity];
+		laneNodes = new int[WIDTH * capacity];
+		if (numNodes > 0)
+			wideStackSize = (WIDTH - 1) * collapse(0) + WIDTH + 1;
+		laneBounds = Arrays.copyOf(laneBounds, 6 * WIDTH * numWide);
+		laneChildren = Arrays.copyOf(laneChildren, WIDTH * numWide);
+		laneNodes = Arrays.copyOf(laneNodes, WIDTH * numWide);
+	}
+
+	/**
+	 * Make the wide node that replaces binary node and its subtree.
+	 *
+	 * @return the depth of the wide subtree
+	 */
+	private int collapse(int node) {
+		int w = numWide++;
+		int[] lanes = new int[WIDTH];
+		int n;
+		if (nodeLinks[2 * node + 1] >= 0) {
+			lanes[0] = node;
+			n = 1;
+		}
+		else {
+			lanes[0] = node + 1;
+			lanes[1] = nodeLinks[2 * node];
+			n = 2;
+		}
+		while (n < WIDTH) {
+			int open = -1;
+			for (int l = 0; l < n; l++)
+				if (nodeLinks[2 * lanes[l] + 1] < 0 && (open < 0 || area(lanes[l]) > area(lanes[open])))
+					open = l;
+			if (open < 0)
+				break;
+			int b = lanes[open];
+			lanes[open] = b + 1;
+			lanes[n++] = nodeLinks[2 * b];
+		}
+
+		int depth = 0;
+		for (int l = 0; l < WIDTH; l++)
+			laneNodes[WIDTH * w + l] = l < n ? lanes[l] : -1;
+		copyBounds(w);
+		for (int l = 0; l < n; l++) {
+			int b = lanes[l];
+			if (nodeLinks[2 * b + 1] >= 0) {
+				laneChildren[WIDTH * w + l] = -(1 + b);
+			}
+			else {
+				laneChildren[WIDTH * w + l] = numWide;
+				depth = Math.max(depth, collapse(b));
+			}
+		}
+		return depth + 1;
+	}
+
+	/**
+	 * Copy the bounds of the binary nodes in wide node w's lanes into its lanes.
+	 */
+	private void copyBounds(int w) {
+		int o = 6 * WIDTH * w;
+		for (int l = 0; l < WIDTH; l++) {
+			int b = laneNodes[WIDTH * w + l];
+			for (int k = 0; k < 6; k++)
+				laneBounds[o + WIDTH * k + l] = b < 0 ? (k < 3 ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY)
+						: nodeBounds[6 * b + k];
+		}
+	}
+
+	@Override
+	public long getNodeBytes() {
+		return super.getNodeBytes() + (long) numWide * WIDTH * (6 * 4 + 4 + 4);
+	}
+
+	@Override
+	public String getFormat() { return WIDTH + "-wide"; }
+
+	@Override
+	String describeNodes() {
+		return numWide + " " + getFormat() + " nodes over " + numNodes + " float nodes, " + LaneKernels.get().getName()
+				+ " box tests";
+	}
+
+	/**
+	 * Refit the binary nodes, then copy their bounds into the lanes.
+	 */
+	@Override
+	public void refit(double[] bounds) {
+		super.refit(bounds);
+		for (int w = 0; w < numWide; w++)
+			copyBounds(w);
+	}
+
+	/**
+	 * Traverse the wide nodes as intersect does, but with the boxes tested against
+	 * the single-precision ray, with their exit distances widened by
+	 * FlatBvh.SLAB_ERROR as intersectsNodeSingle widens them.  The leaves test
+	 * their triangles against that ray, and a box test of the double-precision ray
+	 * could miss, by a rounding error, a box whose triangle the single-precision
+	 * ray hits.
+	 */
+	@Override
+	public boolean intersectSingle(IntersectionRecord outRecord, Ray rayIn, FloatRay fray, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0)
+			return false;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			return traverse(outRecord, ray, fray, leaves, anyIntersection, traversal, context);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0)
+			return false;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			Ray ray = traversal.ray;
+			ray.set(rayIn);
+			return traverse(outRecord, ray, null, leaves, anyIntersection, traversal, context);
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Intersect the rays of a packet one after another.  Wide nodes already test
+	 * four boxes per step, so the packet-wide bounds FlatBvh uses are not needed.
+	 */
+	@Override
+	public int intersectPacket(RayPacket packet, LeafIntersector leaves, boolean anyIntersection, RenderContext context) {
+		if (numNodes == 0 || packet.size == 0)
+			return 0;
+
+		RenderContext.Traversal traversal = context.beginTraversal();
+		try {
+			int hits = 0;
+			for (int i = 0; i < packet.size; i++) {
+				if (traverse(anyIntersection ? null : packet.records[i], packet.rays[i], null, leaves, anyIntersection,
+						traversal, context)) {
+					packet.hit[i] = true;
+					hits++;
+				}
+			}
+			return hits;
+		}
+		finally {
+			context.endTraversal();
+		}
+	}
+
+	/**
+	 * Traverse the wide nodes with a ray whose end may be moved.  The stack holds
+	 * children that were hit, with the distances at which the ray enters them; a
+	 * child is skipped when it is popped if a hit found since is nearer than that.
+	 * If fray is not null the boxes are tested against it, as intersectSingle
+	 * describes.
+	 */
+	private boolean traverse(IntersectionRecord outRecord, Ray ray, FloatRay fray, LeafIntersector leaves,
+			boolean anyIntersection, RenderContext.Traversal traversal, RenderContext context) {
+		IntersectionRecord scratch = traversal.record;
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		if (fray != null) {
+			ox = fray.ox; oy = fray.oy; oz = fray.oz;
+			ix = fray.ix; iy = fray.iy; iz = fray.iz;
+		}
+		double[] t = traversal.lanes;
+		LaneKernels kernels = LaneKernels.get();
+
+		int[] stack = traversal.stack(wideStackSize);
+		double[] near = traversal.boxStack(wideStackSize);
+		int top = 0;
+		stack[top] = 0;
+		near[top++] = ray.start;
+		boolean ret = false;
+		while (top > 0) {
+			int ref = stack[--top];
+			if (near[top] > ray.end)
+				continue;
+			if (ref < 0) {
+				int leaf = -(1 + ref);
+				if (leaves.intersectLeaf(outRecord, scratch, ray, nodeLinks[2 * leaf], nodeLinks[2 * leaf + 1],
+						anyIntersection, context)) {
+					ret = true;
+					if (anyIntersection)
+						return true;
+				}
+				continue;
+			}
+
+			context.counters.nodesVisited++;
+			int mask;
+			if (fray == null)
+				mask = kernels.intersectBoxes(laneBounds, 6 * WIDTH * ref, ox, oy, oz, ix, iy, iz, ray.start, ray.end, t);
+			else {
+				double tMax = FlatBvh.roundUp(ray.end);
+				kernels.intersectBoxes(laneBounds, 6 * WIDTH * ref, ox, oy, oz, ix, iy, iz,
+						FlatBvh.roundDown(ray.start), Double.POSITIVE_INFINITY, t);
+				mask = 0;
+				for (int l = 0; l < WIDTH; l++)
+					if (t[l] <= Math.min(t[WIDTH + l] * FlatBvh.SLAB_ERROR, tMax))
+						mask |= 1 << l;
+			}
+			// Push the children that were hit in order of decreasing entry distance,
+			// so the nearest is popped first
+			int bottom = top;
+			for (int l = 0; l < WIDTH; l++) {
+				if ((mask & (1 << l)) == 0)
+					continue;
+				int j = top++;
+				while (j > bottom && near[j - 1] < t[l]) {
+					stack[j] = stack[j - 1];
+					near[j] = near[j - 1];
+					j--;
+				}
+				stack[j] = laneChildren[WIDTH * ref + l];
+				near[j] = t[l];
+			}
+		}
+		return ret;
+	}
+}
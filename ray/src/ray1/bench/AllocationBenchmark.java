@@ -0,0 +1,113 @@
+package ray1.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import ray1.Parser;
+import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.RenderStats;
+import ray1.Scene;
+import ray1.Tile;
+
+/**
+ * Measures how much memory the renderer allocates per pixel once it is warmed up.
+ * Each scene is rendered a few times on the calling thread, reusing one
+ * RenderContext, and the bytes allocated by the thread during the later passes
+ * are divided by the number of pixels shaded.  With the allocation-free hot path
+ * this should be zero, and no collections should happen during the timed passes.
+ *
+ * The passes go through RayTracer.renderTile, so they only trace and shade once
+ * shadeRay, Scene.intersect and the shaders are implemented; until then there is
+ * nothing to measure.  A scene whose passes trace no shadow rays is reported as
+ * not shaded rather than as allocation-free, so it should have at least one light.
+ *
+ * Usage: java ray1.bench.AllocationBenchmark [-p path] [-passes n] scene1.xml scene2.xml ...
+ *
+ * The exit status is 1 if any scene allocated during the measured passes or was
+ * not shaded.
+ */
+public class AllocationBenchmark {
+
+	/** Passes rendered before measuring, so that every scratch object already exists. */
+	static final int WARMUP_PASSES = 2;
+
+	public static void main(String[] args) {
+		String root = RayTracer.directory;
+		int passes = 3;
+		boolean failed = false;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i].toLowerCase()) {
+			case "-p":
+				i++;
+				if (i < args.length) root = args[i];
+				break;
+			case "-passes":
+				i++;
+				if (i < args.length) passes = Integer.parseInt(args[i]);
+				break;
+			default:
+				failed |= !(measure(new RayTracer.ScenePath(root, args[i]), passes) == 0);
+				break;
+			}
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Render a scene repeatedly and report the steady-state allocation rate.
+	 *
+	 * @return bytes allocated per pixel during the measured passes, or NaN if they
+	 * did not shade anything
+	 */
+	static double measure(RayTracer.ScenePath path, int passes) {
+		RayTracer.sceneWorkspace = path;
+		Scene scene = (Scene) new Parser().parse(path.getFile(), Scene.class);
+		scene.init();
+
+		RayTracer rayTracer = new RayTracer();
+		RenderContext context = new RenderContext();
+		List<Tile> tiles = Tile.split(scene.getImage().getWidth(), scene.getImage().getHeight(), rayTracer.getTileSize());
+		long pixels = (long) scene.getImage().getWidth() * scene.getImage().getHeight() * passes;
+
+		for (int pass = 0; pass < WARMUP_PASSES; pass++)
+			renderPass(rayTracer, scene, tiles, context);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long collections = collectionCount();
+		long shadowRays = context.counters.rays[RenderStats.SHADOW];
+		long startBytes = threads.getCurrentThreadAllocatedBytes();
+		long startTime = System.nanoTime();
+		for (int pass = 0; pass < passes; pass++)
+			renderPass(rayTracer, scene, tiles, context);
+		long time = System.nanoTime() - startTime;
+		long bytes = threads.getCurrentThreadAllocatedBytes() - startBytes;
+		collections = collectionCount() - collections;
+		shadowRays = context.counters.rays[RenderStats.SHADOW] - shadowRays;
+
+		if (shadowRays == 0) {
+			System.out.println(path.file.getFileName() + ": no shadow rays were traced, so nothing was shaded"
+					+ " and the allocation rate means nothing; are shadeRay, Scene.intersect and the shaders implemented?");
+			return Double.NaN;
+		}
+
+		double bytesPerPixel = (double) bytes / pixels;
+		System.out.println(path.file.getFileName() + ": " + bytes + " bytes allocated in " + passes + " passes, "
+				+ bytesPerPixel + " bytes per pixel, " + shadowRays + " shadow rays, " + collections + " collections, "
+				+ (time / 1e6 / passes) + " ms per pass");
+		return bytesPerPixel;
+	}
+
+	private static void renderPass(RayTracer rayTracer, Scene scene, List<Tile> tiles, RenderContext context) {
+		for (int i = 0; i < tiles.size(); i++)
+			rayTracer.renderTile(scene, tiles.get(i), context);
+	}
+
+	private static long collectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+}
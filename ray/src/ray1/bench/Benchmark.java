@@ -0,0 +1,59 @@
+package ray1.bench;
+
+/**
+ * One benchmark: a batch of operations that BenchmarkRunner times repeatedly.
+ * Subclasses do any expensive preparation in setUp(), which is not timed.
+ */
+public abstract class Benchmark {
+
+	/**
+	 * Thrown by setUp() when the code a benchmark times cannot do its work in this
+	 * tree, for instance because it is still one of the course's unimplemented
+	 * tasks.  The benchmark is reported as skipped rather than timed or failed.
+	 */
+	public static class Skipped extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public Skipped(String reason) {
+			super(reason);
+		}
+	}
+
+	/**
+	 * Skip the benchmark, for the given reason, if condition is true.
+	 */
+	protected static void skipIf(boolean condition, String reason) throws Skipped {
+		if (condition)
+			throw new Skipped(reason);
+	}
+
+	private final String name;
+	private final int operations;
+
+	/**
+	 * @param name the name results are reported and compared under
+	 * @param operations the number of operations performed by each call to run()
+	 */
+	protected Benchmark(String name, int operations) {
+		this.name = name;
+		this.operations = operations;
+	}
+
+	public String getName() { return name; }
+	public int getOperations() { return operations; }
+
+	/**
+	 * Prepare the state the benchmark needs.  Called once, before warm-up.
+	 *
+	 * @throws Skipped if the benchmark cannot run
+	 */
+	public void setUp() throws Exception {
+		// do nothing
+	}
+
+	/**
+	 * Perform every operation once.  The result should depend on the result of
+	 * each operation, so that the JIT cannot discard any of the work.
+	 */
+	public abstract long run();
+}
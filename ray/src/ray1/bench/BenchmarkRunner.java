@@ -0,0 +1,180 @@
+package ray1.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times benchmarks in the usual way: a few warm-up iterations so the JIT has
+ * compiled the code under test, then several measured iterations, each of which
+ * calls run() as many times as fit in the iteration time.  The mean time per
+ * operation and its standard deviation across iterations are reported.
+ *
+ * Results can be saved to a file and later used as a baseline; an operation that
+ * has become slower than its baseline by more than the tolerance is reported as
+ * a regression.  Benchmarks skipped by their setUp() are neither saved nor
+ * compared.
+ *
+ * This is a small stand-in for JMH, which the course's build does not include.
+ */
+public class BenchmarkRunner {
+
+	/** The timing of one benchmark. */
+	public static class Result {
+		public final String name;
+		/** Mean and standard deviation of the time per operation, in nanoseconds; NaN if it failed. */
+		public final double mean, stdDev;
+		/** Why the benchmark could not be run, or null. */
+		public final String failure;
+		/** Why the benchmark was skipped, or null. */
+		public final String skipped;
+
+		Result(String name, double mean, double stdDev, String failure, String skipped) {
+			this.name = name;
+			this.mean = mean;
+			this.stdDev = stdDev;
+			this.failure = failure;
+			this.skipped = skipped;
+		}
+	}
+
+	/** Results are accumulated here so that the JIT cannot discard the work. */
+	static volatile long sink;
+
+	protected int warmupIterations = 3;
+	public void setWarmupIterations(int warmupIterations) { this.warmupIterations = Math.max(0, warmupIterations); }
+
+	protected int iterations = 5;
+	public void setIterations(int iterations) { this.iterations = Math.max(1, iterations); }
+
+	/** The least time spent in each iteration; run() is always called at least once. */
+	protected long iterationMillis = 500;
+	public void setIterationMillis(long iterationMillis) { this.iterationMillis = Math.max(1, iterationMillis); }
+
+	/** The slowdown, as a fraction, above which a result counts as a regression. */
+	protected double tolerance = 0.1;
+	public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+	/** Where results are reported.  Output from the code under test is discarded. */
+	protected final PrintStream out = System.out;
+
+	private final PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+
+	private final List<Result> results = new ArrayList<>();
+	public List<Result> getResults() { return results; }
+
+	/**
+	 * Set up, warm up and time a benchmark.  A benchmark that throws is reported as
+	 * failed rather than stopping the whole run.
+	 */
+	public Result run(Benchmark benchmark) {
+		Result result;
+		System.setOut(quiet);
+		try {
+			benchmark.setUp();
+			for (int i = 0; i < warmupIterations; i++)
+				iteration(benchmark);
+			double[] times = new double[iterations];
+			for (int i = 0; i < iterations; i++)
+				times[i] = iteration(benchmark);
+			double mean = 0;
+			for (double t : times)
+				mean += t / iterations;
+			double var = 0;
+			for (double t : times)
+				var += (t - mean) * (t - mean);
+			result = new Result(benchmark.getName(), mean, iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0, null, null);
+		}
+		catch (Benchmark.Skipped e) {
+			result = new Result(benchmark.getName(), Double.NaN, Double.NaN, null, e.getMessage());
+		}
+		catch (Exception | Error e) {
+			result = new Result(benchmark.getName(), Double.NaN, Double.NaN, e.toString(), null);
+		}
+		finally {
+			System.setOut(out);
+		}
+		results.add(result);
+		if (result.failure != null)
+			out.printf("%-48s FAILED: %s%n", result.name, result.failure);
+		else if (result.skipped != null)
+			out.printf("%-48s skipped: %s%n", result.name, result.skipped);
+		else
+			out.printf("%-48s %16.1f ns/op  +- %.1f%n", result.name, result.mean, result.stdDev);
+		return result;
+	}
+
+	/**
+	 * @return the mean time per operation, in nanoseconds, over one iteration
+	 */
+	private double iteration(Benchmark benchmark) {
+		long deadline = iterationMillis * 1000000L;
+		long calls = 0;
+		long sum = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			sum += benchmark.run();
+			calls++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < deadline);
+		sink += sum;
+		return (double) elapsed / (calls * benchmark.getOperations());
+	}
+
+	/**
+	 * Write the results as tab separated name, mean and standard deviation.
+	 */
+	public void write(String fileName) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add("# benchmark\tns/op\tstddev");
+		for (Result r : results)
+			if (r.failure == null && r.skipped == null)
+				lines.add(r.name + "\t" + r.mean + "\t" + r.stdDev);
+		Files.write(Paths.get(fileName), lines);
+	}
+
+	/**
+	 * Compare the results with those saved by an earlier run.
+	 *
+	 * @return true if no benchmark failed and none is slower than the baseline by more than the tolerance
+	 */
+	public boolean compare(String baselineFileName) throws IOException {
+		Map<String, Double> baseline = new LinkedHashMap<>();
+		for (String line : Files.readAllLines(Paths.get(baselineFileName))) {
+			if (line.startsWith("#") || line.trim().isEmpty())
+				continue;
+			String[] fields = line.split("\t");
+			baseline.put(fields[0], Double.parseDouble(fields[1]));
+		}
+
+		boolean ok = true;
+		out.println("\nComparison with " + baselineFileName + " (tolerance " + Math.round(100 * tolerance) + "%):");
+		for (Result r : results) {
+			Double base = baseline.get(r.name);
+			if (r.failure != null) {
+				ok = false;
+				out.printf("%-48s FAILED%n", r.name);
+			}
+			else if (r.skipped != null) {
+				out.printf("%-48s skipped%n", r.name);
+			}
+			else if (base == null) {
+				out.printf("%-48s no baseline%n", r.name);
+			}
+			else {
+				double change = r.mean / base - 1;
+				boolean regressed = change > tolerance;
+				ok &= !regressed;
+				out.printf("%-48s %+7.1f%%%s%n", r.name, 100 * change, regressed ? "  REGRESSION" : "");
+			}
+		}
+		return ok;
+	}
+}
@@ -0,0 +1,504 @@
+package ray1.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.OBJFace;
+import ray1.OBJLoader;
+import ray1.OBJMesh;
+import ray1.Parser;
+import ray1.Ray;
+import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.RenderStats;
+import ray1.Scene;
+import ray1.accel.AccelStruct;
+import ray1.accel.Bvh;
+import ray1.accel.BvhNode;
+import ray1.accel.LinearBvh;
+import ray1.accel.RayPacket;
+import ray1.camera.Camera;
+import ray1.surface.Mesh;
+import ray1.surface.Sphere;
+import ray1.surface.Surface;
+import ray1.surface.Triangle;
+
+/**
+ * Performance regression suite for the ray tracer.  It times the intersection
+ * kernels (Triangle, Sphere, BvhNode), building and traversing the BVHs with
+ * coherent camera rays and incoherent random rays, loading OBJ files, and
+ * rendering whole scenes.
+ *
+ * Much of what is timed (the Triangle, Sphere and BvhNode tests, the default
+ * Bvh, camera rays and shading) is the course's tasks.  A benchmark whose code
+ * throws or finds nothing when it is tried during setUp is skipped, so on an
+ * unsolved tree only the others are timed.
+ *
+ * Usage: java ray1.bench.RayTracerBenchmarks [options]
+ *   -p path          directory the scene files are relative to (default data/scenes/ray1)
+ *   -scenes a,b,...  scene files or directories to render (default fast_scenes,mesh_scenes)
+ *   -mesh file       scene whose surfaces are used for the BVH benchmarks (default mesh_scenes/bunny.xml)
+ *   -obj a,b,...     OBJ files to load (default data/meshes/bunny.obj,data/meshes/teapot.obj)
+ *   -filter regex    only run benchmarks whose names contain a match
+ *   -threads n       render threads for the renderImage benchmarks (default 1)
+ *   -warmup n, -iterations n, -time ms   warm-up iterations, measured iterations, and time per iteration
+ *   -out file        save the results
+ *   -baseline file   compare with saved results; exit with status 1 on a regression
+ *   -tolerance pct   slowdown allowed before a result counts as a regression (default 10)
+ */
+public class RayTracerBenchmarks {
+
+	/** The number of rays in each batch of rays. */
+	static final int NUM_RAYS = 1 << 14;
+
+	/** The width and height of the grid of camera rays. */
+	static final int GRID_SIZE = 128;
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		String root = RayTracer.directory;
+		String scenes = "fast_scenes,mesh_scenes";
+		String meshScene = "mesh_scenes/bunny.xml";
+		String objFiles = "data/meshes/bunny.obj,data/meshes/teapot.obj";
+		Pattern filter = null;
+		int threads = 1;
+		String outFile = null, baselineFile = null;
+		for (int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (args[i].toLowerCase()) {
+			case "-p": root = value; i++; break;
+			case "-scenes": scenes = value; i++; break;
+			case "-mesh": meshScene = value; i++; break;
+			case "-obj": objFiles = value; i++; break;
+			case "-filter": filter = Pattern.compile(value); i++; break;
+			case "-threads": threads = Integer.parseInt(value); i++; break;
+			case "-warmup": runner.setWarmupIterations(Integer.parseInt(value)); i++; break;
+			case "-iterations": runner.setIterations(Integer.parseInt(value)); i++; break;
+			case "-time": runner.setIterationMillis(Long.parseLong(value)); i++; break;
+			case "-out": outFile = value; i++; break;
+			case "-baseline": baselineFile = value; i++; break;
+			case "-tolerance": runner.setTolerance(Double.parseDouble(value) / 100); i++; break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<>();
+		benchmarks.add(triangleIntersect());
+		benchmarks.add(sphereIntersect());
+		benchmarks.add(bvhNodeIntersects());
+		RayTracer.ScenePath meshPath = new RayTracer.ScenePath(root, meshScene);
+		for (String builder : new String[] { "median", "sah" })
+			benchmarks.add(bvhBuild(meshPath, builder));
+		for (boolean coherent : new boolean[] { true, false }) {
+			benchmarks.add(accelIntersect(meshPath, new Bvh(), coherent));
+			LinearBvh linear = new LinearBvh();
+			linear.setBuilder("sah");
+			benchmarks.add(accelIntersect(meshPath, linear, coherent));
+		}
+		LinearBvh packetBvh = new LinearBvh();
+		packetBvh.setBuilder("sah");
+		benchmarks.add(accelIntersectPacket(meshPath, packetBvh));
+		for (String f : objFiles.split(",")) {
+			benchmarks.add(parseOBJ(f.trim()));
+			benchmarks.add(loadOBJ(f.trim(), null));
+			benchmarks.add(loadOBJ(f.trim(), ForkJoinPool.commonPool()));
+		}
+		for (String s : scenes.split(","))
+			for (RayTracer.ScenePath p : scenePaths(root, s.trim()))
+				benchmarks.add(renderImage(p, threads));
+
+		for (Benchmark b : benchmarks)
+			if (filter == null || filter.matcher(b.getName()).find())
+				runner.run(b);
+
+		if (outFile != null)
+			runner.write(outFile);
+		if (baselineFile != null && !runner.compare(baselineFile))
+			System.exit(1);
+	}
+
+	/**
+	 * Run a benchmark once during its setUp to check that the code it times works.
+	 *
+	 * @param what the code, for the reason given when it does not
+	 * @return the result of the run
+	 * @throws Benchmark.Skipped if the run throws or its result is zero
+	 */
+	static long tryOnce(Benchmark benchmark, String what) throws Benchmark.Skipped {
+		long result;
+		try {
+			result = benchmark.run();
+		}
+		catch (RuntimeException e) {
+			throw notImplemented(what, e);
+		}
+		Benchmark.skipIf(result == 0, what + " found nothing; is it implemented?");
+		return result;
+	}
+
+	static Benchmark.Skipped notImplemented(String what, RuntimeException e) {
+		return new Benchmark.Skipped(what + " threw " + e + "; is it implemented?");
+	}
+
+	/**
+	 * @return the scene files named by path: the file itself, or the xml files in a directory
+	 */
+	static List<RayTracer.ScenePath> scenePaths(String root, String path) {
+		List<RayTracer.ScenePath> paths = new ArrayList<>();
+		RayTracer.ScenePath p = new RayTracer.ScenePath(root, path);
+		File dir = p.file.toFile();
+		if (!dir.isDirectory()) {
+			paths.add(p);
+			return paths;
+		}
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File f : files)
+			if (f.getName().endsWith(".xml"))
+				paths.add(new RayTracer.ScenePath(root, path + "/" + f.getName()));
+		return paths;
+	}
+
+	/**
+	 * Rays from random points on a sphere of radius 4 about the origin towards random
+	 * points in the cube [-1.2, 1.2]^3, so that about half of them hit a unit object.
+	 */
+	static Ray[] randomRaysAtOrigin(long seed) {
+		Random random = new Random(seed);
+		Ray[] rays = new Ray[NUM_RAYS];
+		for (int i = 0; i < rays.length; i++) {
+			Vector3d origin = randomDirection(random).mul(4);
+			Vector3d target = new Vector3d(random.nextDouble(), random.nextDouble(), random.nextDouble()).mul(2.4).sub(1.2);
+			rays[i] = new Ray(origin, target.sub(origin).normalize());
+			rays[i].makeOffsetRay();
+		}
+		return rays;
+	}
+
+	static Vector3d randomDirection(Random random) {
+		double z = 2 * random.nextDouble() - 1, phi = 2 * Math.PI * random.nextDouble();
+		double r = Math.sqrt(1 - z * z);
+		return new Vector3d(r * Math.cos(phi), r * Math.sin(phi), z);
+	}
+
+	/**
+	 * Intersect a batch of rays with a surface.
+	 */
+	static long intersectAll(Surface surface, Ray[] rays, IntersectionRecord record) {
+		long hits = 0;
+		for (Ray ray : rays)
+			if (surface.intersect(record, ray))
+				hits++;
+		return hits;
+	}
+
+	static Benchmark triangleIntersect() {
+		return new Benchmark("Triangle.intersect", NUM_RAYS) {
+			Triangle triangle;
+			Ray[] rays;
+			final IntersectionRecord record = new IntersectionRecord();
+
+			@Override
+			public void setUp() throws Skipped {
+				OBJMesh data = new OBJMesh();
+				data.positions.add(new Vector3(-1, -1, 0));
+				data.positions.add(new Vector3(1, -1, 0.5f));
+				data.positions.add(new Vector3(0, 1, -0.5f));
+				OBJFace face = new OBJFace(3, false, false);
+				for (int i = 0; i < 3; i++)
+					face.positions[i] = i;
+				data.faces.add(face);
+				Mesh mesh = new Mesh(data);
+				triangle = new Triangle(mesh, face, mesh.getShader());
+				rays = randomRaysAtOrigin(1);
+				// About half the rays miss
+				skipIf(tryOnce(this, "Triangle.intersect") == rays.length, "Triangle.intersect hit every ray; is it implemented?");
+			}
+
+			@Override
+			public long run() {
+				return intersectAll(triangle, rays, record);
+			}
+		};
+	}
+
+	static Benchmark sphereIntersect() {
+		return new Benchmark("Sphere.intersect", NUM_RAYS) {
+			final Sphere sphere = new Sphere();
+			Ray[] rays;
+			final IntersectionRecord record = new IntersectionRecord();
+
+			@Override
+			public void setUp() throws Skipped {
+				sphere.setCenter(new Vector3(0, 0, 0));
+				sphere.setRadius(1);
+				rays = randomRaysAtOrigin(2);
+				// About half the rays miss
+				skipIf(tryOnce(this, "Sphere.intersect") == rays.length, "Sphere.intersect hit every ray; is it implemented?");
+			}
+
+			@Override
+			public long run() {
+				return intersectAll(sphere, rays, record);
+			}
+		};
+	}
+
+	static Benchmark bvhNodeIntersects() {
+		return new Benchmark("BvhNode.intersects", NUM_RAYS) {
+			BvhNode node;
+			Ray[] rays;
+
+			@Override
+			public void setUp() throws Skipped {
+				node = new BvhNode(new Vector3d(-1, -1, -1), new Vector3d(1, 1, 1), null, null, 0, 0);
+				rays = randomRaysAtOrigin(3);
+				// About half the rays miss
+				skipIf(tryOnce(this, "BvhNode.intersects") == rays.length, "BvhNode.intersects hit every ray; is it implemented?");
+			}
+
+			@Override
+			public long run() {
+				long hits = 0;
+				for (Ray ray : rays)
+					if (node.intersects(ray))
+						hits++;
+				return hits;
+			}
+		};
+	}
+
+	/**
+	 * Load a scene without building its acceleration structure.
+	 */
+	static Scene loadScene(RayTracer.ScenePath path) {
+		RayTracer.sceneWorkspace = path;
+		return (Scene) new Parser().parse(path.getFile(), Scene.class);
+	}
+
+	/**
+	 * @return the renderable surfaces of a scene, as Scene.init() would collect them
+	 */
+	static Surface[] renderableSurfaces(Scene scene) {
+		ArrayList<Surface> surfaces = new ArrayList<>();
+		for (Surface s : scene.getSurfaces())
+			s.appendRenderableSurfaces(surfaces);
+		return surfaces.toArray(new Surface[surfaces.size()]);
+	}
+
+	static Benchmark bvhBuild(RayTracer.ScenePath path, String builder) {
+		return new Benchmark("Bvh.build/" + builder + "/" + path.file.getFileName(), 1) {
+			Surface[] surfaces;
+
+			@Override
+			public void setUp() throws Skipped {
+				surfaces = renderableSurfaces(loadScene(path));
+				tryOnce(this, "Bvh.build");
+			}
+
+			@Override
+			public long run() {
+				Bvh bvh = new Bvh();
+				bvh.setBuilder(builder);
+				bvh.build(surfaces.clone());
+				return surfaces.length;
+			}
+		};
+	}
+
+	/**
+	 * Intersect the surfaces of a scene with camera rays through a grid of pixels,
+	 * in scanline order (coherent), or with rays between random points in the
+	 * scene's bounds (incoherent).
+	 */
+	static Benchmark accelIntersect(RayTracer.ScenePath path, AccelStruct accel, boolean coherent) {
+		String name = accel.getClass().getSimpleName() + ".intersect/" + (coherent ? "coherent" : "incoherent")
+				+ "/" + path.file.getFileName();
+		return new Benchmark(name, coherent ? GRID_SIZE * GRID_SIZE : NUM_RAYS) {
+			Ray[] rays;
+			final IntersectionRecord record = new IntersectionRecord();
+			final RenderContext context = new RenderContext();
+
+			@Override
+			public void setUp() throws Skipped {
+				Scene scene = loadScene(path);
+				Surface[] surfaces = renderableSurfaces(scene);
+				try {
+					accel.build(surfaces);
+				}
+				catch (RuntimeException e) {
+					throw notImplemented(accel.getClass().getSimpleName() + ".build", e);
+				}
+				if (coherent) {
+					Camera camera = scene.getCamera();
+					camera.init();
+					rays = new Ray[GRID_SIZE * GRID_SIZE];
+					for (int y = 0; y < GRID_SIZE; y++) {
+						for (int x = 0; x < GRID_SIZE; x++) {
+							Ray ray = rays[y * GRID_SIZE + x] = new Ray();
+							camera.getRay(ray, (x + 0.5f) / GRID_SIZE, (y + 0.5f) / GRID_SIZE);
+						}
+					}
+				}
+				else {
+					Vector3d min = new Vector3d(Double.POSITIVE_INFINITY), max = new Vector3d(Double.NEGATIVE_INFINITY);
+					for (Surface s : surfaces) {
+						min.set(Math.min(min.x, s.getMinBound().x), Math.min(min.y, s.getMinBound().y), Math.min(min.z, s.getMinBound().z));
+						max.set(Math.max(max.x, s.getMaxBound().x), Math.max(max.y, s.getMaxBound().y), Math.max(max.z, s.getMaxBound().z));
+					}
+					Random random = new Random(4);
+					rays = new Ray[NUM_RAYS];
+					for (int i = 0; i < rays.length; i++) {
+						Vector3d origin = new Vector3d(
+								min.x + random.nextDouble() * (max.x - min.x),
+								min.y + random.nextDouble() * (max.y - min.y),
+								min.z + random.nextDouble() * (max.z - min.z));
+						rays[i] = new Ray(origin, randomDirection(random));
+						rays[i].makeOffsetRay();
+					}
+				}
+				tryOnce(this, accel.getClass().getSimpleName() + ".intersect");
+			}
+
+			@Override
+			public long run() {
+				long hits = 0;
+				for (Ray ray : rays)
+					if (accel.intersect(record, ray, false, context))
+						hits++;
+				return hits;
+			}
+		};
+	}
+
+	/**
+	 * Intersect the camera rays through a grid of pixels as packets of 8 x 8 pixels.
+	 */
+	static Benchmark accelIntersectPacket(RayTracer.ScenePath path, AccelStruct accel) {
+		String name = accel.getClass().getSimpleName() + ".intersectPacket/coherent/" + path.file.getFileName();
+		return new Benchmark(name, GRID_SIZE * GRID_SIZE) {
+			Ray[] rays;
+			final RenderContext context = new RenderContext();
+
+			@Override
+			public void setUp() throws Skipped {
+				Scene scene = loadScene(path);
+				try {
+					accel.build(renderableSurfaces(scene));
+				}
+				catch (RuntimeException e) {
+					throw notImplemented(accel.getClass().getSimpleName() + ".build", e);
+				}
+				Camera camera = scene.getCamera();
+				camera.init();
+				// Store the rays block by block
+				rays = new Ray[GRID_SIZE * GRID_SIZE];
+				int n = 0;
+				for (int by = 0; by < GRID_SIZE; by += 8)
+					for (int bx = 0; bx < GRID_SIZE; bx += 8)
+						for (int y = by; y < by + 8; y++)
+							for (int x = bx; x < bx + 8; x++) {
+								rays[n] = new Ray();
+								camera.getRay(rays[n++], (x + 0.5f) / GRID_SIZE, (y + 0.5f) / GRID_SIZE);
+							}
+				tryOnce(this, accel.getClass().getSimpleName() + ".intersectPacket");
+			}
+
+			@Override
+			public long run() {
+				RayPacket packet = context.packet();
+				long hits = 0;
+				for (int start = 0; start < rays.length; start += RayPacket.MAX_SIZE) {
+					packet.size = RayPacket.MAX_SIZE;
+					for (int i = 0; i < packet.size; i++)
+						packet.rays[i].set(rays[start + i]);
+					packet.prepare();
+					hits += accel.intersectPacket(packet, false, context);
+				}
+				return hits;
+			}
+		};
+	}
+
+	static Benchmark parseOBJ(String fileName) {
+		return new Benchmark("OBJMesh.parseOBJ/" + Paths.get(fileName).getFileName(), 1) {
+			@Override
+			public long run() {
+				OBJMesh mesh = new OBJMesh();
+				try {
+					mesh.parseOBJ(fileName);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return mesh.faces.size();
+			}
+		};
+	}
+
+	/**
+	 * Load an OBJ file with OBJLoader, on one thread or, for files large enough to
+	 * be split into chunks, on the threads of pool.
+	 */
+	static Benchmark loadOBJ(String fileName, ForkJoinPool pool) {
+		String name = "OBJLoader.load/" + (pool == null ? "serial" : "parallel") + "/" + Paths.get(fileName).getFileName();
+		return new Benchmark(name, 1) {
+			@Override
+			public long run() {
+				try {
+					return OBJLoader.load(fileName, pool).getFaceCount();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	static Benchmark renderImage(RayTracer.ScenePath path, int threads) {
+		return new Benchmark("renderImage/" + path.sceneRoot.getFileName() + "/" + path.file.getFileName(), 1) {
+			Scene scene;
+			final RayTracer rayTracer = new RayTracer();
+
+			@Override
+			public void setUp() throws Skipped {
+				scene = loadScene(path);
+				try {
+					scene.init();
+				}
+				catch (RuntimeException e) {
+					throw notImplemented("Scene.init", e);
+				}
+				rayTracer.setNumThreads(threads);
+				// Shading traces shadow rays, so a render without any shaded nothing
+				try {
+					run();
+				}
+				catch (RuntimeException e) {
+					throw notImplemented("renderImage", e);
+				}
+				skipIf(rayTracer.getStats().getRays(RenderStats.SHADOW) == 0,
+						"no shadow rays were traced; are shadeRay, Scene.intersect and the shaders implemented?");
+			}
+
+			@Override
+			public long run() {
+				rayTracer.renderImage(scene);
+				return scene.getImage().getWidth();
+			}
+		};
+	}
+}
@@ -33,6 +33,19 @@ public abstract class BRDF {
 		return (diffuseReflectanceTexture == null) ? diffuseReflectance : diffuseReflectanceTexture.getTexColor(texCoords);
 	}
 
+	/**
+	 * Get the diffuse reflectance without allocating.
+	 *
+	 * @param texCoords The texture coordinates of the shaded point.
+	 * @param outColor (output) The diffuse reflectance at the shaded point.
+	 */
+	protected void getDiffuseReflectance(Vector2 texCoords, Colorf outColor) {
+		if (diffuseReflectanceTexture == null)
+			outColor.set(diffuseReflectance);
+		else
+			diffuseReflectanceTexture.getTexColor(texCoords, outColor);
+	}
+
 	/**
 	 * Compute the BRDF value.
 	 *
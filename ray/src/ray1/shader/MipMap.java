@@ -0,0 +1,86 @@
+package ray1.shader;
+
+import java.awt.image.BufferedImage;
+
+import egl.math.Colorf;
+
+/**
+ * An image converted once into packed float RGB values, with a pyramid of
+ * successively half-size copies for filtering minified lookups.
+ *
+ * Level 0 holds the image's pixels as values in [0, 1], exactly as
+ * Color.fromIntRGB(image.getRGB(x, y)) would give them, three floats per texel
+ * and one row after another from the top of the image.  Each further level
+ * averages 2 x 2 blocks of the one before, duplicating the last row or column
+ * of a level with an odd size, until a level is 1 x 1.
+ */
+public class MipMap {
+
+	/** The texels of each level. */
+	final float[][] levels;
+
+	/** The width and height of each level. */
+	final int[] widths, heights;
+
+	public MipMap(BufferedImage image) {
+		int w = image.getWidth(), h = image.getHeight();
+		int numLevels = 1;
+		for (int s = Math.max(w, h); s > 1; s = (s + 1) / 2)
+			numLevels++;
+		levels = new float[numLevels][];
+		widths = new int[numLevels];
+		heights = new int[numLevels];
+
+		int[] rgb = image.getRGB(0, 0, w, h, null, 0, w);
+		float[] level = new float[3 * w * h];
+		for (int i = 0; i < w * h; i++) {
+			level[3 * i] = ((rgb[i] >> 16) & 0xff) / 255.0f;
+			level[3 * i + 1] = ((rgb[i] >> 8) & 0xff) / 255.0f;
+			level[3 * i + 2] = (rgb[i] & 0xff) / 255.0f;
+		}
+		levels[0] = level;
+		widths[0] = w;
+		heights[0] = h;
+
+		for (int l = 1; l < numLevels; l++) {
+			int pw = widths[l - 1], ph = heights[l - 1];
+			float[] prev = levels[l - 1];
+			int lw = (pw + 1) / 2, lh = (ph + 1) / 2;
+			float[] next = new float[3 * lw * lh];
+			for (int y = 0; y < lh; y++) {
+				int y0 = 2 * y, y1 = Math.min(2 * y + 1, ph - 1);
+				for (int x = 0; x < lw; x++) {
+					int x0 = 2 * x, x1 = Math.min(2 * x + 1, pw - 1);
+					for (int k = 0; k < 3; k++)
+						next[3 * (y * lw + x) + k] = 0.25f * (prev[3 * (y0 * pw + x0) + k] + prev[3 * (y0 * pw + x1) + k]
+								+ prev[3 * (y1 * pw + x0) + k] + prev[3 * (y1 * pw + x1) + k]);
+				}
+			}
+			levels[l] = next;
+			widths[l] = lw;
+			heights[l] = lh;
+		}
+	}
+
+	public int getLevelCount() { return levels.length; }
+	public int getWidth(int level) { return widths[level]; }
+	public int getHeight(int level) { return heights[level]; }
+
+	/**
+	 * Get the color of texel (x, y) of a level, counting rows from the top.
+	 */
+	public void getTexel(int level, int x, int y, Colorf outColor) {
+		int i = 3 * (y * widths[level] + x);
+		outColor.set(levels[level][i], levels[level][i + 1], levels[level][i + 2]);
+	}
+
+	/**
+	 * @return the number of bytes used by the texels of all levels
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (float[] level : levels)
+			bytes += 4L * level.length;
+		return bytes;
+	}
+}
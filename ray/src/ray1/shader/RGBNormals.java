@@ -2,6 +2,7 @@ package ray1.shader;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderContext;
 import ray1.Scene;
 import egl.math.Colorf;
 
@@ -24,7 +25,7 @@ public class RGBNormals extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 */
-	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext context) {
 		outIntensity.x = (float) (record.normal.x + 1) / 2;
 		outIntensity.y = (float) (record.normal.y + 1) / 2;
 		outIntensity.z = (float) (record.normal.z + 1) / 2;
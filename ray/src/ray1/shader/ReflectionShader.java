@@ -9,6 +9,8 @@ import ray1.IntersectionRecord;
 import ray1.Light;
 import ray1.Ray;
 import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.RenderStats;
 import ray1.Scene;
 
 public abstract class ReflectionShader extends Shader {
@@ -33,38 +35,49 @@ public abstract class ReflectionShader extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context The render context of the calling thread.
 	 */
 	@Override
-	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext context) {
 		
-		Vector3d incoming = new Vector3d();
-		Vector3d outgoing = new Vector3d();
+		// Scratch space for this recursion depth
+		RenderContext.Frame frame = context.frame(depth);
+		Vector3d incoming = frame.incoming;
+		Vector3d outgoing = frame.outgoing;
 				
 		outgoing.set(ray.origin).sub(record.location).normalize();
 		Vector3d surfaceNormal = record.normal;
-		Vector2 texCoords = new Vector2(record.texCoords);
+		Vector2 texCoords = frame.texCoords.set((float) record.texCoords.x, (float) record.texCoords.y);
 		
-		Colorf BRDFVal = new Colorf();
+		Colorf BRDFVal = frame.brdfValue;
 		
 		// direct reflection from light sources
 		outIntensity.setZero();
 		
 		// TODO#Ray Task 5: Fill in this function.
-				// 1) Loop through each light in the scene.
+				// 1) Loop through the lights chosen by scene.chooseLights(record, frame): frame.lights[i]
+				//	  for i below the count it returns.  Usually these are all the lights in the scene.
 				// 2) If the intersection point is shadowed, skip the calculation for the light.
-				//	  See Shader.java for a useful shadowing function.
+				//	  See Shader.java for a useful shadowing function; pass it the light's index,
+				//	  frame.lightIndices[i], and the context.
 				// 3) Compute the incoming direction by subtracting
 				//    the intersection point from the light's position.
 				// 4) Compute the color of the point using the shading model. 
 				//	  EvalBRDF method of brdf object should be called to evaluate BRDF value at the shaded surface point.
-				// 5) Add the computed color value to the output.
+				// 5) Multiply the computed color value by the light's weight, frame.lightWeights[i],
+				//	  and add it to the output.
 				// 6) If mirrorCoefficient is not zero vector, add recursive mirror reflection
 				//		6a) Compute the mirror reflection ray direction by reflecting the direction vector of "ray" about surface normal
 				//		6b) Construct mirror reflection ray starting from the intersection point (record.location) and pointing along 
 				//			direction computed in 6a) (Hint: remember to call makeOffsetRay to avoid self-intersecting)
+				//			Use frame.ray for the reflection ray and frame.color for its color rather than new objects.
 				//      6c) Compute the Fresnel's refectance coefficient with Schlick's approximation 
-				// 		6d) call RayTracer.shadeRay() with the mirror reflection ray and (depth+1)
+				// 		6d) If depth is less than RayTracer.MAX_DEPTH, count the reflection ray with
+				//			context.counters.countRay(RenderStats.REFLECTION) and call RayTracer.shadeRay()
+				//			with the mirror reflection ray, (depth+1) and the context; deeper rays are cut off
 				// 		6e) add returned color value in 6d) to output
+				//		Steps 6a to 6c are also what scatter(), below, does once you have filled it in, so
+				//		you may call scatter(frame.ray, frame.weight, ray, record) for them.
 		
 	
 		// recursive reflection
@@ -73,4 +86,24 @@ public abstract class ReflectionShader extends Shader {
 		
 	}
 
+	/**
+	 * Set up the mirror reflection of ray at record, as steps 6a to 6c of shade()
+	 * do, and its Fresnel reflectance.  The wavefront renderer calls this to build
+	 * its next batch of rays instead of recursing through shade().
+	 *
+	 * @param outRay The mirror reflection ray.
+	 * @param outWeight The Fresnel reflectance by Schlick's approximation, with
+	 * mirrorCoefficient as the reflectance at normal incidence.
+	 * @return false if mirrorCoefficient is zero and there is no reflection
+	 */
+	@Override
+	public boolean scatter(Ray outRay, Colorf outWeight, Ray ray, IntersectionRecord record) {
+		// TODO#Ray Task 5: Fill in this function.
+		// 1) If mirrorCoefficient is zero vector, return false.
+		// 2) Do steps 6a to 6c of shade(), putting the reflection ray in outRay and the
+		//	  Fresnel's reflectance coefficient in outWeight, and return true.
+		
+		return false;
+	}
+
 }
\ No newline at end of file
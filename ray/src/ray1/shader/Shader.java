@@ -3,7 +3,10 @@ package ray1.shader;
 import ray1.IntersectionRecord;
 import ray1.Light;
 import ray1.Ray;
+import ray1.RenderContext;
+import ray1.RenderStats;
 import ray1.Scene;
+import ray1.surface.Surface;
 import egl.math.Colorf;
 
 /**
@@ -31,7 +34,33 @@ public abstract class Shader {
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
 	 */
-	public abstract void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth);
+	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+		shade(outIntensity, scene, ray, record, depth, RenderContext.current());
+	}
+	
+	/**
+	 * As shade(outIntensity, scene, ray, record, depth), taking all scratch objects from
+	 * the render context of the calling thread.  This is the version the renderer calls.
+	 * 
+	 * @param context The render context of the calling thread.
+	 */
+	public abstract void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext context);
+	
+	/**
+	 * Set up the ray that shade() follows from record to gather reflected light,
+	 * and the factor by which shade() scales the light it brings back.  The
+	 * wavefront renderer traces these rays itself, and has shade() give only the
+	 * direct light by shading at depth RayTracer.MAX_DEPTH.
+	 * 
+	 * @param outRay The reflected ray.
+	 * @param outWeight The factor for the light along outRay.
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @return false if this material reflects no ray, and outRay and outWeight are unused.
+	 */
+	public boolean scatter(Ray outRay, Colorf outWeight, Ray ray, IntersectionRecord record) {
+		return false;
+	}
 	
 	/**
 	* Initialize method
@@ -52,8 +81,68 @@ public abstract class Shader {
 	 * false otherwise.
 	 */
 	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record) {	
+		return isShadowed(scene, light, record, RenderContext.current());
+	}
+	
+	/**
+	 * As isShadowed(scene, light, record, context) for the light with the given
+	 * index in scene.getLights(), as Scene.chooseLights gives it in
+	 * frame.lightIndices.  If the renderer has already traced this shadow ray as
+	 * part of a packet, the known answer is returned.
+	 * 
+	 * @param light The index of a light in the scene.
+	 * @param context The render context of the calling thread.
+	 */
+	protected boolean isShadowed(Scene scene, int light, IntersectionRecord record, RenderContext context) {
+		int known = context.knownShadow(record, light);
+		if (known >= 0)
+			return known == 1;
+		return isShadowed(scene, scene.getLights().get(light), record, context);
+	}
+	
+	/**
+	 * As isShadowed(scene, light, record), using the shadow ray of the render context.
+	 * 
+	 * Shadow rays from neighbouring points towards the same light are usually
+	 * blocked by the same surface, so before searching the whole scene the ray is
+	 * tested against the surface that last blocked a shadow ray towards this light
+	 * on this thread.  If that still blocks it the search is skipped.
+	 * 
+	 * @param context The render context of the calling thread.
+	 */
+	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, RenderContext context) {	
+		
+		Ray shadowRay = context.shadowRay;
+		makeShadowRay(shadowRay, light, record);
+		context.counters.countRay(RenderStats.SHADOW);
+		
+		Surface occluder = context.lastOccluder(light);
+		if (occluder != null) {
+			context.counters.occluderLookups++;
+			context.counters.countPrimitiveTests(occluder.getStatsType(), 1);
+			IntersectionRecord tmp = context.shadowRecord;
+			if (occluder.intersect(tmp, shadowRay, context) && tmp.t < shadowRay.end) {
+				context.counters.occluderHits++;
+				return true;
+			}
+		}
 		
-		Ray shadowRay = new Ray();
+		context.occluder = null;
+		if (!scene.getAnyIntersection(shadowRay, context))
+			return false;
+		if (context.occluder != null)
+			context.setLastOccluder(light, context.occluder);
+		return true;
+	}
+	
+	/**
+	 * Set up shadowRay to start at the intersection point and end at the light.
+	 * 
+	 * @param shadowRay The ray to set up.
+	 * @param light A light in the scene.
+	 * @param record The intersection point on a surface.
+	 */
+	public static void makeShadowRay(Ray shadowRay, Light light, IntersectionRecord record) {
 		
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(record.location);
@@ -64,8 +153,6 @@ public abstract class Shader {
 		
 		// Set the ray to end at the light
 		shadowRay.makeOffsetSegment(end);
-		
-		return scene.getAnyIntersection(shadowRay);
 	}
 	
 }
\ No newline at end of file
@@ -11,9 +11,14 @@ import egl.math.Colorf;
 import egl.math.Vector2;
 
 /**
- * This class represents a simple 2D texture implementation for a shader. It stores and
- * reads from a BufferedImage which is read in from an arbitrary image file on disk.
- * 
+ * This class represents a simple 2D texture implementation for a shader. It reads
+ * an image from an arbitrary image file on disk and converts it once into a
+ * MipMap of float texels, from which all lookups are made.
+ *
+ * Lookups can be nearest-texel, bilinear, or trilinear between the two mip levels
+ * that best match the size of the area being filtered.  Subclasses decide what
+ * happens to texel coordinates outside the image.
+ *
  * @author eschweickart zz335
  *
  */
@@ -28,20 +33,140 @@ public abstract class Texture {
 		try {
 			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
 			image = ImageIO.read(f);
+			mipMap = new MipMap(image);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
 	}
-	
+
+	/** The texels of image and its mip levels. */
+	protected MipMap mipMap;
+	public MipMap getMipMap() { return mipMap; }
+
+	/** The filters that may be used by lookups that do not give a footprint. */
+	public enum Filter { NEAREST, BILINEAR }
+
+	/**
+	 * The filter used by getTexColor(texCoord, outColor).  The default, nearest,
+	 * gives the same colors as looking the texel up in the image directly.
+	 */
+	protected Filter filter = Filter.NEAREST;
+	public void setFilter(String filter) { this.filter = Filter.valueOf(filter.toUpperCase()); }
+	public Filter getFilter() { return filter; }
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
-	
+
+	/**
+	 * Map a texel coordinate that may be outside [0, size) to one inside it.
+	 */
+	protected abstract int wrap(int i, int size);
+
 	/**
-	 * Get the texture color at a given UV coordinate.
-	 * 
+	 * Get the texture color at a given UV coordinate.  This allocates the result;
+	 * the renderer uses getTexColor(texCoord, outColor) instead.
+	 *
 	 * @param texCoord The UV texture coordinates.
 	 * @return The color at the given point.
 	 */
-	public abstract Colorf getTexColor(Vector2 texCoord); 
+	public Colorf getTexColor(Vector2 texCoord) {
+		Colorf c = new Colorf();
+		getTexColor(texCoord, c);
+		return c;
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate using the texture's filter.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param outColor (output) The color at the given point.
+	 */
+	public void getTexColor(Vector2 texCoord, Colorf outColor) {
+		if (mipMap == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			outColor.set(0, 0, 0);
+		}
+		else if (filter == Filter.BILINEAR)
+			bilinear(0, texCoord.x, texCoord.y, outColor);
+		else
+			nearest(texCoord.x, texCoord.y, outColor);
+	}
+
+	/**
+	 * Get the texture color averaged over an area around a UV coordinate, by
+	 * trilinear filtering between the two mip levels whose texels are closest in
+	 * size to the area.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param footprint The width of the area, in UV units.
+	 * @param outColor (output) The filtered color.
+	 */
+	public void getTexColor(Vector2 texCoord, float footprint, Colorf outColor) {
+		if (mipMap == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			outColor.set(0, 0, 0);
+			return;
+		}
+		float texels = footprint * Math.max(mipMap.widths[0], mipMap.heights[0]);
+		float level = texels > 1 ? (float) (Math.log(texels) / Math.log(2)) : 0;
+		int maxLevel = mipMap.getLevelCount() - 1;
+		if (level >= maxLevel) {
+			bilinear(maxLevel, texCoord.x, texCoord.y, outColor);
+			return;
+		}
+		int l0 = (int) level;
+		float t = level - l0;
+		bilinear(l0, texCoord.x, texCoord.y, outColor);
+		if (t > 0) {
+			float r = outColor.x, g = outColor.y, b = outColor.z;
+			bilinear(l0 + 1, texCoord.x, texCoord.y, outColor);
+			outColor.set(r + t * (outColor.x - r), g + t * (outColor.y - g), b + t * (outColor.z - b));
+		}
+	}
+
+	/**
+	 * Map v to the unwrapped row of the nearest texel in an image of height h.  The
+	 * flip is done in double precision, as the original lookups did; subclasses
+	 * whose lookups rounded differently override this to keep their colors.
+	 */
+	protected int nearestRow(float v, int h) {
+		return (int) ((1.0 - v) * h + 0.5f);
+	}
+
+	/**
+	 * Look up the texel nearest to (u, v) in level 0.
+	 */
+	protected void nearest(float u, float v, Colorf outColor) {
+		int w = mipMap.widths[0], h = mipMap.heights[0];
+		int x = wrap((int) (u * w + 0.5f), w);
+		int y = wrap(nearestRow(v, h), h);
+		float[] texels = mipMap.levels[0];
+		int i = 3 * (y * w + x);
+		outColor.set(texels[i], texels[i + 1], texels[i + 2]);
+	}
+
+	/**
+	 * Interpolate between the four texels of a level around (u, v).  Texel
+	 * centers are placed so that bilinear lookups at level 0 agree with nearest
+	 * lookups at the texel centers, and each level's centers are the averages of
+	 * the centers of the texels it was made from.
+	 */
+	protected void bilinear(int level, float u, float v, Colorf outColor) {
+		int w = mipMap.widths[level], h = mipMap.heights[level];
+		float sx = u * w - 0.5f * (1 - (float) w / mipMap.widths[0]);
+		float sy = (1.0f - v) * h - 0.5f * (1 - (float) h / mipMap.heights[0]);
+		float fx = (float) Math.floor(sx), fy = (float) Math.floor(sy);
+		float tx = sx - fx, ty = sy - fy;
+		int x0 = wrap((int) fx, w), x1 = wrap((int) fx + 1, w);
+		int y0 = wrap((int) fy, h), y1 = wrap((int) fy + 1, h);
+		float[] texels = mipMap.levels[level];
+		int i00 = 3 * (y0 * w + x0), i10 = 3 * (y0 * w + x1);
+		int i01 = 3 * (y1 * w + x0), i11 = 3 * (y1 * w + x1);
+		float w00 = (1 - tx) * (1 - ty), w10 = tx * (1 - ty), w01 = (1 - tx) * ty, w11 = tx * ty;
+		outColor.set(
+				w00 * texels[i00] + w10 * texels[i10] + w01 * texels[i01] + w11 * texels[i11],
+				w00 * texels[i00 + 1] + w10 * texels[i10 + 1] + w01 * texels[i01 + 1] + w11 * texels[i11 + 1],
+				w00 * texels[i00 + 2] + w10 * texels[i10 + 2] + w01 * texels[i01 + 2] + w11 * texels[i11 + 2]);
+	}
 }
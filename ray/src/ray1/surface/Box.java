@@ -10,8 +10,10 @@ import ray1.OBJFace;
 import ray1.accel.BboxUtils;
 
 /**
- * A class that represents an Axis-Aligned box. When the scene is built, the Box is
- * split up into a Mesh of 12 Triangles.
+ * A class that represents an Axis-Aligned box. The Box is intersected directly by
+ * a slab test, as a single primitive in the acceleration structure; if the scene
+ * asks for triangulated boxes, it is instead split up into a Mesh of 12 Triangles
+ * when the scene is built.
  * 
  * @author sjm324
  *
@@ -31,6 +33,11 @@ public class Box extends Surface {
   public void setMaxPt(Vector3 maxPt) { this.maxPt.set(maxPt); }
   public Vector3 getMaxPt() {return this.maxPt.clone();}
   
+  /* Whether the Box is split into triangles rather than intersected directly. */
+  protected boolean triangulate = false;
+  public void setTriangulate(boolean triangulate) { this.triangulate = triangulate; }
+  public boolean getTriangulate() { return triangulate; }
+  
   /* Generate a Triangle mesh that represents this Box. */
   private void buildMesh() {
     // Create the OBJMesh
@@ -134,13 +141,87 @@ public class Box extends Surface {
     this.mesh.shader = this.shader;
   }
   
+  /**
+   * Intersect the ray with the three pairs of planes bounding the box.  The ray
+   * enters the box at the largest of the t values where it crosses the nearer
+   * plane of each pair, and leaves at the smallest of the t values where it
+   * crosses the farther one; a ray starting inside the box hits it where it
+   * leaves.  The normal is the outward normal of the face hit, and the texture
+   * coordinates run from 0 to 1 across the face along its next two axes.
+   */
   public boolean intersect(IntersectionRecord outRecord, Ray ray) {
-  	return false;
+    double tEnter = Double.NEGATIVE_INFINITY, tExit = Double.POSITIVE_INFINITY;
+    int enterAxis = -1, exitAxis = -1;
+    for (int a = 0; a < 3; a++) {
+      double o = ray.origin.get(a), d = ray.direction.get(a);
+      double lo = minPt.get(a), hi = maxPt.get(a);
+      if (d == 0) {
+        // Parallel to this pair of planes: inside the slab or never
+        if (o < lo || o > hi)
+          return false;
+        continue;
+      }
+      double t0 = (lo - o) / d, t1 = (hi - o) / d;
+      if (t0 > t1) {
+        double t = t0; t0 = t1; t1 = t;
+      }
+      if (t0 > tEnter) {
+        tEnter = t0;
+        enterAxis = a;
+      }
+      if (t1 < tExit) {
+        tExit = t1;
+        exitAxis = a;
+      }
+    }
+    if (tEnter > tExit)
+      return false;
+
+    double t;
+    int axis;
+    boolean entering;
+    if (tEnter >= ray.start && tEnter <= ray.end) {
+      t = tEnter;
+      axis = enterAxis;
+      entering = true;
+    }
+    else if (tEnter < ray.start && tExit >= ray.start && tExit <= ray.end) {
+      t = tExit;
+      axis = exitAxis;
+      entering = false;
+    }
+    else
+      return false;
+    if (axis < 0)
+      return false;
+
+    ray.evaluate(outRecord.location, t);
+    // Facing against the ray where it enters, along it where it leaves
+    double d = ray.direction.get(axis);
+    outRecord.normal.setZero();
+    outRecord.normal.set(axis, (d > 0) == entering ? -1.0 : 1.0);
+    int u = (axis + 1) % 3, v = (axis + 2) % 3;
+    outRecord.texCoords.set(
+        faceCoordinate(outRecord.location.get(u), minPt.get(u), maxPt.get(u)),
+        faceCoordinate(outRecord.location.get(v), minPt.get(v), maxPt.get(v)));
+    outRecord.surface = this;
+    outRecord.t = t;
+    return true;
+  }
+  
+  /* The fraction of the way from lo to hi that x lies, clamped to [0, 1]. */
+  private static double faceCoordinate(double x, double lo, double hi) {
+    return hi > lo ? Math.min(1, Math.max(0, (x - lo) / (hi - lo))) : 0;
   }
   
   public void appendRenderableSurfaces(ArrayList<Surface> in) {
-	  buildMesh();
-	  mesh.appendRenderableSurfaces(in);
+    if (triangulate) {
+      buildMesh();
+      mesh.appendRenderableSurfaces(in);
+    }
+    else {
+      in.add(this);
+    }
   }
   
   public void computeBoundingBox() {
@@ -0,0 +1,146 @@
+package ray1.surface;
+
+import egl.math.Matrix4d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.shader.Shader;
+
+/**
+ * One placement of a Prototype in the scene, under an affine transformation.
+ * Instances share their prototype's geometry and bottom-level acceleration
+ * structure, so each costs only a transformation and a bounding box no matter
+ * how large the prototype is; the scene's acceleration structure (a LinearBvh
+ * works best) is the top level, over the world-space bounds of the instances.
+ *
+ * The transformation from object to world space is matrix * translate *
+ * rotate * scale, where rotate turns by the given angles in degrees about x,
+ * then y, then z.  For example:
+ *
+ *   &lt;prototype name="tree"&gt;
+ *     &lt;surface type="PackedMesh"&gt; ... &lt;/surface&gt;
+ *   &lt;/prototype&gt;
+ *   &lt;surface type="Instance"&gt;
+ *     &lt;prototype ref="tree" /&gt;
+ *     &lt;translate&gt;3 0 -2&lt;/translate&gt;
+ *     &lt;rotate&gt;0 45 0&lt;/rotate&gt;
+ *   &lt;/surface&gt;
+ *
+ * Rays are carried into object space without renormalizing their direction, so
+ * t values are the same in both spaces.  Hits are shaded with the prototype
+ * surface's shader unless the instance is given a shader of its own.
+ */
+public class Instance extends Surface {
+
+	/** The geometry placed by this instance. */
+	protected Prototype prototype;
+	public void setPrototype(Prototype prototype) { this.prototype = prototype; }
+	public Prototype getPrototype() { return prototype; }
+
+	protected final Vector3 translate = new Vector3();
+	public void setTranslate(Vector3 translate) { this.translate.set(translate); }
+
+	protected final Vector3 rotate = new Vector3();
+	public void setRotate(Vector3 rotate) { this.rotate.set(rotate); }
+
+	protected final Vector3 scale = new Vector3(1, 1, 1);
+	public void setScale(Vector3 scale) { this.scale.set(scale); }
+
+	/** A general transformation, applied after the others: 12 or 16 numbers, row by row. */
+	protected double[] matrix;
+	public void setMatrix(double[] matrix) {
+		if (matrix.length != 12 && matrix.length != 16)
+			throw new IllegalArgumentException("Instance matrix must have 12 or 16 entries");
+		this.matrix = matrix.clone();
+	}
+
+	/** Object to world and world to object transformations, set by computeBoundingBox. */
+	protected Matrix4d toWorld, toObject;
+	public Matrix4d getToWorld() { return toWorld; }
+
+	/** Whether the instance's own shader overrides the prototype's. */
+	private boolean ownShader;
+
+	public Instance() { }
+
+	@Override
+	public void setShader(Shader shader) {
+		super.setShader(shader);
+		ownShader = true;
+	}
+
+	/**
+	 * Compose the transformation from its parts and invert it.
+	 */
+	protected void computeTransforms() {
+		Matrix4d m = Matrix4d.createScale(scale.x, scale.y, scale.z);
+		m.mulAfter(Matrix4d.createRotationX(Math.toRadians(rotate.x)));
+		m.mulAfter(Matrix4d.createRotationY(Math.toRadians(rotate.y)));
+		m.mulAfter(Matrix4d.createRotationZ(Math.toRadians(rotate.z)));
+		m.mulAfter(Matrix4d.createTranslation(translate.x, translate.y, translate.z));
+		if (matrix != null) {
+			double[] a = matrix;
+			m.mulAfter(new Matrix4d(
+					a[0], a[1], a[2], a[3],
+					a[4], a[5], a[6], a[7],
+					a[8], a[9], a[10], a[11],
+					a.length == 16 ? a[12] : 0, a.length == 16 ? a[13] : 0, a.length == 16 ? a[14] : 0, a.length == 16 ? a[15] : 1));
+		}
+		toWorld = m;
+		toObject = m.clone().invert();
+	}
+
+	/**
+	 * Transform the corners of the prototype's bounds into world space and bound them.
+	 */
+	public void computeBoundingBox() {
+		prototype.build();
+		computeTransforms();
+		Vector3d pMin = prototype.getMinBound(), pMax = prototype.getMaxBound();
+		minBound = new Vector3d(Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+		Vector3d corner = new Vector3d();
+		for (int i = 0; i < 8; i++) {
+			corner.set((i & 1) == 0 ? pMin.x : pMax.x, (i & 2) == 0 ? pMin.y : pMax.y, (i & 4) == 0 ? pMin.z : pMax.z);
+			toWorld.mulPos(corner);
+			minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+			maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		return intersect(outRecord, rayIn, RenderContext.current());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext context) {
+		RenderContext.Traversal traversal = context.beginTraversal();
+		Ray ray = traversal.ray;
+		ray.origin.set(rayIn.origin);
+		toObject.mulPos(ray.origin);
+		ray.direction.set(rayIn.direction);
+		toObject.mulDir(ray.direction);
+		ray.start = rayIn.start;
+		ray.end = rayIn.end;
+		IntersectionRecord record = traversal.record;
+		boolean hit = prototype.intersect(record, ray, context);
+		if (hit) {
+			outRecord.set(record);
+			toWorld.mulPos(outRecord.location);
+			// Normals transform by the inverse transpose
+			double[] m = toObject.m;
+			Vector3d n = outRecord.normal;
+			n.set(m[0] * n.x + m[1] * n.y + m[2] * n.z,
+					m[4] * n.x + m[5] * n.y + m[6] * n.z,
+					m[8] * n.x + m[9] * n.y + m[10] * n.z);
+			n.normalize();
+			if (ownShader)
+				outRecord.surface = this;
+		}
+		context.endTraversal();
+		return hit;
+	}
+}
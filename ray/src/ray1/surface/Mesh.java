@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import ray1.OBJMesh;
 import ray1.OBJMesh.OBJFileFormatException;
 import ray1.OBJFace;
+import ray1.MeshCache;
 import ray1.IntersectionRecord;
 import ray1.Ray;
 import ray1.RayTracer;
@@ -45,7 +46,7 @@ public class Mesh extends Surface {
 	 */
 	public void setData(String fileName) throws OBJFileFormatException, IOException {
 		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+		this.mesh = MeshCache.loadOBJ(RayTracer.sceneWorkspace.resolve(fileName), RayTracer.getPool()).toOBJMesh();
 	}
 	
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
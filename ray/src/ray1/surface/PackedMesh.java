@@ -0,0 +1,628 @@
+package ray1.surface;
+
+import java.io.IOException;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.FloatRay;
+import ray1.IntersectionRecord;
+import ray1.MeshCache;
+import ray1.OBJFace;
+import ray1.OBJLoader;
+import ray1.OBJMesh;
+import ray1.OBJMesh.OBJFileFormatException;
+import ray1.Ray;
+import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.accel.FlatBvh;
+import ray1.accel.LaneKernels;
+import ray1.accel.WideBvh;
+
+/**
+ * A triangle mesh that keeps its vertices and triangles in primitive arrays
+ * instead of creating one Triangle object per face.  Unlike Mesh, it adds itself
+ * to the scene as a single renderable surface and owns a FlatBvh over its own
+ * triangles; the scene's acceleration structure sees only the bounds of the whole
+ * mesh, and leaf nodes of the inner BVH intersect whole ranges of triangles at
+ * once through intersectLeaf.
+ *
+ * Polygons with more than three vertices are split into triangle fans.
+ */
+public class PackedMesh extends Surface implements FlatBvh.LeafIntersector {
+
+	/** Vertex positions, three floats per vertex. */
+	protected float[] positions = new float[0];
+
+	/** Vertex normals, three floats per normal; null if the mesh has none. */
+	protected float[] normals;
+
+	/** Texture coordinates, two floats per uv; null if the mesh has none. */
+	protected float[] uvs;
+
+	/** Position indices, three per triangle. */
+	protected int[] triangles = new int[0];
+
+	/** Normal indices, three per triangle, -1 where a face has no normals; null if the mesh has none. */
+	protected int[] triangleNormals;
+
+	/** UV indices, three per triangle, -1 where a face has no uvs; null if the mesh has none. */
+	protected int[] triangleUvs;
+
+	/** The BVH over the triangles, built by computeBoundingBox or read from the mesh cache. */
+	protected FlatBvh bvh;
+
+	/**
+	 * With a WideBvh, the triangles of each leaf in groups of four, for the four-wide
+	 * triangle test: for each group, the x of the first vertex of all four triangles,
+	 * then their first vertex y and z, then the same for the second and third
+	 * vertices (36 floats).  Lanes past the end of a leaf hold degenerate triangles
+	 * at the origin, which are never hit.  Null with other BVHs.
+	 */
+	protected float[] triangleLanes;
+
+	/** For the first triangle of each leaf, the index of the leaf's first group in triangleLanes. */
+	protected int[] leafGroups;
+
+	/** The leaf size bvh was built with. */
+	protected int bvhLeafSize;
+
+	/** The file the mesh was read from, under which it is cached; null if it was not read from a file. */
+	protected String sourceFile;
+
+	/** The largest number of triangles in a leaf of the inner BVH. */
+	protected int leafSize = 4;
+	public void setLeafSize(int leafSize) { this.leafSize = Math.max(1, leafSize); }
+	public int getLeafSize() { return leafSize; }
+
+	/**
+	 * Whether rays are intersected in single precision: the BVH boxes with a float
+	 * slab test and the triangles with the watertight test of intersectSingle, or of
+	 * intersectSingleLanes when there are triangleLanes.  Set for every mesh from
+	 * the scene's precision.
+	 */
+	protected boolean singlePrecision = false;
+	public void setSinglePrecision(boolean singlePrecision) { this.singlePrecision = singlePrecision; }
+	public boolean getSinglePrecision() { return singlePrecision; }
+
+	/**
+	 * How the inner BVH's node bounds are stored: "float", "16" or "8" for bounds
+	 * quantized to that many bits (see QuantizedBvh), or "wide" for four-wide nodes
+	 * (see WideBvh).  The mesh cache always holds float nodes, which are converted
+	 * after loading.
+	 */
+	protected String nodeFormat = "float";
+	public void setNodeFormat(String nodeFormat) { this.nodeFormat = FlatBvh.checkFormat(nodeFormat); }
+	public String getNodeFormat() { return nodeFormat; }
+
+	/**
+	 * Default constructor; creates an empty mesh.
+	 */
+	public PackedMesh() { }
+
+	/**
+	 * Construct a packed copy of an existing OBJMesh.
+	 */
+	public PackedMesh(OBJMesh mesh) {
+		pack(mesh);
+	}
+
+	/**
+	 * Set the data in this mesh to the data of a mesh on disk.  The packed arrays
+	 * and inner BVH are taken from the mesh cache when it has a valid entry, and
+	 * are stored there once the BVH has been built otherwise.
+	 * @param fileName the name of a .obj file on disk.
+	 */
+	public void setData(String fileName) throws OBJFileFormatException, IOException {
+		String path = RayTracer.sceneWorkspace.resolve(fileName);
+		if (RayTracer.isVerbose())
+			System.out.println("Loading " + path);
+		MeshCache.Entry entry = MeshCache.load(path, CACHE_KIND);
+		if (entry == null || !unpack(entry))
+			pack(OBJLoader.load(path, RayTracer.getPool()));
+		sourceFile = path;
+	}
+
+	private static final String CACHE_KIND = "packed";
+
+	/**
+	 * Take the arrays and BVH from a mesh cache entry written by storeInCache.
+	 *
+	 * @return false if the entry is incomplete, in which case nothing is changed
+	 */
+	protected boolean unpack(MeshCache.Entry entry) {
+		FlatBvh cachedBvh = FlatBvh.load(entry, "bvh");
+		float[] cachedPositions = entry.getFloats("positions");
+		int[] cachedTriangles = entry.getInts("triangles");
+		if (cachedBvh == null || cachedPositions == null || cachedTriangles == null)
+			return false;
+		positions = cachedPositions;
+		triangles = cachedTriangles;
+		normals = entry.getFloats("normals");
+		triangleNormals = entry.getInts("triangleNormals");
+		uvs = entry.getFloats("uvs");
+		triangleUvs = entry.getInts("triangleUvs");
+		bvh = cachedBvh;
+		triangleLanes = null;
+		bvhLeafSize = entry.getInt("leafSize", 0);
+		return true;
+	}
+
+	/**
+	 * Store the arrays, which are in BVH order, and the BVH in the mesh cache.
+	 */
+	protected void storeInCache() {
+		MeshCache.Entry entry = new MeshCache.Entry();
+		entry.put("positions", positions);
+		entry.put("triangles", triangles);
+		entry.put("normals", normals);
+		entry.put("triangleNormals", triangleNormals);
+		entry.put("uvs", uvs);
+		entry.put("triangleUvs", triangleUvs);
+		entry.put("leafSize", new int[] { bvhLeafSize });
+		bvh.store(entry, "bvh");
+		MeshCache.save(sourceFile, CACHE_KIND, entry);
+	}
+
+	/**
+	 * @return the number of triangles in this mesh
+	 */
+	public int getTriangleCount() {
+		return triangles.length / 3;
+	}
+
+	/**
+	 * Copy the vertex data and faces of an OBJMesh into the packed arrays.
+	 */
+	protected void pack(OBJMesh mesh) {
+		positions = new float[3 * mesh.positions.size()];
+		for (int i = 0; i < mesh.positions.size(); i++) {
+			Vector3 p = mesh.positions.get(i);
+			positions[3 * i] = p.x;
+			positions[3 * i + 1] = p.y;
+			positions[3 * i + 2] = p.z;
+		}
+		normals = null;
+		if (mesh.normals.size() > 0) {
+			normals = new float[3 * mesh.normals.size()];
+			for (int i = 0; i < mesh.normals.size(); i++) {
+				Vector3 n = mesh.normals.get(i);
+				normals[3 * i] = n.x;
+				normals[3 * i + 1] = n.y;
+				normals[3 * i + 2] = n.z;
+			}
+		}
+		uvs = null;
+		if (mesh.uvs.size() > 0) {
+			uvs = new float[2 * mesh.uvs.size()];
+			for (int i = 0; i < mesh.uvs.size(); i++) {
+				Vector2 uv = mesh.uvs.get(i);
+				uvs[2 * i] = uv.x;
+				uvs[2 * i + 1] = uv.y;
+			}
+		}
+
+		int numTriangles = 0;
+		for (OBJFace f : mesh.faces)
+			numTriangles += f.numVerts() - 2;
+		triangles = new int[3 * numTriangles];
+		triangleNormals = normals == null ? null : new int[3 * numTriangles];
+		triangleUvs = uvs == null ? null : new int[3 * numTriangles];
+		int t = 0;
+		for (OBJFace f : mesh.faces) {
+			for (int k = 1; k + 1 < f.numVerts(); k++, t++) {
+				for (int j = 0; j < 3; j++) {
+					int c = j == 0 ? 0 : k + j - 1;
+					triangles[3 * t + j] = f.positions[c] - OBJFace.indexBase;
+					if (triangleNormals != null)
+						triangleNormals[3 * t + j] = f.hasNormals() ? f.normals[c] - OBJFace.indexBase : -1;
+					if (triangleUvs != null)
+						triangleUvs[3 * t + j] = f.hasUVs() ? f.uvs[c] - OBJFace.indexBase : -1;
+				}
+			}
+		}
+		bvh = null;
+		triangleLanes = null;
+	}
+
+	/**
+	 * Take the arrays read by an OBJLoader, splitting polygons into triangle fans.
+	 */
+	protected void pack(OBJLoader obj) {
+		positions = obj.positions;
+		normals = obj.normals.length > 0 ? obj.normals : null;
+		uvs = obj.uvs.length > 0 ? obj.uvs : null;
+
+		int numTriangles = obj.getTriangleCount();
+		triangles = new int[3 * numTriangles];
+		triangleNormals = normals == null ? null : new int[3 * numTriangles];
+		triangleUvs = uvs == null ? null : new int[3 * numTriangles];
+		int t = 0;
+		for (int f = 0; f < obj.getFaceCount(); f++) {
+			int start = obj.faceStarts[f], n = obj.faceStarts[f + 1] - start;
+			for (int k = 1; k + 1 < n; k++, t++) {
+				for (int j = 0; j < 3; j++) {
+					int c = start + (j == 0 ? 0 : k + j - 1);
+					triangles[3 * t + j] = obj.cornerPositions[c];
+					if (triangleNormals != null)
+						triangleNormals[3 * t + j] = obj.cornerNormals[c];
+					if (triangleUvs != null)
+						triangleUvs[3 * t + j] = obj.cornerUvs[c];
+				}
+			}
+		}
+		bvh = null;
+		triangleLanes = null;
+	}
+
+	/**
+	 * Compute the bounds of the whole mesh, building the inner BVH first if needed.
+	 */
+	public void computeBoundingBox() {
+		if (bvh == null || bvhLeafSize != leafSize) {
+			buildBvh();
+			if (sourceFile != null)
+				storeInCache();
+		}
+		if (!nodeFormat.equals("float") && bvh.getClass() == FlatBvh.class) {
+			bvh = FlatBvh.withFormat(bvh, nodeFormat);
+			if (RayTracer.isVerbose())
+				System.out.println("PackedMesh: inner BVH has " + bvh.memoryReport());
+		}
+		if (bvh instanceof WideBvh && triangleLanes == null)
+			packLanes();
+		minBound = new Vector3d(Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < triangles.length; i++) {
+			int v = 3 * triangles[i];
+			minBound.set(Math.min(minBound.x, positions[v]), Math.min(minBound.y, positions[v + 1]), Math.min(minBound.z, positions[v + 2]));
+			maxBound.set(Math.max(maxBound.x, positions[v]), Math.max(maxBound.y, positions[v + 1]), Math.max(maxBound.z, positions[v + 2]));
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * Build the inner BVH and reorder the triangles so each leaf covers a contiguous range.
+	 */
+	protected void buildBvh() {
+		long startTime = System.currentTimeMillis();
+		int n = getTriangleCount();
+		double[] centroids = new double[3 * n];
+		double[] bounds = new double[6 * n];
+		for (int t = 0; t < n; t++) {
+			for (int k = 0; k < 3; k++) {
+				double a = positions[3 * triangles[3 * t] + k];
+				double b = positions[3 * triangles[3 * t + 1] + k];
+				double c = positions[3 * triangles[3 * t + 2] + k];
+				centroids[3 * t + k] = (a + b + c) / 3;
+				bounds[6 * t + k] = Math.min(a, Math.min(b, c));
+				bounds[6 * t + 3 + k] = Math.max(a, Math.max(b, c));
+			}
+		}
+		bvh = FlatBvh.buildSah(centroids, bounds, leafSize, RayTracer.getPool());
+		bvhLeafSize = leafSize;
+		triangleLanes = null;
+
+		int[] order = bvh.getPrimitiveOrder();
+		triangles = reorder(triangles, order);
+		if (triangleNormals != null)
+			triangleNormals = reorder(triangleNormals, order);
+		if (triangleUvs != null)
+			triangleUvs = reorder(triangleUvs, order);
+
+		if (!RayTracer.isVerbose())
+			return;
+		long geometryBytes = 4L * (positions.length + triangles.length)
+				+ (normals == null ? 0 : 4L * (normals.length + triangleNormals.length))
+				+ (uvs == null ? 0 : 4L * (uvs.length + triangleUvs.length));
+		System.out.println("PackedMesh: " + n + " triangles, " + geometryBytes + " bytes of geometry, "
+				+ bvh.getNodeBytes() + " bytes of BVH, built in "
+				+ ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+	}
+
+	/**
+	 * Copy the triangles of each leaf into groups of four lanes.
+	 */
+	protected void packLanes() {
+		int[] leaves = bvh.getLeaves();
+		int numGroups = 0;
+		for (int i = 0; i < leaves.length; i += 2)
+			numGroups += (leaves[i + 1] + 3) / 4;
+		triangleLanes = new float[36 * numGroups];
+		leafGroups = new int[getTriangleCount()];
+		int g = 0;
+		for (int i = 0; i < leaves.length; i += 2) {
+			int start = leaves[i], count = leaves[i + 1];
+			leafGroups[start] = g;
+			for (int j = 0; j < count; j++) {
+				int o = 36 * (g + j / 4) + j % 4, t = start + j;
+				for (int c = 0; c < 3; c++)
+					for (int k = 0; k < 3; k++)
+						triangleLanes[o + 4 * (3 * c + k)] = positions[3 * triangles[3 * t + c] + k];
+			}
+			g += (count + 3) / 4;
+		}
+	}
+
+	private static int[] reorder(int[] perTriangle, int[] order) {
+		int[] result = new int[perTriangle.length];
+		for (int t = 0; t < order.length; t++) {
+			result[3 * t] = perTriangle[3 * order[t]];
+			result[3 * t + 1] = perTriangle[3 * order[t] + 1];
+			result[3 * t + 2] = perTriangle[3 * order[t] + 2];
+		}
+		return result;
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		return intersect(outRecord, rayIn, RenderContext.current());
+	}
+
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext context) {
+		if (bvh == null)
+			return false;
+		if (singlePrecision) {
+			context.floatRay.set(rayIn);
+			return bvh.intersectSingle(outRecord, rayIn, context.floatRay, this, false, context);
+		}
+		return bvh.intersect(outRecord, rayIn, this, false, context);
+	}
+
+	/**
+	 * Intersect a ray with a range of triangles (Moller-Trumbore), keeping the nearest hit.
+	 */
+	public boolean intersectLeaf(IntersectionRecord outRecord, IntersectionRecord scratch, Ray ray,
+			int start, int count, boolean anyIntersection, RenderContext context) {
+		if (singlePrecision && triangleLanes != null)
+			return intersectSingleLanes(outRecord, ray, start, count, anyIntersection, context);
+		if (singlePrecision)
+			return intersectSingle(outRecord, ray, start, count, anyIntersection, context);
+		if (triangleLanes != null)
+			return intersectLanes(outRecord, ray, start, count, anyIntersection, context);
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		int hit = -1;
+		double hitU = 0, hitV = 0;
+		for (int t = start; t < start + count; t++) {
+			int i0 = 3 * triangles[3 * t], i1 = 3 * triangles[3 * t + 1], i2 = 3 * triangles[3 * t + 2];
+			double p0x = positions[i0], p0y = positions[i0 + 1], p0z = positions[i0 + 2];
+			double e1x = positions[i1] - p0x, e1y = positions[i1 + 1] - p0y, e1z = positions[i1 + 2] - p0z;
+			double e2x = positions[i2] - p0x, e2y = positions[i2 + 1] - p0y, e2z = positions[i2 + 2] - p0z;
+
+			double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+			double det = e1x * px + e1y * py + e1z * pz;
+			if (det == 0)
+				continue;
+			double inv = 1.0 / det;
+			double sx = ox - p0x, sy = oy - p0y, sz = oz - p0z;
+			double u = (sx * px + sy * py + sz * pz) * inv;
+			if (u < 0 || u > 1)
+				continue;
+			double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+			double v = (dx * qx + dy * qy + dz * qz) * inv;
+			if (v < 0 || u + v > 1)
+				continue;
+			double tHit = (e2x * qx + e2y * qy + e2z * qz) * inv;
+			if (tHit < ray.start || tHit > ray.end)
+				continue;
+
+			ray.end = tHit;
+			hit = t;
+			hitU = u;
+			hitV = v;
+			if (anyIntersection)
+				break;
+		}
+		context.counters.countPrimitiveTests(getStatsType(), anyIntersection && hit >= 0 ? hit - start + 1 : count);
+		if (hit < 0)
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, ray, hit, hitU, hitV);
+		return true;
+	}
+
+	/**
+	 * Intersect a ray with a range of triangles in single precision, with the
+	 * watertight test of Woop, Benthin and Wald (JCGT 2013).  The triangle is moved
+	 * into a space where the ray, context.floatRay, runs along the z axis from the
+	 * origin, and the signs of the 2D edge functions decide whether it is hit.  An
+	 * edge function that rounds to zero is recomputed in double precision, so a ray
+	 * through an edge or vertex shared by two triangles always hits one of them.
+	 * The distance and barycentric coordinates are rounded to float as well.
+	 */
+	protected boolean intersectSingle(IntersectionRecord outRecord, Ray ray, int start, int count,
+			boolean anyIntersection, RenderContext context) {
+		FloatRay r = context.floatRay;
+		int kx = r.kx, ky = r.ky, kz = r.kz;
+		int hit = -1;
+		float hitU = 0, hitV = 0;
+		for (int t = start; t < start + count; t++) {
+			int i0 = 3 * triangles[3 * t], i1 = 3 * triangles[3 * t + 1], i2 = 3 * triangles[3 * t + 2];
+			// The vertices relative to the origin, sheared so the ray runs along kz
+			float az = positions[i0 + kz] - r.okz, bz = positions[i1 + kz] - r.okz, cz = positions[i2 + kz] - r.okz;
+			float ax = positions[i0 + kx] - r.okx - r.sx * az, ay = positions[i0 + ky] - r.oky - r.sy * az;
+			float bx = positions[i1 + kx] - r.okx - r.sx * bz, by = positions[i1 + ky] - r.oky - r.sy * bz;
+			float cx = positions[i2 + kx] - r.okx - r.sx * cz, cy = positions[i2 + ky] - r.oky - r.sy * cz;
+
+			// Twice the signed areas of the triangles the ray makes with each edge,
+			// which are the barycentric weights of the opposite vertices
+			float w0 = cx * by - cy * bx, w1 = ax * cy - ay * cx, w2 = bx * ay - by * ax;
+			if (w0 == 0 || w1 == 0 || w2 == 0) {
+				w0 = (float) ((double) cx * by - (double) cy * bx);
+				w1 = (float) ((double) ax * cy - (double) ay * cx);
+				w2 = (float) ((double) bx * ay - (double) by * ax);
+			}
+			if ((w0 < 0 || w1 < 0 || w2 < 0) && (w0 > 0 || w1 > 0 || w2 > 0))
+				continue;
+			float det = w0 + w1 + w2;
+			if (det == 0)
+				continue;
+			float tHit = (w0 * r.sz * az + w1 * r.sz * bz + w2 * r.sz * cz) / det;
+			if (tHit < ray.start || tHit > ray.end)
+				continue;
+
+			ray.end = tHit;
+			hit = t;
+			hitU = w1 / det;
+			hitV = w2 / det;
+			if (anyIntersection)
+				break;
+		}
+		context.counters.countPrimitiveTests(getStatsType(), anyIntersection && hit >= 0 ? hit - start + 1 : count);
+		if (hit < 0)
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, ray, hit, hitU, hitV);
+		return true;
+	}
+
+	/**
+	 * The same test as intersectLeaf, four triangles at a time from triangleLanes
+	 * with LaneKernels.intersectTriangles.  The arithmetic is done for all four
+	 * lanes of a group before any is accepted; the lanes are then accepted in
+	 * order, so the hit found is the same as the one-at-a-time test finds.
+	 */
+	protected boolean intersectLanes(IntersectionRecord outRecord, Ray ray, int start, int count,
+			boolean anyIntersection, RenderContext context) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double[] lane = context.triangleLanes;
+		LaneKernels kernels = LaneKernels.get();
+		int hit = -1;
+		double hitU = 0, hitV = 0;
+		for (int j = 0; j < count && !(anyIntersection && hit >= 0); j += 4) {
+			int g = 36 * (leafGroups[start] + j / 4);
+			int valid = kernels.intersectTriangles(triangleLanes, g, ox, oy, oz, dx, dy, dz, lane);
+			for (int l = 0; l < 4 && j + l < count; l++) {
+				double tHit = lane[l];
+				if ((valid & (1 << l)) == 0 || tHit < ray.start || tHit > ray.end)
+					continue;
+				ray.end = tHit;
+				hit = start + j + l;
+				hitU = lane[4 + l];
+				hitV = lane[8 + l];
+				if (anyIntersection)
+					break;
+			}
+		}
+		context.counters.countPrimitiveTests(getStatsType(), anyIntersection && hit >= 0 ? hit - start + 1 : count);
+		if (hit < 0)
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, ray, hit, hitU, hitV);
+		return true;
+	}
+
+	/**
+	 * The same test as intersectSingle, four triangles at a time from
+	 * triangleLanes.  The edge functions of all four lanes of a group are computed
+	 * before any is accepted, and the lanes are then accepted in order, so the hit
+	 * found is the same as the one-at-a-time test finds.
+	 */
+	protected boolean intersectSingleLanes(IntersectionRecord outRecord, Ray ray, int start, int count,
+			boolean anyIntersection, RenderContext context) {
+		FloatRay r = context.floatRay;
+		// The offsets of the sheared coordinates within a vertex's lanes
+		int kx = 4 * r.kx, ky = 4 * r.ky, kz = 4 * r.kz;
+		double[] lane = context.triangleLanes;
+		int hit = -1;
+		float hitU = 0, hitV = 0;
+		for (int j = 0; j < count && !(anyIntersection && hit >= 0); j += 4) {
+			int g = 36 * (leafGroups[start] + j / 4);
+			int valid = 0;
+			for (int l = 0; l < 4; l++) {
+				int a = g + l, b = g + 12 + l, c = g + 24 + l;
+				float az = triangleLanes[a + kz] - r.okz, bz = triangleLanes[b + kz] - r.okz, cz = triangleLanes[c + kz] - r.okz;
+				float ax = triangleLanes[a + kx] - r.okx - r.sx * az, ay = triangleLanes[a + ky] - r.oky - r.sy * az;
+				float bx = triangleLanes[b + kx] - r.okx - r.sx * bz, by = triangleLanes[b + ky] - r.oky - r.sy * bz;
+				float cx = triangleLanes[c + kx] - r.okx - r.sx * cz, cy = triangleLanes[c + ky] - r.oky - r.sy * cz;
+
+				float w0 = cx * by - cy * bx, w1 = ax * cy - ay * cx, w2 = bx * ay - by * ax;
+				if (w0 == 0 || w1 == 0 || w2 == 0) {
+					w0 = (float) ((double) cx * by - (double) cy * bx);
+					w1 = (float) ((double) ax * cy - (double) ay * cx);
+					w2 = (float) ((double) bx * ay - (double) by * ax);
+				}
+				float det = w0 + w1 + w2;
+				lane[l] = (w0 * r.sz * az + w1 * r.sz * bz + w2 * r.sz * cz) / det;
+				lane[4 + l] = w1 / det;
+				lane[8 + l] = w2 / det;
+				if (!((w0 < 0 || w1 < 0 || w2 < 0) && (w0 > 0 || w1 > 0 || w2 > 0)) && det != 0)
+					valid |= 1 << l;
+			}
+			for (int l = 0; l < 4 && j + l < count; l++) {
+				double tHit = lane[l];
+				if ((valid & (1 << l)) == 0 || tHit < ray.start || tHit > ray.end)
+					continue;
+				ray.end = tHit;
+				hit = start + j + l;
+				hitU = (float) lane[4 + l];
+				hitV = (float) lane[8 + l];
+				if (anyIntersection)
+					break;
+			}
+		}
+		context.counters.countPrimitiveTests(getStatsType(), anyIntersection && hit >= 0 ? hit - start + 1 : count);
+		if (hit < 0)
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, ray, hit, hitU, hitV);
+		return true;
+	}
+
+	/**
+	 * Fill in the intersection record for a hit on triangle t at ray.end with barycentric coordinates (u, v).
+	 */
+	protected void fillRecord(IntersectionRecord outRecord, Ray ray, int t, double u, double v) {
+		double w = 1 - u - v;
+		outRecord.t = ray.end;
+		outRecord.location.set(ray.origin).addMultiple(ray.end, ray.direction);
+		outRecord.surface = this;
+
+		int n0 = triangleNormals == null ? -1 : triangleNormals[3 * t];
+		if (n0 >= 0) {
+			int n1 = 3 * triangleNormals[3 * t + 1], n2 = 3 * triangleNormals[3 * t + 2];
+			n0 *= 3;
+			outRecord.normal.set(
+					w * normals[n0] + u * normals[n1] + v * normals[n2],
+					w * normals[n0 + 1] + u * normals[n1 + 1] + v * normals[n2 + 1],
+					w * normals[n0 + 2] + u * normals[n1 + 2] + v * normals[n2 + 2]).normalize();
+		}
+		else {
+			int i0 = 3 * triangles[3 * t], i1 = 3 * triangles[3 * t + 1], i2 = 3 * triangles[3 * t + 2];
+			double e1x = positions[i1] - positions[i0], e1y = positions[i1 + 1] - positions[i0 + 1], e1z = positions[i1 + 2] - positions[i0 + 2];
+			double e2x = positions[i2] - positions[i0], e2y = positions[i2 + 1] - positions[i0 + 1], e2z = positions[i2 + 2] - positions[i0 + 2];
+			outRecord.normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
+		}
+
+		int t0 = triangleUvs == null ? -1 : triangleUvs[3 * t];
+		if (t0 >= 0) {
+			int t1 = 2 * triangleUvs[3 * t + 1], t2 = 2 * triangleUvs[3 * t + 2];
+			t0 *= 2;
+			outRecord.texCoords.set(
+					w * uvs[t0] + u * uvs[t1] + v * uvs[t2],
+					w * uvs[t0 + 1] + u * uvs[t1 + 1] + v * uvs[t2 + 1]);
+		}
+		else {
+			outRecord.texCoords.set(0, 0);
+		}
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "PackedMesh " + getTriangleCount() + " triangles";
+	}
+}
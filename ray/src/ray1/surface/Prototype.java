@@ -0,0 +1,88 @@
+package ray1.surface;
+
+import java.util.ArrayList;
+
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.accel.LinearBvh;
+
+/**
+ * A group of surfaces, in their own object space, that is placed in the scene
+ * any number of times by Instance surfaces.  A prototype is not rendered by
+ * itself; it is declared in the scene file with &lt;prototype name="..."&gt; and
+ * referred to from each instance.
+ *
+ * The first instance to need it builds the prototype's bottom-level acceleration
+ * structure, a LinearBvh over the renderable surfaces of its children, and every
+ * instance shares it.  A prototype with a single renderable surface that has its
+ * own acceleration structure, such as a PackedMesh, uses that surface directly.
+ */
+public class Prototype {
+
+	/** The surfaces of the prototype, in object space. */
+	protected final ArrayList<Surface> surfaces = new ArrayList<>();
+	public void addSurface(Surface surface) { surfaces.add(surface); }
+	public ArrayList<Surface> getSurfaces() { return surfaces; }
+
+	/** The bottom-level structure, or null if there is a single renderable surface. */
+	protected LinearBvh bvh;
+
+	/** The single renderable surface, if there is only one. */
+	protected Surface single;
+
+	/** The bounds of all the surfaces, in object space; null until built. */
+	protected Vector3d minBound, maxBound;
+	public Vector3d getMinBound() { return minBound; }
+	public Vector3d getMaxBound() { return maxBound; }
+
+	public Prototype() { }
+
+	/**
+	 * Build the bottom-level structure and compute the bounds, if that has not
+	 * been done yet.  Safe to call from several threads at once.
+	 */
+	public synchronized void build() {
+		if (minBound != null)
+			return;
+		ArrayList<Surface> renderable = new ArrayList<>();
+		for (Surface s : surfaces)
+			s.appendRenderableSurfaces(renderable);
+		for (Surface s : renderable)
+			s.init();
+		if (renderable.isEmpty()) {
+			minBound = new Vector3d();
+			maxBound = new Vector3d();
+			return;
+		}
+		if (renderable.size() == 1) {
+			single = renderable.get(0);
+			single.computeBoundingBox();
+			minBound = new Vector3d(single.getMinBound());
+			maxBound = new Vector3d(single.getMaxBound());
+			return;
+		}
+		bvh = new LinearBvh();
+		bvh.setBuilder("sah");
+		bvh.build(renderable.toArray(new Surface[renderable.size()]));
+		Vector3d min = new Vector3d(Double.POSITIVE_INFINITY), max = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (Surface s : renderable) {
+			min.set(Math.min(min.x, s.getMinBound().x), Math.min(min.y, s.getMinBound().y), Math.min(min.z, s.getMinBound().z));
+			max.set(Math.max(max.x, s.getMaxBound().x), Math.max(max.y, s.getMaxBound().y), Math.max(max.z, s.getMaxBound().z));
+		}
+		minBound = min;
+		maxBound = max;
+	}
+
+	/**
+	 * Find the first intersection of a ray, in object space, with the prototype.
+	 *
+	 * @return true if a surface was hit between ray.start and ray.end
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext context) {
+		if (single != null)
+			return single.intersect(outRecord, ray, context);
+		return bvh != null && bvh.intersect(outRecord, ray, false, context);
+	}
+}
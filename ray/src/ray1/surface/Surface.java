@@ -4,6 +4,8 @@ import java.util.ArrayList;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderContext;
+import ray1.RenderStats;
 import ray1.shader.Shader;
 import ray1.OBJFace;
 import ray1.OBJMesh;
@@ -31,6 +33,10 @@ public abstract class Surface {
 	/** The larger coordinate (x, y, z) of the bounding box of this surface */
 	public Vector3d maxBound; 
 	
+	/** The index RenderStats counts intersection tests against this surface's class under. */
+	private final int statsType = RenderStats.surfaceType(getClass());
+	public int getStatsType() { return statsType; }
+	
 	/** Shader to be used to shade this surface. */
 	protected Shader shader = Shader.DEFAULT_SHADER;
 	public void setShader(Shader shader) { this.shader = shader; }
@@ -57,6 +63,17 @@ public abstract class Surface {
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 	
+	/**
+	 * As intersect(outRecord, ray), but taking any scratch objects from the calling
+	 * thread's render context.  Only surfaces that need scratch space to intersect
+	 * a ray, such as meshes with their own acceleration structure, override this.
+	 *
+	 * @param context the render context of the calling thread
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext context) {
+		return intersect(outRecord, ray);
+	}
+	
 	/**
 	 * Add this surface (and any child surfaces) to the array list in.
 	 */
@@ -0,0 +1,96 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.AdaptiveSampler;
+import ray1.Image;
+import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.Scene;
+import ray1.Tile;
+import ray1.accel.NaiveAccelStruct;
+import ray1.camera.PerspectiveCamera;
+
+public class AdaptiveSamplerTests {
+
+    /** A sampler that keeps every pixel active, as if all of them were noisy. */
+    private static class AlwaysActive extends AdaptiveSampler {
+        AlwaysActive(int width, int height, int maxSamples) {
+            super(width, height, maxSamples, 0.02f, 1);
+        }
+
+        @Override
+        public boolean isActive(int x, int y) {
+            return true;
+        }
+    }
+
+    /**
+     * With 2 x 2 samples per round and a limit of 6, the second round takes only the
+     * two samples left and later rounds take none.
+     */
+    @Test
+    public void testLastRoundIsCapped() {
+        Scene scene = new Scene();
+        scene.setCamera(new PerspectiveCamera());
+        scene.setImage(new Image(6, 5));
+        scene.setAccelStruct(new NaiveAccelStruct());
+        scene.init();
+
+        RayTracer rayTracer = new RayTracer();
+        rayTracer.setSamples(2);
+        AdaptiveSampler sampler = new AlwaysActive(6, 5, 6);
+        Tile tile = new Tile(0, 0, 0, 6, 5);
+        RenderContext context = new RenderContext();
+        int[] expected = { 4, 6, 6 };
+        for (int round = 0; round < expected.length; round++) {
+            rayTracer.sampleTile(scene, tile, sampler, round, context);
+            for (int y = 0; y < 5; y++)
+                for (int x = 0; x < 6; x++)
+                    assertEquals("round " + round, expected[round], sampler.getSampleCount(x, y));
+        }
+        assertEquals(6 * 5 * 6, sampler.getTotalSamples());
+    }
+
+    /**
+     * Pixels are flagged while they are noisy, but never once they have reached the
+     * limit, and the sample count image holds the number of samples in each pixel.
+     */
+    @Test
+    public void testSampleCountImage() {
+        AdaptiveSampler sampler = new AdaptiveSampler(3, 2, 4, 0.02f, 1);
+        Colorf black = new Colorf(0, 0, 0), white = new Colorf(1, 1, 1);
+        for (int y = 0; y < 2; y++)
+            for (int x = 0; x < 3; x++)
+                for (int s = 0; s < 2; s++)
+                    sampler.addSample(x, y, black);
+        // Pixel (0, 0) is noisy, and (2, 1) is noisy but has reached the limit
+        sampler.addSample(0, 0, white);
+        sampler.addSample(2, 1, white);
+        sampler.addSample(2, 1, black);
+
+        sampler.markPixels();
+        assertTrue(sampler.isActive(0, 0));
+        assertFalse(sampler.isActive(2, 1));
+
+        Image image = new Image(3, 2);
+        sampler.writeSampleCounts(image);
+        Colorf c = new Colorf();
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                image.getPixelColor(c, x, y);
+                float n = sampler.getSampleCount(x, y);
+                assertEquals(n, c.x, 0);
+                assertEquals(n, c.y, 0);
+                assertEquals(n, c.z, 0);
+            }
+        }
+        assertEquals(3.0f, sampler.getSampleCount(0, 0), 0);
+        assertEquals(4.0f, sampler.getSampleCount(2, 1), 0);
+    }
+}
@@ -0,0 +1,87 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.surface.Box;
+
+public class BoxTests {
+
+    private static Box box() {
+        Box box = new Box();
+        box.setMinPt(new Vector3(-1, 0, 2));
+        box.setMaxPt(new Vector3(1, 4, 3));
+        box.computeBoundingBox();
+        return box;
+    }
+
+    @Test
+    public void testIntersectFaces() {
+        Box box = box();
+        IntersectionRecord its = new IntersectionRecord();
+
+        // Straight onto the bottom face, a quarter of the way across in z and x
+        Ray ray = new Ray(new Vector3d(0.5, -2, 2.25), new Vector3d(0, 1, 0));
+        ray.makeOffsetRay();
+        assertTrue(box.intersect(its, ray));
+        TestUtils.assertDoublesEqual(its.t, 2.0);
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(0.5, 0, 2.25));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0, -1, 0));
+        TestUtils.assertDoublesEqual(its.texCoords.x, 0.25);
+        TestUtils.assertDoublesEqual(its.texCoords.y, 0.75);
+        assertTrue(its.surface == box);
+
+        // Diagonally onto the +x face
+        ray = new Ray(new Vector3d(3, 1, 0.5), new Vector3d(-1, 1, 1).normalize());
+        ray.makeOffsetRay();
+        assertTrue(box.intersect(its, ray));
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(1, 3, 2.5));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(1, 0, 0));
+        TestUtils.assertDoublesEqual(its.t, 2 * Math.sqrt(3));
+    }
+
+    @Test
+    public void testIntersectFromInside() {
+        Box box = box();
+        IntersectionRecord its = new IntersectionRecord();
+
+        // A ray starting inside hits the face it leaves through, with the outward normal
+        Ray ray = new Ray(new Vector3d(0, 1, 2.5), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertTrue(box.intersect(its, ray));
+        TestUtils.assertDoublesEqual(its.t, 0.5);
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0, 0, -1));
+    }
+
+    @Test
+    public void testMisses() {
+        Box box = box();
+        IntersectionRecord its = new IntersectionRecord();
+
+        // Parallel to a pair of faces, outside them
+        Ray ray = new Ray(new Vector3d(2, 1, 0), new Vector3d(0, 0, 1));
+        ray.makeOffsetRay();
+        assertFalse(box.intersect(its, ray));
+
+        // Passing beside a corner
+        ray = new Ray(new Vector3d(-3, 0, 2.5), new Vector3d(1, -1, 0).normalize());
+        ray.makeOffsetRay();
+        assertFalse(box.intersect(its, ray));
+
+        // Pointing away
+        ray = new Ray(new Vector3d(0, -2, 2.5), new Vector3d(0, -1, 0));
+        ray.makeOffsetRay();
+        assertFalse(box.intersect(its, ray));
+
+        // Ending before the box
+        ray = new Ray(new Vector3d(0, -2, 2.5), new Vector3d(0, 1, 0));
+        ray.makeOffsetSegment(1.5);
+        assertFalse(box.intersect(its, ray));
+    }
+}
@@ -0,0 +1,209 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.Checkpoint;
+import ray1.Image;
+import ray1.RayTracer;
+import ray1.Scene;
+import ray1.Tile;
+
+public class CheckpointTests {
+
+    private static final int WIDTH = 40, HEIGHT = 24, TILE_SIZE = 16;
+    private static final String SETTINGS = "test settings";
+
+    private RayTracer.ScenePath oldWorkspace;
+    private Path file;
+    private List<Tile> tiles;
+    private Image image;
+
+    @Before
+    public void setUp() throws IOException {
+        oldWorkspace = RayTracer.sceneWorkspace;
+        file = Files.createTempFile("CheckpointTests", ".checkpoint");
+        tiles = Tile.split(WIDTH, HEIGHT, TILE_SIZE);
+        image = new Image(WIDTH, HEIGHT);
+        Random random = new Random(18);
+        Colorf c = new Colorf();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                c.set(random.nextFloat(), 2 * random.nextFloat(), random.nextFloat() - 0.5f);
+                image.setPixelColor(c, x, y);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        RayTracer.sceneWorkspace = oldWorkspace;
+        Files.deleteIfExists(file);
+    }
+
+    /** Write the given tiles of image to a new checkpoint and close it. */
+    private void writeTiles(int... indices) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(file, SETTINGS, new Image(WIDTH, HEIGHT), tiles, false, 1000);
+        for (int i : indices)
+            checkpoint.tileDone(tiles.get(i), image);
+        checkpoint.close();
+        // Closing twice, as a render and then its cleanup do, is harmless
+        checkpoint.close();
+    }
+
+    /** @return the tiles a resumed checkpoint holds, after checking their pixels in resumed */
+    private Set<Integer> resume(String settings, Image resumed) throws IOException {
+        Set<Integer> done = new HashSet<>();
+        try (Checkpoint checkpoint = new Checkpoint(file, settings, resumed, tiles, true, 1000)) {
+            Colorf a = new Colorf(), b = new Colorf();
+            for (Tile t : tiles) {
+                if (!checkpoint.isDone(t))
+                    continue;
+                done.add(t.index);
+                for (int y = t.y0; y < t.y1; y++) {
+                    for (int x = t.x0; x < t.x1; x++) {
+                        image.getPixelColor(a, x, y);
+                        resumed.getPixelColor(b, x, y);
+                        assertArrayEquals(new float[] { a.x, a.y, a.z }, new float[] { b.x, b.y, b.z }, 0);
+                    }
+                }
+            }
+        }
+        return done;
+    }
+
+    private static Set<Integer> set(Integer... indices) {
+        return new HashSet<>(Arrays.asList(indices));
+    }
+
+    /** @return the offset of the first record, just after the header */
+    private static long headerLength() {
+        return 12 + SETTINGS.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /** @return the length of the record of a tile */
+    private static long recordLength(Tile t) {
+        return 5 * 4 + 12 * t.pixelCount() + 4;
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        writeTiles(4, 0, 5);
+        assertEquals(set(0, 4, 5), resume(SETTINGS, new Image(WIDTH, HEIGHT)));
+
+        // A checkpoint of another render starts afresh
+        assertEquals(set(), resume("other settings", new Image(WIDTH, HEIGHT)));
+        assertEquals(12 + "other settings".length(), Files.size(file));
+    }
+
+    /**
+     * A last record cut short by a crash is dropped, the records before it are
+     * kept, and tiles finished after resuming follow the last good record.
+     */
+    @Test
+    public void testTornRecord() throws IOException {
+        writeTiles(1, 2, 3);
+        long good = headerLength() + recordLength(tiles.get(1)) + recordLength(tiles.get(2));
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+            f.setLength(good + recordLength(tiles.get(3)) - 7);
+        }
+        assertEquals(set(1, 2), resume(SETTINGS, new Image(WIDTH, HEIGHT)));
+        assertEquals(good, Files.size(file));
+
+        Image resumed = new Image(WIDTH, HEIGHT);
+        try (Checkpoint checkpoint = new Checkpoint(file, SETTINGS, resumed, tiles, true, 1000)) {
+            checkpoint.tileDone(tiles.get(3), image);
+        }
+        assertEquals(set(1, 2, 3), resume(SETTINGS, new Image(WIDTH, HEIGHT)));
+    }
+
+    /**
+     * A record whose pixels do not match its CRC is dropped along with every record
+     * after it.
+     */
+    @Test
+    public void testBadCrc() throws IOException {
+        writeTiles(0, 1, 2);
+        long second = headerLength() + recordLength(tiles.get(0));
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+            f.seek(second + 5 * 4 + 100);
+            int b = f.read();
+            f.seek(second + 5 * 4 + 100);
+            f.write(b ^ 0x10);
+        }
+        assertEquals(set(0), resume(SETTINGS, new Image(WIDTH, HEIGHT)));
+        assertEquals(second, Files.size(file));
+    }
+
+    /** A RayTracer whose settings can be changed one at a time. */
+    private static class SettingsTracer extends RayTracer {
+        String settings(Scene scene) throws IOException {
+            return checkpointSettings(scene);
+        }
+    }
+
+    /**
+     * The checkpoint settings change with the scene file and with every option
+     * that changes pixels.
+     */
+    @Test
+    public void testSettingsCoverOptions() throws IOException {
+        Path sceneFile = Files.createTempFile("CheckpointTests", ".xml");
+        try {
+            Files.write(sceneFile, "<scene></scene>".getBytes(StandardCharsets.UTF_8));
+            RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, sceneFile.toString());
+            Scene scene = new Scene();
+            scene.setImage(new Image(WIDTH, HEIGHT));
+
+            Set<String> seen = new HashSet<>();
+            SettingsTracer tracer = new SettingsTracer();
+            assertTrue(seen.add(tracer.settings(scene)));
+            assertEquals(tracer.settings(scene), new SettingsTracer().settings(scene));
+
+            Files.write(sceneFile, "<scene> </scene>".getBytes(StandardCharsets.UTF_8));
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setPackets(true);
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setWavefront(true);
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setSamples(2);
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setMaxSamples(3);
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setAdaptiveThreshold(0.05f);
+            assertTrue(seen.add(tracer.settings(scene)));
+            tracer.setTileSize(8);
+            assertTrue(seen.add(tracer.settings(scene)));
+            scene.setPrecision("single");
+            assertTrue(seen.add(tracer.settings(scene)));
+            scene.setLightSampling("tree");
+            assertTrue(seen.add(tracer.settings(scene)));
+            scene.setLightSamples(4);
+            assertTrue(seen.add(tracer.settings(scene)));
+            scene.setExposure(2);
+            assertTrue(seen.add(tracer.settings(scene)));
+            assertFalse(seen.add(tracer.settings(scene)));
+        }
+        finally {
+            Files.deleteIfExists(sceneFile);
+        }
+    }
+}
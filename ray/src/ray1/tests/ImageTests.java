@@ -0,0 +1,194 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.Image;
+
+public class ImageTests {
+
+    private static Image randomImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        Image image = new Image(width, height);
+        Colorf c = new Colorf();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                c.set(4 * random.nextFloat(), random.nextFloat(), random.nextFloat() - 0.5f);
+                image.setPixelColor(c, x, y);
+            }
+        }
+        return image;
+    }
+
+    /** Check that two images have the same pixels. */
+    private static void assertSamePixels(Image expected, Image actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        Colorf a = new Colorf(), b = new Colorf();
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                expected.getPixelColor(a, x, y);
+                actual.getPixelColor(b, x, y);
+                assertEquals("pixel " + x + ", " + y, a.x, b.x, 0);
+                assertEquals("pixel " + x + ", " + y, a.y, b.y, 0);
+                assertEquals("pixel " + x + ", " + y, a.z, b.z, 0);
+            }
+        }
+    }
+
+    /**
+     * Check that the pixels of actual in [x0, x1) x [y0, y1) are those of expected,
+     * and the others are black.
+     */
+    private static void assertWindow(Image expected, Image actual, int x0, int y0, int x1, int y1) {
+        Colorf a = new Colorf(), b = new Colorf();
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                boolean inside = x >= x0 && x < x1 && y >= y0 && y < y1;
+                if (inside)
+                    expected.getPixelColor(a, x, y);
+                else
+                    a.setZero();
+                actual.getPixelColor(b, x, y);
+                assertEquals("pixel " + x + ", " + y, a.x, b.x, 0);
+                assertEquals("pixel " + x + ", " + y, a.y, b.y, 0);
+                assertEquals("pixel " + x + ", " + y, a.z, b.z, 0);
+            }
+        }
+    }
+
+    private static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("ImageTests", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /** The 8-bit value of one channel, gamma corrected and clamped. */
+    private static int toByte(float v) {
+        v = (float) Math.pow(v, 1 / 2.2f);
+        return (int) (Math.max(Math.min(v, 1.0f), 0.0f) * 255f + 0.5f);
+    }
+
+    /**
+     * A copy has the same pixels as the original, and changing it leaves the
+     * original alone.
+     */
+    @Test
+    public void testCopy() {
+        Image image = randomImage(13, 9, 1);
+        Image copy = new Image(image);
+        assertSamePixels(image, copy);
+
+        Colorf before = new Colorf(), after = new Colorf();
+        image.getPixelColor(before, 4, 7);
+        copy.setPixelColor(new Colorf(7, 8, 9), 4, 7);
+        image.getPixelColor(after, 4, 7);
+        assertEquals(before.x, after.x, 0);
+        assertEquals(before.y, after.y, 0);
+        assertEquals(before.z, after.z, 0);
+    }
+
+    /**
+     * The streamed PNG decodes to the gamma-corrected, clamped pixels, with the
+     * top row of the image, y = height - 1, first.
+     */
+    @Test
+    public void testPNGPixels() throws IOException {
+        Image image = randomImage(37, 11, 2);
+        File file = tempFile(".png");
+        image.write(file.getPath());
+        BufferedImage png = ImageIO.read(file);
+        assertEquals(37, png.getWidth());
+        assertEquals(11, png.getHeight());
+        Colorf c = new Colorf();
+        for (int y = 0; y < 11; y++) {
+            for (int x = 0; x < 37; x++) {
+                image.getPixelColor(c, x, y);
+                int rgb = png.getRGB(x, 10 - y);
+                assertEquals("pixel " + x + ", " + y, toByte(c.x), (rgb >> 16) & 0xff);
+                assertEquals("pixel " + x + ", " + y, toByte(c.y), (rgb >> 8) & 0xff);
+                assertEquals("pixel " + x + ", " + y, toByte(c.z), rgb & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Writing an image twice, or writing a copy of it, gives the same file.
+     */
+    @Test
+    public void testRepeatedWrites() throws IOException {
+        Image image = randomImage(13, 9, 3);
+        for (String suffix : new String[] { ".exr", ".png" }) {
+            File first = tempFile(suffix), second = tempFile(suffix), copy = tempFile(suffix);
+            boolean hdr = suffix.equals(".exr");
+            if (hdr) {
+                image.writeHDR(first.getPath());
+                image.writeHDR(second.getPath());
+                new Image(image).writeHDR(copy.getPath());
+            }
+            else {
+                image.write(first.getPath());
+                image.write(second.getPath());
+                new Image(image).write(copy.getPath());
+            }
+            byte[] bytes = Files.readAllBytes(first.toPath());
+            assertArrayEquals(bytes, Files.readAllBytes(second.toPath()));
+            assertArrayEquals(bytes, Files.readAllBytes(copy.toPath()));
+        }
+    }
+
+    /**
+     * Writing an image twice, reading it back, and writing it again after the read
+     * must give the same pixels each time.
+     */
+    @Test
+    public void testWriteReadBack() throws IOException {
+        Image image = randomImage(13, 9, 1);
+        File file = tempFile(".exr");
+        for (int pass = 0; pass < 2; pass++) {
+            image.writeHDR(file.getPath());
+            Image read = new Image(13, 9);
+            read.readHDR(file.getPath());
+            assertWindow(image, read, 0, 0, 13, 9);
+        }
+
+        // Write an image that was itself read from a file
+        Image read = new Image(13, 9);
+        read.readHDR(file.getPath());
+        File copy = tempFile(".exr");
+        read.writeHDR(copy.getPath());
+        Image again = new Image(13, 9);
+        again.readHDR(copy.getPath());
+        assertWindow(image, again, 0, 0, 13, 9);
+        assertWindow(image, new Image(again), 0, 0, 13, 9);
+    }
+
+    /**
+     * A window written after the whole image, and after another window, holds just
+     * its own pixels, in place.
+     */
+    @Test
+    public void testWindowedWrites() throws IOException {
+        Image image = randomImage(11, 8, 2);
+        File file = tempFile(".exr");
+        image.writeHDR(file.getPath());
+        int[][] windows = { { 2, 1, 7, 5 }, { 0, 5, 11, 8 }, { 3, 0, 4, 8 } };
+        for (int[] w : windows) {
+            image.writeHDR(file.getPath(), w[0], w[1], w[2], w[3], null);
+            Image read = new Image(11, 8);
+            read.readHDR(file.getPath());
+            assertWindow(image, read, w[0], w[1], w[2], w[3]);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.shader.Lambertian;
+import ray1.surface.Instance;
+import ray1.surface.PackedMesh;
+import ray1.surface.Prototype;
+
+public class InstanceTests {
+
+    private static Instance instance(PackedMesh mesh) {
+        Prototype prototype = new Prototype();
+        prototype.addSurface(mesh);
+        Instance instance = new Instance();
+        instance.setPrototype(prototype);
+        return instance;
+    }
+
+    /**
+     * The unit quad scaled by (2, 3, 1), turned 90 degrees about z, then moved by
+     * (1, 2, 3): object point (x, y, 0) lands at (1 - 3y, 2 + 2x, 3).
+     */
+    @Test
+    public void testTransformedHits() {
+        PackedMesh mesh = PackedMeshTests.quad(false);
+        Instance instance = instance(mesh);
+        instance.setScale(new Vector3(2, 3, 1));
+        instance.setRotate(new Vector3(0, 0, 90));
+        instance.setTranslate(new Vector3(1, 2, 3));
+        instance.computeBoundingBox();
+        TestUtils.assertVector3dEqual(instance.getMinBound(), new Vector3d(-2, 2, 3));
+        TestUtils.assertVector3dEqual(instance.getMaxBound(), new Vector3d(1, 4, 3));
+
+        Random random = new Random(14);
+        RenderContext context = new RenderContext();
+        IntersectionRecord record = new IntersectionRecord();
+        for (int i = 0; i < 100; i++) {
+            double x = 0.05 + 0.9 * random.nextDouble(), y = 0.05 + 0.9 * random.nextDouble();
+            Vector3d target = new Vector3d(1 - 3 * y, 2 + 2 * x, 3);
+            Vector3d origin = new Vector3d(4 * random.nextDouble() - 2, 4 * random.nextDouble(), 8);
+            // A direction that is not of unit length, so t depends on the direction's scale
+            Vector3d direction = target.clone().sub(origin).mul(0.5);
+            Ray ray = new Ray(origin, direction);
+            ray.makeOffsetRay();
+            assertTrue(instance.intersect(record, ray, context));
+            TestUtils.assertVector3dEqual(record.location, target);
+            // t is measured along the world-space ray
+            TestUtils.assertDoublesEqual(record.t, 2);
+            TestUtils.assertVector3dEqual(record.normal, new Vector3d(0, 0, 1));
+            assertTrue(record.surface == mesh);
+
+            // Rays that end before the quad miss it
+            ray.makeOffsetSegment(1.9);
+            assertFalse(instance.intersect(record, ray, context));
+        }
+
+        // The point the untransformed quad would cover is missed
+        Ray ray = new Ray(new Vector3d(0.5, 0.5, 8), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertFalse(instance.intersect(record, ray, context));
+    }
+
+    /**
+     * Under a non-uniform scale applied after a rotation, the normal stays
+     * perpendicular to the transformed quad and of unit length, on the side the
+     * object-space normal is on.
+     */
+    @Test
+    public void testNormalsUnderNonUniformScale() {
+        PackedMesh mesh = PackedMeshTests.quad(false);
+        Instance instance = instance(mesh);
+        instance.setRotate(new Vector3(40, 25, 0));
+        instance.setMatrix(new double[] {
+                1, 0, 0, 0,
+                0, 3, 0, 0,
+                0, 0, 0.5, 0 });
+        instance.computeBoundingBox();
+
+        // The quad's edges in world space, and the object-space normal carried along as a direction
+        Vector3d e1 = new Vector3d(1, 0, 0), e2 = new Vector3d(0, 1, 0), normal = new Vector3d(0, 0, 1);
+        instance.getToWorld().mulDir(e1);
+        instance.getToWorld().mulDir(e2);
+        instance.getToWorld().mulDir(normal);
+        Vector3d point = new Vector3d(0.3, 0.6, 0);
+        instance.getToWorld().mulPos(point);
+        Vector3d outside = e1.clone().cross(e2).normalize();
+        // The transformation keeps orientation, so the cross product is on the normal's side
+        assertTrue(outside.dot(normal) > 0);
+
+        IntersectionRecord record = new IntersectionRecord();
+        Ray ray = new Ray(point.clone().add(outside.clone().mul(3)), outside.clone().negate());
+        ray.makeOffsetRay();
+        assertTrue(instance.intersect(record, ray));
+        TestUtils.assertDoublesEqual(record.t, 3);
+        TestUtils.assertVector3dEqual(record.location, point);
+        TestUtils.assertDoublesEqual(record.normal.len(), 1);
+        TestUtils.assertDoublesEqual(record.normal.dot(e1), 0);
+        TestUtils.assertDoublesEqual(record.normal.dot(e2), 0);
+        TestUtils.assertVector3dEqual(record.normal, outside);
+    }
+
+    /**
+     * Hits are shaded with the instance's shader only when it is given one.
+     */
+    @Test
+    public void testShaderOverride() {
+        PackedMesh mesh = PackedMeshTests.quad(false);
+        Instance plain = instance(mesh), shaded = instance(mesh);
+        shaded.setPrototype(plain.getPrototype());
+        shaded.setShader(new Lambertian());
+        plain.computeBoundingBox();
+        shaded.computeBoundingBox();
+
+        IntersectionRecord record = new IntersectionRecord();
+        Ray ray = new Ray(new Vector3d(0.5, 0.5, 1), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertTrue(plain.intersect(record, ray));
+        assertTrue(record.surface == mesh);
+        assertTrue(shaded.intersect(record, ray));
+        assertTrue(record.surface == shaded);
+    }
+
+    @Test
+    public void testMatrixSize() {
+        Instance instance = new Instance();
+        instance.setMatrix(new double[16]);
+        instance.setMatrix(new double[12]);
+        try {
+            instance.setMatrix(new double[9]);
+            assertTrue("no error for a 9-entry matrix", false);
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("Instance matrix must have 12 or 16 entries", e.getMessage());
+        }
+    }
+}
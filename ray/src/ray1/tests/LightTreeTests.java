@@ -0,0 +1,133 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Light;
+import ray1.LightTree;
+import ray1.RenderContext;
+import ray1.Scene;
+import ray1.accel.NaiveAccelStruct;
+import ray1.camera.PerspectiveCamera;
+
+public class LightTreeTests {
+
+    private static List<Light> lights(Random random, int n) {
+        List<Light> lights = new ArrayList<Light>();
+        for (int i = 0; i < n; i++) {
+            Light light = new Light();
+            light.setPosition(new Vector3(20 * random.nextFloat() - 10, 4 * random.nextFloat() - 1,
+                    20 * random.nextFloat() - 10));
+            light.setIntensity(new Colorf(random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            lights.add(light);
+        }
+        return lights;
+    }
+
+    /**
+     * The descent splits [0, 1) into one interval per light, of length equal to the
+     * probability it reports, so sampling on a fine grid of u must find each light
+     * as often as its probability says, and every light above the tangent plane
+     * must be possible.
+     */
+    @Test
+    public void testSampleProbabilities() {
+        Random random = new Random(11);
+        List<Light> lights = lights(random, 37);
+        LightTree tree = new LightTree(lights);
+        assertEquals(2 * 37 - 1, tree.getNodeCount());
+
+        int steps = 1 << 18;
+        double[] pdf = new double[1];
+        for (int trial = 0; trial < 20; trial++) {
+            Vector3d p = new Vector3d(16 * random.nextDouble() - 8, random.nextDouble(), 16 * random.nextDouble() - 8);
+            Vector3d n = new Vector3d(random.nextDouble() - 0.5, 1, random.nextDouble() - 0.5).normalize();
+
+            int[] count = new int[lights.size()];
+            double[] prob = new double[lights.size()];
+            int misses = 0;
+            for (int s = 0; s < steps; s++) {
+                int l = tree.sample(p, n, (s + 0.5) / steps, pdf);
+                if (l < 0) {
+                    misses++;
+                    continue;
+                }
+                count[l]++;
+                prob[l] = pdf[0];
+            }
+
+            double total = misses / (double) steps;
+            for (int l = 0; l < lights.size(); l++) {
+                Vector3d toLight = new Vector3d(lights.get(l).position).sub(p);
+                if (toLight.dot(n) > 0)
+                    assertTrue("light " + l + " above the surface was never chosen", count[l] > 0);
+                assertEquals(prob[l], count[l] / (double) steps, 2.0 / steps);
+                total += prob[l];
+            }
+            assertEquals(1, total, 1e-3);
+        }
+    }
+
+    /** @return the unshadowed diffuse contribution of light at p with normal n, for one channel */
+    private static double contribution(Light light, Vector3d p, Vector3d n) {
+        Vector3d toLight = new Vector3d(light.position).sub(p);
+        double r2 = toLight.lenSq();
+        return Math.max(0, toLight.dot(n) / Math.sqrt(r2)) * light.intensity.y / r2;
+    }
+
+    /**
+     * The weighted sum of the lights Scene.chooseLights picks is an unbiased
+     * estimate of the sum over all lights: averaged over many hits, it converges
+     * to the exact sum.  The hits are moved by amounts too small to change the
+     * sum, but enough to change the random numbers the lights are drawn with.
+     * There are few lights, so that the weights of lights drawn twice are
+     * added up often.
+     */
+    @Test
+    public void testChosenLightWeightsAreUnbiased() {
+        Random random = new Random(24);
+        Scene scene = new Scene();
+        scene.setCamera(new PerspectiveCamera());
+        scene.setAccelStruct(new NaiveAccelStruct());
+        for (Light light : lights(random, 6))
+            scene.addLight(light);
+        scene.setLightSampling("tree");
+        scene.setLightSamples(4);
+        scene.init();
+        assertTrue(scene.isSamplingLights());
+
+        RenderContext.Frame frame = new RenderContext().frame(0);
+        IntersectionRecord record = new IntersectionRecord();
+        for (int trial = 0; trial < 5; trial++) {
+            Vector3d p = new Vector3d(16 * random.nextDouble() - 8, random.nextDouble(), 16 * random.nextDouble() - 8);
+            Vector3d n = new Vector3d(random.nextDouble() - 0.5, 1, random.nextDouble() - 0.5).normalize();
+            double exact = 0;
+            for (Light light : scene.getLights())
+                exact += contribution(light, p, n);
+
+            int hits = 20000;
+            double sum = 0;
+            record.normal.set(n);
+            for (int h = 0; h < hits; h++) {
+                record.location.set(p.x + 1e-9 * random.nextDouble(), p.y, p.z);
+                int count = scene.chooseLights(record, frame);
+                assertTrue(count <= 4);
+                for (int i = 0; i < count; i++) {
+                    assertTrue(frame.lights[i] == scene.getLights().get(frame.lightIndices[i]));
+                    sum += frame.lightWeights[i] * contribution(frame.lights[i], p, n);
+                }
+            }
+            assertEquals(1, sum / hits / exact, 0.01);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ray1.MeshCache;
+import ray1.RayTracer;
+import ray1.surface.PackedMesh;
+
+public class MeshCacheTests {
+
+    private Path oldDirectory;
+    private boolean oldEnabled;
+    private RayTracer.ScenePath oldWorkspace;
+    private Path directory;
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        oldDirectory = MeshCache.getDirectory();
+        oldEnabled = MeshCache.isEnabled();
+        oldWorkspace = RayTracer.sceneWorkspace;
+        directory = Files.createTempDirectory("MeshCacheTests");
+        MeshCache.setDirectory(directory);
+        MeshCache.setEnabled(true);
+        MeshCache.setRefresh(false);
+
+        // A grid of 8 x 8 quads, enough triangles for leaves of different sizes
+        StringBuilder obj = new StringBuilder();
+        for (int j = 0; j <= 8; j++)
+            for (int i = 0; i <= 8; i++)
+                obj.append("v ").append(i).append(' ').append(j).append(" 0\n");
+        for (int j = 0; j < 8; j++)
+            for (int i = 0; i < 8; i++) {
+                int v = 9 * j + i + 1;
+                obj.append("f ").append(v).append(' ').append(v + 1).append(' ').append(v + 10).append(' ')
+                        .append(v + 9).append('\n');
+            }
+        source = directory.resolve("grid.obj").toFile();
+        Files.write(source.toPath(), obj.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        MeshCache.setDirectory(oldDirectory);
+        MeshCache.setEnabled(oldEnabled);
+        RayTracer.sceneWorkspace = oldWorkspace;
+        File[] files = directory.toFile().listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        Files.deleteIfExists(directory);
+    }
+
+    private MeshCache.Entry sampleEntry() {
+        MeshCache.Entry entry = new MeshCache.Entry();
+        entry.put("floats", new float[] { 1.5f, -0.0f, Float.MIN_VALUE, Float.NaN });
+        entry.put("ints", new int[] { 7, -1, Integer.MAX_VALUE });
+        entry.put("empty", new float[0]);
+        entry.put("leafSize", new int[] { 4 });
+        return entry;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        MeshCache.save(source.getPath(), "test", sampleEntry());
+        MeshCache.Entry entry = MeshCache.load(source.getPath(), "test");
+        assertNotNull(entry);
+        assertArrayEquals(new float[] { 1.5f, -0.0f, Float.MIN_VALUE, Float.NaN }, entry.getFloats("floats"), 0);
+        assertArrayEquals(new int[] { 7, -1, Integer.MAX_VALUE }, entry.getInts("ints"));
+        assertEquals(0, entry.getFloats("empty").length);
+        assertEquals(4, entry.getInt("leafSize", 0));
+        assertNull(entry.getFloats("ints"));
+        assertNull(entry.getInts("missing"));
+
+        // Entries of another kind, or with the cache turned off, are not found
+        assertNull(MeshCache.load(source.getPath(), "other"));
+        MeshCache.setEnabled(false);
+        assertNull(MeshCache.load(source.getPath(), "test"));
+    }
+
+    @Test
+    public void testModifiedSourceInvalidates() throws IOException {
+        MeshCache.save(source.getPath(), "test", sampleEntry());
+        FileTime time = Files.getLastModifiedTime(source.toPath());
+        Files.setLastModifiedTime(source.toPath(), FileTime.fromMillis(time.toMillis() + 2000));
+        assertNull(MeshCache.load(source.getPath(), "test"));
+
+        MeshCache.save(source.getPath(), "test", sampleEntry());
+        assertNotNull(MeshCache.load(source.getPath(), "test"));
+        time = Files.getLastModifiedTime(source.toPath());
+        Files.write(source.toPath(), "# one more line\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(source.toPath(), time);
+        assertNull(MeshCache.load(source.getPath(), "test"));
+    }
+
+    /**
+     * An entry shorter or longer than its header says is ignored without an error
+     * being reported, since it is found to be the wrong size before it is mapped.
+     */
+    @Test
+    public void testTruncatedEntryIsIgnored() throws IOException {
+        MeshCache.save(source.getPath(), "test", sampleEntry());
+        File[] files = directory.toFile().listFiles((d, name) -> name.endsWith(".cache"));
+        assertEquals(1, files.length);
+        byte[] bytes = Files.readAllBytes(files[0].toPath());
+        PrintStream oldErr = System.err;
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(err, true));
+        try {
+            Files.write(files[0].toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+            assertNull(MeshCache.load(source.getPath(), "test"));
+            Files.write(files[0].toPath(), Arrays.copyOf(bytes, bytes.length + 4));
+            assertNull(MeshCache.load(source.getPath(), "test"));
+        }
+        finally {
+            System.setErr(oldErr);
+        }
+        assertEquals("", err.toString());
+    }
+
+    private PackedMesh loadPacked(int leafSize) throws IOException {
+        PackedMesh mesh = new PackedMesh();
+        mesh.setLeafSize(leafSize);
+        mesh.setData(source.getPath());
+        mesh.computeBoundingBox();
+        return mesh;
+    }
+
+    /**
+     * A cached PackedMesh whose BVH was built with another leaf size builds it
+     * again and replaces the entry, and the mesh is the same either way.
+     */
+    @Test
+    public void testLeafSizeMismatchRebuilds() throws IOException {
+        RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, source.getPath());
+        PackedMesh first = loadPacked(4);
+        assertEquals(4, MeshCache.load(source.getPath(), "packed").getInt("leafSize", 0));
+
+        PackedMesh second = loadPacked(2);
+        assertEquals(2, MeshCache.load(source.getPath(), "packed").getInt("leafSize", 0));
+        assertEquals(first.getTriangleCount(), second.getTriangleCount());
+
+        PackedMesh third = loadPacked(2);
+        assertEquals(2, MeshCache.load(source.getPath(), "packed").getInt("leafSize", 0));
+        assertEquals(first.getTriangleCount(), third.getTriangleCount());
+        assertEquals(first.getMinBound().x, third.getMinBound().x, 0);
+        assertEquals(first.getMaxBound().y, third.getMaxBound().y, 0);
+    }
+}
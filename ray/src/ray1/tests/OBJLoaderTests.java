@@ -0,0 +1,163 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import ray1.OBJLoader;
+import ray1.OBJMesh.OBJFileFormatException;
+
+public class OBJLoaderTests {
+
+    private static File write(String contents) throws IOException {
+        File file = File.createTempFile("OBJLoaderTests", ".obj");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static OBJLoader load(String contents) throws IOException {
+        return OBJLoader.load(write(contents).getPath());
+    }
+
+    /**
+     * Every number must be read as Float.parseFloat reads it, including exponents,
+     * signs, missing digits before or after the point, more digits than a long
+     * holds, and values that round to subnormals or overflow.
+     */
+    @Test
+    public void testFloats() throws IOException {
+        String[] numbers = { "0", "-0", "1", "+2.5", "-.5", "3.", "1e3", "1E3", "-2.5e-2", "6.02e+23",
+                "1e-45", "1.4e-45", "1e-40", "3.4028235e38", "1e39", "0.1", "0.30000001192092896",
+                "123456789012345678901234567890", "0.000000000000000000000000000000123456789",
+                "16777217", "1.00000005960464477539062500000000000001" };
+        Random random = new Random(3);
+        StringBuilder obj = new StringBuilder();
+        String[] all = new String[3 * ((numbers.length + 2) / 3) + 3000];
+        for (int i = 0; i < all.length; i++) {
+            if (i < numbers.length)
+                all[i] = numbers[i];
+            else if (i % 3 == 0)
+                all[i] = Float.toString(Float.intBitsToFloat(random.nextInt()) % 1e6f);
+            else if (i % 3 == 1)
+                all[i] = String.format("%.9e", (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(60) - 30));
+            else
+                all[i] = Double.toString(random.nextGaussian());
+            if (all[i].contains("NaN"))
+                all[i] = "0";
+        }
+        for (int i = 0; i < all.length; i += 3)
+            obj.append("v ").append(all[i]).append(' ').append(all[i + 1]).append(' ').append(all[i + 2]).append('\n');
+
+        OBJLoader loader = load(obj.toString());
+        assertEquals(all.length / 3, loader.getPositionCount());
+        for (int i = 0; i < all.length; i++)
+            assertEquals(all[i], Float.floatToIntBits(Float.parseFloat(all[i])),
+                    Float.floatToIntBits(loader.positions[i]));
+    }
+
+    /**
+     * Comments, blank lines, carriage returns, tabs, ignored statements and extra
+     * components on v, vt and vn lines do not change what is read.
+     */
+    @Test
+    public void testCommentsAndWhitespace() throws IOException {
+        OBJLoader loader = load("# a comment\n"
+                + "\n"
+                + "o thing\n"
+                + "v 0 0 0 # origin\r\n"
+                + "v\t1 0 0 1.0\n"
+                + "   v 0 1 0\n"
+                + "vt 0.5 0.25 0 # w is ignored\n"
+                + "vn 0 0 1 # normal\n"
+                + "vn 0 1 0 0\n"
+                + "s off\n"
+                + "f 1/1/1 2/1/1 3/1/2 # a triangle\r\n"
+                + "#f 1 2 3\n");
+        assertArrayEquals(new float[] { 0, 0, 0, 1, 0, 0, 0, 1, 0 }, loader.positions, 0);
+        assertArrayEquals(new float[] { 0.5f, 0.25f }, loader.uvs, 0);
+        assertArrayEquals(new float[] { 0, 0, 1, 0, 1, 0 }, loader.normals, 0);
+        assertEquals(1, loader.getFaceCount());
+        assertArrayEquals(new int[] { 0, 1, 2 }, loader.cornerPositions);
+        assertArrayEquals(new int[] { 0, 0, 0 }, loader.cornerUvs);
+        assertArrayEquals(new int[] { 0, 0, 1 }, loader.cornerNormals);
+    }
+
+    /**
+     * Negative indices count back from the last item read so far, and faces may
+     * leave out uvs or normals.
+     */
+    @Test
+    public void testIndices() throws IOException {
+        OBJLoader loader = load("v 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\n"
+                + "f -3//-1 -2//-1 -1//-1\n"
+                + "v 1 1 0\nvt 0 0\nvt 1 1\n"
+                + "f 2/-2 -1/2 3/1 1/-1\n"
+                + "f 1 2 -1\n");
+        assertEquals(3, loader.getFaceCount());
+        assertEquals(4, loader.getTriangleCount());
+        assertArrayEquals(new int[] { 0, 3, 7, 10 }, loader.faceStarts);
+        assertArrayEquals(new int[] { 0, 1, 2, 1, 3, 2, 0, 0, 1, 3 }, loader.cornerPositions);
+        assertArrayEquals(new int[] { -1, -1, -1, 0, 1, 0, 1, -1, -1, -1 }, loader.cornerUvs);
+        assertArrayEquals(new int[] { 0, 0, 0, -1, -1, -1, -1, -1, -1, -1 }, loader.cornerNormals);
+    }
+
+    /**
+     * A file large enough to be split into chunks gives the same arrays when the
+     * chunks are read in parallel, including negative indices that refer to
+     * vertices in earlier chunks.
+     */
+    @Test
+    public void testChunksMatchSerial() throws IOException {
+        Random random = new Random(5);
+        StringBuilder obj = new StringBuilder();
+        int vertices = 0;
+        while (obj.length() < 3 << 20) {
+            obj.append("v ").append(random.nextFloat()).append(' ').append(random.nextFloat()).append(' ')
+                    .append(random.nextFloat()).append('\n');
+            vertices++;
+            if (vertices >= 3 && random.nextInt(3) == 0)
+                obj.append("f -1 -2 ").append(1 + random.nextInt(vertices)).append('\n');
+        }
+        File file = write(obj.toString());
+        OBJLoader serial = OBJLoader.load(file.getPath());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            OBJLoader parallel = OBJLoader.load(file.getPath(), pool);
+            assertArrayEquals(serial.positions, parallel.positions, 0);
+            assertArrayEquals(serial.faceStarts, parallel.faceStarts);
+            assertArrayEquals(serial.cornerPositions, parallel.cornerPositions);
+        }
+        finally {
+            pool.shutdown();
+        }
+        for (int f = 0; f < serial.getFaceCount(); f++) {
+            int start = serial.faceStarts[f];
+            assertEquals(serial.cornerPositions[start] - 1, serial.cornerPositions[start + 1]);
+        }
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        String[] bad = { "v 1 2\n", "v 1 x 2\n", "vt 0.5\n", "vn 0 0\n", "v 0 0 0\nf 1 1\n", "v 0 0 0\nf 1 a 1\n",
+                "v 0 0 0\nf 0 1 1\n", "v 0 0 0\nf 1/ 1 1 x\n" };
+        for (String contents : bad) {
+            try {
+                load(contents);
+                fail("no error for " + contents);
+            }
+            catch (OBJFileFormatException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Light;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.RenderStats;
+import ray1.Scene;
+import ray1.accel.NaiveAccelStruct;
+import ray1.shader.Shader;
+import ray1.surface.Box;
+import ray1.surface.Surface;
+
+public class OccluderCacheTests {
+
+    /** A shader that only exposes Shader.isShadowed. */
+    private static class ShadowShader extends Shader {
+        @Override
+        public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth,
+                RenderContext context) { }
+
+        boolean shadowed(Scene scene, Light light, IntersectionRecord record, RenderContext context) {
+            return isShadowed(scene, light, record, context);
+        }
+    }
+
+    /** A box hanging between the origin and a light straight above it. */
+    private static Box blocker() {
+        Box box = new Box();
+        box.setMinPt(new Vector3(-1, 2, -1));
+        box.setMaxPt(new Vector3(1, 3, 1));
+        box.computeBoundingBox();
+        return box;
+    }
+
+    private static IntersectionRecord hitAt(double x) {
+        IntersectionRecord record = new IntersectionRecord();
+        record.location.set(x, 0, 0);
+        record.normal.set(0, 1, 0);
+        return record;
+    }
+
+    /**
+     * A shadow ray blocked by the light's last occluder is answered by it, and the
+     * lookup and the hit are counted; a ray it does not block is only counted as a
+     * lookup.
+     */
+    @Test
+    public void testCachedOccluderBlocksRay() {
+        Scene scene = new Scene();
+        Light light = new Light();
+        light.setPosition(new Vector3(0, 5, 0));
+        scene.addLight(light);
+        Box box = blocker();
+        RenderContext context = new RenderContext();
+        ShadowShader shader = new ShadowShader();
+
+        context.setLastOccluder(light, box);
+        assertTrue(shader.shadowed(scene, light, hitAt(0.5), context));
+        assertEquals(1, context.counters.rays[RenderStats.SHADOW]);
+        assertEquals(1, context.counters.occluderLookups);
+        assertEquals(1, context.counters.occluderHits);
+
+        assertFalse(shader.shadowed(scene, light, hitAt(8), context));
+        assertEquals(2, context.counters.rays[RenderStats.SHADOW]);
+        assertEquals(2, context.counters.occluderLookups);
+        assertEquals(1, context.counters.occluderHits);
+        assertTrue(context.lastOccluder(light) == box);
+    }
+
+    /**
+     * An any-hit query records the top-level surface that ended it, which is what
+     * Shader.isShadowed caches.
+     */
+    @Test
+    public void testAnyHitRecordsOccluder() {
+        Box box = blocker(), aside = new Box();
+        aside.setMinPt(new Vector3(5, 0, 5));
+        aside.setMaxPt(new Vector3(6, 1, 6));
+        aside.computeBoundingBox();
+        NaiveAccelStruct accel = new NaiveAccelStruct();
+        accel.build(new Surface[] { aside, box });
+
+        RenderContext context = new RenderContext();
+        Ray ray = new Ray(new Vector3d(0, 0, 0), new Vector3d(0, 1, 0));
+        ray.makeOffsetSegment(5);
+        assertTrue(accel.intersect(context.shadowRecord, ray, true, context));
+        assertTrue(context.occluder == box);
+
+        context.occluder = null;
+        ray = new Ray(new Vector3d(8, 0, 0), new Vector3d(0, 1, 0));
+        ray.makeOffsetSegment(5);
+        assertFalse(accel.intersect(context.shadowRecord, ray, true, context));
+        assertTrue(context.occluder == null);
+    }
+}
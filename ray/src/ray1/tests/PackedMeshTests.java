@@ -0,0 +1,226 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Vector2;
+import egl.math.Vector2d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.OBJFace;
+import ray1.OBJLoader;
+import ray1.OBJMesh;
+import ray1.Ray;
+import ray1.RenderContext;
+import ray1.surface.PackedMesh;
+
+public class PackedMeshTests {
+
+    /** A unit quad in the z = 0 plane, given as a single four-vertex face. */
+    static PackedMesh quad(boolean withNormals) {
+        OBJMesh m = new OBJMesh();
+        m.positions.add(new Vector3(0, 0, 0));
+        m.positions.add(new Vector3(1, 0, 0));
+        m.positions.add(new Vector3(1, 1, 0));
+        m.positions.add(new Vector3(0, 1, 0));
+        m.uvs.add(new Vector2(0, 0));
+        m.uvs.add(new Vector2(1, 0));
+        m.uvs.add(new Vector2(1, 1));
+        m.uvs.add(new Vector2(0, 1));
+        OBJFace f = new OBJFace(4, true, withNormals);
+        for (int i = 0; i < 4; i++) {
+            f.positions[i] = i;
+            f.uvs[i] = i;
+        }
+        if (withNormals) {
+            m.normals.add(new Vector3(0, 0, -1));
+            for (int i = 0; i < 4; i++)
+                f.normals[i] = 0;
+        }
+        m.faces.add(f);
+        PackedMesh mesh = new PackedMesh(m);
+        mesh.computeBoundingBox();
+        return mesh;
+    }
+
+    @Test
+    public void testIntersectQuad() {
+        System.out.println("\nTesting packed mesh intersection.");
+        PackedMesh mesh = quad(false);
+        assertTrue(mesh.getTriangleCount() == 2);
+
+        IntersectionRecord its = new IntersectionRecord();
+        Ray ray = new Ray(new Vector3d(0.25, 0.75, 2), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertTrue(mesh.intersect(its, ray));
+        TestUtils.assertDoublesEqual(its.t, 2);
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(0.25, 0.75, 0));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0, 0, 1));
+        assertTrue(its.texCoords.equalsApprox(new Vector2d(0.25, 0.75), 1e-6));
+        assertTrue(its.surface == mesh);
+
+        ray = new Ray(new Vector3d(1.25, 0.75, 2), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertFalse(mesh.intersect(its, ray));
+
+        // Segment that ends before the quad
+        ray = new Ray(new Vector3d(0.5, 0.5, 2), new Vector3d(0, 0, -1));
+        ray.makeOffsetSegment(1.5);
+        assertFalse(mesh.intersect(its, ray));
+    }
+
+    @Test
+    public void testInterpolatedNormals() {
+        PackedMesh mesh = quad(true);
+        IntersectionRecord its = new IntersectionRecord();
+        Ray ray = new Ray(new Vector3d(0.6, 0.3, -1), new Vector3d(0, 0, 1));
+        ray.makeOffsetRay();
+        assertTrue(mesh.intersect(its, ray));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0, 0, -1));
+        TestUtils.assertVector3dEqual(mesh.getMinBound(), new Vector3d(0, 0, 0));
+        TestUtils.assertVector3dEqual(mesh.getMaxBound(), new Vector3d(1, 1, 0));
+    }
+
+    /**
+     * Compare single-precision intersection with double precision on the bundled
+     * meshes: rays from around each mesh towards random points inside it should
+     * agree on whether and where they hit.
+     */
+    @Test
+    public void testSinglePrecisionAccuracy() throws Exception {
+        for (String file : new String[] { "data/meshes/bunny.obj", "data/meshes/teapot.obj" }) {
+            PackedMesh mesh = new PackedMesh(OBJLoader.load(file).toOBJMesh());
+            mesh.computeBoundingBox();
+            Vector3d center = mesh.getMinBound().clone().add(mesh.getMaxBound()).mul(0.5);
+            double radius = mesh.getMaxBound().clone().sub(mesh.getMinBound()).len();
+            Random random = new Random(4620);
+            RenderContext context = new RenderContext();
+            IntersectionRecord single = new IntersectionRecord(), exact = new IntersectionRecord();
+
+            int rays = 5000, disagreements = 0;
+            double maxError = 0;
+            for (int i = 0; i < rays; i++) {
+                Vector3d origin = randomDirection(random).mul(2 * radius).add(center);
+                Vector3d target = new Vector3d(
+                        lerp(mesh.getMinBound().x, mesh.getMaxBound().x, random.nextDouble()),
+                        lerp(mesh.getMinBound().y, mesh.getMaxBound().y, random.nextDouble()),
+                        lerp(mesh.getMinBound().z, mesh.getMaxBound().z, random.nextDouble()));
+                Ray ray = new Ray(origin, target.sub(origin).normalize());
+                ray.makeOffsetRay();
+                mesh.setSinglePrecision(false);
+                boolean hitExact = mesh.intersect(exact, ray, context);
+                mesh.setSinglePrecision(true);
+                boolean hitSingle = mesh.intersect(single, ray, context);
+                if (hitExact != hitSingle)
+                    disagreements++;
+                else if (hitExact)
+                    maxError = Math.max(maxError, Math.abs(single.t - exact.t) / exact.t);
+            }
+            assertTrue(file + ": single and double precision disagree on " + disagreements + " rays",
+                    disagreements <= rays / 1000);
+            assertTrue(file + ": relative error in t of " + maxError, maxError < 1e-5);
+        }
+    }
+
+    /**
+     * The single-precision triangle test is watertight: rays from inside a closed
+     * mesh, aimed exactly at its vertices and the midpoints of its edges, where the
+     * triangles meet, never slip through between them, whether the triangles are
+     * tested one at a time or four at a time.  Some of those rays do slip through
+     * in double precision, which is not watertight, so the rays are hard ones.
+     */
+    @Test
+    public void testSinglePrecisionIsWatertight() throws Exception {
+        OBJMesh obj = OBJLoader.load("data/meshes/sphere.obj").toOBJMesh();
+        for (String format : new String[] { "float", "wide" }) {
+            PackedMesh mesh = new PackedMesh(obj);
+            mesh.setNodeFormat(format);
+            mesh.computeBoundingBox();
+            mesh.setSinglePrecision(true);
+            assertWatertight(obj, mesh);
+        }
+    }
+
+    private static void assertWatertight(OBJMesh obj, PackedMesh mesh) {
+        Vector3d center = mesh.getMinBound().clone().add(mesh.getMaxBound()).mul(0.5);
+        double radius = mesh.getMaxBound().clone().sub(mesh.getMinBound()).len();
+        Random random = new Random(4620);
+        RenderContext context = new RenderContext();
+        IntersectionRecord its = new IntersectionRecord();
+
+        int rays = 0, exactMisses = 0;
+        for (OBJFace f : obj.faces) {
+            for (int j = 0; j < f.positions.length; j++) {
+                Vector3d a = new Vector3d(obj.positions.get(f.positions[j]));
+                Vector3d b = new Vector3d(obj.positions.get(f.positions[(j + 1) % f.positions.length]));
+                for (Vector3d target : new Vector3d[] { a, a.clone().add(b).mul(0.5) }) {
+                    Vector3d origin = randomDirection(random).mul(0.1 * radius * random.nextDouble()).add(center);
+                    Ray ray = new Ray(origin, target.sub(origin));
+                    ray.makeOffsetRay();
+                    assertTrue("a ray slipped through in single precision", mesh.intersect(its, ray, context));
+                    mesh.setSinglePrecision(false);
+                    if (!mesh.intersect(its, ray, context))
+                        exactMisses++;
+                    mesh.setSinglePrecision(true);
+                    rays++;
+                }
+            }
+        }
+        assertTrue("only " + exactMisses + " of " + rays + " rays miss in double precision",
+                exactMisses > rays / 20);
+    }
+
+    /**
+     * Meshes with wide nodes test their triangles four at a time, in double and in
+     * single precision; they should find exactly the hits of meshes with binary
+     * nodes, which test them one at a time.
+     */
+    @Test
+    public void testWideNodesFindTheSameHits() throws Exception {
+        OBJMesh obj = OBJLoader.load("data/meshes/bunny.obj").toOBJMesh();
+        PackedMesh flat = new PackedMesh(obj), wide = new PackedMesh(obj);
+        wide.setNodeFormat("wide");
+        flat.computeBoundingBox();
+        wide.computeBoundingBox();
+        Vector3d center = flat.getMinBound().clone().add(flat.getMaxBound()).mul(0.5);
+        double radius = flat.getMaxBound().clone().sub(flat.getMinBound()).len();
+        RenderContext context = new RenderContext();
+        IntersectionRecord a = new IntersectionRecord(), b = new IntersectionRecord();
+        for (boolean single : new boolean[] { false, true }) {
+            flat.setSinglePrecision(single);
+            wide.setSinglePrecision(single);
+            Random random = new Random(22);
+            int hits = 0;
+            for (int i = 0; i < 2000; i++) {
+                Vector3d origin = randomDirection(random).mul(2 * radius).add(center);
+                Vector3d target = randomDirection(random).mul(0.3 * radius).add(center);
+                Ray ray = new Ray(origin, target.sub(origin).normalize());
+                ray.makeOffsetRay();
+                boolean hitFlat = flat.intersect(a, ray, context);
+                assertEquals(hitFlat, wide.intersect(b, ray, context));
+                if (!hitFlat)
+                    continue;
+                hits++;
+                assertEquals(a.t, b.t, 0);
+                assertEquals(a.texCoords.x, b.texCoords.x, 0);
+                assertEquals(a.texCoords.y, b.texCoords.y, 0);
+                assertTrue(a.location.equals(b.location));
+            }
+            assertTrue(hits > 1000);
+        }
+    }
+
+    private static Vector3d randomDirection(Random random) {
+        return new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+}
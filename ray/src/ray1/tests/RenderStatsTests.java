@@ -0,0 +1,99 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ray1.RenderStats;
+import ray1.Tile;
+import ray1.surface.Box;
+import ray1.surface.PackedMesh;
+
+public class RenderStatsTests {
+
+    /**
+     * Remove the values that depend on timing, which are the only numbers written
+     * with a decimal point or exponent, or null when there is nothing to divide.
+     */
+    private static String withoutTimes(String json) {
+        return json.replaceAll("-?[0-9]+\\.[0-9]*(e[-+]?[0-9]+)?", "#");
+    }
+
+    @Test
+    public void testJSON() {
+        List<Tile> tiles = Arrays.asList(new Tile(0, 0, 0, 4, 2), new Tile(1, 0, 2, 4, 3));
+        RenderStats stats = new RenderStats(4, 3, tiles, 2);
+
+        // Two threads' worth of counts, one of which has seen no occluder lookups
+        RenderStats.Counters a = new RenderStats.Counters(), b = new RenderStats.Counters();
+        for (int i = 0; i < 12; i++)
+            a.countRay(RenderStats.PRIMARY);
+        for (int i = 0; i < 5; i++)
+            a.countRay(RenderStats.SHADOW);
+        b.countRay(RenderStats.REFLECTION);
+        a.nodesVisited = 40;
+        b.nodesVisited = 2;
+        a.occluderLookups = 4;
+        a.occluderHits = 1;
+        a.countPrimitiveTests(RenderStats.surfaceType(Box.class), 7);
+        b.countPrimitiveTests(new Box().getStatsType(), 2);
+        b.countPrimitiveTests(RenderStats.surfaceType(PackedMesh.class), 30);
+        stats.add(a);
+        stats.add(b);
+        stats.addTileTime(tiles.get(1), 1500);
+        stats.finish();
+
+        // Adding clears the counters
+        assertEquals(0, a.rays[RenderStats.PRIMARY]);
+        assertEquals(0, a.nodesVisited);
+        stats.add(a);
+
+        assertEquals(12, stats.getRays(RenderStats.PRIMARY));
+        assertEquals(18, stats.getTotalRays());
+        assertEquals(9, stats.getPrimitiveTests(Box.class));
+        assertEquals(30, stats.getPrimitiveTests(PackedMesh.class));
+        assertEquals(0.25, stats.getOccluderHitRate(), 0);
+
+        String expected = "{\n"
+                + "  \"scene\": \"scenes/a \\\"quoted\\\"\\\\name\",\n"
+                + "  \"width\": 4,\n"
+                + "  \"height\": 3,\n"
+                + "  \"threads\": 2,\n"
+                + "  \"seconds\": #,\n"
+                + "  \"rays\": {\n"
+                + "    \"primary\": { \"count\": 12, \"perSecond\": # },\n"
+                + "    \"shadow\": { \"count\": 5, \"perSecond\": # },\n"
+                + "    \"reflection\": { \"count\": 1, \"perSecond\": # },\n"
+                + "    \"total\": { \"count\": 18, \"perSecond\": # }\n"
+                + "  },\n"
+                + "  \"bvhNodesVisited\": 42,\n"
+                + "  \"occluderCache\": { \"lookups\": 4, \"hits\": 1, \"hitRate\": # },\n"
+                + "  \"primitiveTests\": {\n";
+        String json = withoutTimes(stats.toJSON("scenes/a \"quoted\"\\name"));
+        assertTrue(json, json.startsWith(expected));
+        String rest = json.substring(expected.length());
+        // Surface types are listed in the order they were first seen by any test
+        assertTrue(rest, rest.contains("    \"Box\": 9") && rest.contains("    \"PackedMesh\": 30"));
+        assertTrue(rest, rest.endsWith("\n  },\n"
+                + "  \"tiles\": [\n"
+                + "    { \"index\": 0, \"x0\": 0, \"y0\": 0, \"x1\": 4, \"y1\": 2, \"seconds\": # },\n"
+                + "    { \"index\": 1, \"x0\": 0, \"y0\": 2, \"x1\": 4, \"y1\": 3, \"seconds\": # }\n"
+                + "  ]\n"
+                + "}\n"));
+        assertTrue(stats.toJSON("x").contains("\"seconds\": 1.50000e-06 }"));
+    }
+
+    @Test
+    public void testEmptyJSON() {
+        RenderStats stats = new RenderStats(0, 0, Arrays.<Tile>asList(), 1);
+        stats.finish();
+        String json = withoutTimes(stats.toJSON("empty"));
+        assertTrue(json, json.contains("\"occluderCache\": { \"lookups\": 0, \"hits\": 0, \"hitRate\": null },\n"));
+        assertTrue(json, json.contains("  \"primitiveTests\": {},\n"));
+        assertTrue(json, json.endsWith("  \"tiles\": []\n}\n"));
+    }
+}
@@ -0,0 +1,138 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import egl.math.Vector3;
+import ray1.Image;
+import ray1.Light;
+import ray1.RayTracer;
+import ray1.RenderContext;
+import ray1.Scene;
+import ray1.Tile;
+import ray1.accel.NaiveAccelStruct;
+import ray1.camera.PerspectiveCamera;
+import ray1.shader.Lambertian;
+import ray1.surface.Sphere;
+
+/**
+ * The renderers that find intersections in other ways than shadeRay must make the
+ * same image.
+ */
+public class RendererTests {
+
+    private static final int WIDTH = 27, HEIGHT = 21;
+
+    /**
+     * Two lit spheres on a large one, one of them a mirror, so that the image has
+     * background, shadows and reflections.
+     */
+    static Scene makeScene() {
+        Scene scene = new Scene();
+        PerspectiveCamera camera = new PerspectiveCamera();
+        camera.setViewPoint(new Vector3(0, 1, 6));
+        camera.setViewDir(new Vector3(0, -0.15f, -1));
+        camera.setViewUp(new Vector3(0, 1, 0));
+        camera.setViewWidth(1.2f);
+        camera.setViewHeight(0.9f);
+        scene.setCamera(camera);
+        scene.setImage(new Image(WIDTH, HEIGHT));
+        scene.setBackColor(new Colorf(0.1f, 0.2f, 0.3f));
+        scene.setAccelStruct(new NaiveAccelStruct());
+
+        Lambertian matte = new Lambertian();
+        matte.setDiffuseColor(new Colorf(0.7f, 0.5f, 0.3f));
+        Lambertian mirror = new Lambertian();
+        mirror.setDiffuseColor(new Colorf(0.1f, 0.1f, 0.1f));
+        mirror.setMirrorCoefficient(new Colorf(0.6f, 0.6f, 0.6f));
+        scene.addShader(matte);
+        scene.addShader(mirror);
+
+        float[][] spheres = { { -0.8f, 0.5f, 0, 0.5f }, { 0.7f, 0.6f, -0.3f, 0.6f }, { 0, -100, 0, 100 } };
+        for (int i = 0; i < spheres.length; i++) {
+            Sphere sphere = new Sphere();
+            sphere.setCenter(new Vector3(spheres[i][0], spheres[i][1], spheres[i][2]));
+            sphere.setRadius(spheres[i][3]);
+            sphere.setShader(i == 1 ? mirror : matte);
+            scene.addSurface(sphere);
+        }
+
+        Light key = new Light();
+        key.setPosition(new Vector3(3, 5, 4));
+        key.setIntensity(new Colorf(30, 30, 30));
+        scene.addLight(key);
+        Light fill = new Light();
+        fill.setPosition(new Vector3(-4, 3, 1));
+        fill.setIntensity(new Colorf(8, 9, 10));
+        scene.addLight(fill);
+
+        scene.init();
+        return scene;
+    }
+
+    static void assertImagesEqual(Image expected, Image actual) {
+        assertImagesEqual(expected, actual, 0);
+    }
+
+    /**
+     * Check that the images differ by at most tolerance times the larger of 1
+     * and the expected value in each channel.
+     */
+    static void assertImagesEqual(Image expected, Image actual, float tolerance) {
+        Colorf a = new Colorf(), b = new Colorf();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                expected.getPixelColor(a, x, y);
+                actual.getPixelColor(b, x, y);
+                assertEquals("red at " + x + ", " + y, a.x, b.x, tolerance * Math.max(1, Math.abs(a.x)));
+                assertEquals("green at " + x + ", " + y, a.y, b.y, tolerance * Math.max(1, Math.abs(a.y)));
+                assertEquals("blue at " + x + ", " + y, a.z, b.z, tolerance * Math.max(1, Math.abs(a.z)));
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the image made by rendering one tile with the given renderer
+     */
+    static Image render(Scene scene, boolean packets) {
+        RayTracer rayTracer = new RayTracer();
+        Tile tile = new Tile(0, 0, 0, WIDTH, HEIGHT);
+        RenderContext context = new RenderContext();
+        scene.getImage().clear();
+        if (packets)
+            rayTracer.renderTilePackets(scene, tile, context);
+        else
+            rayTracer.renderTile(scene, tile, context);
+        return new Image(scene.getImage());
+    }
+
+    /**
+     * @return a copy of the image made by rendering one tile breadth-first, with
+     * samples x samples samples per pixel
+     */
+    static Image renderWavefront(Scene scene, int samples) {
+        Tile tile = new Tile(0, 0, 0, WIDTH, HEIGHT);
+        RenderContext context = new RenderContext();
+        scene.getImage().clear();
+        context.wavefront().renderTile(scene, tile, samples, context);
+        return new Image(scene.getImage());
+    }
+
+    @Test
+    public void testPacketsMatchRecursive() {
+        Scene scene = makeScene();
+        assertImagesEqual(render(scene, false), render(scene, true));
+    }
+
+    /**
+     * The wavefront renderer adds up the same light as the recursion, in another
+     * order, so the images agree up to rounding.
+     */
+    @Test
+    public void testWavefrontMatchesRecursive() {
+        Scene scene = makeScene();
+        assertImagesEqual(render(scene, false), renderWavefront(scene, 1), 1e-5f);
+    }
+}
@@ -10,7 +10,21 @@ import org.junit.runners.Suite;
     SphereTests.class,
     TriangleTests.class,
     SceneTests.class,
-    LambertianTests.class
+    LambertianTests.class,
+    AdaptiveSamplerTests.class,
+    RendererTests.class,
+    ImageTests.class,
+    OBJLoaderTests.class,
+    MeshCacheTests.class,
+    TextureTests.class,
+    InstanceTests.class,
+    RenderStatsTests.class,
+    TileMergerTests.class,
+    CheckpointTests.class,
+    BoxTests.class,
+    LightTreeTests.class,
+    OccluderCacheTests.class,
+    PackedMeshTests.class
     })
 
 public class TestSuite {
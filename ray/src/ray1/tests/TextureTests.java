@@ -0,0 +1,240 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import egl.math.Color;
+import egl.math.Colorf;
+import egl.math.Vector2;
+import ray1.RayTracer;
+import ray1.shader.ClampTexture;
+import ray1.shader.MipMap;
+import ray1.shader.RepeatTexture;
+import ray1.shader.Texture;
+
+public class TextureTests {
+
+    private RayTracer.ScenePath oldWorkspace;
+
+    @Before
+    public void setUp() {
+        oldWorkspace = RayTracer.sceneWorkspace;
+    }
+
+    @After
+    public void tearDown() {
+        RayTracer.sceneWorkspace = oldWorkspace;
+    }
+
+    private static BufferedImage randomImage(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                image.setRGB(x, y, random.nextInt(1 << 24));
+        return image;
+    }
+
+    /** Write image to a PNG file and load it into texture the way a scene would. */
+    private static <T extends Texture> T load(T texture, BufferedImage image) throws IOException {
+        File file = File.createTempFile("TextureTests", ".png");
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+        RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, file.getPath());
+        texture.setImage(file.getPath());
+        return texture;
+    }
+
+    private static void assertColor(String what, Colorf expected, Colorf actual, float tolerance) {
+        assertEquals(what, expected.x, actual.x, tolerance);
+        assertEquals(what, expected.y, actual.y, tolerance);
+        assertEquals(what, expected.z, actual.z, tolerance);
+    }
+
+    /** @return the color wa * a + wb * b */
+    private static Colorf blend(float wa, Colorf a, float wb, Colorf b) {
+        return new Colorf(wa * a.x + wb * b.x, wa * a.y + wb * b.y, wa * a.z + wb * b.z);
+    }
+
+    /** @return the mean of four colors */
+    private static Colorf mean(Colorf a, Colorf b, Colorf c, Colorf d) {
+        return new Colorf((a.x + b.x + c.x + d.x) / 4, (a.y + b.y + c.y + d.y) / 4, (a.z + b.z + c.z + d.z) / 4);
+    }
+
+    /**
+     * Level 0 holds the image's colors, and each further level averages 2 x 2
+     * blocks of the one before, repeating the last row or column when a size is
+     * odd, down to 1 x 1.
+     */
+    private static void checkLevels(BufferedImage image, int[][] sizes) {
+        MipMap mipMap = new MipMap(image);
+        assertEquals(sizes.length, mipMap.getLevelCount());
+        Colorf a = new Colorf(), b = new Colorf(), c = new Colorf(), d = new Colorf(), t = new Colorf();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                mipMap.getTexel(0, x, y, t);
+                assertColor("level 0 at " + x + ", " + y, new Colorf(Color.fromIntRGB(image.getRGB(x, y))), t, 0);
+            }
+        }
+        for (int l = 0; l < sizes.length; l++) {
+            assertEquals("width of level " + l, sizes[l][0], mipMap.getWidth(l));
+            assertEquals("height of level " + l, sizes[l][1], mipMap.getHeight(l));
+            if (l == 0)
+                continue;
+            int pw = mipMap.getWidth(l - 1), ph = mipMap.getHeight(l - 1);
+            for (int y = 0; y < sizes[l][1]; y++) {
+                for (int x = 0; x < sizes[l][0]; x++) {
+                    int x1 = Math.min(2 * x + 1, pw - 1), y1 = Math.min(2 * y + 1, ph - 1);
+                    mipMap.getTexel(l - 1, 2 * x, 2 * y, a);
+                    mipMap.getTexel(l - 1, x1, 2 * y, b);
+                    mipMap.getTexel(l - 1, 2 * x, y1, c);
+                    mipMap.getTexel(l - 1, x1, y1, d);
+                    Colorf mean = mean(a, b, c, d);
+                    mipMap.getTexel(l, x, y, t);
+                    assertColor("level " + l + " at " + x + ", " + y, mean, t, 1e-6f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoLevels() {
+        BufferedImage image = randomImage(8, 4, 1);
+        checkLevels(image, new int[][] { { 8, 4 }, { 4, 2 }, { 2, 1 }, { 1, 1 } });
+
+        // With power-of-two sizes the last level is the mean of the whole image
+        MipMap mipMap = new MipMap(image);
+        Colorf mean = new Colorf(), t = new Colorf();
+        for (int y = 0; y < 4; y++)
+            for (int x = 0; x < 8; x++)
+                mean.add(new Colorf(Color.fromIntRGB(image.getRGB(x, y))));
+        mean.mul(1 / 32.0f);
+        mipMap.getTexel(3, 0, 0, t);
+        assertColor("last level", mean, t, 1e-6f);
+    }
+
+    @Test
+    public void testNonPowerOfTwoLevels() {
+        checkLevels(randomImage(5, 3, 2), new int[][] { { 5, 3 }, { 3, 2 }, { 2, 1 }, { 1, 1 } });
+        checkLevels(randomImage(1, 7, 3), new int[][] { { 1, 7 }, { 1, 4 }, { 1, 2 }, { 1, 1 } });
+        checkLevels(randomImage(1, 1, 4), new int[][] { { 1, 1 } });
+    }
+
+    /**
+     * Nearest lookups give the texel the textures looked up in the image before
+     * they used a MipMap, rounding exactly as they did.
+     */
+    @Test
+    public void testNearestMatchesImage() throws IOException {
+        BufferedImage image = randomImage(7, 5, 5);
+        RepeatTexture repeat = load(new RepeatTexture(), image);
+        ClampTexture clamp = load(new ClampTexture(), image);
+        Random random = new Random(6);
+        Colorf c = new Colorf();
+        for (int i = 0; i < 2000; i++) {
+            Vector2 uv = new Vector2(3 * random.nextFloat() - 1, 3 * random.nextFloat() - 1);
+            if (i < 100)
+                uv.set((i % 10) / 7.0f - 0.5f / 7, (i / 10) / 5.0f - 0.5f / 5);
+
+            int x = (int) (uv.x * 7 + 0.5f);
+            int y = (int) ((1.0 - uv.y) * 5 + 0.5f);
+            x = x % 7;
+            if (x < 0) x += 7;
+            y = y % 5;
+            if (y < 0) y += 5;
+            repeat.getTexColor(uv, c);
+            assertColor("repeat at " + uv, new Colorf(Color.fromIntRGB(image.getRGB(x, y))), c, 0);
+
+            x = Math.max(0, Math.min(6, (int) (uv.x * 7 + 0.5f)));
+            y = Math.max(0, Math.min(4, (int) ((1.0f - uv.y) * 5 + 0.5f)));
+            clamp.getTexColor(uv, c);
+            assertColor("clamp at " + uv, new Colorf(Color.fromIntRGB(image.getRGB(x, y))), c, 0);
+        }
+    }
+
+    /**
+     * Bilinear lookups give the texel at each texel center, and interpolate
+     * linearly between neighboring centers.
+     */
+    @Test
+    public void testBilinear() throws IOException {
+        BufferedImage image = randomImage(6, 4, 7);
+        RepeatTexture texture = load(new RepeatTexture(), image);
+        texture.setFilter("bilinear");
+        MipMap mipMap = texture.getMipMap();
+        Colorf c = new Colorf(), t00 = new Colorf(), t10 = new Colorf(), t01 = new Colorf(), t11 = new Colorf();
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 6; x++) {
+                mipMap.getTexel(0, x, y, t00);
+                mipMap.getTexel(0, (x + 1) % 6, y, t10);
+                mipMap.getTexel(0, x, (y + 1) % 4, t01);
+                mipMap.getTexel(0, (x + 1) % 6, (y + 1) % 4, t11);
+
+                texture.getTexColor(new Vector2(x / 6.0f, 1 - y / 4.0f), c);
+                assertColor("center of " + x + ", " + y, t00, c, 1e-5f);
+
+                texture.getTexColor(new Vector2((x + 0.25f) / 6, 1 - y / 4.0f), c);
+                assertColor("along x from " + x + ", " + y, blend(0.75f, t00, 0.25f, t10), c, 1e-5f);
+
+                texture.getTexColor(new Vector2((x + 0.5f) / 6, 1 - (y + 0.5f) / 4), c);
+                assertColor("between " + x + ", " + y + " and its neighbors", mean(t00, t10, t01, t11), c, 1e-5f);
+            }
+        }
+    }
+
+    /**
+     * A footprint the size of a level's texels gives that level's texels at their
+     * centers; footprints between two levels blend them; footprints covering the
+     * whole image give the last level everywhere.
+     */
+    @Test
+    public void testTrilinear() throws IOException {
+        BufferedImage image = randomImage(8, 8, 8);
+        RepeatTexture texture = load(new RepeatTexture(), image);
+        MipMap mipMap = texture.getMipMap();
+        Colorf c = new Colorf(), t = new Colorf(), t1 = new Colorf();
+        for (int l = 0; l < mipMap.getLevelCount(); l++) {
+            int w = mipMap.getWidth(l), h = mipMap.getHeight(l);
+            float footprint = (1 << l) / 8.0f;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    // Level l's texel centers are the means of the level 0 centers they cover
+                    Vector2 uv = new Vector2((x + 0.5f * (1 - w / 8.0f)) / w, 1 - (y + 0.5f * (1 - h / 8.0f)) / h);
+                    texture.getTexColor(uv, footprint, c);
+                    mipMap.getTexel(l, x, y, t);
+                    assertColor("level " + l + " at " + x + ", " + y, t, c, 1e-5f);
+                }
+            }
+        }
+
+        // Halfway between levels 0 and 1, at the center of level 0 texel (2, 2), which
+        // is three quarters of the way from the center of level 1 texel (0, 0) to (1, 1)
+        texture.getTexColor(new Vector2(0.25f, 0.75f), (float) Math.sqrt(2) / 8, c);
+        Colorf level1 = new Colorf();
+        float[] weights = { 0.25f, 0.75f };
+        for (int y = 0; y <= 1; y++)
+            for (int x = 0; x <= 1; x++) {
+                mipMap.getTexel(1, x, y, t1);
+                level1.add(blend(weights[x] * weights[y], t1, 0, t1));
+            }
+        mipMap.getTexel(0, 2, 2, t);
+        assertColor("between levels", blend(0.5f, t, 0.5f, level1), c, 1e-5f);
+
+        mipMap.getTexel(mipMap.getLevelCount() - 1, 0, 0, t);
+        Random random = new Random(9);
+        for (int i = 0; i < 20; i++) {
+            texture.getTexColor(new Vector2(random.nextFloat(), random.nextFloat()), 4, c);
+            assertColor("whole image", t, c, 1e-6f);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.Image;
+import ray1.ImagePart;
+import ray1.Tile;
+import ray1.TileMerger;
+
+public class TileMergerTests {
+
+    private static final int WIDTH = 100, HEIGHT = 70, TILE_SIZE = 32;
+
+    /** A part of the image that is picked without rendering it. */
+    private static class TestPart extends ImagePart {
+        List<Tile> select() {
+            return select(Tile.split(WIDTH, HEIGHT, TILE_SIZE), WIDTH, HEIGHT, TILE_SIZE);
+        }
+
+        /** Write the pixels of image in this part's tiles, and garbage around them, as a partial image. */
+        File write(Image image, List<Tile> tiles) throws IOException {
+            Image part = new Image(WIDTH, HEIGHT);
+            Colorf c = new Colorf(-1, 99, 0);
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    part.setPixelColor(c, x, y);
+            for (Tile t : tiles) {
+                for (int y = t.y0; y < t.y1; y++) {
+                    for (int x = t.x0; x < t.x1; x++) {
+                        image.getPixelColor(c, x, y);
+                        part.setPixelColor(c, x, y);
+                    }
+                }
+            }
+            File file = File.createTempFile("TileMergerTests", ".exr");
+            file.deleteOnExit();
+            part.writeHDR(file.getPath(), bounds[0], bounds[1], bounds[2], bounds[3], attributes);
+            return file;
+        }
+    }
+
+    private static TestPart chunk(int i, int n) {
+        TestPart part = new TestPart();
+        part.parseTiles(i + "/" + n);
+        return part;
+    }
+
+    private static Image randomImage(long seed) {
+        Random random = new Random(seed);
+        Image image = new Image(WIDTH, HEIGHT);
+        Colorf c = new Colorf();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                c.set(4 * random.nextFloat(), random.nextFloat(), random.nextFloat() - 0.5f);
+                image.setPixelColor(c, x, y);
+            }
+        }
+        return image;
+    }
+
+    private static void assertImagesEqual(Image expected, Image actual) {
+        Colorf a = new Colorf(), b = new Colorf();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                expected.getPixelColor(a, x, y);
+                actual.getPixelColor(b, x, y);
+                assertArrayEquals("pixel " + x + ", " + y, new float[] { a.x, a.y, a.z }, new float[] { b.x, b.y, b.z }, 0);
+            }
+        }
+    }
+
+    /**
+     * Tiles are numbered row by row from the lower left, cover every pixel once,
+     * and come out the same every time.
+     */
+    @Test
+    public void testSplitIsDeterministic() {
+        List<Tile> tiles = Tile.split(WIDTH, HEIGHT, TILE_SIZE);
+        assertEquals(12, tiles.size());
+        int[] coverage = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile t = tiles.get(i);
+            assertEquals(i, t.index);
+            assertEquals(TILE_SIZE * (i % 4), t.x0);
+            assertEquals(TILE_SIZE * (i / 4), t.y0);
+            for (int y = t.y0; y < t.y1; y++)
+                for (int x = t.x0; x < t.x1; x++)
+                    coverage[y * WIDTH + x]++;
+        }
+        for (int c : coverage)
+            assertEquals(1, c);
+        assertEquals(tiles.toString(), Tile.split(WIDTH, HEIGHT, TILE_SIZE).toString());
+    }
+
+    /**
+     * The chunks of any count are runs of tiles, in order, that together hold every
+     * tile once and differ in length by at most one, and a chunk picked again by
+     * another ImagePart is the same.
+     */
+    @Test
+    public void testChunksPartitionTiles() {
+        for (int n = 1; n <= 12; n++) {
+            List<Integer> all = new ArrayList<>();
+            int shortest = Integer.MAX_VALUE, longest = 0;
+            for (int i = 0; i < n; i++) {
+                List<Tile> part = chunk(i, n).select();
+                assertEquals(part.toString(), chunk(i, n).select().toString());
+                for (Tile t : part)
+                    all.add(t.index);
+                shortest = Math.min(shortest, part.size());
+                longest = Math.max(longest, part.size());
+            }
+            for (int i = 0; i < all.size(); i++)
+                assertEquals((int) all.get(i), i);
+            assertEquals(12, all.size());
+            assertTrue(longest - shortest <= 1);
+        }
+    }
+
+    /**
+     * Chunks written as partial images merge, in any order, into exactly the
+     * whole image, taking only the pixels of each chunk's tiles.
+     */
+    @Test
+    public void testMergeChunks() throws IOException {
+        Image image = randomImage(17);
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestPart part = chunk(i, 5);
+            files.add(part.write(image, part.select()));
+        }
+        TileMerger merger = new TileMerger();
+        for (int i = files.size() - 1; i >= 0; i--)
+            merger.add(files.get(i).getPath());
+        assertEquals(0, merger.getMissingPixels());
+        assertImagesEqual(image, merger.getImage());
+    }
+
+    /**
+     * Windows merge into the pixels they cover, and the pixels no window covers
+     * are reported as the tiles that hold them.
+     */
+    @Test
+    public void testMergeWindows() throws IOException {
+        Image image = randomImage(18);
+        int[][] windows = { { 0, 0, 40, 70 }, { 40, 0, 100, 30 }, { 40, 30, 100, 70 } };
+        List<File> files = new ArrayList<>();
+        for (int[] w : windows) {
+            TestPart part = new TestPart();
+            part.parseWindow(new String[] { "" + w[0], "" + w[1], "" + w[2], "" + w[3] });
+            files.add(part.write(image, part.select()));
+        }
+
+        TileMerger merger = new TileMerger();
+        merger.add(files.get(0).getPath());
+        merger.add(files.get(1).getPath());
+        assertEquals(60 * 40, merger.getMissingPixels());
+        assertEquals(Arrays.asList(1, 2, 3, 5, 6, 7, 9, 10, 11), merger.getMissingTiles());
+
+        merger.add(files.get(2).getPath());
+        assertEquals(0, merger.getMissingPixels());
+        assertEquals(0, merger.getMissingTiles().size());
+        assertImagesEqual(image, merger.getImage());
+    }
+
+    /**
+     * Malformed -tiles and -window arguments, more than one of them, and parts
+     * with no pixels in the image, are reported as PartArgumentExceptions.
+     */
+    @Test
+    public void testBadArguments() {
+        for (String arg : new String[] { "", "3", "a-b", "1-2-3", "-1/2", "5-2", "3/3", "0/0", "99999999999-1" }) {
+            try {
+                new TestPart().parseTiles(arg);
+                fail("no error for -tiles " + arg);
+            }
+            catch (ImagePart.PartArgumentException e) {
+                // expected
+            }
+        }
+        String[][] windows = { {}, { "0", "0", "10" }, { "0", "0", "x", "10" }, { "-1", "0", "10", "10" },
+                { "5", "0", "5", "10" }, { "0", "10", "10", "3" } };
+        for (String[] coords : windows) {
+            try {
+                new TestPart().parseWindow(coords);
+                fail("no error for -window " + String.join(" ", coords));
+            }
+            catch (ImagePart.PartArgumentException e) {
+                // expected
+            }
+        }
+
+        TestPart twice = new TestPart();
+        twice.parseTiles("0-3");
+        try {
+            twice.parseWindow(new String[] { "0", "0", "10", "10" });
+            fail("no error for -tiles and -window together");
+        }
+        catch (ImagePart.PartArgumentException e) {
+            // expected
+        }
+
+        TestPart outside = new TestPart();
+        outside.parseWindow(new String[] { "100", "0", "120", "10" });
+        TestPart tooFew = new TestPart();
+        tooFew.parseTiles("12-15");
+        for (TestPart part : new TestPart[] { outside, tooFew }) {
+            try {
+                part.select();
+                fail("no error for a part outside the image");
+            }
+            catch (ImagePart.PartArgumentException e) {
+                // expected
+            }
+        }
+    }
+}